@@ -0,0 +1,43 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+
+/*
+ * ORU_R01 messages used by the benchmarks.
+ *
+ * The corpus is under src/jmh/resources/corpus, one message per file, named
+ * oru_r01_<version>_obx<count>.hl7. Segments are stored one per line and
+ * are joined with CR when loaded, as they arrive over MLLP.
+ *
+ * version: v23 or v251
+ * obxCount: 1, 10 or 50
+ */
+public final class BenchmarkCorpus {
+	public static final String[] VERSIONS = { "v23", "v251" };
+	public static final String[] OBX_COUNTS = { "1", "10", "50" };
+
+	private BenchmarkCorpus() {
+	}
+
+	public static String load(String version, String obxCount) throws IOException {
+		String name = String.format("/corpus/oru_r01_%s_obx%02d.hl7", version, Integer.parseInt(obxCount));
+		try (InputStream in = BenchmarkCorpus.class.getResourceAsStream(name)) {
+			if (in == null) {
+				throw new IOException("Corpus message " + name + " is not on the classpath");
+			}
+
+			String text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+			return text.strip().replace("\r\n", "\r").replace('\n', '\r');
+		}
+	}
+
+	public static Message parse(String version, String obxCount) throws IOException, HL7Exception {
+		return PipeParser.getInstanceWithNoValidation().parse(load(version, obxCount));
+	}
+}
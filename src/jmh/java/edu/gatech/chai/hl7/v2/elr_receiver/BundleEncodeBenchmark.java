@@ -0,0 +1,101 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.hl7v2.model.Message;
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+
+/*
+ * JSON encoding of the converted bundles. This is what goes on the wire to
+ * the FHIR controller and into the retry queue, and what the queue drainer
+ * parses back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BundleEncodeBenchmark {
+	@Param({ "v23", "v251" })
+	public String version;
+
+	@Param({ "1", "10", "50" })
+	public String obxCount;
+
+	private FhirContext ctx;
+	private List<Bundle> bundles;
+	private List<byte[]> queuePayloads;
+
+	@Setup
+	public void setup() throws Exception {
+		ctx = FhirContext.forR4();
+
+		Message message = BenchmarkCorpus.parse(version, obxCount);
+		V2ParserRegistry registry = new V2ParserRegistry(1);
+		BaseHL7v2FHIRParser parser = registry.borrow(message.getVersion());
+		bundles = new ArrayList<Bundle>();
+		for (IBaseBundle bundle : parser.executeParser(message)) {
+			bundles.add((Bundle) bundle);
+		}
+
+		queuePayloads = new ArrayList<byte[]>();
+		for (Bundle bundle : bundles) {
+			queuePayloads.add(toQueuePayload(bundle));
+		}
+	}
+
+	private byte[] toQueuePayload(Bundle bundle) throws IOException {
+		return QueuePayload.encode(writer -> ctx.newJsonParser().encodeResourceToWriter(bundle, writer), true);
+	}
+
+	@Benchmark
+	public void encodeJson(Blackhole bh) {
+		for (Bundle bundle : bundles) {
+			bh.consume(ctx.newJsonParser().encodeResourceToString(bundle));
+		}
+	}
+
+	@Benchmark
+	public void encodePrettyJson(Blackhole bh) {
+		for (Bundle bundle : bundles) {
+			bh.consume(ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(bundle));
+		}
+	}
+
+	@Benchmark
+	public void encodeQueuePayload(Blackhole bh) throws IOException {
+		for (Bundle bundle : bundles) {
+			bh.consume(toQueuePayload(bundle));
+		}
+	}
+
+	@Benchmark
+	public void decodeQueuePayload(Blackhole bh) throws IOException {
+		for (byte[] payload : queuePayloads) {
+			try (Reader reader = QueuePayload.open(payload)) {
+				bh.consume(ctx.newJsonParser().parseResource(Bundle.class, reader));
+			}
+		}
+	}
+}
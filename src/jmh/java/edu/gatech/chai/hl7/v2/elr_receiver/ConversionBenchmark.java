@@ -0,0 +1,58 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.hl7v2.model.Message;
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+
+/*
+ * v2-to-FHIR conversion (executeParser) with a parser borrowed from the
+ * registry, as done in deliverMessage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+	@Param({ "v23", "v251" })
+	public String version;
+
+	@Param({ "1", "10", "50" })
+	public String obxCount;
+
+	private V2ParserRegistry registry;
+	private Message message;
+
+	@Setup
+	public void setup() throws Exception {
+		registry = new V2ParserRegistry(Runtime.getRuntime().availableProcessors());
+		message = BenchmarkCorpus.parse(version, obxCount);
+	}
+
+	@Benchmark
+	public List<IBaseBundle> convert() throws Exception {
+		String messageVersion = message.getVersion();
+		BaseHL7v2FHIRParser parser = registry.borrow(messageVersion);
+		try {
+			return parser.executeParser(message);
+		} finally {
+			registry.release(messageVersion, parser);
+		}
+	}
+}
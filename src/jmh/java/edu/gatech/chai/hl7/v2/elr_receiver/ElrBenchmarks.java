@@ -0,0 +1,40 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Runs the receiver benchmarks with the GC profiler, so every result has
+ * ops/s next to the allocation rate (gc.alloc.rate.norm is bytes per
+ * message). Results are also written to target/jmh-result.json.
+ *
+ * Build:  mvn -P jmh package -DskipTests
+ * Run:    java -cp target/elr_receiver-<version>-jar-with-dependencies.jar \
+ *              edu.gatech.chai.hl7.v2.elr_receiver.ElrBenchmarks [JMH options]
+ *
+ * JMH options work as usual, e.g. "EndToEnd -t 8" or "-p obxCount=50".
+ */
+public class ElrBenchmarks {
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(commandLine);
+		if (commandLine.getIncludes().isEmpty()) {
+			builder.include(ElrBenchmarks.class.getPackageName() + ".*Benchmark");
+		}
+		if (commandLine.getProfilers().isEmpty()) {
+			builder.addProfiler(GCProfiler.class);
+		}
+		if (!commandLine.getResult().hasValue()) {
+			builder.resultFormat(ResultFormatType.JSON).result("target/jmh-result.json");
+		}
+
+		Options options = builder.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,90 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.protocol.MetadataKeys;
+
+/*
+ * One inbound message end to end in SYNC mode: parse, filter, convert and
+ * send to a local stub FHIR controller (no added latency), then build the
+ * ACK. This is the work an MLLP connection thread does per message. Run
+ * with -t to see how it scales with concurrent connections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+	@Param({ "v23", "v251" })
+	public String version;
+
+	@Param({ "1", "10", "50" })
+	public String obxCount;
+
+	private StubRegistryController fhirServer;
+	private HL7v2ReceiverFHIRApplication<?> app;
+	private File workDir;
+	private String raw;
+	private PipeParser parser;
+
+	@Setup
+	public void setup() throws Exception {
+		fhirServer = new StubRegistryController(0, 0L, 0L, 0.0, 422);
+		fhirServer.start();
+
+		workDir = Files.createTempDirectory("elr-bench").toFile();
+		app = new HL7v2ReceiverFHIRApplication<>();
+		app.config(fhirServer.getBaseUrl(), false, new File(workDir, "queueFile").getPath(), "NO", null, null, null,
+				workDir.getPath());
+		app.setV2Filters(new JSONObject("{\"version\":\"0.0.1\",\"status\":\"allow_all\"}"));
+
+		raw = BenchmarkCorpus.load(version, obxCount);
+		HapiContext ctx = new DefaultHapiContext();
+		parser = ctx.getPipeParser();
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (QueueDrainer queueDrainer : app.getQueueDrainers()) {
+			queueDrainer.shutdown();
+		}
+		fhirServer.stop();
+		for (File file : workDir.listFiles()) {
+			file.delete();
+		}
+		workDir.delete();
+	}
+
+	@Benchmark
+	public Message receive() throws Exception {
+		Map<String, Object> metadata = new HashMap<String, Object>();
+		metadata.put(MetadataKeys.IN_RAW_MESSAGE, raw);
+
+		Message message = parser.parse(raw);
+		return app.processMessage(message, metadata);
+	}
+}
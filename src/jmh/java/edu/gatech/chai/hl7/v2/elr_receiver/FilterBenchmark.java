@@ -0,0 +1,67 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.hl7v2.model.Message;
+
+/*
+ * v2 filter evaluation as done in processMessage: read OBX-3/OBX-5 of every
+ * OBX and run the compiled filters over them. The filters are the two RPR
+ * filters of filter_configuration.json. The 1-OBX messages are filtered out,
+ * the others are accepted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+	static final String FILTERS = "{\"version\":\"0.0.1\",\"status\":\"filter\",\"filters\":["
+			+ "{\"conjunction\":\"or\",\"segment_loc\":\"OBX-3\",\"segment_value_type\":\"CE\","
+			+ "\"segment_value\":\"123042232^RPR(QUAL)-SERUM^\",\"value_loc\":\"OBX-5\",\"value_type\":\"ST\","
+			+ "\"value_value\":\"Reactive\"},"
+			+ "{\"conjunction\":\"or\",\"segment_loc\":\"OBX-3\",\"segment_value_type\":\"CE\","
+			+ "\"segment_value\":\"123042230^RPR TITER-SERUM^\",\"value_loc\":\"OBX-5\",\"value_type\":\"SN\","
+			+ "\"value_value\":\">^1^:^1\"}]}";
+
+	@Param({ "v23", "v251" })
+	public String version;
+
+	@Param({ "1", "10", "50" })
+	public String obxCount;
+
+	private HL7v2ReceiverFHIRApplication<?> app;
+	private V2FilterSet filters;
+	private Message message;
+
+	@Setup
+	public void setup() throws Exception {
+		app = new HL7v2ReceiverFHIRApplication<>();
+		filters = V2FilterSet.compile(new JSONObject(FILTERS));
+		message = BenchmarkCorpus.parse(version, obxCount);
+	}
+
+	@Benchmark
+	public boolean evaluate() throws Exception {
+		return filters.accepts(app.collectObservations(message));
+	}
+
+	@Benchmark
+	public V2FilterSet compile() {
+		return V2FilterSet.compile(new JSONObject(FILTERS));
+	}
+}
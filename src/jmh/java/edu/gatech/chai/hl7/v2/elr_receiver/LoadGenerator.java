@@ -0,0 +1,516 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.hl7v2.hoh.api.IReceivable;
+import ca.uhn.hl7v2.hoh.auth.SingleCredentialClientCallback;
+import ca.uhn.hl7v2.hoh.raw.api.RawSendable;
+import ca.uhn.hl7v2.hoh.raw.client.HohRawClientSimple;
+
+/**
+ * Load generator and soak test for a running ELRReceiver.
+ *
+ * Opens N MLLP or HL7-over-HTTP connections to the receiver and replays a
+ * corpus of v2 messages at a target rate. Every message gets a unique MSH-10.
+ * ACK latency goes into an HDR histogram and is reported every reportSeconds
+ * together with throughput and NAK/error counts. Latency is measured from
+ * when a message was due to be sent, so a stalled receiver shows up in the
+ * percentiles instead of just lowering the send rate. Nothing sent in the
+ * first warmupSeconds is counted.
+ *
+ * Options are key=value arguments (or a properties file given with
+ * config=...), e.g.
+ *
+ *   mvn -P jmh package -DskipTests
+ *   java -cp elr_receiver-jar-with-dependencies.jar \
+ *        edu.gatech.chai.hl7.v2.elr_receiver.LoadGenerator \
+ *        port=8888 connections=8 rate=200 durationSeconds=600 slaMillis=500
+ *
+ * Without corpus=<file or directory>, the benchmark corpus in the jar (see
+ * BenchmarkCorpus) is replayed.
+ *
+ * With stubPort set, a stub $registry-control endpoint is started in this
+ * process (see StubRegistryController). Point the receiver's
+ * fhirControllerUrl at http://localhost:<stubPort>/fhir. With
+ * stubTokenTtlSeconds, the stub also requires OAuth2 tokens, served at
+ * http://localhost:<stubPort>/oauth/token (the receiver's authTokenUrl).
+ *
+ * The exit code is 1 if the ACK latency at slaPercentile is above slaMillis,
+ * or if nothing was acknowledged.
+ */
+public class LoadGenerator {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(LoadGenerator.class.getName());
+
+	static final byte MLLP_START = 0x0b;
+	static final byte MLLP_END = 0x1c;
+	static final byte MLLP_END_CR = 0x0d;
+
+	static String default_transport = "MLLP";
+	static String default_host = "localhost";
+	static String default_port = "8888";
+	static String default_useTls = "False";
+	static String default_hl7HttpBasic = "user:password";
+	static String default_httpPath = "/elrreceiver";
+	static String default_corpus = "";
+	static String default_connections = "4";
+	static String default_rate = "100";
+	static String default_durationSeconds = "60";
+	static String default_warmupSeconds = "10";
+	static String default_reportSeconds = "10";
+	static String default_slaMillis = "0";
+	static String default_slaPercentile = "99";
+	static String default_stubPort = "-1";
+	static String default_stubLatencyMillis = "20";
+	static String default_stubJitterMillis = "10";
+	static String default_stubFailureRate = "0.0";
+	static String default_stubFailureStatus = "422";
+	static String default_stubTokenTtlSeconds = "-1";
+
+	private String transport;
+	private String host;
+	private int port;
+	private boolean useTls;
+	private String hl7HttpBasic;
+	private String httpPath;
+	private int connections;
+	private double rate;
+	private long durationSeconds;
+	private long warmupSeconds;
+
+	private List<MessageTemplate> corpus;
+	private final Recorder recorder = new Recorder(TimeUnit.MINUTES.toMicros(10), 3);
+	private final Histogram total = new Histogram(TimeUnit.MINUTES.toMicros(10), 3);
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder acks = new LongAdder();
+	private final LongAdder naks = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private long lastReportNanos = 0L;
+
+	/*
+	 * A corpus message split around MSH-10, so a message with a new control ID
+	 * is a concatenation.
+	 */
+	static class MessageTemplate {
+		final String beforeControlId;
+		final String afterControlId;
+
+		MessageTemplate(String message) {
+			String text = message.strip().replace("\r\n", "\r").replace('\n', '\r');
+			if (!text.startsWith("MSH") || text.length() < 8) {
+				throw new IllegalArgumentException("Not an ER7 message");
+			}
+
+			// MSH-1 is the field separator itself, so MSH-10 follows the 9th one.
+			char fieldSeparator = text.charAt(3);
+			int start = 0;
+			for (int i = 0; i < 9; i++) {
+				start = text.indexOf(fieldSeparator, start) + 1;
+				if (start == 0) {
+					throw new IllegalArgumentException("MSH has no MSH-10");
+				}
+			}
+
+			int end = start;
+			while (end < text.length() && text.charAt(end) != fieldSeparator && text.charAt(end) != '\r') {
+				end++;
+			}
+
+			beforeControlId = text.substring(0, start);
+			afterControlId = text.substring(end);
+		}
+
+		String withControlId(String controlId) {
+			return beforeControlId + controlId + afterControlId;
+		}
+	}
+
+	/*
+	 * One connection to the receiver.
+	 */
+	interface Sender {
+		String sendAndReceive(String message) throws Exception;
+
+		void close();
+	}
+
+	class MllpSender implements Sender {
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+
+		MllpSender() throws IOException {
+			socket = useTls ? SSLSocketFactory.getDefault().createSocket(host, port) : new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		public String sendAndReceive(String message) throws IOException {
+			out.write(MLLP_START);
+			out.write(message.getBytes(StandardCharsets.UTF_8));
+			out.write(MLLP_END);
+			out.write(MLLP_END_CR);
+			out.flush();
+
+			int b;
+			while ((b = in.read()) != MLLP_START) {
+				if (b < 0) {
+					throw new EOFException("Connection closed by the receiver");
+				}
+			}
+
+			ByteArrayOutputStream response = new ByteArrayOutputStream(256);
+			while (true) {
+				b = in.read();
+				if (b < 0) {
+					throw new EOFException("Connection closed by the receiver");
+				}
+				if (b == MLLP_END) {
+					in.read();
+					return response.toString(StandardCharsets.UTF_8);
+				}
+				response.write(b);
+			}
+		}
+
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing to do.
+			}
+		}
+	}
+
+	class HttpSender implements Sender {
+		private HohRawClientSimple client;
+
+		HttpSender() {
+			client = new HohRawClientSimple(host, port, httpPath);
+			client.setKeepAlive(true);
+			if (hl7HttpBasic != null && hl7HttpBasic.contains(":")) {
+				String[] credential = hl7HttpBasic.split(":", 2);
+				client.setAuthorizationCallback(new SingleCredentialClientCallback(credential[0], credential[1]));
+			}
+		}
+
+		public String sendAndReceive(String message) throws Exception {
+			IReceivable<String> response = client.sendAndReceive(new RawSendable(message));
+			return response.getMessage();
+		}
+
+		public void close() {
+			client.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties prop = new Properties();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0) {
+				LOGGER.error("Arguments are key=value. Ignoring " + arg);
+				continue;
+			}
+			prop.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+
+		if (prop.getProperty("config") != null) {
+			Properties fileProp = new Properties();
+			try (InputStream input = new FileInputStream(prop.getProperty("config"))) {
+				fileProp.load(input);
+			}
+			// Command line wins over the file.
+			fileProp.putAll(prop);
+			prop = fileProp;
+		}
+
+		StubRegistryController stub = null;
+		int stubPort = Integer.parseInt(prop.getProperty("stubPort", default_stubPort));
+		if (stubPort >= 0) {
+			stub = new StubRegistryController(stubPort,
+					Long.parseLong(prop.getProperty("stubLatencyMillis", default_stubLatencyMillis)),
+					Long.parseLong(prop.getProperty("stubJitterMillis", default_stubJitterMillis)),
+					Double.parseDouble(prop.getProperty("stubFailureRate", default_stubFailureRate)),
+					Integer.parseInt(prop.getProperty("stubFailureStatus", default_stubFailureStatus)));
+			int stubTokenTtlSeconds = Integer.parseInt(
+					prop.getProperty("stubTokenTtlSeconds", default_stubTokenTtlSeconds));
+			if (stubTokenTtlSeconds >= 0) {
+				stub.requireTokens(stubTokenTtlSeconds);
+			}
+			stub.start();
+		}
+
+		LoadGenerator generator = new LoadGenerator();
+		generator.transport = prop.getProperty("transport", default_transport).toUpperCase();
+		generator.host = prop.getProperty("host", default_host);
+		generator.port = Integer.parseInt(prop.getProperty("port", default_port));
+		generator.useTls = prop.getProperty("useTls", default_useTls).equalsIgnoreCase("true");
+		generator.hl7HttpBasic = prop.getProperty("hl7HttpBasic", default_hl7HttpBasic);
+		generator.httpPath = prop.getProperty("httpPath", default_httpPath);
+		generator.connections = Integer.parseInt(prop.getProperty("connections", default_connections));
+		generator.rate = Double.parseDouble(prop.getProperty("rate", default_rate));
+		generator.durationSeconds = Long.parseLong(prop.getProperty("durationSeconds", default_durationSeconds));
+		generator.warmupSeconds = Long.parseLong(prop.getProperty("warmupSeconds", default_warmupSeconds));
+		String corpus = prop.getProperty("corpus", default_corpus);
+		generator.corpus = corpus.isBlank() ? loadBenchmarkCorpus() : loadCorpus(Path.of(corpus));
+
+		int reportSeconds = Integer.parseInt(prop.getProperty("reportSeconds", default_reportSeconds));
+		long slaMillis = Long.parseLong(prop.getProperty("slaMillis", default_slaMillis));
+		double slaPercentile = Double.parseDouble(prop.getProperty("slaPercentile", default_slaPercentile));
+
+		boolean passed = generator.run(reportSeconds, slaMillis, slaPercentile);
+
+		if (stub != null) {
+			LOGGER.info("Stub controller: calls=" + stub.getCallCount() + " failed=" + stub.getFailureCount()
+					+ " tokens=" + stub.getTokensIssued() + " unauthorized=" + stub.getUnauthorizedCount());
+			stub.stop();
+		}
+
+		System.exit(passed ? 0 : 1);
+	}
+
+	static List<MessageTemplate> loadBenchmarkCorpus() throws IOException {
+		List<MessageTemplate> templates = new ArrayList<MessageTemplate>();
+		for (String version : BenchmarkCorpus.VERSIONS) {
+			for (String obxCount : BenchmarkCorpus.OBX_COUNTS) {
+				templates.add(new MessageTemplate(BenchmarkCorpus.load(version, obxCount)));
+			}
+		}
+		LOGGER.info("Loaded " + templates.size() + " message(s) from the benchmark corpus");
+		return templates;
+	}
+
+	static List<MessageTemplate> loadCorpus(Path corpusPath) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		if (Files.isDirectory(corpusPath)) {
+			try (Stream<Path> stream = Files.list(corpusPath)) {
+				stream.filter(Files::isRegularFile).sorted().forEach(files::add);
+			}
+		} else {
+			files.add(corpusPath);
+		}
+
+		List<MessageTemplate> templates = new ArrayList<MessageTemplate>();
+		for (Path file : files) {
+			try {
+				templates.add(new MessageTemplate(Files.readString(file)));
+			} catch (IllegalArgumentException e) {
+				LOGGER.warn("Skipping " + file + ": " + e.getMessage());
+			}
+		}
+
+		if (templates.isEmpty()) {
+			throw new IOException("No v2 messages found in " + corpusPath);
+		}
+		LOGGER.info("Loaded " + templates.size() + " message(s) from " + corpusPath);
+		return templates;
+	}
+
+	/**
+	 * Runs the load and prints the summary.
+	 *
+	 * @return false if the SLA was missed or nothing was acknowledged
+	 */
+	public boolean run(int reportSeconds, long slaMillis, double slaPercentile) throws InterruptedException {
+		LOGGER.info("Sending to " + transport + " " + host + ":" + port + " over " + connections + " connection(s) at "
+				+ (rate > 0 ? rate + " msg/s" : "max rate") + " for " + durationSeconds + "s after a " + warmupSeconds
+				+ "s warm-up");
+
+		long firstSendNanos = System.nanoTime();
+		long startNanos = firstSendNanos + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "loadgen-reporter");
+			t.setDaemon(true);
+			return t;
+		});
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < connections; i++) {
+			final int connection = i;
+			Thread t = new Thread(() -> drive(connection, firstSendNanos, startNanos, endNanos),
+					"loadgen-connection-" + i);
+			t.start();
+			threads.add(t);
+		}
+
+		long firstReportMillis = TimeUnit.NANOSECONDS.toMillis(startNanos - System.nanoTime()) + reportSeconds * 1000L;
+		reporter.scheduleAtFixedRate(() -> report(startNanos), firstReportMillis, reportSeconds * 1000L,
+				TimeUnit.MILLISECONDS);
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		reporter.shutdown();
+		reporter.awaitTermination(5, TimeUnit.SECONDS);
+		report(startNanos);
+
+		double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+		LOGGER.info(String.format(
+				"SUMMARY sent=%d acks=%d naks=%d errors=%d throughput=%.1f msg/s "
+						+ "latency(ms) p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+				sent.sum(), acks.sum(), naks.sum(), errors.sum(), acks.sum() / elapsedSeconds,
+				millis(total.getValueAtPercentile(50)), millis(total.getValueAtPercentile(90)),
+				millis(total.getValueAtPercentile(99)), millis(total.getValueAtPercentile(99.9)),
+				millis(total.getMaxValue())));
+
+		if (acks.sum() == 0) {
+			LOGGER.error("No message was acknowledged");
+			return false;
+		}
+
+		if (slaMillis > 0) {
+			double observed = millis(total.getValueAtPercentile(slaPercentile));
+			boolean met = observed <= slaMillis;
+			LOGGER.info("SLA p" + slaPercentile + " <= " + slaMillis + "ms: " + (met ? "MET" : "MISSED") + " ("
+					+ String.format("%.1f", observed) + "ms)");
+			return met;
+		}
+
+		return true;
+	}
+
+	private void drive(int connection, long firstSendNanos, long startNanos, long endNanos) {
+		// Each connection sends its share of the rate, evenly spaced and
+		// offset from the other connections.
+		long intervalNanos = rate > 0 ? (long) (1e9 * connections / rate) : 0L;
+		long dueNanos = firstSendNanos + (intervalNanos * connection) / Math.max(1, connections);
+
+		Sender sender = null;
+		long count = 0;
+		while (dueNanos < endNanos) {
+			long now = System.nanoTime();
+			if (now < dueNanos) {
+				LockSupport.parkNanos(dueNanos - now);
+			}
+			long sendNanos = intervalNanos > 0 ? dueNanos : System.nanoTime();
+			boolean measured = sendNanos >= startNanos;
+
+			try {
+				if (sender == null) {
+					sender = "HTTP".equals(transport) ? new HttpSender() : new MllpSender();
+				}
+
+				MessageTemplate template = corpus.get((int) (count % corpus.size()));
+				String message = template.withControlId("LG" + connection + "-" + count);
+				count++;
+
+				String response = sender.sendAndReceive(message);
+				long latencyMicros = (System.nanoTime() - sendNanos) / 1000L;
+				String ackCode = ackCode(response);
+				if (!"AA".equals(ackCode) && !"CA".equals(ackCode)) {
+					LOGGER.debug("NAK (" + ackCode + "): " + response);
+				}
+
+				if (measured) {
+					sent.increment();
+					recorder.recordValue(Math.min(latencyMicros, TimeUnit.MINUTES.toMicros(10)));
+					if ("AA".equals(ackCode) || "CA".equals(ackCode)) {
+						acks.increment();
+					} else {
+						naks.increment();
+					}
+				}
+			} catch (Exception e) {
+				if (measured) {
+					sent.increment();
+					errors.increment();
+				}
+				LOGGER.debug("Send failed on connection " + connection + ": " + e.getMessage());
+				if (sender != null) {
+					sender.close();
+					sender = null;
+				}
+				// Do not spin on a receiver that is down.
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(500));
+			}
+
+			dueNanos = intervalNanos > 0 ? dueNanos + intervalNanos : System.nanoTime();
+		}
+
+		if (sender != null) {
+			sender.close();
+		}
+	}
+
+	private synchronized void report(long startNanos) {
+		Histogram interval = recorder.getIntervalHistogram();
+		total.add(interval);
+
+		long now = System.nanoTime();
+		double elapsedSeconds = (now - startNanos) / 1e9;
+		double intervalSeconds = (now - Math.max(lastReportNanos, startNanos)) / 1e9;
+		lastReportNanos = now;
+		LOGGER.info(String.format(
+				"[%5.0fs] acks/s=%.1f sent=%d acks=%d naks=%d errors=%d "
+						+ "latency(ms) p50=%.1f p90=%.1f p99=%.1f max=%.1f",
+				elapsedSeconds, intervalSeconds > 0 ? interval.getTotalCount() / intervalSeconds : 0.0, sent.sum(),
+				acks.sum(), naks.sum(), errors.sum(), millis(interval.getValueAtPercentile(50)),
+				millis(interval.getValueAtPercentile(90)), millis(interval.getValueAtPercentile(99)),
+				millis(interval.getMaxValue())));
+	}
+
+	/*
+	 * MSA-1 of the response, or null if there is no MSA segment.
+	 */
+	static String ackCode(String response) {
+		if (response == null || response.length() < 4) {
+			return null;
+		}
+
+		char fieldSeparator = response.charAt(3);
+		int msa = 0;
+		if (!response.startsWith("MSA")) {
+			msa = response.indexOf("\rMSA");
+			if (msa < 0) {
+				return null;
+			}
+			msa++;
+		}
+
+		int start = msa + 4;
+		if (start > response.length()) {
+			return null;
+		}
+		int end = start;
+		while (end < response.length() && response.charAt(end) != fieldSeparator && response.charAt(end) != '\r'
+				&& response.charAt(end) != '\n') {
+			end++;
+		}
+		return response.substring(start, end);
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+}
@@ -0,0 +1,285 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Stand-in for the FHIR controller, for load tests and benchmarks.
+ *
+ * Serves [base]/$registry-control and FHIR batch requests posted to [base]
+ * (base is /fhir), and the metadata request the FHIR client makes before its
+ * first call. Each call waits latencyMillis plus up to jitterMillis, then
+ * fails with failureStatus for a failureRate fraction of the calls and
+ * answers with an empty Parameters resource otherwise. In a batch, every
+ * entry succeeds or fails on its own. Request bodies are read and thrown
+ * away.
+ *
+ * With requireTokens(ttlSeconds), it is also an OAuth2 token endpoint at
+ * /oauth/token. Any client credentials get a token that is valid for
+ * ttlSeconds, and FHIR calls without a valid bearer token get a 401.
+ */
+public class StubRegistryController {
+	static final String FHIR_JSON = "application/fhir+json";
+	static final String PARAMETERS = "{\"resourceType\":\"Parameters\"}";
+	static final String CAPABILITY_STATEMENT = "{\"resourceType\":\"CapabilityStatement\",\"status\":\"active\","
+			+ "\"date\":\"2024-01-01\",\"kind\":\"instance\",\"fhirVersion\":\"4.0.1\",\"format\":[\"json\"]}";
+	static final String REGISTRY_CONTROL_URL = "\"url\":\"$registry-control\"";
+
+	private int port;
+	private long latencyMillis;
+	private long jitterMillis;
+	private double failureRate;
+	private int failureStatus;
+
+	private HttpServer server = null;
+	private ExecutorService executor = null;
+	private int tokenTtlSeconds = -1;
+	// Issued token -> expiry (millis)
+	private final ConcurrentHashMap<String, Long> tokens = new ConcurrentHashMap<String, Long>();
+
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder tokensIssued = new LongAdder();
+	private final LongAdder unauthorized = new LongAdder();
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(StubRegistryController.class.getName());
+
+	/*
+	 * port: 0 picks a free port
+	 * latencyMillis / jitterMillis: simulated processing time per call
+	 * failureRate: fraction of calls (0.0 - 1.0) that fail
+	 * failureStatus: HTTP status of a failed call, e.g. 422 or 500
+	 */
+	public StubRegistryController(int port, long latencyMillis, long jitterMillis, double failureRate,
+			int failureStatus) {
+		this.port = port;
+		this.latencyMillis = Math.max(0L, latencyMillis);
+		this.jitterMillis = Math.max(0L, jitterMillis);
+		this.failureRate = failureRate;
+		this.failureStatus = failureStatus;
+	}
+
+	/**
+	 * Serves OAuth2 tokens and rejects FHIR calls without one. Must be called
+	 * before start().
+	 */
+	public void requireTokens(int ttlSeconds) {
+		this.tokenTtlSeconds = ttlSeconds;
+	}
+
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.createContext("/fhir", this::handle);
+		if (tokenTtlSeconds >= 0) {
+			server.createContext("/oauth/token", this::handleToken);
+		}
+
+		// Calls sleep to simulate latency, so give each connection a thread.
+		final AtomicInteger threadNumber = new AtomicInteger(1);
+		executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "stub-controller-" + threadNumber.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+		server.setExecutor(executor);
+		server.start();
+
+		LOGGER.info("Stub $registry-control at " + getBaseUrl() + " (latency=" + latencyMillis + "+" + jitterMillis
+				+ "ms, failureRate=" + failureRate + ", failureStatus=" + failureStatus + ")");
+	}
+
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+	}
+
+	public String getTokenUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/oauth/token";
+	}
+
+	public long getTokensIssued() {
+		return tokensIssued.sum();
+	}
+
+	/**
+	 * FHIR calls rejected for a missing, unknown or expired token.
+	 */
+	public long getUnauthorizedCount() {
+		return unauthorized.sum();
+	}
+
+	public long getCallCount() {
+		return calls.sum();
+	}
+
+	public long getFailureCount() {
+		return failures.sum();
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		String body;
+		try (InputStream in = exchange.getRequestBody()) {
+			body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+
+		if ("GET".equals(exchange.getRequestMethod()) && exchange.getRequestURI().getPath().endsWith("/metadata")) {
+			respond(exchange, 200, CAPABILITY_STATEMENT);
+			return;
+		}
+
+		if (tokenTtlSeconds >= 0 && !hasValidToken(exchange)) {
+			unauthorized.increment();
+			respond(exchange, 401, operationOutcome("Missing or expired access token"));
+			return;
+		}
+
+		try {
+			long delay = latencyMillis;
+			if (jitterMillis > 0) {
+				delay += ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+			}
+			if (delay > 0) {
+				Thread.sleep(delay);
+			}
+		} catch (InterruptedException e) {
+			exchange.close();
+			return;
+		}
+
+		int status;
+		String response;
+		if (exchange.getRequestURI().getPath().endsWith("$registry-control")) {
+			if (nextCallFails()) {
+				status = failureStatus;
+				response = operationOutcome("Simulated $registry-control failure");
+			} else {
+				status = 200;
+				response = PARAMETERS;
+			}
+		} else {
+			status = 200;
+			response = batchResponse(countEntries(body));
+		}
+
+		respond(exchange, status, response);
+	}
+
+	private void handleToken(HttpExchange exchange) throws IOException {
+		String body;
+		try (InputStream in = exchange.getRequestBody()) {
+			body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		if (!"POST".equals(exchange.getRequestMethod()) || authorization == null
+				|| !authorization.startsWith("Basic ") || !body.contains("grant_type=client_credentials")) {
+			respondJson(exchange, 400, "{\"error\":\"invalid_request\"}");
+			return;
+		}
+
+		String token = UUID.randomUUID().toString();
+		long now = System.currentTimeMillis();
+		tokens.put(token, now + tokenTtlSeconds * 1000L);
+		tokens.values().removeIf(expiry -> expiry < now);
+		tokensIssued.increment();
+
+		respondJson(exchange, 200, "{\"access_token\":\"" + token + "\",\"token_type\":\"bearer\",\"expires_in\":"
+				+ tokenTtlSeconds + "}");
+	}
+
+	private boolean hasValidToken(HttpExchange exchange) {
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		if (authorization == null || !authorization.startsWith("Bearer ")) {
+			return false;
+		}
+
+		Long expiry = tokens.get(authorization.substring("Bearer ".length()));
+		return expiry != null && expiry >= System.currentTimeMillis();
+	}
+
+	private static void respondJson(HttpExchange exchange, int status, String response) throws IOException {
+		byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String response) throws IOException {
+		byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", FHIR_JSON);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private boolean nextCallFails() {
+		calls.increment();
+		if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+			failures.increment();
+			return true;
+		}
+		return false;
+	}
+
+	private String batchResponse(int entries) {
+		StringBuilder sb = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"batch-response\",\"entry\":[");
+		for (int i = 0; i < entries; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			if (nextCallFails()) {
+				sb.append("{\"response\":{\"status\":\"").append(failureStatus).append("\",\"outcome\":")
+						.append(operationOutcome("Simulated $registry-control failure")).append("}}");
+			} else {
+				sb.append("{\"resource\":").append(PARAMETERS).append(",\"response\":{\"status\":\"200 OK\"}}");
+			}
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	private static String operationOutcome(String text) {
+		return "{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"error\",\"code\":\"processing\","
+				+ "\"details\":{\"text\":\"" + text + "\"}}]}";
+	}
+
+	// Good enough for the batches the receiver sends: one $registry-control
+	// request per entry.
+	private static int countEntries(String body) {
+		int count = 0;
+		int from = 0;
+		while ((from = body.indexOf(REGISTRY_CONTROL_URL, from)) >= 0) {
+			count++;
+			from++;
+		}
+		return count;
+	}
+}
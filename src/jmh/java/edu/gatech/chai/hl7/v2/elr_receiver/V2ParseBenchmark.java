@@ -0,0 +1,61 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+
+/*
+ * ER7 (pipe) parsing of an inbound ORU_R01, as done by the MLLP listener
+ * before the message reaches processMessage, against the MshScanner pass
+ * that PreScreeningParser makes first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class V2ParseBenchmark {
+	@Param({ "v23", "v251" })
+	public String version;
+
+	@Param({ "1", "10", "50" })
+	public String obxCount;
+
+	private String raw;
+	private PipeParser parser;
+
+	@Setup
+	public void setup() throws Exception {
+		raw = BenchmarkCorpus.load(version, obxCount);
+
+		HapiContext ctx = new DefaultHapiContext();
+		parser = ctx.getPipeParser();
+	}
+
+	@Benchmark
+	public Message parse() throws Exception {
+		return parser.parse(raw);
+	}
+
+	@Benchmark
+	public Set<String> scan() {
+		return MshScanner.observationCodes(raw, MshScanner.scan(raw));
+	}
+}
@@ -0,0 +1,56 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.util.Terser;
+import junit.framework.TestCase;
+
+/*
+ * The benchmark corpus is what the benchmarks say it is: every message loads
+ * and parses with its version and OBX count, and the FilterBenchmark filters
+ * drop the 1-OBX messages and accept the others.
+ */
+public class BenchmarkCorpusTest extends TestCase {
+	private static String hl7Version(String version) {
+		return "v23".equals(version) ? "2.3" : "2.5.1";
+	}
+
+	public void testEveryMessageParsesWithItsVersionAndObxCount() throws Exception {
+		for (String version : BenchmarkCorpus.VERSIONS) {
+			for (String obxCount : BenchmarkCorpus.OBX_COUNTS) {
+				String rawMessage = BenchmarkCorpus.load(version, obxCount);
+				assertFalse(rawMessage.contains("\n"));
+				assertEquals(Integer.parseInt(obxCount), rawMessage.split("\rOBX\\|", -1).length - 1);
+
+				Message message = BenchmarkCorpus.parse(version, obxCount);
+				assertEquals(hl7Version(version), message.getVersion());
+				assertEquals("ORU", new Terser(message).get("/MSH-9-1"));
+			}
+		}
+	}
+
+	public void testFilterBenchmarkDropsOnlyTheSingleObxMessages() throws Exception {
+		HL7v2ReceiverFHIRApplication<?> app = new HL7v2ReceiverFHIRApplication<>();
+		V2FilterSet filters = V2FilterSet.compile(new JSONObject(FilterBenchmark.FILTERS));
+
+		for (String version : BenchmarkCorpus.VERSIONS) {
+			for (String obxCount : BenchmarkCorpus.OBX_COUNTS) {
+				Message message = BenchmarkCorpus.parse(version, obxCount);
+				assertEquals(version + " obx" + obxCount, !"1".equals(obxCount),
+						filters.accepts(app.collectObservations(message)));
+			}
+		}
+	}
+
+	public void testMissingMessageIsReported() throws Exception {
+		try {
+			BenchmarkCorpus.load("v24", "1");
+			fail("loaded a message that is not in the corpus");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("oru_r01_v24_obx01"));
+		}
+	}
+}
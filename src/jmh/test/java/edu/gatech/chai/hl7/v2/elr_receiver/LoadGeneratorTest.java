@@ -0,0 +1,124 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+
+import junit.framework.TestCase;
+
+/*
+ * The load generator's message templates, corpus loading and ACK reading,
+ * and the answers of the stub controller.
+ */
+public class LoadGeneratorTest extends TestCase {
+	private static final String MESSAGE = "MSH|^~\\&|LAB|FAC|ELR|CDC|20240101120000||ORU^R01^ORU_R01|CTRL-1|P|2.5.1\n"
+			+ "PID|1\n";
+
+	private File dir;
+	private StubRegistryController stub;
+	private final HttpClient http = HttpClient.newHttpClient();
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("load-generator-test").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		if (stub != null) {
+			stub.stop();
+		}
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private HttpResponse<String> post(String path, String body) throws Exception {
+		return http.send(HttpRequest.newBuilder(URI.create(stub.getBaseUrl() + path))
+				.header("Content-Type", StubRegistryController.FHIR_JSON)
+				.POST(HttpRequest.BodyPublishers.ofString(body)).build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	public void testTemplateReplacesTheControlId() {
+		LoadGenerator.MessageTemplate template = new LoadGenerator.MessageTemplate(MESSAGE);
+
+		assertEquals("MSH|^~\\&|LAB|FAC|ELR|CDC|20240101120000||ORU^R01^ORU_R01|LOAD-7|P|2.5.1\rPID|1",
+				template.withControlId("LOAD-7"));
+
+		for (String notAMessage : List.of("PID|1", "MSH|^~\\&|LAB|FAC")) {
+			try {
+				new LoadGenerator.MessageTemplate(notAMessage);
+				fail("made a template of " + notAMessage);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	public void testCorpusDirectorySkipsFilesThatAreNotMessages() throws IOException {
+		Files.writeString(new File(dir, "a.hl7").toPath(), MESSAGE, StandardCharsets.UTF_8);
+		Files.writeString(new File(dir, "notes.txt").toPath(), "not a message", StandardCharsets.UTF_8);
+
+		assertEquals(1, LoadGenerator.loadCorpus(dir.toPath()).size());
+		assertEquals(6, LoadGenerator.loadBenchmarkCorpus().size());
+
+		Files.delete(new File(dir, "a.hl7").toPath());
+		try {
+			LoadGenerator.loadCorpus(dir.toPath());
+			fail("loaded a corpus without messages");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	public void testAckCode() {
+		assertEquals("AA", LoadGenerator.ackCode("MSH|^~\\&|ELR|CDC|LAB|FAC|20240101||ACK|1|P|2.5.1\rMSA|AA|CTRL-1"));
+		assertEquals("AE", LoadGenerator.ackCode("MSA|AE|CTRL-1\r"));
+		assertNull(LoadGenerator.ackCode("MSH|^~\\&|ELR|CDC\r"));
+		assertNull(LoadGenerator.ackCode(null));
+	}
+
+	public void testStubAnswersRegistryControlAndBatches() throws Exception {
+		stub = new StubRegistryController(0, 0L, 0L, 0.0, 422);
+		stub.start();
+
+		HttpResponse<String> metadata = http.send(
+				HttpRequest.newBuilder(URI.create(stub.getBaseUrl() + "/metadata")).GET().build(),
+				HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, metadata.statusCode());
+		assertEquals("CapabilityStatement", new JSONObject(metadata.body()).getString("resourceType"));
+
+		HttpResponse<String> call = post("/$registry-control", StubRegistryController.PARAMETERS);
+		assertEquals(200, call.statusCode());
+		assertEquals("Parameters", new JSONObject(call.body()).getString("resourceType"));
+
+		String entry = "{\"request\":{\"method\":\"POST\"," + StubRegistryController.REGISTRY_CONTROL_URL + "}}";
+		HttpResponse<String> batch = post("", "{\"resourceType\":\"Bundle\",\"type\":\"batch\",\"entry\":[" + entry
+				+ "," + entry + "," + entry + "]}");
+		assertEquals(200, batch.statusCode());
+		assertEquals(3, new JSONObject(batch.body()).getJSONArray("entry").length());
+		assertEquals(4L, stub.getCallCount());
+		assertEquals(0L, stub.getFailureCount());
+	}
+
+	public void testStubFailsAtTheFailureRate() throws Exception {
+		stub = new StubRegistryController(0, 0L, 0L, 1.0, 500);
+		stub.start();
+
+		HttpResponse<String> call = post("/$registry-control", StubRegistryController.PARAMETERS);
+		assertEquals(500, call.statusCode());
+		assertEquals("OperationOutcome", new JSONObject(call.body()).getString("resourceType"));
+		assertEquals(1L, stub.getFailureCount());
+	}
+}
@@ -0,0 +1,271 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Archive of the $registry-control Parameters sent to the FHIR controller
+ * (saveToFile=YES).
+ *
+ * archive() only queues the resource. A writer thread encodes it and appends
+ * it as one line of JSON to a gzip'd NDJSON file, so the delivery thread does
+ * not wait for the disk. What is taken from the queue in one go is written as
+ * one gzip member; concatenated members are still one valid gzip file.
+ *
+ * Files, in filePath:
+ *   elr-archive-<start time>-<pid>[-n].ndjson.gz  the records
+ *   elr-archive-<start time>-<pid>[-n].idx        one line per record:
+ *     <offset of its gzip member> <line in the member> <received millis> <key>
+ * A member can be read on its own from its offset, so a record is found from
+ * the index without unpacking the whole file. A new file is started when the
+ * current one reaches maxBytes (compressed) or maxAgeMillis.
+ *
+ * When the queue is full, archive() either drops the record (blockWhenFull
+ * false) or waits for room, which slows down delivery instead.
+ */
+public class ArchiveWriter implements Runnable {
+	static final String PREFIX = "elr-archive-";
+	static final int MAX_MEMBER_RECORDS = 1000;
+
+	private final File dir;
+	private final long maxBytes;
+	private final long maxAgeMillis;
+	private final boolean blockWhenFull;
+	private final BlockingQueue<Record> queue;
+	private final ReceiverMetrics metrics;
+	private final Thread writerThread;
+	private volatile boolean running = true;
+
+	// Current file. Only used by the writer thread.
+	private CountingOutputStream archiveOut = null;
+	private Writer indexOut = null;
+	private long openedMillis = 0L;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(ArchiveWriter.class.getName());
+
+	private static class Record {
+		final String key;
+		final long receivedMillis;
+		final QueuePayload.JsonSource json;
+
+		Record(String key, long receivedMillis, QueuePayload.JsonSource json) {
+			this.key = key;
+			this.receivedMillis = receivedMillis;
+			this.json = json;
+		}
+	}
+
+	/*
+	 * Counts the bytes written to the file, for the member offsets and the size
+	 * limit. close() of a member's GZIPOutputStream does not get here.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0L;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	public ArchiveWriter(String filePath, long maxBytes, long maxAgeMillis, int queueSize, boolean blockWhenFull,
+			ReceiverMetrics metrics) throws IOException {
+		this.dir = new File(filePath);
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeMillis;
+		this.blockWhenFull = blockWhenFull;
+		this.queue = new ArrayBlockingQueue<Record>(Math.max(1, queueSize));
+		this.metrics = metrics;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create archive directory " + dir);
+		}
+
+		writerThread = new Thread(this, "elr-archive-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Queues a resource for the archive. Returns false if it was dropped
+	 * because the queue is full.
+	 */
+	public boolean archive(String key, QueuePayload.JsonSource json) {
+		Record record = new Record(key, System.currentTimeMillis(), json);
+		if (queue.offer(record)) {
+			return true;
+		}
+
+		metrics.archiveFull.increment();
+		if (blockWhenFull && running) {
+			long start = System.nanoTime();
+			try {
+				queue.put(record);
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				ReceiverMetrics.record(metrics.archiveWaitTimer, start);
+			}
+		}
+
+		metrics.archiveDropped.increment();
+		return false;
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	@Override
+	public void run() {
+		List<Record> batch = new ArrayList<Record>(MAX_MEMBER_RECORDS);
+		while (running || !queue.isEmpty()) {
+			try {
+				Record first = queue.poll(1, TimeUnit.SECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, MAX_MEMBER_RECORDS - 1);
+				}
+
+				rollIfDue();
+				if (!batch.isEmpty()) {
+					writeMember(batch);
+				}
+			} catch (InterruptedException e) {
+				// shutdown() - drain what is left
+				running = false;
+			} catch (IOException e) {
+				LOGGER.error("Failed to write " + batch.size() + " record(s) to the archive: " + e.getMessage());
+				metrics.archiveDropped.increment(batch.size());
+				closeFile();
+			}
+			batch.clear();
+		}
+
+		closeFile();
+	}
+
+	private void rollIfDue() {
+		if (archiveOut == null) {
+			return;
+		}
+
+		if (archiveOut.count >= maxBytes || System.currentTimeMillis() - openedMillis >= maxAgeMillis) {
+			closeFile();
+		}
+	}
+
+	private void writeMember(List<Record> batch) throws IOException {
+		if (archiveOut == null) {
+			openFile();
+		}
+
+		long memberOffset = archiveOut.count;
+		// The member's stream must not close the file.
+		GZIPOutputStream gzip = new GZIPOutputStream(new FilterOutputStream(archiveOut) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		}, 8192);
+		Writer writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+
+		StringBuilder index = new StringBuilder();
+		int line = 0;
+		for (Record record : batch) {
+			record.json.writeTo(writer);
+			writer.write('\n');
+			index.append(memberOffset).append('\t').append(line++).append('\t').append(record.receivedMillis)
+					.append('\t').append(record.key == null ? "" : record.key).append('\n');
+		}
+		writer.close();
+
+		indexOut.write(index.toString());
+		indexOut.flush();
+		metrics.archived.increment(batch.size());
+	}
+
+	private void openFile() throws IOException {
+		String name = PREFIX + new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS").format(new Date()) + "-"
+				+ ProcessHandle.current().pid();
+		File archive = new File(dir, name + ".ndjson.gz");
+		// Never overwrite. Another receiver may share the directory.
+		for (int n = 1; !archive.createNewFile(); n++) {
+			archive = new File(dir, name + "-" + n + ".ndjson.gz");
+		}
+		File index = new File(dir, archive.getName().replace(".ndjson.gz", ".idx"));
+
+		archiveOut = new CountingOutputStream(new FileOutputStream(archive));
+		indexOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(index), StandardCharsets.UTF_8));
+		openedMillis = System.currentTimeMillis();
+		LOGGER.info("Archiving to " + archive);
+	}
+
+	private void closeFile() {
+		if (archiveOut == null) {
+			return;
+		}
+
+		try {
+			archiveOut.close();
+		} catch (IOException e) {
+			LOGGER.error("Failed to close the archive file: " + e.getMessage());
+		}
+		try {
+			indexOut.close();
+		} catch (IOException e) {
+			LOGGER.error("Failed to close the archive index: " + e.getMessage());
+		}
+		archiveOut = null;
+		indexOut = null;
+	}
+
+	/**
+	 * Writes what is queued and closes the current file.
+	 */
+	public void shutdown() {
+		running = false;
+		writerThread.interrupt();
+		try {
+			writerThread.join(TimeUnit.SECONDS.toMillis(30));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
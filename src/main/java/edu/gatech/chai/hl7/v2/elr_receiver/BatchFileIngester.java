@@ -0,0 +1,362 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.protocol.MetadataKeys;
+import ca.uhn.hl7v2.protocol.ReceivingApplication;
+import ca.uhn.hl7v2.util.Terser;
+
+/*
+ * transport=FILE: reads HL7 v2 batch files (FHS/BHS, or plain messages one
+ * after the other) dropped into inboxDir.
+ *
+ * A file is picked up once it has not changed for pollSeconds. Files are
+ * taken one at a time in name order, and read with BatchFileReader. Each
+ * message goes through the same parse, canProcess() and processMessage() as
+ * a message received over MLLP, on up to workers threads. At most twice as
+ * many messages are read ahead, so memory does not grow with the file.
+ *
+ * Progress is kept in .<file name>.ckpt in inboxDir: the byte offset up to
+ * which every message has been processed. A restart resumes from there. The
+ * messages in flight at the time are processed again; duplicate suppression
+ * answers them with their first ACK.
+ *
+ * A finished file is moved to doneDir. Messages that were not accepted (NAK,
+ * not a supported ORU^R01, or an error) are written to <file name>.errors in
+ * doneDir, each after a "# reason" line, so they can be fixed and dropped in
+ * again. A message whose bundles could not be sent but are on the retry queue
+ * counts as accepted: the queue sends it, and dropping it in again would send
+ * it twice.
+ */
+public class BatchFileIngester implements Runnable {
+	static final String CHECKPOINT_SUFFIX = ".ckpt";
+	static final String ERRORS_SUFFIX = ".errors";
+	static final long CHECKPOINT_MILLIS = 1000L;
+
+	private final HL7v2ReceiverFHIRApplication<?> app;
+	private final ReceivingApplication<Message> receiver;
+	private final Parser parser;
+	private final File inboxDir;
+	private final File doneDir;
+	private final long pollMillis;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService workers;
+	private final Semaphore readAhead;
+	private volatile boolean running = true;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(BatchFileIngester.class.getName());
+
+	/*
+	 * Messages of one file, in the order they were read. Only the prefix of
+	 * completed messages moves the checkpoint.
+	 */
+	static class Progress {
+		private final File checkpoint;
+		private final long fileModified;
+		private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+		private long offset;
+		private long messages;
+		private long lastWriteMillis = 0L;
+
+		Progress(File checkpoint, long fileModified, long offset, long messages) {
+			this.checkpoint = checkpoint;
+			this.fileModified = fileModified;
+			this.offset = offset;
+			this.messages = messages;
+		}
+
+		synchronized Pending started(long endOffset) {
+			Pending p = new Pending(endOffset);
+			pending.add(p);
+			return p;
+		}
+
+		synchronized void completed(Pending p) {
+			p.done = true;
+			while (!pending.isEmpty() && pending.peekFirst().done) {
+				offset = pending.pollFirst().endOffset;
+				messages++;
+			}
+
+			if (System.currentTimeMillis() - lastWriteMillis >= CHECKPOINT_MILLIS) {
+				write();
+			}
+			if (pending.isEmpty()) {
+				notifyAll();
+			}
+		}
+
+		synchronized void awaitCompleted() throws InterruptedException {
+			while (!pending.isEmpty()) {
+				wait();
+			}
+		}
+
+		synchronized void write() {
+			lastWriteMillis = System.currentTimeMillis();
+			File tmp = new File(checkpoint.getPath() + ".tmp");
+			try {
+				Files.writeString(tmp.toPath(), offset + "\t" + messages + "\t" + fileModified + "\n",
+						StandardCharsets.UTF_8);
+				Files.move(tmp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				LOGGER.error("Failed to write the checkpoint " + checkpoint + ": " + e.getMessage());
+			}
+		}
+
+		synchronized long getOffset() {
+			return offset;
+		}
+
+		synchronized long getMessages() {
+			return messages;
+		}
+	}
+
+	static class Pending {
+		final long endOffset;
+		boolean done = false;
+
+		Pending(long endOffset) {
+			this.endOffset = endOffset;
+		}
+	}
+
+	/*
+	 * doneDir: null or empty for <inboxDir>/done
+	 */
+	public BatchFileIngester(HL7v2ReceiverFHIRApplication<?> app, Parser parser, String inboxDir, String doneDir,
+			int workers, int pollSeconds) throws IOException {
+		this(app, app, "batch", parser, inboxDir, doneDir, workers, pollSeconds);
+	}
+
+	/*
+	 * receiver: what the messages are handed to, app or a listener
+	 * name: threads are elr-<name>-reader and elr-<name>-worker-<n>
+	 */
+	public BatchFileIngester(HL7v2ReceiverFHIRApplication<?> app, ReceivingApplication<Message> receiver,
+			String name, Parser parser, String inboxDir, String doneDir, int workers, int pollSeconds)
+			throws IOException {
+		this.app = app;
+		this.receiver = receiver;
+		this.parser = parser;
+		this.inboxDir = new File(inboxDir);
+		this.doneDir = doneDir == null || doneDir.isBlank() ? new File(this.inboxDir, "done") : new File(doneDir);
+		this.pollMillis = Math.max(1, pollSeconds) * 1000L;
+
+		for (File dir : new File[] { this.inboxDir, this.doneDir }) {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create directory " + dir);
+			}
+		}
+
+		// Not a daemon. In FILE mode it is what keeps the receiver running.
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "elr-" + name + "-reader"));
+		this.workers = Executors.newFixedThreadPool(Math.max(1, workers),
+				ThreadModel.newThreadFactory(app.getThreadModel(), "elr-" + name + "-worker-"));
+		readAhead = new Semaphore(Math.max(1, workers) * 2);
+	}
+
+	public void start() {
+		scheduler.scheduleWithFixedDelay(this, 0L, pollMillis, TimeUnit.MILLISECONDS);
+		LOGGER.info("Reading batch files from " + inboxDir + " (finished files go to " + doneDir + ")");
+	}
+
+	@Override
+	public void run() {
+		File[] files = inboxDir.listFiles(f -> f.isFile() && !f.getName().startsWith(".")
+				&& System.currentTimeMillis() - f.lastModified() >= pollMillis);
+		if (files == null) {
+			LOGGER.error("Cannot list " + inboxDir);
+			return;
+		}
+
+		Arrays.sort(files);
+		for (File file : files) {
+			if (!running) {
+				return;
+			}
+			try {
+				ingest(file);
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				LOGGER.error("Failed to read " + file + ": " + e.getMessage() + ". Trying again on the next poll.");
+			}
+		}
+	}
+
+	private void ingest(File file) throws IOException, InterruptedException {
+		File checkpointFile = new File(inboxDir, "." + file.getName() + CHECKPOINT_SUFFIX);
+		Progress progress = readCheckpoint(checkpointFile, file.lastModified());
+		long startNanos = System.nanoTime();
+		long startMessages = progress.getMessages();
+		if (progress.getOffset() > 0) {
+			LOGGER.info("Resuming " + file + " at byte " + progress.getOffset() + " after " + startMessages
+					+ " messages");
+		} else {
+			LOGGER.info("Reading " + file);
+		}
+
+		File errorsFile = new File(doneDir, file.getName() + ERRORS_SUFFIX);
+		try (Writer errors = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(errorsFile, true), StandardCharsets.UTF_8))) {
+			try (FileInputStream in = new FileInputStream(file)) {
+				in.getChannel().position(progress.getOffset());
+				BatchFileReader reader = new BatchFileReader(in, progress.getOffset(), StandardCharsets.UTF_8);
+				BatchFileReader.Entry entry;
+				while (running && (entry = reader.next()) != null) {
+					readAhead.acquire();
+					final String rawMessage = entry.getMessage();
+					final Pending pending = progress.started(entry.getEndOffset());
+					try {
+						workers.execute(() -> {
+							try {
+								process(rawMessage, errors);
+							} finally {
+								progress.completed(pending);
+								readAhead.release();
+							}
+						});
+					} catch (RuntimeException e) {
+						readAhead.release();
+						throw e;
+					}
+				}
+			} finally {
+				// Also when interrupted. The checkpoint has to cover what was sent.
+				boolean interrupted = Thread.interrupted();
+				progress.awaitCompleted();
+				progress.write();
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		if (!running) {
+			return;
+		}
+
+		File done = new File(doneDir, file.getName());
+		Files.move(file.toPath(), done.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.deleteIfExists(checkpointFile.toPath());
+		if (errorsFile.length() == 0) {
+			errorsFile.delete();
+		}
+		app.getMetrics().batchFiles.increment();
+
+		long messages = progress.getMessages() - startMessages;
+		double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+		LOGGER.info(String.format("Finished %s: %d messages in %.1fs (%.0f/s), moved to %s", file.getName(),
+				messages, seconds, seconds > 0 ? messages / seconds : 0.0, doneDir));
+	}
+
+	/*
+	 * A message is accepted if it got an AA (or CA) ACK, or was queued for
+	 * retry. Anything else is written to the errors file.
+	 */
+	private void process(String rawMessage, Writer errors) {
+		String reason;
+		try {
+			Message message = parser.parse(rawMessage);
+			if (!receiver.canProcess(message)) {
+				reason = "Not a supported ORU^R01 message";
+			} else {
+				Map<String, Object> metadata = new HashMap<String, Object>();
+				metadata.put(MetadataKeys.IN_RAW_MESSAGE, rawMessage);
+				Message ack = receiver.processMessage(message, metadata);
+				Terser t = new Terser(ack);
+				String code = t.get("/MSA-1");
+				if ("AA".equals(code) || "CA".equals(code)) {
+					app.getMetrics().batchMessages.increment();
+					return;
+				}
+				reason = "ACK " + code + " " + t.get("/MSA-3");
+				app.getMetrics().errors.increment();
+			}
+		} catch (HL7v2ReceiverApplication.QueuedForRetryException e) {
+			LOGGER.warn("Message queued for retry: " + e.getMessage());
+			app.getMetrics().batchMessages.increment();
+			return;
+		} catch (Exception e) {
+			reason = e.toString();
+			app.getMetrics().errors.increment();
+		}
+
+		app.getMetrics().batchFailed.increment();
+		try {
+			synchronized (errors) {
+				errors.write("# " + reason.replace('\r', ' ').replace('\n', ' ') + "\n");
+				errors.write(rawMessage);
+				errors.write("\r\n");
+				errors.flush();
+			}
+		} catch (IOException e) {
+			LOGGER.error("Failed to write a message that was not accepted to the errors file: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * <offset> <messages> <last modified of the file>. A checkpoint of a file
+	 * that has been changed since is ignored.
+	 */
+	private Progress readCheckpoint(File checkpointFile, long fileModified) {
+		if (checkpointFile.exists()) {
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(new FileInputStream(checkpointFile), StandardCharsets.UTF_8))) {
+				String[] fields = reader.readLine().split("\t");
+				if (fields.length == 3 && Long.parseLong(fields[2]) == fileModified) {
+					return new Progress(checkpointFile, fileModified, Long.parseLong(fields[0]),
+							Long.parseLong(fields[1]));
+				}
+				LOGGER.warn(checkpointFile + " is for an older version of the file. Reading it from the start.");
+			} catch (IOException | RuntimeException e) {
+				LOGGER.warn("Ignoring the checkpoint " + checkpointFile + ": " + e.getMessage());
+			}
+		}
+		return new Progress(checkpointFile, fileModified, 0L, 0L);
+	}
+
+	/**
+	 * Stops reading, waits for the messages in flight and writes the
+	 * checkpoint.
+	 */
+	public void shutdown() {
+		running = false;
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(60, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		workers.shutdown();
+	}
+}
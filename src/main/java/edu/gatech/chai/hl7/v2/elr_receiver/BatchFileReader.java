@@ -0,0 +1,189 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Reads the messages of an HL7 v2 batch file one at a time.
+ *
+ * The file is read in 64 KB chunks and only the message being read is held
+ * in memory, so the size of the file does not matter. Segments may end in CR,
+ * LF or CRLF. A message starts with an MSH segment and ends before the next
+ * MSH or batch envelope segment (FHS, BHS, BTS, FTS), which are skipped.
+ * Lines starting with # (the reasons in errors and dead-letter files) are
+ * skipped too.
+ * MLLP framing characters are dropped, so a capture of an MLLP stream reads
+ * too. Segments are joined with CR, as on the wire.
+ *
+ * Each message comes with the byte offset right after it. Reading from that
+ * offset again starts at the next message.
+ */
+public class BatchFileReader implements Closeable {
+	static final int BUFFER_SIZE = 64 * 1024;
+	static final byte START_BLOCK = 0x0b;
+	static final byte END_BLOCK = 0x1c;
+	static final Set<String> ENVELOPE = Set.of("FHS", "BHS", "BTS", "FTS");
+
+	private final InputStream in;
+	private final Charset charset;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+	// Offset in the file of buffer[0]
+	private long bufferOffset;
+
+	private final ByteArrayOutputStream message = new ByteArrayOutputStream(8192);
+	private final ByteArrayOutputStream segment = new ByteArrayOutputStream(256);
+	// First three bytes of segment
+	private final byte[] name = new byte[3];
+	private int nameLength = 0;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(BatchFileReader.class.getName());
+
+	public static class Entry {
+		private final String message;
+		private final long endOffset;
+
+		Entry(String message, long endOffset) {
+			this.message = message;
+			this.endOffset = endOffset;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * Byte offset right after the message.
+		 */
+		public long getEndOffset() {
+			return endOffset;
+		}
+	}
+
+	/*
+	 * in: positioned at startOffset, which is 0 or an offset returned by
+	 * getEndOffset()
+	 */
+	public BatchFileReader(InputStream in, long startOffset, Charset charset) {
+		this.in = in;
+		this.bufferOffset = startOffset;
+		this.charset = charset;
+	}
+
+	/**
+	 * The next message, or null at the end of the file.
+	 */
+	public Entry next() throws IOException {
+		while (true) {
+			long segmentStart = bufferOffset + position;
+			if (!readSegment()) {
+				// End of file
+				return message.size() > 0 ? take(segmentStart) : null;
+			}
+			if (segment.size() == 0 || name[0] == '#') {
+				continue;
+			}
+
+			String segmentName = segmentName();
+			if ("MSH".equals(segmentName)) {
+				if (message.size() > 0) {
+					Entry entry = take(segmentStart);
+					append();
+					return entry;
+				}
+				append();
+			} else if (ENVELOPE.contains(segmentName)) {
+				LOGGER.debug("Batch envelope: " + segment.toString(charset));
+				if (message.size() > 0) {
+					return take(bufferOffset + position);
+				}
+			} else if (message.size() > 0) {
+				append();
+			} else {
+				LOGGER.warn("Skipping a " + segmentName + " segment outside of a message at offset " + segmentStart);
+			}
+		}
+	}
+
+	private Entry take(long endOffset) {
+		Entry entry = new Entry(message.toString(charset), endOffset);
+		message.reset();
+		return entry;
+	}
+
+	private void append() throws IOException {
+		if (message.size() > 0) {
+			message.write('\r');
+		}
+		segment.writeTo(message);
+	}
+
+	private String segmentName() {
+		return new String(name, 0, nameLength, charset);
+	}
+
+	/*
+	 * Reads up to the next CR or LF into segment. False at the end of the file
+	 * with nothing read.
+	 */
+	private boolean readSegment() throws IOException {
+		segment.reset();
+		nameLength = 0;
+		while (true) {
+			if (position == limit && !fill()) {
+				return segment.size() > 0;
+			}
+
+			int start = position;
+			while (position < limit) {
+				byte b = buffer[position];
+				if (b == '\r' || b == '\n') {
+					write(start, position);
+					position++;
+					return true;
+				}
+				if (b == START_BLOCK || b == END_BLOCK) {
+					write(start, position);
+					start = position + 1;
+				}
+				position++;
+			}
+			write(start, position);
+		}
+	}
+
+	private void write(int from, int to) {
+		for (int i = from; i < to && nameLength < name.length; i++) {
+			name[nameLength++] = buffer[i];
+		}
+		if (to > from) {
+			segment.write(buffer, from, to - from);
+		}
+	}
+
+	private boolean fill() throws IOException {
+		bufferOffset += limit;
+		position = 0;
+		limit = 0;
+		int n = in.read(buffer, 0, buffer.length);
+		if (n <= 0) {
+			return false;
+		}
+		limit = n;
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,97 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * AIMD limit on the number of $registry-control calls in flight.
+ *
+ * The limit starts at maxLimit. Every call that comes back fine adds
+ * 1/limit, so the limit grows by about one per limit's worth of calls. A
+ * failed or slow call halves it, down to minLimit. Calls that were already
+ * out when the limit was halved do not halve it again: a dead controller
+ * fails all of them at once, and that is one signal, not twenty.
+ *
+ * With minLimit equal to maxLimit it is a plain fair semaphore. A lock and
+ * condition rather than a monitor, so waiting virtual threads do not pin
+ * their carrier.
+ */
+public class CallLimiter {
+	private final int minLimit;
+	private final int maxLimit;
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private final Condition available = lock.newCondition();
+
+	// Guarded by lock
+	private double limit;
+	private int inFlight = 0;
+	private long lastDecreaseNanos;
+
+	public CallLimiter(int minLimit, int maxLimit) {
+		this.maxLimit = Math.max(1, maxLimit);
+		this.minLimit = Math.max(1, Math.min(minLimit, this.maxLimit));
+		this.limit = this.maxLimit;
+		this.lastDecreaseNanos = System.nanoTime();
+	}
+
+	/**
+	 * Waits for a free slot. Returns the ticket to hand back to release().
+	 */
+	public long acquire() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (inFlight >= (int) limit) {
+				available.await();
+			}
+			inFlight++;
+			return System.nanoTime();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * congested: the call failed or was slow.
+	 */
+	public void release(long ticket, boolean congested) {
+		lock.lock();
+		try {
+			inFlight--;
+			int before = (int) limit;
+			if (congested) {
+				if (ticket - lastDecreaseNanos > 0) {
+					limit = Math.max(minLimit, limit / 2);
+					lastDecreaseNanos = System.nanoTime();
+				}
+			} else {
+				limit = Math.min(maxLimit, limit + 1.0 / limit);
+			}
+
+			if ((int) limit > before) {
+				available.signalAll();
+			} else {
+				available.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Circuit breaker for the FHIR controller.
+ *
+ * CLOSED: every call goes out. The outcome of the last windowSize calls is
+ *   kept. Once at least MIN_CALLS (or windowSize, if smaller) are in, the
+ *   circuit opens when failureRatePercent of them failed, or
+ *   slowCallRatePercent of them took slowCallMillis or longer.
+ * OPEN: calls are refused right away (tryAcquire() returns false) for
+ *   openSeconds.
+ * HALF_OPEN: halfOpenCalls probe calls go out. If all of them succeed in
+ *   time the circuit closes, otherwise it opens again.
+ *
+ * What counts as a failure is up to the caller (record()). A call that was
+ * let through but not made is given back with cancel(). Listeners added
+ * with onClose() run when the circuit closes again, on the thread that
+ * recorded the last probe.
+ *
+ * Every change of state starts a new generation. tryAcquire() hands out the
+ * generation a call was let through in, and the outcome of a call from an
+ * earlier generation is ignored: a call let through while CLOSED that
+ * finishes after the circuit opened is not taken for a probe.
+ */
+public class CircuitBreaker {
+	static final int MIN_CALLS = 10;
+	// Returned by tryAcquire() for a call that may not go out
+	public static final long REFUSED = -1L;
+
+	public static enum State {
+		CLOSED, OPEN, HALF_OPEN;
+	}
+
+	/*
+	 * Thrown by a call that was refused. Without a stack trace, it is thrown on
+	 * every call while the circuit is open.
+	 */
+	public static class OpenException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public OpenException() {
+			super("The circuit to the FHIR controller is open", null, false, false);
+		}
+	}
+
+	private final int failureRatePercent;
+	private final long slowCallNanos;
+	private final int slowCallRatePercent;
+	private final long openMillis;
+	private final int halfOpenCalls;
+	private final int minCalls;
+	private final ReceiverMetrics metrics;
+	private final List<Runnable> closeListeners = new CopyOnWriteArrayList<Runnable>();
+
+	// Written under this. Read without it on the fast path.
+	private volatile State state = State.CLOSED;
+	private volatile long openUntilMillis = 0L;
+	private volatile long generation = 0L;
+
+	// Outcomes of the last calls while CLOSED: 1 failed, 2 slow. Guarded by this.
+	private final byte[] window;
+	private int next = 0;
+	private int calls = 0;
+	private int failures = 0;
+	private int slowCalls = 0;
+	private int probesIssued = 0;
+	private int probesSucceeded = 0;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class.getName());
+
+	/*
+	 * failureRatePercent, slowCallRatePercent: 0 or less never opens for that reason
+	 * slowCallMillis: 0 or less counts no call as slow
+	 */
+	public CircuitBreaker(int failureRatePercent, int slowCallMillis, int slowCallRatePercent, int windowSize,
+			int openSeconds, int halfOpenCalls, ReceiverMetrics metrics) {
+		this.failureRatePercent = failureRatePercent;
+		this.slowCallNanos = slowCallMillis * 1_000_000L;
+		this.slowCallRatePercent = slowCallRatePercent;
+		this.window = new byte[Math.max(1, windowSize)];
+		this.minCalls = Math.min(MIN_CALLS, window.length);
+		this.openMillis = Math.max(1, openSeconds) * 1000L;
+		this.halfOpenCalls = Math.max(1, halfOpenCalls);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Whether a call may go out now: REFUSED, or the ticket of the call. A call
+	 * that was let through must be followed by record(), or by cancel() if it
+	 * was not made, with its ticket.
+	 */
+	public long tryAcquire() {
+		// A generation that changes between the two reads only gets the call
+		// a stale ticket, and its outcome ignored.
+		long ticket = generation;
+		if (state == State.CLOSED) {
+			return ticket;
+		}
+
+		synchronized (this) {
+			if (state == State.OPEN) {
+				if (System.currentTimeMillis() < openUntilMillis) {
+					return REFUSED;
+				}
+				transition(State.HALF_OPEN);
+				probesIssued = 0;
+				probesSucceeded = 0;
+				LOGGER.info("Circuit to the FHIR controller is half-open. Sending " + halfOpenCalls + " probe call(s)");
+			}
+
+			if (state == State.HALF_OPEN) {
+				if (probesIssued >= halfOpenCalls) {
+					return REFUSED;
+				}
+				probesIssued++;
+			}
+			return generation;
+		}
+	}
+
+	/**
+	 * Records the outcome of a call that tryAcquire() let through.
+	 */
+	public void record(long ticket, boolean failed, long durationNanos) {
+		boolean slow = isSlow(durationNanos);
+		boolean closed = false;
+
+		synchronized (this) {
+			if (ticket != generation) {
+				// Let through in an earlier state. Too late to matter.
+				return;
+			}
+
+			switch (state) {
+			case CLOSED:
+				add((byte) ((failed ? 1 : 0) | (slow ? 2 : 0)));
+				if (calls >= minCalls && (tripped(failureRatePercent, failures) || tripped(slowCallRatePercent, slowCalls))) {
+					open(String.format("%d of the last %d calls failed, %d were slow", failures, calls, slowCalls));
+				}
+				break;
+			case HALF_OPEN:
+				if (failed || slow) {
+					open("a probe call " + (failed ? "failed" : "was slow"));
+				} else if (++probesSucceeded >= halfOpenCalls) {
+					transition(State.CLOSED);
+					clearWindow();
+					closed = true;
+					LOGGER.info("Circuit to the FHIR controller is closed");
+				}
+				break;
+			default:
+				break;
+			}
+		}
+
+		if (closed) {
+			for (Runnable listener : closeListeners) {
+				listener.run();
+			}
+		}
+	}
+
+	/**
+	 * Gives back a call that tryAcquire() let through but that was not made,
+	 * or whose outcome is not known. A probe slot taken while HALF_OPEN is
+	 * freed for another call.
+	 */
+	public synchronized void cancel(long ticket) {
+		if (ticket == generation && state == State.HALF_OPEN && probesIssued > probesSucceeded) {
+			probesIssued--;
+		}
+	}
+
+	private boolean tripped(int ratePercent, int count) {
+		return ratePercent > 0 && count * 100 >= ratePercent * calls;
+	}
+
+	private void add(byte outcome) {
+		if (calls == window.length) {
+			byte oldest = window[next];
+			failures -= oldest & 1;
+			slowCalls -= (oldest >> 1) & 1;
+		} else {
+			calls++;
+		}
+
+		window[next] = outcome;
+		failures += outcome & 1;
+		slowCalls += (outcome >> 1) & 1;
+		next = (next + 1) % window.length;
+	}
+
+	private void clearWindow() {
+		next = 0;
+		calls = 0;
+		failures = 0;
+		slowCalls = 0;
+	}
+
+	private void open(String reason) {
+		openUntilMillis = System.currentTimeMillis() + openMillis;
+		transition(State.OPEN);
+		metrics.breakerOpened.increment();
+		LOGGER.warn("Circuit to the FHIR controller is open: " + reason + ". Calls are queued for "
+				+ openMillis / 1000 + "s");
+	}
+
+	private void transition(State newState) {
+		generation++;
+		state = newState;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Time left until the circuit lets probe calls through. 0 unless it is
+	 * open.
+	 */
+	public long getOpenMillisRemaining() {
+		if (state != State.OPEN) {
+			return 0L;
+		}
+		return Math.max(0L, openUntilMillis - System.currentTimeMillis());
+	}
+
+	public boolean isSlow(long durationNanos) {
+		return slowCallNanos > 0 && durationNanos >= slowCallNanos;
+	}
+
+	public void onClose(Runnable listener) {
+		closeListeners.add(listener);
+	}
+}
@@ -0,0 +1,175 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+
+/*
+ * Accept-then-deliver pipeline.
+ *
+ * Accepted messages are written to the InboundJournal and then handed to a
+ * fixed pool of delivery workers that run the conversion and the FHIR call.
+ * The number of messages waiting for or in delivery is bounded. When the
+ * bound is reached, submit() blocks the MLLP connection thread, which pushes
+ * back on the sender instead of growing the heap.
+ *
+ * A journal entry is completed once its message has been sent, or its failed
+ * bundles are on the retry queue. A message that can be neither (it does not
+ * parse or convert, has no patient identifier, or the retry queue cannot be
+ * written) is appended to the dead-letter file, after a "# reason" line like
+ * the errors file of a FILE listener, so it can be fixed and dropped into an
+ * inbox. If even that fails, the message is logged in full and completed all
+ * the same: left in the journal, it would keep every message after it from
+ * being removed until the next start.
+ */
+public class DeliveryPipeline {
+	private HL7v2ReceiverApplication<?> app = null;
+	private InboundJournal journal = null;
+	private String deadLetterFileName = null;
+	private ExecutorService workers = null;
+	private Semaphore permits = null;
+	private int capacity = 0;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(DeliveryPipeline.class.getName());
+
+	public DeliveryPipeline(HL7v2ReceiverApplication<?> app, InboundJournal journal, String deadLetterFileName,
+			int workerCount, int queueSize) {
+		this.app = app;
+		this.journal = journal;
+		this.deadLetterFileName = deadLetterFileName;
+		this.capacity = workerCount + queueSize;
+		this.permits = new Semaphore(capacity);
+
+		ThreadFactory threadFactory = ThreadModel.newThreadFactory(app.getThreadModel(), "elr-delivery-");
+		this.workers = Executors.newFixedThreadPool(workerCount, threadFactory);
+	}
+
+	/**
+	 * Re-submits messages that were journaled but not delivered before the last
+	 * shutdown.
+	 */
+	public void recover() {
+		List<InboundJournal.Entry> pending = journal.pending();
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		LOGGER.info("Replaying " + pending.size() + " undelivered message(s) from the inbound journal");
+		PipeParser parser = PipeParser.getInstanceWithNoValidation();
+		for (InboundJournal.Entry entry : pending) {
+			final long mySeq = entry.getSeq();
+			Message message;
+			try {
+				message = parser.parse(entry.getRawMessage());
+			} catch (Exception e) {
+				LOGGER.error("Unparsable message " + mySeq + " in the inbound journal: " + e.getMessage());
+				deadLetter(entry.getRawMessage(), "Unparsable: " + e.getMessage());
+				journal.complete(mySeq);
+				continue;
+			}
+
+			try {
+				dispatch(message, entry.getRawMessage(), mySeq);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Persists the raw message and queues it for delivery. The returned future
+	 * completes when the message has been converted and sent (or the attempt
+	 * failed).
+	 */
+	public CompletableFuture<Void> submit(Message message, String rawMessage) throws IOException, InterruptedException {
+		long startNanos = System.nanoTime();
+		long seq = journal.append(rawMessage);
+		ReceiverMetrics.record(app.getMetrics().journalTimer, startNanos);
+		return dispatch(message, rawMessage, seq);
+	}
+
+	private CompletableFuture<Void> dispatch(Message message, String rawMessage, long seq)
+			throws InterruptedException {
+		CompletableFuture<Void> result = new CompletableFuture<Void>();
+		boolean large = app.isLarge(rawMessage.length());
+
+		permits.acquire();
+		try {
+			workers.execute(() -> {
+				boolean settled = false;
+				try {
+					app.deliverMessage(message, large);
+					settled = true;
+					result.complete(null);
+				} catch (HL7v2ReceiverApplication.QueuedForRetryException e) {
+					// The retry queue has it now.
+					settled = true;
+					LOGGER.warn("Journaled message " + seq + " queued for retry: " + e.getMessage());
+					result.completeExceptionally(e);
+				} catch (Exception e) {
+					LOGGER.error("Delivery failed for journaled message " + seq + ": " + e.getMessage());
+					deadLetter(rawMessage, e.toString());
+					settled = true;
+					result.completeExceptionally(e);
+				} finally {
+					if (settled) {
+						journal.complete(seq);
+					}
+					permits.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+
+		return result;
+	}
+
+	/*
+	 * Appends the message to the dead-letter file and syncs it. If that fails,
+	 * the message goes to the log instead.
+	 */
+	private synchronized void deadLetter(String rawMessage, String reason) {
+		app.getMetrics().journalDeadLettered.increment();
+		try (FileOutputStream out = new FileOutputStream(deadLetterFileName, true)) {
+			String text = "# " + reason.replace('\r', ' ').replace('\n', ' ') + "\n" + rawMessage + "\r\n";
+			out.write(text.getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+			LOGGER.error("Moved a journaled message to " + deadLetterFileName);
+		} catch (IOException e) {
+			LOGGER.error("Failed to write to " + deadLetterFileName + ": " + e.getMessage() + ". Dropped the message ("
+					+ reason + "):\n" + rawMessage.replace('\r', '\n'));
+		}
+	}
+
+	public int getInFlight() {
+		return capacity - permits.availablePermits();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getJournalSize() {
+		return journal.size();
+	}
+
+	public void shutdown() {
+		workers.shutdown();
+	}
+}
@@ -0,0 +1,341 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Remembers the ACK of every message for windowSeconds, so that a resend can
+ * be answered with the original ACK instead of being converted and delivered
+ * again.
+ *
+ * The key is the sending facility (MSH-4-1) and control ID (MSH-10), plus a
+ * SHA-256 of the raw message with useHash. With the hash, a sender that
+ * reuses control IDs for different messages is not suppressed, and neither
+ * is a resend that differs from the original (e.g. a new MSH-7).
+ *
+ * A message is claimed with begin() before it is processed. A resend that
+ * arrives while the original is still being processed (the usual case: the
+ * sender timed out waiting for the ACK) waits for the original's ACK. If the
+ * original fails, the resend is processed itself.
+ *
+ * At most maxEntries keys are kept, oldest dropped first. With a fileName,
+ * completed entries are also appended to that file and loaded again on the
+ * next start. The file is rewritten from memory when it has grown to twice
+ * maxEntries lines. It is written under a lock of its own, so begin() on
+ * other connections does not wait for the disk.
+ */
+public class DuplicateSuppressor {
+	static final long IN_FLIGHT_WAIT_SECONDS = 30L;
+	static final int HASH_CHUNK = 8192;
+
+	private final long windowMillis;
+	private final int maxEntries;
+	private final boolean useHash;
+	private final File file;
+
+	// Insertion order, so the eldest entry is at the head. Guarded by this.
+	private final LinkedHashMap<String, Entry> entries;
+	// Taken before this, never after. Guards log and logLines.
+	private final Object logLock = new Object();
+	private Writer log = null;
+	private int logLines = 0;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(DuplicateSuppressor.class.getName());
+
+	public static class Entry {
+		private long expiresAtMillis;
+		// Completes with the encoded ACK, or null if the original failed.
+		private final CompletableFuture<String> ack = new CompletableFuture<String>();
+
+		Entry(long expiresAtMillis) {
+			this.expiresAtMillis = expiresAtMillis;
+		}
+	}
+
+	public DuplicateSuppressor(int windowSeconds, int maxEntries, boolean useHash, String fileName)
+			throws IOException {
+		this.windowMillis = windowSeconds * 1000L;
+		this.maxEntries = Math.max(1, maxEntries);
+		this.useHash = useHash;
+		this.file = fileName == null || fileName.isBlank() ? null : new File(fileName);
+
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > DuplicateSuppressor.this.maxEntries;
+			}
+		};
+
+		if (file != null) {
+			load();
+			synchronized (logLock) {
+				rewriteLog();
+			}
+		}
+	}
+
+	/**
+	 * The key of a message, or null if it has no control ID.
+	 */
+	public String keyOf(String sendingFacility, String controlId, String rawMessage) {
+		if (controlId == null || controlId.isEmpty()) {
+			return null;
+		}
+
+		String key = (sendingFacility == null ? "" : sendingFacility) + "|" + controlId;
+		if (useHash && rawMessage != null) {
+			key += "|" + sha256(rawMessage);
+		}
+		return key;
+	}
+
+	/*
+	 * Hashed HASH_CHUNK characters at a time, so a large message is not copied
+	 * into one more byte array.
+	 */
+	private static String sha256(String rawMessage) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			int length = rawMessage.length();
+			for (int from = 0; from < length;) {
+				int to = Math.min(length, from + HASH_CHUNK);
+				if (to < length && Character.isHighSurrogate(rawMessage.charAt(to - 1))) {
+					// Keep the pair together, or it would be encoded as two '?'.
+					to--;
+				}
+				digest.update(rawMessage.substring(from, to).getBytes(StandardCharsets.UTF_8));
+				from = to;
+			}
+			return Base64.getEncoder().withoutPadding().encodeToString(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Claims the key. Returns null if the caller owns it now and has to call
+	 * complete() or abandon(), or the entry of the original message if it is a
+	 * duplicate.
+	 */
+	public synchronized Entry begin(String key) {
+		long now = System.currentTimeMillis();
+		pruneExpired(now);
+
+		Entry existing = entries.get(key);
+		if (existing != null && existing.expiresAtMillis > now) {
+			return existing;
+		}
+
+		// Until it completes, the entry does not expire.
+		entries.put(key, new Entry(Long.MAX_VALUE));
+		return null;
+	}
+
+	/**
+	 * The original's ACK, or null if the original failed and the duplicate
+	 * should be processed itself.
+	 */
+	public String awaitAck(Entry original) throws InterruptedException, TimeoutException {
+		try {
+			return original.ack.get(IN_FLIGHT_WAIT_SECONDS, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	public void complete(String key, String ack) {
+		Entry entry;
+		long expiresAtMillis;
+		synchronized (this) {
+			entry = entries.remove(key);
+			if (entry == null) {
+				// Pushed out by newer ones.
+				entry = new Entry(0L);
+			}
+			expiresAtMillis = System.currentTimeMillis() + windowMillis;
+			entry.expiresAtMillis = expiresAtMillis;
+			// Back at the tail, in expiry order.
+			entries.put(key, entry);
+		}
+		entry.ack.complete(ack);
+		append(key, expiresAtMillis, ack);
+	}
+
+	public void abandon(String key) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null && !entry.ack.isDone()) {
+				entries.remove(key);
+			} else {
+				entry = null;
+			}
+		}
+		if (entry != null) {
+			entry.ack.complete(null);
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private void pruneExpired(long now) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (!entry.ack.isDone()) {
+				// In flight. Completed entries behind it may have expired.
+				continue;
+			}
+			if (entry.expiresAtMillis > now) {
+				// Completed entries are in expiry order, so the rest are newer.
+				break;
+			}
+			it.remove();
+		}
+	}
+
+	/*
+	 * Log line: <expires at millis> <key> <ACK>, key and ACK Base64 encoded.
+	 */
+	private void append(String key, long expiresAtMillis, String ack) {
+		synchronized (logLock) {
+			if (log == null) {
+				return;
+			}
+
+			try {
+				log.write(Long.toString(expiresAtMillis));
+				log.write('\t');
+				log.write(encode(key));
+				log.write('\t');
+				log.write(encode(ack));
+				log.write('\n');
+				log.flush();
+
+				if (++logLines >= 2 * maxEntries) {
+					rewriteLog();
+				}
+			} catch (IOException e) {
+				LOGGER.error("Failed to write to " + file + ": " + e.getMessage() + ". Duplicates are tracked in memory only.");
+				closeLog();
+			}
+		}
+	}
+
+	private void load() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 3) {
+					// Torn last line
+					continue;
+				}
+				try {
+					long expiresAtMillis = Long.parseLong(fields[0]);
+					if (expiresAtMillis <= now) {
+						continue;
+					}
+					String key = decode(fields[1]);
+					Entry entry = new Entry(expiresAtMillis);
+					entry.ack.complete(decode(fields[2]));
+					entries.remove(key);
+					entries.put(key, entry);
+				} catch (IllegalArgumentException e) {
+					continue;
+				}
+			}
+		}
+
+		LOGGER.info("Loaded " + entries.size() + " control IDs for duplicate suppression from " + file);
+	}
+
+	/*
+	 * Writes the completed entries in memory to a new file and continues
+	 * appending to it. Called with logLock held. The entries are copied under
+	 * this and written without it.
+	 */
+	private void rewriteLog() throws IOException {
+		closeLog();
+
+		List<String> lines = new ArrayList<String>();
+		synchronized (this) {
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				String ack = entry.ack.getNow(null);
+				if (ack == null) {
+					continue;
+				}
+				lines.add(entry.expiresAtMillis + "\t" + encode(e.getKey()) + "\t" + encode(ack) + "\n");
+			}
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		logLines = 0;
+		try (Writer writer = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+			for (String line : lines) {
+				writer.write(line);
+				logLines++;
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+	}
+
+	private void closeLog() {
+		if (log != null) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				// Nothing left to do with it.
+			}
+			log = null;
+		}
+	}
+
+	private static String encode(String s) {
+		return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String decode(String s) {
+		return new String(Base64.getDecoder().decode(s), StandardCharsets.UTF_8);
+	}
+}
@@ -5,30 +5,19 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
 import org.json.JSONArray;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ca.uhn.hl7v2.DefaultHapiContext;
-import ca.uhn.hl7v2.HapiContext;
 import ca.uhn.hl7v2.app.Connection;
 import ca.uhn.hl7v2.app.ConnectionListener;
-import ca.uhn.hl7v2.app.HL7Service;
-import ca.uhn.hl7v2.app.SimpleServer;
-import ca.uhn.hl7v2.hoh.llp.Hl7OverHttpLowerLayerProtocol;
-import ca.uhn.hl7v2.hoh.util.ServerRoleEnum;
-import ca.uhn.hl7v2.llp.LowerLayerProtocol;
-import ca.uhn.hl7v2.model.Message;
-import ca.uhn.hl7v2.parser.PipeParser;
-import ca.uhn.hl7v2.protocol.ReceivingApplication;
 import ca.uhn.hl7v2.protocol.ReceivingApplicationExceptionHandler;
 
 /**
@@ -48,13 +37,70 @@ public class ELRReceiver {
 	static boolean default_useTls = false;
 	static String default_useTls_str = "False";
 	static String default_qFileName = "queueELR";
+	static String default_queueCompression = "DEFLATE";
+	static String default_queuePartitions = "1";
 	static String default_transport = "MLLP";
 	static String default_hl7HttpBasic = "user:password";
 	static String default_saveToFile = "NO";
 	static String default_authBasic = "client:secret";
 	static String default_authBearer = "1234";
+	static String default_authTokenUrl = "";
+	static String default_authScope = "";
+	static String default_authRefreshSkewSeconds = "60";
 	static String default_filePath = "./";
+	static String default_archiveMaxMB = "64";
+	static String default_archiveMaxMinutes = "60";
+	static String default_archiveQueueSize = "10000";
+	static String default_archiveOnFull = "DROP";
 	static String default_v2FilterFile = "filter_configuration.json";
+	static String default_v2FilterHotReload = "False";
+	static String default_v2PreScreen = "True";
+	static String default_duplicateWindowSeconds = "600";
+	static String default_duplicateMaxEntries = "100000";
+	static String default_duplicateKey = "CONTROL_ID_HASH";
+	static String default_duplicateFileName = "";
+	static String default_deliveryMode = "SYNC";
+	static String default_ackMode = "PERSIST";
+	static String default_deliveryWorkers = "4";
+	static String default_deliveryQueueSize = "100";
+	static String default_inboundFileName = "inboundELR";
+	static String default_journalType = "QUEUEFILE";
+	static String default_journalSegmentMB = "64";
+	static String default_journalSyncMillis = "0";
+	static String default_journalRetainSegments = "0";
+	static String default_drainBatchSize = "100";
+	static String default_drainParallelism = "4";
+	static String default_drainIdleSeconds = "10";
+	static String default_drainMaxBackoffSeconds = "300";
+	static String default_retryMaxAttempts = "20";
+	static String default_retryBaseSeconds = "10";
+	static String default_retryMaxSeconds = "3600";
+	static String default_fhirMaxConnections = "20";
+	static String default_fhirConnectTimeoutMillis = "10000";
+	static String default_fhirSocketTimeoutMillis = "60000";
+	static String default_fhirConnectionRequestTimeoutMillis = "10000";
+	static String default_fhirIdleEvictSeconds = "30";
+	static String default_fhirBatchSize = "1";
+	static String default_fhirBatchMaxWaitMillis = "50";
+	static String default_fhirBatchSenders = "2";
+	static String default_metricsPort = "9464";
+	static String default_threadModel = "PLATFORM";
+	static String default_fhirMaxConcurrentCalls = "20";
+	static String default_fhirMinConcurrentCalls = "1";
+	static String default_fhirBreakerFailureRate = "50";
+	static String default_fhirBreakerSlowCallMillis = "10000";
+	static String default_fhirBreakerSlowCallRate = "80";
+	static String default_fhirBreakerWindow = "50";
+	static String default_fhirBreakerOpenSeconds = "30";
+	static String default_fhirBreakerHalfOpenCalls = "3";
+	static String default_batchInboxDir = "inbox";
+	static String default_batchDoneDir = "";
+	static String default_batchWorkers = "4";
+	static String default_batchPollSeconds = "5";
+	static String default_listeners = "";
+	static String default_warmupIterations = "20";
+	static String default_maxMessageSize = "16777216";
+	static String default_largeMessageSize = "1048576";
 
 	@SuppressWarnings("rawtypes")
 	public static void main(String[] args) throws Exception {
@@ -65,13 +111,70 @@ public class ELRReceiver {
 		boolean useTls = default_useTls;
 		String fhir_controller_api_url = default_fhir_controller_api_url;
 		String qFileName = default_qFileName;
+		String queueCompression = default_queueCompression;
+		int queuePartitions = Integer.parseInt(default_queuePartitions);
 		String transport = default_transport;
 		String hl7HttpBasic = default_hl7HttpBasic;
 		String saveToFile = default_saveToFile;
 		String authBasic = default_authBasic;
 		String authBearer = default_authBearer;
+		String authTokenUrl = default_authTokenUrl;
+		String authScope = default_authScope;
+		int authRefreshSkewSeconds = Integer.parseInt(default_authRefreshSkewSeconds);
 		String filePath = default_filePath;
+		int archiveMaxMB = Integer.parseInt(default_archiveMaxMB);
+		int archiveMaxMinutes = Integer.parseInt(default_archiveMaxMinutes);
+		int archiveQueueSize = Integer.parseInt(default_archiveQueueSize);
+		String archiveOnFull = default_archiveOnFull;
 		String v2FilterFile = default_v2FilterFile;
+		boolean v2FilterHotReload = false;
+		boolean v2PreScreen = true;
+		int duplicateWindowSeconds = Integer.parseInt(default_duplicateWindowSeconds);
+		int duplicateMaxEntries = Integer.parseInt(default_duplicateMaxEntries);
+		String duplicateKey = default_duplicateKey;
+		String duplicateFileName = default_duplicateFileName;
+		String deliveryMode = default_deliveryMode;
+		String ackMode = default_ackMode;
+		int deliveryWorkers = Integer.parseInt(default_deliveryWorkers);
+		int deliveryQueueSize = Integer.parseInt(default_deliveryQueueSize);
+		String inboundFileName = default_inboundFileName;
+		String journalType = default_journalType;
+		int journalSegmentMB = Integer.parseInt(default_journalSegmentMB);
+		int journalSyncMillis = Integer.parseInt(default_journalSyncMillis);
+		int journalRetainSegments = Integer.parseInt(default_journalRetainSegments);
+		int drainBatchSize = Integer.parseInt(default_drainBatchSize);
+		int drainParallelism = Integer.parseInt(default_drainParallelism);
+		int drainIdleSeconds = Integer.parseInt(default_drainIdleSeconds);
+		int drainMaxBackoffSeconds = Integer.parseInt(default_drainMaxBackoffSeconds);
+		int retryMaxAttempts = Integer.parseInt(default_retryMaxAttempts);
+		int retryBaseSeconds = Integer.parseInt(default_retryBaseSeconds);
+		int retryMaxSeconds = Integer.parseInt(default_retryMaxSeconds);
+		int fhirMaxConnections = Integer.parseInt(default_fhirMaxConnections);
+		int fhirConnectTimeoutMillis = Integer.parseInt(default_fhirConnectTimeoutMillis);
+		int fhirSocketTimeoutMillis = Integer.parseInt(default_fhirSocketTimeoutMillis);
+		int fhirConnectionRequestTimeoutMillis = Integer.parseInt(default_fhirConnectionRequestTimeoutMillis);
+		int fhirIdleEvictSeconds = Integer.parseInt(default_fhirIdleEvictSeconds);
+		int fhirBatchSize = Integer.parseInt(default_fhirBatchSize);
+		int fhirBatchMaxWaitMillis = Integer.parseInt(default_fhirBatchMaxWaitMillis);
+		int fhirBatchSenders = Integer.parseInt(default_fhirBatchSenders);
+		int metricsPort = Integer.parseInt(default_metricsPort);
+		String threadModel = default_threadModel;
+		int fhirMaxConcurrentCalls = Integer.parseInt(default_fhirMaxConcurrentCalls);
+		int fhirMinConcurrentCalls = Integer.parseInt(default_fhirMinConcurrentCalls);
+		int fhirBreakerFailureRate = Integer.parseInt(default_fhirBreakerFailureRate);
+		int fhirBreakerSlowCallMillis = Integer.parseInt(default_fhirBreakerSlowCallMillis);
+		int fhirBreakerSlowCallRate = Integer.parseInt(default_fhirBreakerSlowCallRate);
+		int fhirBreakerWindow = Integer.parseInt(default_fhirBreakerWindow);
+		int fhirBreakerOpenSeconds = Integer.parseInt(default_fhirBreakerOpenSeconds);
+		int fhirBreakerHalfOpenCalls = Integer.parseInt(default_fhirBreakerHalfOpenCalls);
+		String batchInboxDir = default_batchInboxDir;
+		String batchDoneDir = default_batchDoneDir;
+		int batchWorkers = Integer.parseInt(default_batchWorkers);
+		int batchPollSeconds = Integer.parseInt(default_batchPollSeconds);
+		String listeners = default_listeners;
+		int warmupIterations = Integer.parseInt(default_warmupIterations);
+		int maxMessageSize = Integer.parseInt(default_maxMessageSize);
+		int largeMessageSize = Integer.parseInt(default_largeMessageSize);
 	
 		String env_saveToFile = System.getenv("SAVE_TO_FILE");
 		if (env_saveToFile != null && !env_saveToFile.isBlank()) {
@@ -88,6 +191,11 @@ public class ELRReceiver {
 			default_authBearer = env_authBearer;
 		}
 
+		String env_authTokenUrl = System.getenv("AUTH_TOKEN_URL");
+		if (env_authTokenUrl != null && !env_authTokenUrl.isBlank()) {
+			default_authTokenUrl = env_authTokenUrl;
+		}
+
 		boolean writeConfig = false;
 		try {
 			input = new FileInputStream("config.properties");
@@ -96,13 +204,70 @@ public class ELRReceiver {
 			port = Integer.parseInt(prop.getProperty("port", default_port));
 			fhir_controller_api_url = prop.getProperty("fhirControllerUrl", default_fhir_controller_api_url);
 			qFileName = prop.getProperty("qFileName", default_qFileName);
+			queueCompression = prop.getProperty("queueCompression", default_queueCompression);
+			queuePartitions = Integer.parseInt(prop.getProperty("queuePartitions", default_queuePartitions));
 			transport = prop.getProperty("transport", default_transport);
 			hl7HttpBasic = prop.getProperty("hl7HttpBasic", default_hl7HttpBasic);
 			saveToFile = prop.getProperty("saveToFile", default_saveToFile);
 			authBasic = prop.getProperty("authBasic", default_authBasic);
 			authBearer = prop.getProperty("authBearer", default_authBearer);
+			authTokenUrl = prop.getProperty("authTokenUrl", default_authTokenUrl);
+			authScope = prop.getProperty("authScope", default_authScope);
+			authRefreshSkewSeconds = Integer.parseInt(prop.getProperty("authRefreshSkewSeconds", default_authRefreshSkewSeconds));
 			filePath = prop.getProperty("filePath", default_filePath);
+			archiveMaxMB = Integer.parseInt(prop.getProperty("archiveMaxMB", default_archiveMaxMB));
+			archiveMaxMinutes = Integer.parseInt(prop.getProperty("archiveMaxMinutes", default_archiveMaxMinutes));
+			archiveQueueSize = Integer.parseInt(prop.getProperty("archiveQueueSize", default_archiveQueueSize));
+			archiveOnFull = prop.getProperty("archiveOnFull", default_archiveOnFull);
 			v2FilterFile = prop.getProperty("v2FilterFile", default_v2FilterFile);
+			v2FilterHotReload = prop.getProperty("v2FilterHotReload", default_v2FilterHotReload).equalsIgnoreCase("true");
+			v2PreScreen = prop.getProperty("v2PreScreen", default_v2PreScreen).equalsIgnoreCase("true");
+			duplicateWindowSeconds = Integer.parseInt(prop.getProperty("duplicateWindowSeconds", default_duplicateWindowSeconds));
+			duplicateMaxEntries = Integer.parseInt(prop.getProperty("duplicateMaxEntries", default_duplicateMaxEntries));
+			duplicateKey = prop.getProperty("duplicateKey", default_duplicateKey);
+			duplicateFileName = prop.getProperty("duplicateFileName", default_duplicateFileName);
+			deliveryMode = prop.getProperty("deliveryMode", default_deliveryMode);
+			ackMode = prop.getProperty("ackMode", default_ackMode);
+			deliveryWorkers = Integer.parseInt(prop.getProperty("deliveryWorkers", default_deliveryWorkers));
+			deliveryQueueSize = Integer.parseInt(prop.getProperty("deliveryQueueSize", default_deliveryQueueSize));
+			inboundFileName = prop.getProperty("inboundFileName", default_inboundFileName);
+			journalType = prop.getProperty("journalType", default_journalType);
+			journalSegmentMB = Integer.parseInt(prop.getProperty("journalSegmentMB", default_journalSegmentMB));
+			journalSyncMillis = Integer.parseInt(prop.getProperty("journalSyncMillis", default_journalSyncMillis));
+			journalRetainSegments = Integer.parseInt(prop.getProperty("journalRetainSegments", default_journalRetainSegments));
+			drainBatchSize = Integer.parseInt(prop.getProperty("drainBatchSize", default_drainBatchSize));
+			drainParallelism = Integer.parseInt(prop.getProperty("drainParallelism", default_drainParallelism));
+			drainIdleSeconds = Integer.parseInt(prop.getProperty("drainIdleSeconds", default_drainIdleSeconds));
+			drainMaxBackoffSeconds = Integer.parseInt(prop.getProperty("drainMaxBackoffSeconds", default_drainMaxBackoffSeconds));
+			retryMaxAttempts = Integer.parseInt(prop.getProperty("retryMaxAttempts", default_retryMaxAttempts));
+			retryBaseSeconds = Integer.parseInt(prop.getProperty("retryBaseSeconds", default_retryBaseSeconds));
+			retryMaxSeconds = Integer.parseInt(prop.getProperty("retryMaxSeconds", default_retryMaxSeconds));
+			fhirMaxConnections = Integer.parseInt(prop.getProperty("fhirMaxConnections", default_fhirMaxConnections));
+			fhirConnectTimeoutMillis = Integer.parseInt(prop.getProperty("fhirConnectTimeoutMillis", default_fhirConnectTimeoutMillis));
+			fhirSocketTimeoutMillis = Integer.parseInt(prop.getProperty("fhirSocketTimeoutMillis", default_fhirSocketTimeoutMillis));
+			fhirConnectionRequestTimeoutMillis = Integer.parseInt(prop.getProperty("fhirConnectionRequestTimeoutMillis", default_fhirConnectionRequestTimeoutMillis));
+			fhirIdleEvictSeconds = Integer.parseInt(prop.getProperty("fhirIdleEvictSeconds", default_fhirIdleEvictSeconds));
+			fhirBatchSize = Integer.parseInt(prop.getProperty("fhirBatchSize", default_fhirBatchSize));
+			fhirBatchMaxWaitMillis = Integer.parseInt(prop.getProperty("fhirBatchMaxWaitMillis", default_fhirBatchMaxWaitMillis));
+			fhirBatchSenders = Integer.parseInt(prop.getProperty("fhirBatchSenders", default_fhirBatchSenders));
+			metricsPort = Integer.parseInt(prop.getProperty("metricsPort", default_metricsPort));
+			threadModel = prop.getProperty("threadModel", default_threadModel);
+			fhirMaxConcurrentCalls = Integer.parseInt(prop.getProperty("fhirMaxConcurrentCalls", default_fhirMaxConcurrentCalls));
+			fhirMinConcurrentCalls = Integer.parseInt(prop.getProperty("fhirMinConcurrentCalls", default_fhirMinConcurrentCalls));
+			fhirBreakerFailureRate = Integer.parseInt(prop.getProperty("fhirBreakerFailureRate", default_fhirBreakerFailureRate));
+			fhirBreakerSlowCallMillis = Integer.parseInt(prop.getProperty("fhirBreakerSlowCallMillis", default_fhirBreakerSlowCallMillis));
+			fhirBreakerSlowCallRate = Integer.parseInt(prop.getProperty("fhirBreakerSlowCallRate", default_fhirBreakerSlowCallRate));
+			fhirBreakerWindow = Integer.parseInt(prop.getProperty("fhirBreakerWindow", default_fhirBreakerWindow));
+			fhirBreakerOpenSeconds = Integer.parseInt(prop.getProperty("fhirBreakerOpenSeconds", default_fhirBreakerOpenSeconds));
+			fhirBreakerHalfOpenCalls = Integer.parseInt(prop.getProperty("fhirBreakerHalfOpenCalls", default_fhirBreakerHalfOpenCalls));
+			batchInboxDir = prop.getProperty("batchInboxDir", default_batchInboxDir);
+			batchDoneDir = prop.getProperty("batchDoneDir", default_batchDoneDir);
+			batchWorkers = Integer.parseInt(prop.getProperty("batchWorkers", default_batchWorkers));
+			batchPollSeconds = Integer.parseInt(prop.getProperty("batchPollSeconds", default_batchPollSeconds));
+			listeners = prop.getProperty("listeners", default_listeners);
+			warmupIterations = Integer.parseInt(prop.getProperty("warmupIterations", default_warmupIterations));
+			maxMessageSize = Integer.parseInt(prop.getProperty("maxMessageSize", default_maxMessageSize));
+			largeMessageSize = Integer.parseInt(prop.getProperty("largeMessageSize", default_largeMessageSize));
 
 			if (prop.getProperty("useTls", default_useTls_str).equalsIgnoreCase("true")) {
 				useTls = true;
@@ -119,13 +284,70 @@ public class ELRReceiver {
 				prop.setProperty("fhirControllerUrl", default_fhir_controller_api_url);
 				prop.setProperty("useTls", default_useTls_str);
 				prop.setProperty("qFileName", default_qFileName);
+				prop.setProperty("queueCompression", default_queueCompression);
+				prop.setProperty("queuePartitions", default_queuePartitions);
 				prop.setProperty("transport", default_transport);
 				prop.setProperty("hl7HttpBasic", default_hl7HttpBasic);
 				prop.setProperty("saveToFile", default_saveToFile);
 				prop.setProperty("authBasic", default_hl7HttpBasic);
 				prop.setProperty("authBearer", default_authBearer);
+				prop.setProperty("authTokenUrl", default_authTokenUrl);
+				prop.setProperty("authScope", default_authScope);
+				prop.setProperty("authRefreshSkewSeconds", default_authRefreshSkewSeconds);
 				prop.setProperty("filePath", default_filePath);
+				prop.setProperty("archiveMaxMB", default_archiveMaxMB);
+				prop.setProperty("archiveMaxMinutes", default_archiveMaxMinutes);
+				prop.setProperty("archiveQueueSize", default_archiveQueueSize);
+				prop.setProperty("archiveOnFull", default_archiveOnFull);
 				prop.setProperty("v2FilterFile", default_v2FilterFile);
+				prop.setProperty("v2FilterHotReload", default_v2FilterHotReload);
+				prop.setProperty("v2PreScreen", default_v2PreScreen);
+				prop.setProperty("duplicateWindowSeconds", default_duplicateWindowSeconds);
+				prop.setProperty("duplicateMaxEntries", default_duplicateMaxEntries);
+				prop.setProperty("duplicateKey", default_duplicateKey);
+				prop.setProperty("duplicateFileName", default_duplicateFileName);
+				prop.setProperty("deliveryMode", default_deliveryMode);
+				prop.setProperty("ackMode", default_ackMode);
+				prop.setProperty("deliveryWorkers", default_deliveryWorkers);
+				prop.setProperty("deliveryQueueSize", default_deliveryQueueSize);
+				prop.setProperty("inboundFileName", default_inboundFileName);
+				prop.setProperty("journalType", default_journalType);
+				prop.setProperty("journalSegmentMB", default_journalSegmentMB);
+				prop.setProperty("journalSyncMillis", default_journalSyncMillis);
+				prop.setProperty("journalRetainSegments", default_journalRetainSegments);
+				prop.setProperty("drainBatchSize", default_drainBatchSize);
+				prop.setProperty("drainParallelism", default_drainParallelism);
+				prop.setProperty("drainIdleSeconds", default_drainIdleSeconds);
+				prop.setProperty("drainMaxBackoffSeconds", default_drainMaxBackoffSeconds);
+				prop.setProperty("retryMaxAttempts", default_retryMaxAttempts);
+				prop.setProperty("retryBaseSeconds", default_retryBaseSeconds);
+				prop.setProperty("retryMaxSeconds", default_retryMaxSeconds);
+				prop.setProperty("fhirMaxConnections", default_fhirMaxConnections);
+				prop.setProperty("fhirConnectTimeoutMillis", default_fhirConnectTimeoutMillis);
+				prop.setProperty("fhirSocketTimeoutMillis", default_fhirSocketTimeoutMillis);
+				prop.setProperty("fhirConnectionRequestTimeoutMillis", default_fhirConnectionRequestTimeoutMillis);
+				prop.setProperty("fhirIdleEvictSeconds", default_fhirIdleEvictSeconds);
+				prop.setProperty("fhirBatchSize", default_fhirBatchSize);
+				prop.setProperty("fhirBatchMaxWaitMillis", default_fhirBatchMaxWaitMillis);
+				prop.setProperty("fhirBatchSenders", default_fhirBatchSenders);
+				prop.setProperty("metricsPort", default_metricsPort);
+				prop.setProperty("threadModel", default_threadModel);
+				prop.setProperty("fhirMaxConcurrentCalls", default_fhirMaxConcurrentCalls);
+				prop.setProperty("fhirMinConcurrentCalls", default_fhirMinConcurrentCalls);
+				prop.setProperty("fhirBreakerFailureRate", default_fhirBreakerFailureRate);
+				prop.setProperty("fhirBreakerSlowCallMillis", default_fhirBreakerSlowCallMillis);
+				prop.setProperty("fhirBreakerSlowCallRate", default_fhirBreakerSlowCallRate);
+				prop.setProperty("fhirBreakerWindow", default_fhirBreakerWindow);
+				prop.setProperty("fhirBreakerOpenSeconds", default_fhirBreakerOpenSeconds);
+				prop.setProperty("fhirBreakerHalfOpenCalls", default_fhirBreakerHalfOpenCalls);
+				prop.setProperty("batchInboxDir", default_batchInboxDir);
+				prop.setProperty("batchDoneDir", default_batchDoneDir);
+				prop.setProperty("batchWorkers", default_batchWorkers);
+				prop.setProperty("batchPollSeconds", default_batchPollSeconds);
+				prop.setProperty("listeners", default_listeners);
+				prop.setProperty("warmupIterations", default_warmupIterations);
+				prop.setProperty("maxMessageSize", default_maxMessageSize);
+				prop.setProperty("largeMessageSize", default_largeMessageSize);
 				prop.store(output, null);
 			}
 		}
@@ -149,60 +371,100 @@ public class ELRReceiver {
 			transport = envTransport;
 		}
 
-		// Read v2 filters and set it up.
-		String filtersstr = Files.readString(Path.of(v2FilterFile));
-		JSONObject filtersJson = new JSONObject(filtersstr);
-
-		HL7v2ReceiverFHIRApplication handler = new HL7v2ReceiverFHIRApplication();
-		handler.setV2Filters(filtersJson);
-		
-		if ("MLLP".equals(transport)) {
-			HapiContext ctx = new DefaultHapiContext();
-			LOGGER.debug("Starting with MLLP");
-			HL7Service server = ctx.newServer(port, useTls);
-
-			LOGGER.debug("Preparing for FHIR parser");
-			server.registerApplication("*", "*", (ReceivingApplication<Message>) handler);
-
-			// Configure the Receiver App before we start.
-			handler.config(fhir_controller_api_url, useTls, qFileName, saveToFile, null, authBasic, authBearer, filePath);
+		// delivery mode override by environment variable
+		String envDeliveryMode = System.getenv("DELIVERY_MODE");
+		if (envDeliveryMode != null && !envDeliveryMode.isEmpty()) {
+			deliveryMode = envDeliveryMode;
+		}
 
-			server.registerConnectionListener(new MyConnectionListener());
-			server.setExceptionHandler(new MyExceptionHandler());
+		// Training run for the class data sharing archive (see Dockerfile): the
+		// warm-up alone, without listeners, queue files or metrics server.
+		if (args.length > 0 && "--warmup-only".equals(args[0])) {
+			HL7v2ReceiverFHIRApplication trainee = new HL7v2ReceiverFHIRApplication();
+			try {
+				trainee.configV2Filters(v2FilterFile, false);
+			} catch (Exception e) {
+				// Mounted when the container runs. The filters are skipped then.
+				LOGGER.warn("No v2 filters for the warm-up: " + e.getMessage());
+			}
+			trainee.configFhirClient(fhirMaxConnections, fhirConnectTimeoutMillis, fhirSocketTimeoutMillis,
+					fhirConnectionRequestTimeoutMillis, fhirIdleEvictSeconds);
+			new Warmup(trainee).run(Math.max(1, warmupIterations));
+			return;
+		}
 
-			server.startAndWait();
-			LOGGER.debug("MLLP server started");
+		// Read v2 filters and set it up. Changes to the file are picked up while running.
+		HL7v2ReceiverFHIRApplication handler = new HL7v2ReceiverFHIRApplication();
+		if (metricsPort >= 0) {
+			ReceiverMetrics metrics = ReceiverMetrics.prometheus();
+			handler.configMetrics(metrics);
+			metrics.serve(metricsPort);
+		}
+		handler.configThreads(threadModel);
+		handler.configMessageSize(maxMessageSize, largeMessageSize);
+		handler.configV2Filters(v2FilterFile, v2FilterHotReload);
+		handler.configDuplicates(duplicateWindowSeconds, duplicateMaxEntries, duplicateKey, duplicateFileName);
+		handler.configDrain(drainBatchSize, drainParallelism, drainIdleSeconds, drainMaxBackoffSeconds);
+		handler.configRetry(retryMaxAttempts, retryBaseSeconds, retryMaxSeconds);
+		handler.configQueueCompression(queueCompression);
+		handler.configQueuePartitions(queuePartitions);
+		handler.configFhirClient(fhirMaxConnections, fhirConnectTimeoutMillis, fhirSocketTimeoutMillis,
+				fhirConnectionRequestTimeoutMillis, fhirIdleEvictSeconds);
+		handler.configFhirBatch(fhirBatchSize, fhirBatchMaxWaitMillis, fhirBatchSenders);
+		handler.configFhirCallLimit(fhirMaxConcurrentCalls, fhirMinConcurrentCalls);
+		handler.configCircuitBreaker(fhirBreakerFailureRate, fhirBreakerSlowCallMillis, fhirBreakerSlowCallRate,
+				fhirBreakerWindow, fhirBreakerOpenSeconds, fhirBreakerHalfOpenCalls);
+		// Client id and secret for the token endpoint are in authBasic.
+		handler.configOAuth2(authTokenUrl, authBasic, authScope, authRefreshSkewSeconds);
+		handler.configArchive(archiveMaxMB, archiveMaxMinutes, archiveQueueSize, archiveOnFull);
+		handler.configJournal(journalType, journalSegmentMB, journalSyncMillis, journalRetainSegments);
+
+		// Configure the Receiver App before we start. Every listener shares it.
+		handler.config(fhir_controller_api_url, useTls, qFileName, saveToFile, hl7HttpBasic, authBasic, authBearer, filePath);
+		handler.configDelivery(deliveryMode, ackMode, deliveryWorkers, deliveryQueueSize, inboundFileName);
+		LOGGER.info("Thread model: " + handler.getThreadModel());
+
+		// transport and port make the one listener, unless listeners names
+		// several. Those take what they do not set from it.
+		Listener base = new Listener(handler, transport.toLowerCase(), transport, port);
+		base.configTls(useTls);
+		base.configPreScreen(v2PreScreen);
+		base.configBatch(batchInboxDir, batchDoneDir, batchWorkers, batchPollSeconds);
+
+		List<Listener> listenerList = new ArrayList<Listener>();
+		if (listeners == null || listeners.isBlank()) {
+			listenerList.add(base);
 		} else {
-			LOGGER.debug("Starting with HTTP");
-			LowerLayerProtocol llp;
-			llp = new Hl7OverHttpLowerLayerProtocol(ServerRoleEnum.SERVER);
-
-			PipeParser parser = PipeParser.getInstanceWithNoValidation();
-			SimpleServer server = new SimpleServer(port, llp, parser);
-			server.setExceptionHandler(new MyExceptionHandler());
-
-			((Hl7OverHttpLowerLayerProtocol) llp).setAuthorizationCallback(handler);
-
-			server.registerApplication("*", "*", (ReceivingApplication<Message>) handler);
-			// Configure the Receiver App before we start.
-			handler.config(fhir_controller_api_url, useTls, qFileName, saveToFile, hl7HttpBasic, authBasic, authBearer, filePath);
-
-			server.registerConnectionListener(new MyConnectionListener());
-			server.setExceptionHandler(new MyExceptionHandler());
-
-			server.start();
-			LOGGER.debug("HTTP server started");
+			for (String name : listeners.split(",")) {
+				if (!name.isBlank()) {
+					listenerList.add(Listener.fromProperties(handler, name.trim(), prop, base));
+				}
+			}
 		}
 
+		// Senders are let in, and readiness is reported, only once warmed up.
+		new Warmup(handler).run(warmupIterations);
+		for (Listener listener : listenerList) {
+			LOGGER.debug("Starting listener " + listener.getName() + " with " + listener.getTransport());
+			listener.start();
+		}
+		handler.getMetrics().setReady(true);
 	}
 
 	public static class MyConnectionListener implements ConnectionListener {
+		private ReceiverMetrics metrics;
+
+		public MyConnectionListener(ReceiverMetrics metrics) {
+			this.metrics = metrics;
+		}
 
 		public void connectionDiscarded(Connection theC) {
+			metrics.connectionClosed();
 			LOGGER.info("Lost connection from: " + theC.getRemoteAddress().toString());
 		}
 
 		public void connectionReceived(Connection theC) {
+			metrics.connectionOpened();
 			LOGGER.info("New connection received: " + theC.getRemoteAddress().toString());
 		}
 
@@ -224,9 +486,15 @@ public class ELRReceiver {
 	 *         message. <b>This method may not return <code>null</code></b>.
 	 */
 	public static class MyExceptionHandler implements ReceivingApplicationExceptionHandler {
+		private ReceiverMetrics metrics;
+
+		public MyExceptionHandler(ReceiverMetrics metrics) {
+			this.metrics = metrics;
+		}
 
 		public String processException(String theIncomingMessage, Map<String, Object> theIncomingMetadata,
 				String theOutgoingMessage, Exception theE) {
+			metrics.errors.increment();
 			LOGGER.error("processException(incoming):\n" + theIncomingMessage + "\n\n");
 			LOGGER.error("processException(outgoing):\n" + theOutgoingMessage + "\n\n");
 			LOGGER.error("Exception:", theE);
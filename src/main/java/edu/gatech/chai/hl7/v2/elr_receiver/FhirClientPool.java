@@ -0,0 +1,261 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Parameters;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpResponse;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.util.StopWatch;
+
+/*
+ * Long-lived FHIR clients, one per controller URL and auth interceptor, on
+ * top of one keep-alive HTTP connection pool.
+ *
+ * IGenericClient is thread-safe, so every connection thread and delivery
+ * worker uses the same client. Connections to the controller are reused
+ * instead of being set up (and TLS-handshaked) for every message. Idle
+ * connections are closed after idleEvictSeconds.
+ *
+ * The clients come from a client factory of the pool's own. The FhirContext's
+ * factory, and any client made with ctx.newRestfulGenericClient(), keeps its
+ * own HTTP client and timeouts.
+ */
+public class FhirClientPool {
+	private FhirContext ctx = null;
+	private PoolingHttpClientConnectionManager connectionManager = null;
+	private CloseableHttpClient httpClient = null;
+	private ApacheRestfulClientFactory clientFactory = null;
+	private ConcurrentHashMap<ClientKey, IGenericClient> clients = new ConcurrentHashMap<ClientKey, IGenericClient>();
+	private long requestTimeoutMillis;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(FhirClientPool.class.getName());
+
+	public FhirClientPool(FhirContext ctx, int maxConnections, int connectTimeoutMillis, int socketTimeoutMillis,
+			int connectionRequestTimeoutMillis, int idleEvictSeconds) {
+		this.ctx = ctx;
+		this.requestTimeoutMillis = (long) connectionRequestTimeoutMillis + connectTimeoutMillis + socketTimeoutMillis;
+
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnections);
+		// Check a connection that sat idle for a while before reusing it.
+		connectionManager.setValidateAfterInactivity(2000);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeoutMillis)
+				.setSocketTimeout(socketTimeoutMillis)
+				.setConnectionRequestTimeout(connectionRequestTimeoutMillis)
+				.build();
+
+		httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.evictExpiredConnections()
+				.evictIdleConnections(idleEvictSeconds, TimeUnit.SECONDS)
+				.build();
+
+		clientFactory = new ApacheRestfulClientFactory(ctx);
+		clientFactory.setServerValidationMode(ctx.getRestfulClientFactory().getServerValidationMode());
+		clientFactory.setHttpClient(httpClient);
+
+		LOGGER.info("FHIR client pool: maxConnections=" + maxConnections + ", connectTimeout=" + connectTimeoutMillis
+				+ "ms, socketTimeout=" + socketTimeoutMillis + "ms, idleEvict=" + idleEvictSeconds + "s");
+	}
+
+	/**
+	 * Returns the client for the URL and interceptor. The client is set up, with
+	 * the interceptor registered, on the first call for the pair, so a changed
+	 * interceptor gets a client of its own. authInterceptor may be null.
+	 */
+	public IGenericClient getClient(String url, IClientInterceptor authInterceptor) {
+		return clients.computeIfAbsent(new ClientKey(url, authInterceptor), key -> {
+			IGenericClient client = clientFactory.newGenericClient(url);
+			if (authInterceptor != null) {
+				client.registerInterceptor(authInterceptor);
+			}
+			return client;
+		});
+	}
+
+	/**
+	 * POSTs parameters to the operation on the server at url, on the pooled
+	 * connections, without the client. The JSON is written straight into a
+	 * chunked request body and the response is parsed from the stream, so a
+	 * large bundle is not held once more as a String and once more as bytes.
+	 *
+	 * Fails as the client would: BaseServerResponseException for the status
+	 * (with the OperationOutcome, if any), IOException if there is no response.
+	 */
+	public Parameters postStreaming(String url, String operation, Parameters parameters,
+			IClientInterceptor authInterceptor) throws IOException {
+		HttpPost post = new HttpPost(url + "/" + operation);
+		post.setHeader(Constants.HEADER_ACCEPT, Constants.CT_FHIR_JSON_NEW);
+		AbstractHttpEntity entity = new AbstractHttpEntity() {
+			@Override
+			public boolean isRepeatable() {
+				return false;
+			}
+
+			@Override
+			public long getContentLength() {
+				return -1L;
+			}
+
+			@Override
+			public InputStream getContent() {
+				throw new UnsupportedOperationException("Written with writeTo()");
+			}
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+				ctx.newJsonParser().encodeResourceToWriter(parameters, writer);
+				writer.flush();
+			}
+
+			@Override
+			public boolean isStreaming() {
+				return false;
+			}
+		};
+		entity.setContentType(Constants.CT_FHIR_JSON_NEW + Constants.CHARSET_UTF8_CTSUFFIX);
+		entity.setChunked(true);
+		post.setEntity(entity);
+
+		if (authInterceptor != null) {
+			authInterceptor.interceptRequest(new ApacheHttpRequest(httpClient, post));
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(post)) {
+			if (authInterceptor != null) {
+				authInterceptor.interceptResponse(new ApacheHttpResponse(response, new StopWatch()));
+			}
+
+			int status = response.getStatusLine().getStatusCode();
+			IBaseResource resource = null;
+			HttpEntity body = response.getEntity();
+			if (body != null) {
+				try (Reader reader = new InputStreamReader(body.getContent(), StandardCharsets.UTF_8)) {
+					resource = ctx.newJsonParser().parseResource(reader);
+				} catch (DataFormatException e) {
+					if (status < 300) {
+						throw new IOException("Response to " + operation + " is not FHIR JSON: " + e.getMessage());
+					}
+				}
+			}
+
+			if (status >= 300) {
+				BaseServerResponseException e = BaseServerResponseException.newInstance(status,
+						"HTTP " + status + " " + response.getStatusLine().getReasonPhrase());
+				if (resource instanceof IBaseOperationOutcome) {
+					e.setOperationOutcome((IBaseOperationOutcome) resource);
+				}
+				throw e;
+			}
+			return resource instanceof Parameters ? (Parameters) resource : null;
+		}
+	}
+
+	public int getLeasedConnections() {
+		return connectionManager.getTotalStats().getLeased();
+	}
+
+	public int getAvailableConnections() {
+		return connectionManager.getTotalStats().getAvailable();
+	}
+
+	/**
+	 * Requests waiting for a connection because all of them are in use.
+	 */
+	public int getPendingRequests() {
+		return connectionManager.getTotalStats().getPending();
+	}
+
+	/**
+	 * Wait for a connection, connect and socket timeouts added up: about the
+	 * longest a request can take before one of them gives up.
+	 */
+	public long getRequestTimeoutMillis() {
+		return requestTimeoutMillis;
+	}
+
+	public int getMaxConnections() {
+		return connectionManager.getTotalStats().getMax();
+	}
+
+	public String getStats() {
+		PoolStats stats = connectionManager.getTotalStats();
+		return "leased=" + stats.getLeased() + " available=" + stats.getAvailable() + " pending="
+				+ stats.getPending() + " max=" + stats.getMax();
+	}
+
+	/*
+	 * Interceptors are compared by identity, as IClientInterceptor has no
+	 * equals() of its own.
+	 */
+	private static final class ClientKey {
+		private final String url;
+		private final IClientInterceptor authInterceptor;
+
+		ClientKey(String url, IClientInterceptor authInterceptor) {
+			this.url = url;
+			this.authInterceptor = authInterceptor;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ClientKey)) {
+				return false;
+			}
+			ClientKey other = (ClientKey) o;
+			return url.equals(other.url) && authInterceptor == other.authInterceptor;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(url, System.identityHashCode(authInterceptor));
+		}
+	}
+
+	public void close() {
+		try {
+			httpClient.close();
+		} catch (Exception e) {
+			LOGGER.error("Failed to close the FHIR HTTP client: " + e.getMessage());
+		}
+	}
+}
@@ -1,21 +1,21 @@
 package edu.gatech.chai.hl7.v2.elr_receiver;
 
-import java.io.File;
-import java.nio.charset.StandardCharsets;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.hl7.fhir.r4.model.Bundle;
-import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 // uncomment below
 //import com.fasterxml.jackson.databind.ObjectMapper;
-import com.squareup.tape2.QueueFile;
 
+import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.hoh.api.IAuthorizationServerCallback;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.protocol.ReceivingApplicationException;
 import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
 
 /*
@@ -31,16 +31,45 @@ public abstract class HL7v2ReceiverApplication<v extends BaseHL7v2FHIRParser>
 		implements IHL7v2ReceiverApplication, IAuthorizationServerCallback {
 	private String controller_api_url;
 	private boolean useTls;
-	private QueueFile queueFile = null;
-	private TimerTask timerTask = null;
-	private Timer timer = null;
-	private v myParser = null;
+	private PartitionedRetryQueue retryQueue = null;
+	private volatile List<QueueDrainer> queueDrainers = new ArrayList<QueueDrainer>();
+	private int queuePartitions = 1;
+	private int drainBatchSize = 100;
+	private int drainParallelism = 4;
+	private int drainIdleSeconds = 10;
+	private int drainMaxBackoffSeconds = 300;
+	private int retryMaxAttempts = 20;
+	private int retryBaseSeconds = 10;
+	private int retryMaxSeconds = 3600;
+	private boolean queueCompression = true;
+	private V2ParserRegistry parserRegistry = new V2ParserRegistry(Runtime.getRuntime().availableProcessors() * 2);
 	private String hl7HttpBasic = null;
 	private String saveToFile = null;
 	private String authBasic = null;
 	private String authBearer = null;
 	private String filePath =  null;
-	private JSONObject v2Filters = null;
+	private ArchiveWriter archiveWriter = null;
+	private DuplicateSuppressor duplicateSuppressor = null;
+	private CircuitBreaker circuitBreaker = null;
+	private int archiveMaxMB = 64;
+	private int archiveMaxMinutes = 60;
+	private int archiveQueueSize = 10000;
+	private String archiveOnFull = "DROP";
+	private volatile JSONObject v2Filters = null;
+	// Swapped as a whole on reload. Read it once per message.
+	private volatile V2FilterSet v2FilterSet = null;
+	private V2FilterWatcher v2FilterWatcher = null;
+	private String deliveryMode = "SYNC";
+	private String ackMode = "PERSIST";
+	private DeliveryPipeline deliveryPipeline = null;
+	private String journalType = "QUEUEFILE";
+	private int journalSegmentMB = 64;
+	private int journalSyncMillis = 0;
+	private int journalRetainSegments = 0;
+	private ReceiverMetrics metrics = new ReceiverMetrics();
+	private String threadModel = ThreadModel.PLATFORM;
+	private int maxMessageSize = 0;
+	private int largeMessageSize = 0;
 
 	// Logger setup
 	final static Logger LOGGER = LoggerFactory.getLogger(HL7v2ReceiverApplication.class.getName());
@@ -52,21 +81,64 @@ public abstract class HL7v2ReceiverApplication<v extends BaseHL7v2FHIRParser>
 		NOERROR, MSH, PID, ORDER_OBSERVATION, LAB_RESULTS, INTERNAL;
 	}
 
+	/*
+	 * Thrown by deliverMessage() when a bundle could not be sent but is on the
+	 * retry queue. The message is not lost: the queue sends it later, and the
+	 * message is acknowledged with AA.
+	 */
+	public static class QueuedForRetryException extends ReceivingApplicationException {
+		private static final long serialVersionUID = 1L;
+
+		public QueuedForRetryException(String message) {
+			super(message);
+		}
+
+		public QueuedForRetryException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
 //	public static JSONObject parseJSONFile(String filename) throws JSONException, IOException {
 //        String content = new String(Files.readAllBytes(Paths.get(filename)));
 //        return new JSONObject(content);
 //    }
 
-	public void setMyParser(v myParser) {
-		this.myParser = myParser;
+	public V2ParserRegistry getParserRegistry() {
+		return parserRegistry;
+	}
+
+	/*
+	 * threadModel: PLATFORM or VIRTUAL (Java 21+). Used for the delivery workers
+	 * and the retry queue senders.
+	 * 
+	 * Must be called before config() and configDelivery().
+	 */
+	public void configThreads(String threadModel) {
+		this.threadModel = ThreadModel.resolve(threadModel);
+	}
+
+	public String getThreadModel() {
+		return threadModel;
+	}
+
+	public ReceiverMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void configMetrics(ReceiverMetrics metrics) {
+		this.metrics = metrics;
+		metrics.bind(this);
 	}
 
-	public v getMyParser() {
-		return myParser;
+	public PartitionedRetryQueue getRetryQueue() {
+		return retryQueue;
 	}
 
-	public QueueFile getQueueFile() {
-		return queueFile;
+	/**
+	 * One drainer per retry queue partition.
+	 */
+	public List<QueueDrainer> getQueueDrainers() {
+		return queueDrainers;
 	}
 
 	public String getControllerApiUrl() {
@@ -85,6 +157,99 @@ public abstract class HL7v2ReceiverApplication<v extends BaseHL7v2FHIRParser>
 		return authBearer;
 	}
 
+	/*
+	 * Sizes of the raw message in characters (bytes, for the ASCII of most HL7
+	 * v2).
+	 * maxMessageSize: larger messages are rejected with an AR. 0 or less for no
+	 *   limit.
+	 * largeMessageSize: from this size on, bundles are streamed to the FHIR
+	 *   controller instead of being encoded into a String first, and do not
+	 *   wait for a batch. 0 or less for never.
+	 */
+	public void configMessageSize(int maxMessageSize, int largeMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+		this.largeMessageSize = largeMessageSize;
+	}
+
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	public boolean isTooLarge(int size) {
+		return maxMessageSize > 0 && size > maxMessageSize;
+	}
+
+	public boolean isLarge(int size) {
+		return largeMessageSize > 0 && size >= largeMessageSize;
+	}
+
+	/**
+	 * Null when duplicate suppression is off.
+	 */
+	public DuplicateSuppressor getDuplicateSuppressor() {
+		return duplicateSuppressor;
+	}
+
+	/*
+	 * Answer resends of a message with its original ACK, see DuplicateSuppressor.
+	 * windowSeconds: how long an ACK is remembered. 0 turns suppression off.
+	 * maxEntries: max number of remembered messages
+	 * key: CONTROL_ID (sending facility and MSH-10) or CONTROL_ID_HASH (and a hash of the message)
+	 * fileName: where the ACKs are kept across restarts. Empty for memory only.
+	 */
+	public void configDuplicates(int windowSeconds, int maxEntries, String key, String fileName) throws IOException {
+		if (windowSeconds <= 0) {
+			duplicateSuppressor = null;
+			return;
+		}
+
+		duplicateSuppressor = new DuplicateSuppressor(windowSeconds, maxEntries, !"CONTROL_ID".equalsIgnoreCase(key),
+				fileName);
+		LOGGER.info("Duplicate suppression: window=" + windowSeconds + "s, maxEntries=" + maxEntries + ", key=" + key
+				+ (fileName == null || fileName.isBlank() ? "" : ", file=" + fileName));
+	}
+
+	/**
+	 * Null when the circuit breaker is off.
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/*
+	 * Circuit breaker for the FHIR controller, see CircuitBreaker. While it is
+	 * open, bundles go straight to the retry queue without a call.
+	 * failureRatePercent: failed calls (of the last windowSize) that open the circuit
+	 * slowCallMillis, slowCallRatePercent: calls that take slowCallMillis or longer and open the circuit
+	 * openSeconds: how long the circuit stays open before halfOpenCalls probe calls are let through
+	 * failureRatePercent and slowCallRatePercent both 0 turn it off.
+	 */
+	public void configCircuitBreaker(int failureRatePercent, int slowCallMillis, int slowCallRatePercent,
+			int windowSize, int openSeconds, int halfOpenCalls) {
+		if (failureRatePercent <= 0 && slowCallRatePercent <= 0) {
+			circuitBreaker = null;
+			return;
+		}
+
+		circuitBreaker = new CircuitBreaker(failureRatePercent, slowCallMillis, slowCallRatePercent, windowSize,
+				openSeconds, halfOpenCalls, metrics);
+		// The drainers are looked up when it fires. config() may replace them.
+		circuitBreaker.onClose(() -> {
+			for (QueueDrainer queueDrainer : queueDrainers)
+				queueDrainer.resume();
+		});
+		LOGGER.info("FHIR controller circuit breaker: failureRate=" + failureRatePercent + "%, slowCall="
+				+ slowCallMillis + "ms, slowCallRate=" + slowCallRatePercent + "%, window=" + windowSize
+				+ ", open=" + openSeconds + "s, halfOpenCalls=" + halfOpenCalls);
+	}
+
+	/**
+	 * Null unless saveToFile is YES.
+	 */
+	public ArchiveWriter getArchiveWriter() {
+		return archiveWriter;
+	}
+
 	public String getFilePath() {
 		return filePath;
 	}
@@ -93,8 +258,102 @@ public abstract class HL7v2ReceiverApplication<v extends BaseHL7v2FHIRParser>
 		return v2Filters;
 	}
 
+	public V2FilterSet getV2FilterSet() {
+		return v2FilterSet;
+	}
+
+	public V2FilterWatcher getV2FilterWatcher() {
+		return v2FilterWatcher;
+	}
+
+	/**
+	 * Loads the v2 filters from a file and, if hotReload is set, keeps
+	 * reloading them when the file changes.
+	 */
+	public void configV2Filters(String v2FilterFile, boolean hotReload) throws Exception {
+		if (v2FilterWatcher != null) {
+			v2FilterWatcher.stop();
+		}
+
+		v2FilterWatcher = new V2FilterWatcher(this, v2FilterFile);
+		v2FilterWatcher.load();
+		if (hotReload) {
+			v2FilterWatcher.start();
+		}
+	}
+
+	/**
+	 * Compiles and installs the v2 filters.
+	 * 
+	 * @throws IllegalArgumentException if the filter configuration is not valid
+	 */
 	public void setV2Filters(JSONObject v2Filters) {
+		V2FilterSet compiled = V2FilterSet.compile(v2Filters);
+		this.v2FilterSet = compiled;
 		this.v2Filters = v2Filters;
+		LOGGER.info("V2 filters loaded: version " + compiled.getVersion() + ", "
+				+ (compiled.isAllowAll() ? "allow_all" : compiled.size() + " filter(s)"));
+	}
+
+	public String getDeliveryMode() {
+		return deliveryMode;
+	}
+
+	public String getAckMode() {
+		return ackMode;
+	}
+
+	public DeliveryPipeline getDeliveryPipeline() {
+		return deliveryPipeline;
+	}
+
+	/*
+	 * journalType: QUEUEFILE (tape QueueFile, synced on every message) or
+	 *              SEGMENTED (memory-mapped segments with group commit, see SegmentedJournal)
+	 * syncMillis: SEGMENTED syncs at most once per syncMillis. 0 syncs right away, -1 does not wait for the sync.
+	 * retainSegments: completed SEGMENTED segments kept on disk.
+	 * 
+	 * Must be called before configDelivery().
+	 */
+	public void configJournal(String journalType, int segmentMB, int syncMillis, int retainSegments) {
+		this.journalType = journalType;
+		this.journalSegmentMB = segmentMB;
+		this.journalSyncMillis = syncMillis;
+		this.journalRetainSegments = retainSegments;
+	}
+
+	/*
+	 * deliveryMode: SYNC (convert and send before ACK) or ASYNC (accept-then-deliver)
+	 * ackMode: PERSIST (ACK once the message is journaled) or DELIVERY (ACK once it is sent).
+	 *          Only used in ASYNC mode.
+	 * Journaled messages that can neither be sent nor queued for retry go to
+	 * <inboundFileName>.dead.
+	 */
+	public void configDelivery(String deliveryMode, String ackMode, int workers, int queueSize, String inboundFileName)
+			throws Exception {
+		this.deliveryMode = deliveryMode;
+		this.ackMode = ackMode;
+
+		if (!"ASYNC".equalsIgnoreCase(deliveryMode) || deliveryPipeline != null) {
+			return;
+		}
+
+		InboundJournal journal;
+		if ("SEGMENTED".equalsIgnoreCase(journalType)) {
+			journal = new SegmentedJournal(inboundFileName + ".wal", journalSegmentMB * 1024 * 1024,
+					journalSyncMillis, journalRetainSegments);
+		} else {
+			journal = new QueueFileJournal(inboundFileName);
+		}
+		deliveryPipeline = new DeliveryPipeline(this, journal, inboundFileName + ".dead", workers, queueSize);
+
+		// Replay whatever was left over from the last run in the background.
+		Thread recoveryThread = new Thread(() -> deliveryPipeline.recover(), "elr-journal-recovery");
+		recoveryThread.setDaemon(true);
+		recoveryThread.start();
+
+		LOGGER.info("Asynchronous delivery enabled (ackMode=" + ackMode + ", workers=" + workers + ", queueSize="
+				+ queueSize + ", journal=" + journalType + " " + inboundFileName + ")");
 	}
 
 	public void config(
@@ -109,55 +368,115 @@ public abstract class HL7v2ReceiverApplication<v extends BaseHL7v2FHIRParser>
 		this.authBearer = authBearer;
 		this.filePath = filePath;
 
-		// Set up QueueFile
-		if (queueFile == null) {
-			File file = new File(qFileName);
-			queueFile = new QueueFile.Builder(file).build();
+		if ("YES".equalsIgnoreCase(saveToFile) && archiveWriter == null) {
+			archiveWriter = new ArchiveWriter(filePath, archiveMaxMB * 1024L * 1024L, archiveMaxMinutes * 60 * 1000L,
+					archiveQueueSize, "BLOCK".equalsIgnoreCase(archiveOnFull), metrics);
+			metrics.bindArchive(archiveWriter);
+			Runtime.getRuntime().addShutdownHook(new Thread(archiveWriter::shutdown, "elr-archive-shutdown"));
 		}
 
-		// After QueueFile is set up, we start background service.
-		if (timerTask == null)
-			timerTask = new QueueTaskTimer(this);
-
-		if (timer == null)
-			timer = new Timer(true);
-		else
-			timer.cancel();
-
-		timer.scheduleAtFixedRate(timerTask, 20 * 1000, 10 * 1000);
-	}
-
-	public int process_q() {
-		String jsonString = "";
-		int ret = 0;
-		if (queueFile.isEmpty())
-			return ret;
-		boolean success = true;
-		try {
-			byte[] data = queueFile.peek();
-			queueFile.remove();
-			jsonString = new String(data, StandardCharsets.UTF_8);
-			// System.out.println("JSON object from queue(" + queueFile.size() + "):" + jsonString);
-			
-			sendData(jsonString);
-		} catch (JSONException e) {
-			success = false;
-			// We have ill-formed JSON. Remove it from queue.
-			LOGGER.error("Failed to process JSON data in Queue: " + e.getMessage() + "\nJSON data:" + jsonString);
-			e.printStackTrace();
-		} catch (Exception e) {
-			success = false;
-			LOGGER.error("Failed to send from Queue: " + e.getMessage() + "\nJSON data:" + jsonString);
-			e.printStackTrace();
+		// Set up QueueFile
+		if (retryQueue == null) {
+			retryQueue = new PartitionedRetryQueue(qFileName, queuePartitions, retryMaxAttempts,
+					retryBaseSeconds * 1000L, retryMaxSeconds * 1000L);
+			metrics.bindQueue(retryQueue);
 		}
 
-		if (success) {
-			ret = queueFile.size();
-		} else {
-			ret = -1;
+		// After QueueFile is set up, we start background service. The partitions
+		// share drainParallelism.
+		for (QueueDrainer queueDrainer : queueDrainers)
+			queueDrainer.shutdown();
+
+		List<QueueDrainer> drainers = new ArrayList<QueueDrainer>();
+		int partitionParallelism = Math.max(1, drainParallelism / retryQueue.getPartitionCount());
+		for (int i = 0; i < retryQueue.getPartitionCount(); i++) {
+			QueueDrainer queueDrainer = new QueueDrainer(this, retryQueue.getPartition(i), i, drainBatchSize,
+					partitionParallelism, drainIdleSeconds, drainMaxBackoffSeconds);
+			queueDrainer.start(20 * 1000);
+			drainers.add(queueDrainer);
 		}
+		queueDrainers = drainers;
+	}
 
-		return ret;
+	/*
+	 * batchSize: max number of queued bundles taken per drain pass
+	 * parallelism: max number of concurrent sends to the FHIR controller
+	 * idleSeconds: how often an empty queue is checked
+	 * maxBackoffSeconds: upper bound on the wait between passes while sends are failing
+	 * 
+	 * Must be called before config().
+	 */
+	public void configDrain(int batchSize, int parallelism, int idleSeconds, int maxBackoffSeconds) {
+		this.drainBatchSize = batchSize;
+		this.drainParallelism = parallelism;
+		this.drainIdleSeconds = idleSeconds;
+		this.drainMaxBackoffSeconds = maxBackoffSeconds;
+	}
+
+	/*
+	 * Archive of the sent Parameters (saveToFile=YES), see ArchiveWriter.
+	 * maxMB, maxMinutes: a new archive file is started when the current one reaches either
+	 * queueSize: records waiting to be written
+	 * onFull: DROP the record or BLOCK the delivery thread when the queue is full
+	 * 
+	 * Must be called before config().
+	 */
+	public void configArchive(int maxMB, int maxMinutes, int queueSize, String onFull) {
+		this.archiveMaxMB = maxMB;
+		this.archiveMaxMinutes = maxMinutes;
+		this.archiveQueueSize = queueSize;
+		this.archiveOnFull = onFull;
+	}
+
+	/*
+	 * maxAttempts: failed attempts before a bundle is moved to the dead-letter file (<qFileName>.dead)
+	 * baseSeconds: wait after the first failed attempt. Doubles with every further attempt.
+	 * maxSeconds: upper bound on the wait between attempts
+	 * 
+	 * Must be called before config().
+	 */
+	public void configRetry(int maxAttempts, int baseSeconds, int maxSeconds) {
+		this.retryMaxAttempts = maxAttempts;
+		this.retryBaseSeconds = baseSeconds;
+		this.retryMaxSeconds = maxSeconds;
+	}
+
+	/*
+	 * partitions: number of retry queue files. Bundles are spread over them by
+	 * patient identifier, and each is drained by its own thread. Within a
+	 * partition, the bundles of a patient are sent one at a time, in order.
+	 * config() fails if this differs from the last run and bundles are queued.
+	 * 
+	 * Must be called before config().
+	 */
+	public void configQueuePartitions(int partitions) {
+		this.queuePartitions = Math.max(1, partitions);
+	}
+
+	/*
+	 * compression: DEFLATE compresses queued bundles, NONE stores them as
+	 * minified JSON. Entries in either format (or in the pretty-printed JSON of
+	 * older versions) are always read.
+	 */
+	public void configQueueCompression(String compression) {
+		this.queueCompression = !"NONE".equalsIgnoreCase(compression);
+	}
+
+	public boolean isQueueCompression() {
+		return queueCompression;
+	}
+
+	/*
+	 * key: picks the queue partition. Bundles with the same key are sent in the
+	 * order they were queued.
+	 */
+	public void enqueue(String key, byte[] data) throws IOException {
+		retryQueue.add(key, data);
+		metrics.queued.increment();
+	}
+
+	public int getQueueSize() {
+		return retryQueue.size();
 	}
 
 	public boolean authorize(String theUriPath, String theUsername, String thePassword) {		
@@ -173,8 +492,24 @@ public abstract class HL7v2ReceiverApplication<v extends BaseHL7v2FHIRParser>
 	}
 
 
+	public void deliverMessage(Message theMessage) throws ReceivingApplicationException, HL7Exception {
+		deliverMessage(theMessage, false);
+	}
+
+	/**
+	 * large: the raw message is at least largeMessageSize (see
+	 * configMessageSize()).
+	 */
+	public abstract void deliverMessage(Message theMessage, boolean large)
+			throws ReceivingApplicationException, HL7Exception;
+
+	@Override
+	public boolean sendData(String jsonString) {
+		throw new UnsupportedOperationException("Unimplemented method 'sendData'");
+	}
+
 	@Override
-	public void sendData(String jsonString) {
+	public boolean sendData(byte[] queuePayload) {
 		throw new UnsupportedOperationException("Unimplemented method 'sendData'");
 	}
 
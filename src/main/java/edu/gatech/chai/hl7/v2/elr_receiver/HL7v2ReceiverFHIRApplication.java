@@ -1,13 +1,17 @@
 package edu.gatech.chai.hl7.v2.elr_receiver;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.hl7.fhir.instance.model.api.IBaseBundle;
-import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.MessageHeader;
@@ -15,7 +19,6 @@ import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
-import org.json.JSONObject;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
@@ -30,26 +33,28 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
 import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.hl7v2.AcknowledgmentCode;
 import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Composite;
+import ca.uhn.hl7v2.model.GenericMessage;
+import ca.uhn.hl7v2.model.Group;
 import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.Primitive;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.model.Structure;
 import ca.uhn.hl7v2.model.Type;
 import ca.uhn.hl7v2.model.Varies;
-import ca.uhn.hl7v2.model.v23.datatype.CE;
-import ca.uhn.hl7v2.model.v23.datatype.SN;
-import ca.uhn.hl7v2.model.v23.datatype.ST;
-import ca.uhn.hl7v2.model.v23.group.ORU_R01_OBSERVATION;
-import ca.uhn.hl7v2.model.v23.group.ORU_R01_ORDER_OBSERVATION;
-import ca.uhn.hl7v2.model.v23.group.ORU_R01_RESPONSE;
-import ca.uhn.hl7v2.model.v23.segment.OBX;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.protocol.MetadataKeys;
 import ca.uhn.hl7v2.protocol.ReceivingApplicationException;
 import ca.uhn.hl7v2.util.Terser;
 import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
-import edu.gatech.chai.hl7.v2.parser.fhir.HL7v23FhirR4Parser;
-import edu.gatech.chai.hl7.v2.parser.fhir.HL7v251FhirR4Parser;
 
 /*
  * HL7v2 Message Receiver Application for ELR
@@ -62,9 +67,14 @@ import edu.gatech.chai.hl7.v2.parser.fhir.HL7v251FhirR4Parser;
 
 public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends HL7v2ReceiverApplication<v> {
 	private FhirContext ctx = null;
-	static long expireSeconds = 0L;
-	static String accessToken = null;
-	static String tokenType = null;
+	private FhirClientPool fhirClientPool = null;
+	private RegistryBatchDispatcher batchDispatcher = null;
+	private CallLimiter fhirCallLimiter = null;
+	private OAuth2TokenProvider tokenProvider = null;
+	// Built by config() and configOAuth2(), shared by every call.
+	private volatile IClientInterceptor authInterceptor = null;
+	// Stored ACKs are parsed as they are, without the pre-screening of the listener's parser.
+	private static final PipeParser ACK_PARSER = PipeParser.getInstanceWithNoValidation();
 
 	// Logger setup
 	final static Logger LOGGER = LoggerFactory.getLogger(HL7v2ReceiverFHIRApplication.class.getName());
@@ -73,9 +83,175 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 		ctx = FhirContext.forR4();
 	}
 
-	@SuppressWarnings("unchecked")
+	public FhirContext getFhirContext() {
+		return ctx;
+	}
+
+	/*
+	 * HTTP connection pool for the FHIR controller.
+	 * maxConnections: max open connections to the controller
+	 * connectTimeoutMillis / socketTimeoutMillis: connect and read timeouts
+	 * connectionRequestTimeoutMillis: max wait for a free connection from the pool
+	 * idleEvictSeconds: idle connections are closed after this long
+	 */
+	public synchronized void configFhirClient(int maxConnections, int connectTimeoutMillis, int socketTimeoutMillis,
+			int connectionRequestTimeoutMillis, int idleEvictSeconds) {
+		if (fhirClientPool != null) {
+			fhirClientPool.close();
+		}
+
+		fhirClientPool = new FhirClientPool(ctx, maxConnections, connectTimeoutMillis, socketTimeoutMillis,
+				connectionRequestTimeoutMillis, idleEvictSeconds);
+	}
+
+	public synchronized FhirClientPool getFhirClientPool() {
+		if (fhirClientPool == null) {
+			configFhirClient(20, 10000, 60000, 10000, 30);
+		}
+
+		return fhirClientPool;
+	}
+
+	/*
+	 * Coalesce $registry-control calls into FHIR batch requests.
+	 * batchSize: max calls per batch request. 1 or less sends each call on its own.
+	 * maxWaitMillis: max time the first call of a batch waits for others
+	 * senders: number of batch requests that can be in flight at once
+	 */
+	public synchronized void configFhirBatch(int batchSize, int maxWaitMillis, int senders) {
+		if (batchDispatcher != null) {
+			batchDispatcher.shutdown();
+			batchDispatcher = null;
+		}
+
+		if (batchSize > 1) {
+			batchDispatcher = new RegistryBatchDispatcher(this::getFhirClient, batchSize, maxWaitMillis, senders);
+			LOGGER.info("FHIR batch delivery: batchSize=" + batchSize + ", maxWait=" + maxWaitMillis + "ms, senders="
+					+ senders);
+		}
+	}
+
+	public synchronized RegistryBatchDispatcher getBatchDispatcher() {
+		return batchDispatcher;
+	}
+
+	/*
+	 * Max number of $registry-control calls in flight at once, across all
+	 * connections and workers. Callers over the limit wait for a free slot. 0 or
+	 * less means no limit. With threadModel=VIRTUAL this is what keeps
+	 * hundreds of connections from flooding the controller.
+	 */
+	public void configFhirCallLimit(int maxConcurrentCalls) {
+		configFhirCallLimit(maxConcurrentCalls, maxConcurrentCalls);
+	}
+
+	/*
+	 * Same, but the limit adapts between minConcurrentCalls and
+	 * maxConcurrentCalls (see CallLimiter). Failed calls, and calls the circuit
+	 * breaker counts as slow, halve it.
+	 */
+	public void configFhirCallLimit(int maxConcurrentCalls, int minConcurrentCalls) {
+		fhirCallLimiter = maxConcurrentCalls > 0 ? new CallLimiter(minConcurrentCalls, maxConcurrentCalls) : null;
+	}
+
+	/**
+	 * $registry-control calls in flight. Only counted when there is a limit.
+	 */
+	public int getActiveFhirCalls() {
+		CallLimiter limiter = fhirCallLimiter;
+		return limiter == null ? 0 : limiter.getInFlight();
+	}
+
+	/**
+	 * Current limit on $registry-control calls in flight. 0 when there is none.
+	 */
+	public int getFhirCallLimit() {
+		CallLimiter limiter = fhirCallLimiter;
+		return limiter == null ? 0 : limiter.getLimit();
+	}
+
+	/*
+	 * OAuth2 client credentials for the FHIR controller. With a tokenUrl, tokens
+	 * are fetched with clientCredentials (client id:secret) and refreshed in the
+	 * background, and take the place of authBasic and authBearer. An empty
+	 * tokenUrl turns it off.
+	 * 
+	 * Must be called before the first message.
+	 */
+	public synchronized void configOAuth2(String tokenUrl, String clientCredentials, String scope,
+			int refreshSkewSeconds) {
+		if (tokenProvider != null) {
+			tokenProvider.shutdown();
+			tokenProvider = null;
+		}
+
+		if (tokenUrl != null && !tokenUrl.isBlank()) {
+			tokenProvider = new OAuth2TokenProvider(tokenUrl, clientCredentials, scope, refreshSkewSeconds,
+					getMetrics());
+			getMetrics().bindTokenProvider(tokenProvider);
+			tokenProvider.start();
+			LOGGER.info("OAuth2 client credentials from " + tokenUrl);
+		}
+		authInterceptor = buildAuthInterceptor();
+	}
+
+	public synchronized OAuth2TokenProvider getTokenProvider() {
+		return tokenProvider;
+	}
+
+	/**
+	 * Returns the shared client for the FHIR controller, or null if no controller
+	 * URL is configured.
+	 */
+	public IGenericClient getFhirClient() {
+		if (getControllerApiUrl() == null) {
+			return null;
+		}
+
+		return getFhirClientPool().getClient(getControllerApiUrl(), getAuthInterceptor());
+	}
+
+	@Override
+	public void config(String controller_api_url, boolean useTls, String qFileName, String saveToFile,
+			String hl7HttpBasic, String authBasic, String authBearer, String filePath) throws Exception {
+		super.config(controller_api_url, useTls, qFileName, saveToFile, hl7HttpBasic, authBasic, authBearer, filePath);
+		authInterceptor = buildAuthInterceptor();
+	}
+
+	/**
+	 * Authorization for the FHIR controller, or null for none.
+	 */
+	IClientInterceptor getAuthInterceptor() {
+		return authInterceptor;
+	}
+
+	private synchronized IClientInterceptor buildAuthInterceptor() {
+		if (getTokenProvider() != null) {
+			return getTokenProvider();
+		} else if (getAuthBasic() != null && !getAuthBasic().isEmpty()) {
+			return new BasicAuthInterceptor(getAuthBasic());
+		} else if (getAuthBearer() != null && !getAuthBearer().isEmpty()) {
+			return new BearerTokenAuthInterceptor(getAuthBearer());
+		}
+		return null;
+	}
+
 	@Override
 	public boolean canProcess(Message theMessage) {
+		long start = System.nanoTime();
+		boolean ok = false;
+		try {
+			ok = isSupportedMessage(theMessage);
+			return ok;
+		} finally {
+			ReceiverMetrics.record(getMetrics().canProcessTimer, start);
+			if (!ok) {
+				getMetrics().rejected.increment();
+			}
+		}
+	}
+
+	boolean isSupportedMessage(Message theMessage) {
 		// We accepts when the follow conditions met.
 		// - MSH-21 Message Profile Identifier: We need to talk to Lab (eg Labcorp) to
 		// make sure
@@ -90,12 +266,10 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 		// TODO: Implement this after discussing with LabCorp
 
 		// Check the version = v2.5.1 or v2.3.1
-		if (theMessage.getVersion().equalsIgnoreCase("2.3") == true) {
-			LOGGER.info("Message Received with v2.3. Setting a parser for FHIR R4");
-			setMyParser((v) new HL7v23FhirR4Parser());
-		} else if (theMessage.getVersion().equalsIgnoreCase("2.5.1") == true) {
-			LOGGER.info("Message Received with v2.5.1. Setting a parser for FHIR R4");
-			setMyParser((v) new HL7v251FhirR4Parser());
+		// The parser for the version is picked when the message is converted. See
+		// deliverMessage().
+		if (getParserRegistry().supports(theMessage.getVersion())) {
+			LOGGER.info("Message Received with v" + theMessage.getVersion() + ". Using a parser for FHIR R4");
 		} else {
 			LOGGER.info("Message Received, but is not either v2.3 or v2.5.1. Received message version is "
 					+ theMessage.getVersion());
@@ -109,9 +283,7 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 			String MSH92 = t.get("/MSH-9-2");
 			String MSH93 = t.get("/MSH-9-3");
 
-			if ((MSH91 != null && MSH91.equalsIgnoreCase("ORU") == false)
-					|| (MSH92 != null && MSH92.equalsIgnoreCase("R01") == false)
-					|| (MSH93 != null && MSH93.equalsIgnoreCase("ORU_R01") == false)) {
+			if (!isOruR01(MSH91, MSH92, MSH93)) {
 				LOGGER.info(
 						"Message with correct version received, but not ORU_R01 message type. Receved message type: "
 								+ t.get("/MSH-9-1") + " " + t.get("/MSH-9-2") + " " + t.get("/MSH-9-3"));
@@ -125,6 +297,87 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 		return true;
 	}
 
+	/**
+	 * Same check as canProcess(), on the MSH fields read by MshScanner.
+	 */
+	public boolean isSupported(MshScanner.Header header) {
+		return getParserRegistry().supports(header.getVersion())
+				&& isOruR01(header.getMessageType(), header.getTriggerEvent(), header.getMessageStructure());
+	}
+
+	// MSH-9 components that are absent are not checked.
+	private static boolean isOruR01(String MSH91, String MSH92, String MSH93) {
+		return (MSH91 == null || MSH91.equalsIgnoreCase("ORU")) && (MSH92 == null || MSH92.equalsIgnoreCase("R01"))
+				&& (MSH93 == null || MSH93.equalsIgnoreCase("ORU_R01"));
+	}
+
+	/*
+	 * Reads OBX-3 and OBX-5 of every OBX in the message in one pass for the
+	 * filters. Only the OBX of OBSERVATION groups are read (the results, not
+	 * the SPECIMEN observations of v2.5.1). The message is walked as generic
+	 * groups and segments, so every version is read the same way: OBX-3 is a
+	 * CE in v2.3 and a CWE in v2.5.1, but the first three components are the
+	 * same.
+	 */
+	List<V2FilterSet.Observation> collectObservations(Message theMessage) throws HL7Exception {
+		List<V2FilterSet.Observation> observations = new ArrayList<V2FilterSet.Observation>();
+		collectObservations(theMessage, false, observations);
+		return observations;
+	}
+
+	private static void collectObservations(Group group, boolean observationGroup,
+			List<V2FilterSet.Observation> observations) throws HL7Exception {
+		for (String name : group.getNames()) {
+			for (Structure structure : group.getAll(name)) {
+				if (structure.isEmpty()) {
+					continue;
+				}
+				if (structure instanceof Group) {
+					collectObservations((Group) structure, "OBSERVATION".equals(name), observations);
+				} else if (observationGroup && "OBX".equals(name)) {
+					observations.add(toObservation((Segment) structure));
+				}
+			}
+		}
+	}
+
+	private static V2FilterSet.Observation toObservation(Segment obx) throws HL7Exception {
+		String codeId = null;
+		String codeText = null;
+		String codeSystem = null;
+		Type[] obxIdentifier = obx.getField(3);
+		if (obxIdentifier.length > 0 && obxIdentifier[0] instanceof Composite) {
+			Type[] components = ((Composite) obxIdentifier[0]).getComponents();
+			codeId = primitiveValue(components, 0);
+			codeText = primitiveValue(components, 1);
+			codeSystem = primitiveValue(components, 2);
+		}
+
+		List<String[]> values = new ArrayList<String[]>();
+		for (Type value : obx.getField(5)) {
+			Type obx5Value = value instanceof Varies ? ((Varies) value).getData() : value;
+			if (obx5Value == null || obx5Value.isEmpty()) {
+				continue;
+			}
+			if ("ST".equals(obx5Value.getName()) && obx5Value instanceof Primitive) {
+				values.add(new String[] { ((Primitive) obx5Value).getValue() });
+			} else if ("SN".equals(obx5Value.getName()) && obx5Value instanceof Composite) {
+				Type[] sn = ((Composite) obx5Value).getComponents();
+				values.add(new String[] { primitiveValue(sn, 0), primitiveValue(sn, 1), primitiveValue(sn, 2),
+						primitiveValue(sn, 3) });
+			}
+		}
+
+		return new V2FilterSet.Observation(codeId, codeText, codeSystem, values);
+	}
+
+	private static String primitiveValue(Type[] components, int index) {
+		if (index < components.length && components[index] instanceof Primitive) {
+			return ((Primitive) components[index]).getValue();
+		}
+		return null;
+	}
+
 	private Bundle makeTransactionFromMessage(Bundle bundle) {
 		// Write transaction
 		Bundle transactionBundle = (Bundle) bundle;
@@ -142,237 +395,135 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 		return transactionBundle;
 	}
 
-	public void saveJsonToFile(IBaseResource resource, String filename) {
+	public Message processMessage(Message theMessage, Map<String, Object> theMetadata)
+			throws ReceivingApplicationException, HL7Exception {
+		return processMessage(theMessage, theMetadata, getV2FilterSet());
+	}
+
+	/**
+	 * processMessage() with the filters of a listener instead of the global
+	 * ones.
+	 */
+	public Message processMessage(Message theMessage, Map<String, Object> theMetadata, V2FilterSet filters)
+			throws ReceivingApplicationException, HL7Exception {
+		long start = System.nanoTime();
 		try {
-			if (filename != null && !filename.isEmpty()) {
-				String fhirJson = ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(resource);
+			String rawMessage = (String) theMetadata.get(MetadataKeys.IN_RAW_MESSAGE);
+			if (rawMessage != null && isTooLarge(rawMessage.length())) {
+				return rejectTooLarge(theMessage, rawMessage.length());
+			}
 
-				BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
-				writer.write(fhirJson);
-				writer.close();
+			DuplicateSuppressor duplicates = getDuplicateSuppressor();
+			if (duplicates != null) {
+				Terser t = new Terser(theMessage);
+				String key = duplicates.keyOf(t.get("/MSH-4-1"), t.get("/MSH-10"), rawMessage);
+				if (key != null) {
+					return receiveOnce(duplicates, key, theMessage, theMetadata, filters);
+				}
 			}
+
+			return receive(theMessage, theMetadata, filters);
+		} finally {
+			ReceiverMetrics.record(getMetrics().processMessageTimer, start);
+		}
+	}
+
+	/*
+	 * AR for a message over maxMessageSize. PreScreeningParser parsed only its
+	 * MSH.
+	 */
+	private Message rejectTooLarge(Message theMessage, int size) throws ReceivingApplicationException, HL7Exception {
+		getMetrics().tooLarge.increment();
+		String reason = "Message of " + size + " characters is larger than the maximum of " + getMaxMessageSize();
+		LOGGER.warn(reason + ". Rejected message " + new Terser(theMessage).get("/MSH-10"));
+		try {
+			return theMessage.generateACK(AcknowledgmentCode.AR, new HL7Exception(reason));
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new ReceivingApplicationException(e);
 		}
+	}
+
+	/*
+	 * receive(), unless the message is a resend of one acknowledged within the
+	 * duplicate window. A resend gets the original ACK and is not converted or
+	 * delivered again.
+	 */
+	private Message receiveOnce(DuplicateSuppressor duplicates, String key, Message theMessage,
+			Map<String, Object> theMetadata, V2FilterSet filters) throws ReceivingApplicationException, HL7Exception {
+		DuplicateSuppressor.Entry original;
+		while ((original = duplicates.begin(key)) != null) {
+			String ack;
+			try {
+				ack = duplicates.awaitAck(original);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ReceivingApplicationException("Interrupted while waiting for the original message", e);
+			} catch (TimeoutException e) {
+				throw new ReceivingApplicationException("The original of this message is still being processed");
+			}
 
-		// System.out.println(fhirJsonObject.toString());
-		// also need it to save to a file
+			if (ack != null) {
+				getMetrics().duplicates.increment();
+				LOGGER.debug("Duplicate of message " + key + ". Sending the original ACK.");
+				return ACK_PARSER.parse(ack);
+			}
+			// The original failed. Process this one instead.
+		}
+
+		boolean completed = false;
+		try {
+			Message response = receive(theMessage, theMetadata, filters);
+			duplicates.complete(key, response.encode());
+			completed = true;
+			return response;
+		} finally {
+			if (!completed) {
+				duplicates.abandon(key);
+			}
+		}
 	}
 
-	public Message processMessage(Message theMessage, Map<String, Object> theMetadata)
+	private Message receive(Message theMessage, Map<String, Object> theMetadata, V2FilterSet myFilters)
 			throws ReceivingApplicationException, HL7Exception {
 
-		LOGGER.debug("Received message:\n" + theMessage.encode());
+		String rawMessage = (String) theMetadata.get(MetadataKeys.IN_RAW_MESSAGE);
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("Received message:\n" + (rawMessage != null ? rawMessage : theMessage.encode()));
+		}
 
 		// Apply filter.
-		JSONObject myFilters = getV2Filters();
 
 		// If filters are not set, then we just silently ignore incoming message.
-		if (myFilters != null && "0.0.1".equals(myFilters.getString("version"))) {
-			boolean ok2accept = false;
-
-			if (myFilters.has("status") && "allow_all".equalsIgnoreCase(myFilters.getString("status"))) {
-				ok2accept = true;
-			} else {
-				for (Object myObject : myFilters.getJSONArray("filters")) {
-					JSONObject myFilter = (JSONObject) myObject;
-
-					String conj = myFilter.getString("conjunction");
-					String segmentLoc = myFilter.getString("segment_loc");
-					String segmentValue = myFilter.getString("segment_value");
-					String valueLoc = myFilter.getString("value_loc");
-					String valueType = myFilter.getString("value_type");
-					String valueValue = myFilter.getString("value_value");
-
-					ca.uhn.hl7v2.model.v23.message.ORU_R01 oruR01Message = (ca.uhn.hl7v2.model.v23.message.ORU_R01) theMessage;
-					String[] segment_info = segmentLoc.split("-");
-					if ("OBX".equals(segment_info[0])) {
-						if ("3".equals(segment_info[1])) {
-							String[] segment_values = segmentValue.split("\\^");
-
-							String segment_v_id = "";
-							String segment_v_text = "";
-							String segment_v_system = "";
-							if (segment_values.length >= 3) {
-								segment_v_id = segment_values[0];
-								segment_v_text = segment_values[1];
-								segment_v_system = segment_values[2];
-							} else if (segment_values.length >= 2) {
-								segment_v_id = segment_values[0];
-								segment_v_text = segment_values[1];
-							} else {
-								continue;
-							}
-
-							if (segment_v_id.isBlank() && segment_v_text.isBlank()) {
-								continue;
-							}
-
-							for (ORU_R01_RESPONSE resp : oruR01Message.getRESPONSEAll()) {
-								if (resp != null && !resp.isEmpty()) {
-									for (ORU_R01_ORDER_OBSERVATION orderObs : resp.getORDER_OBSERVATIONAll()) {
-										for (ORU_R01_OBSERVATION obs : orderObs.getOBSERVATIONAll()) {
-											OBX obx = obs.getOBX();
-											CE obxIdentifier = obx.getObservationIdentifier();
-											String obxSegId = obxIdentifier.getCe1_Identifier().getValue();
-											String obxSegText = obxIdentifier.getCe2_Text().getValue();
-											String obxSegSystem = obxIdentifier.getCe3_NameOfCodingSystem().getValue();
-											if (!segment_v_id.isBlank() && segment_v_id.equals(obxSegId)) {
-												if (!segment_v_text.isBlank() && segment_v_text.equals(obxSegText)) {
-													if (segment_v_system.isBlank()) {
-														ok2accept = true;
-													} else if (!segment_v_system.isBlank()
-															&& segment_v_system.equals(obxSegSystem)) {
-														ok2accept = true;
-													}
-												}
-											}
-
-											if (ok2accept) {
-												// check the value for this OBX type.
-												ok2accept = false;
-												String[] value_info = valueLoc.split("-");
-												if ("OBX".equals(value_info[0]) && "5".equals(value_info[1])) {
-													for (Varies value : obx.getObx5_ObservationValue()) {
-														Type obx5Value = value.getData();
-														if (obx5Value != null && !obx5Value.isEmpty()) {
-															if ("ST".equals(valueType)) {
-																ST obx5ValueSt = (ST) obx5Value;
-																if (valueValue
-																		.equalsIgnoreCase(obx5ValueSt.getValue())) {
-																	ok2accept = true;
-																	break;
-																}
-															} else if ("SN".equals(valueType)) {
-																// comparator^num1^:^num2
-																SN obx5valueSn = (SN) obx5Value;
-																ST obx5valueComparator = obx5valueSn.getComparator();
-																String[] values = valueValue.split("\\^");
-																if (values.length != 4) {
-																	continue;
-																}
-
-																String filterValueComparator = values[0];
-																String filterValueNum1 = values[1];
-																String filterValueNum2 = values[3];
-
-																double filterValue = Double.valueOf(filterValueNum2)
-																		/ Double.valueOf(filterValueNum1);
-																double obxValue = Double
-																		.valueOf(obx5valueSn.getNum2().getValue())
-																		/ Double.valueOf(
-																				obx5valueSn.getNum1().getValue());
-
-																if (filterValueComparator != null
-																		&& ("<".equals(filterValueComparator) || "<="
-																				.equals(filterValueComparator))) {
-																	if (obxValue <= filterValue) {
-																		ok2accept = true;
-																		break;
-																	}
-																} else if (filterValueComparator != null
-																		&& (">".equals(filterValueComparator) || ">="
-																				.equals(filterValueComparator))) {
-																	if (obxValue >= filterValue) {
-																		ok2accept = true;
-																		break;
-																	}
-																} else {
-																	if (obxValue == filterValue) {
-																		ok2accept = true;
-																		break;
-																	}
-																}
-															}
-														}
-													}
-
-													if (ok2accept) {
-														// This message is OK.
-														break;
-													}
-												}
-												ok2accept = false;
-											}
-										}
-										if (ok2accept) {
-											// we do not need to review the rest of OBSERVATION.
-											break;
-										}
-									}
-									if (ok2accept) {
-										break;
-									}
-								}
-							}
-						}
-					}
-					if ("and".equalsIgnoreCase(conj) && ok2accept == false) {
-						// it's "and" but we have ok2accept == false. We stop evaluating rest as it will
-						// be
-						// false no matter what we have in the rest of filters.
-						break;
-					}
-
-					if (ok2accept && "or".equalsIgnoreCase(conj)) {
-						break;
-					}
-				}
-			} 
+		if (theMessage instanceof GenericMessage) {
+			// Only the MSH was parsed. PreScreeningParser found no OBX-3 that can
+			// satisfy the filters.
+			getMetrics().filtered.increment();
+			LOGGER.debug("The message is filtered out by its OBX-3 codes");
+		} else if (myFilters != null) {
+			long filterStart = System.nanoTime();
+			boolean ok2accept = myFilters.isAllowAll() || myFilters.accepts(collectObservations(theMessage));
+			ReceiverMetrics.record(getMetrics().filterTimer, filterStart);
 
 			if (ok2accept) {
-				List<IBaseBundle> bundles = getMyParser().executeParser(theMessage);
-				IGenericClient client = null;
-				if (getControllerApiUrl() != null) {
-					client = ctx.newRestfulGenericClient(getControllerApiUrl());
-					if (getAuthBasic() != null && !getAuthBasic().isEmpty()) {
-						client.registerInterceptor(new BasicAuthInterceptor(getAuthBasic()));
-					} else if (getAuthBearer() != null && !getAuthBearer().isEmpty()) {
-						client.registerInterceptor(new BearerTokenAuthInterceptor(getAuthBearer()));
-					}
-				}
-
-				for (IBaseBundle bundle : bundles) {
-					// this bundle is message bundle. Strip off the message wrapper and use the
-					// focused bundle.
-					if (((Bundle) bundle).getType() != Bundle.BundleType.MESSAGE)
-						continue;
-
-					BundleEntryComponent messageHeaderEntry = ((Bundle) bundle).getEntryFirstRep();
-					MessageHeader mh = (MessageHeader) messageHeaderEntry.getResource();
-					Reference focusReference = mh.getFocusFirstRep();
-
-					Bundle documentBundle = null;
-					for (BundleEntryComponent entry : ((Bundle) bundle).getEntry()) {
-						if (focusReference.getReference() != null &&
-								focusReference.getReference().equals(entry.getFullUrl())) {
-							if (entry.getResource() instanceof Bundle) {
-								documentBundle = (Bundle) entry.getResource();
-								break;
-							}
-						}
-					}
-
-					if (documentBundle == null)
-						continue;
-					// bundle = makeTransactionFromMessage((Bundle)bundle);
-
-					// change it to transaction bundle.
-					// bundle = makeTransactionFromMessage((Bundle)bundle);
-					if (getControllerApiUrl() != null) {
-						// .. process the message ..
-						try {
-							sendFhir(documentBundle, client);
-						} catch (HL7Exception | ReceivingApplicationException | IOException e) {
-							throw new ReceivingApplicationException("Sending to FHIR controller Failed", e.getCause());
-						}
+				getMetrics().accepted.increment();
+				try {
+					if ("ASYNC".equalsIgnoreCase(getDeliveryMode()) && getDeliveryPipeline() != null) {
+						acceptForDelivery(theMessage, theMetadata);
+					} else {
+						deliverMessage(theMessage, rawMessage != null && isLarge(rawMessage.length()));
 					}
+				} catch (QueuedForRetryException e) {
+					// The failed bundles are on the retry queue, which sends them. The
+					// message is accepted: a NAK would only have the sender resend it
+					// and queue its bundles again.
+					LOGGER.warn("Message queued for retry: " + e.getMessage());
 				}
 			} else {
+				getMetrics().filtered.increment();
 				LOGGER.debug("The message is filtered out: " + theMessage);
 			}
 		} else {
-			LOGGER.error("V2 Filter is not set up. The filter must be set with a version 0.0.1 format");
+			LOGGER.error("V2 Filter is not set up. The filter must be set with a version " + V2FilterSet.SUPPORTED_VERSION + " format");
 		}
 
 		/*
@@ -388,7 +539,132 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 		return response;
 	}
 
-	private void sendFhir(IBaseBundle bundle, IGenericClient client)
+	/**
+	 * Converts the message to FHIR and sends the resulting bundles to the FHIR
+	 * controller. Called on the MLLP connection thread in SYNC mode, and by the
+	 * delivery workers in ASYNC mode.
+	 *
+	 * Throws QueuedForRetryException if bundles failed but all of them are on
+	 * the retry queue. The other bundles of the message are still sent.
+	 */
+	@Override
+	public void deliverMessage(Message theMessage, boolean large) throws ReceivingApplicationException, HL7Exception {
+		List<IBaseBundle> bundles = convert(theMessage);
+
+		IGenericClient client = getFhirClient();
+		QueuedForRetryException queued = null;
+
+		for (IBaseBundle bundle : bundles) {
+			// this bundle is message bundle. Strip off the message wrapper and use the
+			// focused bundle.
+			if (((Bundle) bundle).getType() != Bundle.BundleType.MESSAGE)
+				continue;
+
+			BundleEntryComponent messageHeaderEntry = ((Bundle) bundle).getEntryFirstRep();
+			MessageHeader mh = (MessageHeader) messageHeaderEntry.getResource();
+			Reference focusReference = mh.getFocusFirstRep();
+
+			Bundle documentBundle = null;
+			for (BundleEntryComponent entry : ((Bundle) bundle).getEntry()) {
+				if (focusReference.getReference() != null &&
+						focusReference.getReference().equals(entry.getFullUrl())) {
+					if (entry.getResource() instanceof Bundle) {
+						documentBundle = (Bundle) entry.getResource();
+						break;
+					}
+				}
+			}
+
+			if (documentBundle == null)
+				continue;
+			// bundle = makeTransactionFromMessage((Bundle)bundle);
+
+			// change it to transaction bundle.
+			// bundle = makeTransactionFromMessage((Bundle)bundle);
+			if (getControllerApiUrl() != null) {
+				// .. process the message ..
+				try {
+					sendFhir(documentBundle, client, true, large);
+				} catch (QueuedForRetryException e) {
+					queued = e;
+				} catch (IOException e) {
+					// The retry queue could not be written.
+					throw new ReceivingApplicationException("Sending to FHIR controller Failed", e);
+				} catch (HL7Exception | ReceivingApplicationException e) {
+					throw new ReceivingApplicationException("Sending to FHIR controller Failed",
+							e.getCause() != null ? e.getCause() : e);
+				}
+			}
+		}
+
+		if (queued != null) {
+			throw queued;
+		}
+	}
+
+	/*
+	 * Converts the message to FHIR message bundles. Each conversion borrows its
+	 * own parser. Messages from different connections and delivery workers are
+	 * converted at the same time.
+	 */
+	List<IBaseBundle> convert(Message theMessage) throws HL7Exception {
+		String version = theMessage.getVersion();
+		BaseHL7v2FHIRParser parser = getParserRegistry().borrow(version);
+		long convertStart = System.nanoTime();
+		try {
+			return parser.executeParser(theMessage);
+		} finally {
+			getParserRegistry().release(version, parser);
+			ReceiverMetrics.record(getMetrics().convertTimer, convertStart);
+		}
+	}
+
+	private void acceptForDelivery(Message theMessage, Map<String, Object> theMetadata)
+			throws ReceivingApplicationException, HL7Exception {
+		String rawMessage = (String) theMetadata.get(MetadataKeys.IN_RAW_MESSAGE);
+		if (rawMessage == null) {
+			rawMessage = theMessage.encode();
+		}
+
+		CompletableFuture<Void> delivery;
+		try {
+			delivery = getDeliveryPipeline().submit(theMessage, rawMessage);
+		} catch (IOException e) {
+			throw new ReceivingApplicationException("Failed to persist the message for delivery", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ReceivingApplicationException("Interrupted while waiting for a delivery slot", e);
+		}
+
+		if ("DELIVERY".equalsIgnoreCase(getAckMode())) {
+			try {
+				delivery.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ReceivingApplicationException("Interrupted while waiting for delivery", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof QueuedForRetryException) {
+					throw (QueuedForRetryException) e.getCause();
+				}
+				throw new ReceivingApplicationException("Sending to FHIR controller Failed", e.getCause());
+			}
+		}
+	}
+
+	/*
+	 * Sends the bundle to $registry-control. When requeueOnFailure is set, a failed
+	 * bundle is put on the retry queue and QueuedForRetryException is thrown.
+	 * Bundles coming from the retry queue are not requeued here. The queue keeps
+	 * track of their attempts. A bundle without a patient identifier cannot be
+	 * sent nor queued, and fails with ReceivingApplicationException.
+	 * 
+	 * While the circuit breaker is open, no call is made. The bundle is queued
+	 * (requeueOnFailure) or CircuitBreaker.OpenException is thrown.
+	 *
+	 * A large bundle is written straight into the request body, and is not
+	 * batched.
+	 */
+	private void sendFhir(IBaseBundle bundle, IGenericClient client, boolean requeueOnFailure, boolean large)
 			throws ReceivingApplicationException, HL7Exception, IOException {
 
 		// Create Parameters and add the bundle.
@@ -418,77 +694,193 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 			}
 		}
 
-		Parameters parameters = new Parameters();
+		String patientIdentifier;
 		if (MRN != null && !MRN.isBlank()) {
-			parameters.setParameter("patient-identifier", MRN);
+			patientIdentifier = MRN;
 		} else if (SSN != null && !SSN.isBlank()) {
-			parameters.setParameter("patient-identifier", SSN);
+			patientIdentifier = SSN;
 		} else if (patientIdValue != null && !patientIdValue.isBlank()) {
-			parameters.setParameter("patient-identifier", patientIdValue);
+			patientIdentifier = patientIdValue;
 		} else {
 			LOGGER.error("Patient.identifier not found.");
-			return; // silently return
+			throw new ReceivingApplicationException("Patient.identifier not found");
 		}
 
+		Parameters parameters = new Parameters();
+		parameters.setParameter("patient-identifier", patientIdentifier);
+
 		// parameters.setParameter("set-status", "REQUEST");
 		ParametersParameterComponent param = parameters.addParameter();
 		param.setName("lab-results");
 		param.setResource(myBundle);
 
-		String fileUnique = String.valueOf(System.currentTimeMillis());
-		if ("YES".equalsIgnoreCase(getSaveToFile())) {
-			String filename = getFilePath() + "/" + fileUnique + "_bundle.txt";
-			saveJsonToFile(parameters, filename);
+		// Encoded on the archive thread. Nothing changes parameters after this.
+		ArchiveWriter archiveWriter = getArchiveWriter();
+		if (archiveWriter != null) {
+			archiveWriter.archive(patientIdentifier,
+					writer -> ctx.newJsonParser().encodeResourceToWriter(parameters, writer));
+		}
+
+		CircuitBreaker breaker = getCircuitBreaker();
+		long admission = breaker == null ? 0L : breaker.tryAcquire();
+		if (admission == CircuitBreaker.REFUSED) {
+			getMetrics().breakerRejected.increment();
+			if (requeueOnFailure) {
+				enqueueBundle(patientIdentifier, myBundle, large);
+				throw new QueuedForRetryException("The circuit to the FHIR controller is open. Queued for retry.");
+			}
+			throw new CircuitBreaker.OpenException();
 		}
 
 		Parameters retParams;
+		long sendStart = System.nanoTime();
+		CallLimiter limiter = fhirCallLimiter;
+		long ticket = 0L;
+		boolean permitted = false;
+		long callStart = 0L;
+		boolean controllerFailed = false;
+		boolean interrupted = false;
 		try {
-			retParams = client.operation()
-					.onServer()
-					.named("$registry-control")
-					.withParameters(parameters)
-					.execute();
+			if (limiter != null) {
+				ticket = limiter.acquire();
+				permitted = true;
+			}
+			callStart = System.nanoTime();
+
+			RegistryBatchDispatcher dispatcher = getBatchDispatcher();
+			if (large) {
+				retParams = getFhirClientPool().postStreaming(getControllerApiUrl(), "$registry-control", parameters,
+						getAuthInterceptor());
+			} else if (dispatcher != null) {
+				// The batch may wait for a free sender behind the ones in flight
+				// before it gets its own request.
+				long timeoutMillis = dispatcher.getMaxWaitMillis() + 3 * getFhirClientPool().getRequestTimeoutMillis();
+				CompletableFuture<Resource> future = dispatcher.submit(parameters);
+				try {
+					Resource result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+					retParams = result instanceof Parameters ? (Parameters) result : null;
+				} catch (TimeoutException | InterruptedException e) {
+					// The bundle goes to the retry queue. Withdraw it, so the
+					// dispatcher does not send it as well.
+					future.cancel(false);
+					throw e;
+				} catch (ExecutionException e) {
+					// Surface the error of this entry as if the call had been made directly.
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			} else {
+				retParams = client.operation()
+						.onServer()
+						.named("$registry-control")
+						.withParameters(parameters)
+						.execute();
+			}
 		} catch (UnprocessableEntityException e) {
-			String fhirJson = ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(myBundle);
-			getQueueFile().add(fhirJson.getBytes());
+			if (requeueOnFailure) {
+				enqueueBundle(patientIdentifier, myBundle, large);
+			}
 
 			OperationOutcome oo = (OperationOutcome) e.getOperationOutcome();
 			String ooIssueText = "";
-			for (OperationOutcomeIssueComponent issue : oo.getIssue()) {
-				ooIssueText += issue.getDetails().getText();
+			if (oo != null) {
+				for (OperationOutcomeIssueComponent issue : oo.getIssue()) {
+					ooIssueText += issue.getDetails().getText();
+				}
 			}
 
 			ooIssueText = ooIssueText.trim();
 			if (ooIssueText.isBlank()) {
-				throw new ReceivingApplicationException(e);
-			} else {
-				throw new ReceivingApplicationException(ooIssueText);
+				ooIssueText = e.getMessage();
 			}
+			if (requeueOnFailure) {
+				throw new QueuedForRetryException(ooIssueText, e);
+			}
+			throw new ReceivingApplicationException(ooIssueText, e);
 		} catch (Exception e) {
-			String fhirJson = ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(myBundle);
-			getQueueFile().add(fhirJson.getBytes());
+			controllerFailed = isControllerFailure(e);
+			interrupted = e instanceof InterruptedException;
+			if (requeueOnFailure) {
+				enqueueBundle(patientIdentifier, myBundle, large);
+				throw new QueuedForRetryException("Queued for retry: " + e.getMessage(), e);
+			}
 
 			throw new ReceivingApplicationException(e);
+		} finally {
+			long callNanos = callStart == 0L ? 0L : System.nanoTime() - callStart;
+			if (breaker != null) {
+				if (callStart == 0L || interrupted) {
+					// No call was made, or its outcome is not known.
+					breaker.cancel(admission);
+				} else {
+					breaker.record(admission, controllerFailed, callNanos);
+				}
+			}
+			if (permitted) {
+				limiter.release(ticket, controllerFailed || (breaker != null && breaker.isSlow(callNanos)));
+			}
+			ReceiverMetrics.record(getMetrics().sendTimer, sendStart);
 		}
 	}
 
-	public void sendData(String jsonString) {
-		try {
-			Bundle myBundle = ctx.newJsonParser().parseResource(Bundle.class, jsonString);
+	/*
+	 * Whether the exception says the controller is in trouble, rather than
+	 * that it did not like this bundle. 422 is handled before this. Timeouts
+	 * and connection errors come without a status.
+	 */
+	private static boolean isControllerFailure(Exception e) {
+		if (e instanceof InterruptedException) {
+			// Shutting down. No call was made.
+			return false;
+		}
+		if (e instanceof BaseServerResponseException) {
+			int status = ((BaseServerResponseException) e).getStatusCode();
+			return status >= 500 || status == 429 || status == 0;
+		}
+		return true;
+	}
 
-			IGenericClient client = null;
-			if (getControllerApiUrl() != null) {
-				client = ctx.newRestfulGenericClient(getControllerApiUrl());
-				if (getAuthBasic() != null && !getAuthBasic().isEmpty()) {
-					client.registerInterceptor(new BasicAuthInterceptor(getAuthBasic()));
-				} else if (getAuthBearer() != null && !getAuthBearer().isEmpty()) {
-					client.registerInterceptor(new BearerTokenAuthInterceptor(getAuthBearer()));
-				}
-			}
+	/*
+	 * Puts the bundle on the retry queue partition of the patient as minified,
+	 * by default compressed, JSON (see QueuePayload). large is kept with it.
+	 */
+	private void enqueueBundle(String patientIdentifier, Bundle bundle, boolean large) throws IOException {
+		enqueue(patientIdentifier, QueuePayload.encode(writer -> ctx.newJsonParser().encodeResourceToWriter(bundle, writer),
+				isQueueCompression(), large));
+	}
 
-			sendFhir(myBundle, client);
+	public boolean sendData(String jsonString) {
+		return sendData(jsonString.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Sends a bundle taken from the retry queue. The JSON is parsed straight
+	 * from the (decompressed) payload. Throws RetryQueue.RejectedException if
+	 * the controller rejected it (422).
+	 */
+	public boolean sendData(byte[] queuePayload) {
+		try (Reader reader = QueuePayload.open(queuePayload)) {
+			Bundle myBundle = ctx.newJsonParser().parseResource(Bundle.class, reader);
+
+			IGenericClient client = getFhirClient();
+
+			sendFhir(myBundle, client, false, QueuePayload.isLarge(queuePayload));
+		} catch (CircuitBreaker.OpenException e) {
+			// Not an attempt. The drainer puts it back as it was.
+			throw e;
+		} catch (ReceivingApplicationException e) {
+			if (e.getCause() instanceof UnprocessableEntityException) {
+				throw new RetryQueue.RejectedException(e.getMessage());
+			}
+			e.printStackTrace();
+			return false;
 		} catch (Exception e) {
 			e.printStackTrace();
+			return false;
 		}
+
+		return true;
 	}
 }
@@ -6,6 +6,7 @@ import ca.uhn.hl7v2.model.Message;
 import ca.uhn.hl7v2.protocol.ReceivingApplication;
 
 public interface IHL7v2ReceiverApplication extends ReceivingApplication<Message> {
-	public void sendData(String jsonString);
+	public boolean sendData(String jsonString);
+	public boolean sendData(byte[] queuePayload);
 	public void sendData(Bundle bundle);
 }
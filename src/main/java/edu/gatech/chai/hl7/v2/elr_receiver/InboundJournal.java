@@ -0,0 +1,57 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.util.List;
+
+/*
+ * Durable journal for raw inbound HL7 v2 messages.
+ *
+ * A message is appended before the sender is ACKed and completed once it has
+ * been delivered. Completions may come out of order. Whatever was appended
+ * but not completed is returned by pending() on the next start.
+ *
+ * QueueFileJournal: tape QueueFile, synced on every append.
+ * SegmentedJournal: memory-mapped segment files with group commit.
+ */
+public interface InboundJournal {
+	/*
+	 * A message left in the journal by a previous run.
+	 */
+	public static class Entry {
+		private final long seq;
+		private final String rawMessage;
+
+		public Entry(long seq, String rawMessage) {
+			this.seq = seq;
+			this.rawMessage = rawMessage;
+		}
+
+		public long getSeq() {
+			return seq;
+		}
+
+		public String getRawMessage() {
+			return rawMessage;
+		}
+	}
+
+	/**
+	 * Messages that were left in the journal by a previous run, oldest first.
+	 */
+	public List<Entry> pending();
+
+	/**
+	 * Appends the message and returns its sequence number once it is durable.
+	 */
+	public long append(String rawMessage) throws IOException;
+
+	public void complete(long seq);
+
+	/**
+	 * Messages in the journal, including completed ones that are not yet
+	 * removed.
+	 */
+	public int size();
+
+	public void close() throws IOException;
+}
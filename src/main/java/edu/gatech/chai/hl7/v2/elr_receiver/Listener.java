@@ -0,0 +1,303 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.app.HL7Service;
+import ca.uhn.hl7v2.app.SimpleServer;
+import ca.uhn.hl7v2.hoh.api.IAuthorizationServerCallback;
+import ca.uhn.hl7v2.hoh.llp.Hl7OverHttpLowerLayerProtocol;
+import ca.uhn.hl7v2.hoh.util.ServerRoleEnum;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.protocol.ReceivingApplication;
+import ca.uhn.hl7v2.protocol.ReceivingApplicationException;
+import ca.uhn.hl7v2.validation.impl.ValidationContextFactory;
+
+/*
+ * One endpoint of the receiver: MLLP (with or without TLS), HL7 over HTTP,
+ * or FILE. Any transport other than MLLP and FILE is HTTP, as it always was.
+ *
+ * All listeners hand their messages to the same handler, so they share its
+ * FhirContext, FHIR client pool, retry queue, duplicate suppression and
+ * circuit breaker. A listener has its own
+ *   - port, or inbox for FILE
+ *   - v2 filters, if it has a v2FilterFile (hot reloaded like the global
+ *     one). Otherwise the global filters of the handler apply.
+ *   - HAPI context and pool of connection threads (batch workers for FILE).
+ *     With deliveryMode=SYNC messages are processed on these threads, so a
+ *     busy sender group does not hold up the others.
+ *   - HL7 over HTTP credentials, if set. Otherwise the handler's.
+ */
+public class Listener implements ReceivingApplication<Message>, IAuthorizationServerCallback {
+	public static final String MLLP = "MLLP";
+	public static final String HTTP = "HTTP";
+	public static final String FILE = "FILE";
+
+	private final HL7v2ReceiverFHIRApplication<?> handler;
+	private final String name;
+	private final String transport;
+	private final int port;
+	private boolean useTls = false;
+	private boolean preScreen = true;
+	private String hl7HttpBasic = null;
+	private String v2FilterFile = null;
+	private boolean v2FilterHotReload = false;
+	private String batchInboxDir = "inbox";
+	private String batchDoneDir = "";
+	private int batchWorkers = 4;
+	private int batchPollSeconds = 5;
+
+	// Null for the global filters. Swapped as a whole on reload.
+	private volatile V2FilterSet v2FilterSet = null;
+	private V2FilterWatcher v2FilterWatcher = null;
+	private HL7Service server = null;
+	private BatchFileIngester ingester = null;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(Listener.class.getName());
+
+	public Listener(HL7v2ReceiverFHIRApplication<?> handler, String name, String transport, int port) {
+		this.handler = handler;
+		this.name = name;
+		this.transport = transport;
+		this.port = port;
+	}
+
+	/**
+	 * The listener called name, from its listener.&lt;name&gt;.* properties.
+	 * Properties that are not set are taken from defaults, except
+	 * v2FilterFile: without one the listener uses the global filters.
+	 */
+	public static Listener fromProperties(HL7v2ReceiverFHIRApplication<?> handler, String name, Properties prop,
+			Listener defaults) throws Exception {
+		String prefix = "listener." + name + ".";
+		Listener listener = new Listener(handler, name, prop.getProperty(prefix + "transport", defaults.transport),
+				Integer.parseInt(prop.getProperty(prefix + "port", Integer.toString(defaults.port))));
+		listener.configTls(prop.getProperty(prefix + "useTls", Boolean.toString(defaults.useTls))
+				.equalsIgnoreCase("true"));
+		listener.configPreScreen(prop.getProperty(prefix + "v2PreScreen", Boolean.toString(defaults.preScreen))
+				.equalsIgnoreCase("true"));
+		listener.configHttpBasic(prop.getProperty(prefix + "hl7HttpBasic", defaults.hl7HttpBasic));
+		listener.configBatch(prop.getProperty(prefix + "batchInboxDir", defaults.batchInboxDir),
+				prop.getProperty(prefix + "batchDoneDir", defaults.batchDoneDir),
+				Integer.parseInt(prop.getProperty(prefix + "batchWorkers", Integer.toString(defaults.batchWorkers))),
+				Integer.parseInt(
+						prop.getProperty(prefix + "batchPollSeconds", Integer.toString(defaults.batchPollSeconds))));
+
+		String filterFile = prop.getProperty(prefix + "v2FilterFile");
+		if (filterFile != null && !filterFile.isBlank()) {
+			listener.configV2Filters(filterFile, prop
+					.getProperty(prefix + "v2FilterHotReload", Boolean.toString(defaults.v2FilterHotReload))
+					.equalsIgnoreCase("true"));
+		}
+		return listener;
+	}
+
+	public void configTls(boolean useTls) {
+		this.useTls = useTls;
+	}
+
+	/**
+	 * Whether messages are screened by PreScreeningParser before the full
+	 * parse.
+	 */
+	public void configPreScreen(boolean preScreen) {
+		this.preScreen = preScreen;
+	}
+
+	/**
+	 * user:password for HL7 over HTTP. Null or empty for the handler's.
+	 */
+	public void configHttpBasic(String hl7HttpBasic) {
+		this.hl7HttpBasic = hl7HttpBasic == null || hl7HttpBasic.isEmpty() ? null : hl7HttpBasic;
+	}
+
+	public void configBatch(String inboxDir, String doneDir, int workers, int pollSeconds) {
+		this.batchInboxDir = inboxDir;
+		this.batchDoneDir = doneDir;
+		this.batchWorkers = workers;
+		this.batchPollSeconds = pollSeconds;
+	}
+
+	/**
+	 * Filters of this listener only, loaded from v2FilterFile and, if
+	 * hotReload is set, reloaded when the file changes.
+	 */
+	public void configV2Filters(String v2FilterFile, boolean hotReload) throws Exception {
+		if (v2FilterWatcher != null) {
+			v2FilterWatcher.stop();
+		}
+
+		this.v2FilterFile = v2FilterFile;
+		this.v2FilterHotReload = hotReload;
+		v2FilterWatcher = new V2FilterWatcher(this::setV2Filters, v2FilterFile);
+		v2FilterWatcher.load();
+		if (hotReload) {
+			v2FilterWatcher.start();
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the filter configuration is not valid
+	 */
+	public void setV2Filters(JSONObject v2Filters) {
+		V2FilterSet compiled = V2FilterSet.compile(v2Filters);
+		this.v2FilterSet = compiled;
+		LOGGER.info("Listener " + name + ": V2 filters loaded: version " + compiled.getVersion() + ", "
+				+ (compiled.isAllowAll() ? "allow_all" : compiled.size() + " filter(s)"));
+	}
+
+	/**
+	 * The filters messages of this listener are checked against: its own, or
+	 * the global ones.
+	 */
+	public V2FilterSet getV2FilterSet() {
+		V2FilterSet filters = v2FilterSet;
+		return filters != null ? filters : handler.getV2FilterSet();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getTransport() {
+		return transport;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	@Override
+	public boolean canProcess(Message theMessage) {
+		return handler.canProcess(theMessage);
+	}
+
+	@Override
+	public Message processMessage(Message theMessage, Map<String, Object> theMetadata)
+			throws ReceivingApplicationException, HL7Exception {
+		return handler.processMessage(theMessage, theMetadata, getV2FilterSet());
+	}
+
+	@Override
+	public boolean authorize(String theUriPath, String theUsername, String thePassword) {
+		if (hl7HttpBasic == null) {
+			return handler.authorize(theUriPath, theUsername, thePassword);
+		}
+
+		LOGGER.info("Listener " + name + ": authenticating for " + theUriPath + ", " + theUsername);
+		return ("/elrreceiver".equals(theUriPath) || "/elrreceiver/".equals(theUriPath))
+				&& (theUsername + ":" + thePassword).equals(hl7HttpBasic);
+	}
+
+	/**
+	 * Starts listening. The handler has to be configured by then.
+	 */
+	public void start() throws Exception {
+		if (MLLP.equals(transport)) {
+			startMllp();
+		} else if (FILE.equals(transport)) {
+			startFile();
+		} else {
+			startHttp();
+		}
+	}
+
+	/**
+	 * Stops listening, and stops watching the filter file of this listener.
+	 */
+	public void stop() {
+		if (server != null) {
+			server.stop();
+		}
+		if (ingester != null) {
+			ingester.shutdown();
+		}
+		if (v2FilterWatcher != null) {
+			v2FilterWatcher.stop();
+		}
+	}
+
+	private String describe() {
+		String filters = v2FilterFile != null ? v2FilterFile + (v2FilterHotReload ? ", hot reload" : "")
+				: "global";
+		if (FILE.equals(transport)) {
+			return "Listener " + name + ": FILE " + batchInboxDir + " (filters: " + filters + ")";
+		}
+		return "Listener " + name + ": " + (MLLP.equals(transport) ? (useTls ? "MLLP with TLS" : "MLLP") : "HTTP")
+				+ " on port " + port + " (filters: " + filters + ")";
+	}
+
+	private void startMllp() throws Exception {
+		HapiContext ctx = new DefaultHapiContext();
+		// One reader thread per sender connection. With VIRTUAL, an idle
+		// connection does not hold an OS thread.
+		ExecutorService connectionExecutor = ThreadModel.newConnectionExecutor(handler.getThreadModel(),
+				"elr-" + name + "-connection-");
+		ctx.setExecutorService(connectionExecutor);
+		if (preScreen) {
+			// Same as ctx.newServer(), with a parser that looks at the raw message first.
+			Parser parser = new PreScreeningParser(ctx, handler, this::getV2FilterSet);
+			server = new SimpleServer(port, ctx.getLowerLayerProtocol(), parser, useTls, connectionExecutor);
+		} else {
+			server = ctx.newServer(port, useTls);
+		}
+
+		server.registerApplication("*", "*", this);
+		server.registerConnectionListener(new ELRReceiver.MyConnectionListener(handler.getMetrics()));
+		server.setExceptionHandler(new ELRReceiver.MyExceptionHandler(handler.getMetrics()));
+
+		server.startAndWait();
+		LOGGER.info(describe() + " started");
+	}
+
+	private void startHttp() throws Exception {
+		Hl7OverHttpLowerLayerProtocol llp = new Hl7OverHttpLowerLayerProtocol(ServerRoleEnum.SERVER);
+		llp.setAuthorizationCallback(this);
+
+		Parser parser;
+		if (preScreen) {
+			HapiContext ctx = new DefaultHapiContext();
+			ctx.setValidationContext(ValidationContextFactory.noValidation());
+			parser = new PreScreeningParser(ctx, handler, this::getV2FilterSet);
+		} else {
+			parser = PipeParser.getInstanceWithNoValidation();
+		}
+		ExecutorService connectionExecutor = ThreadModel.newConnectionExecutor(handler.getThreadModel(),
+				"elr-" + name + "-connection-");
+		server = new SimpleServer(port, llp, parser, false, connectionExecutor);
+
+		server.registerApplication("*", "*", this);
+		server.registerConnectionListener(new ELRReceiver.MyConnectionListener(handler.getMetrics()));
+		server.setExceptionHandler(new ELRReceiver.MyExceptionHandler(handler.getMetrics()));
+
+		server.start();
+		LOGGER.info(describe() + " started");
+	}
+
+	private void startFile() throws Exception {
+		HapiContext ctx = new DefaultHapiContext();
+		Parser parser;
+		if (preScreen) {
+			parser = new PreScreeningParser(ctx, handler, this::getV2FilterSet);
+		} else {
+			parser = ctx.getPipeParser();
+		}
+
+		ingester = new BatchFileIngester(handler, this, name, parser, batchInboxDir, batchDoneDir, batchWorkers,
+				batchPollSeconds);
+		Runtime.getRuntime().addShutdownHook(new Thread(ingester::shutdown, "elr-" + name + "-shutdown"));
+		ingester.start();
+		LOGGER.info(describe() + " started");
+	}
+}
@@ -0,0 +1,249 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Reads routing fields straight from an ER7 (pipe) encoded message, without
+ * building a HAPI Message.
+ *
+ * The delimiters come from MSH-1 and MSH-2. Only the requested fields are
+ * copied out of the raw string. Escape sequences are not decoded, so a value
+ * that holds the escape character is reported as it appears on the wire.
+ * Segments may end with CR, LF or CRLF.
+ */
+public final class MshScanner {
+	/*
+	 * MSH fields used for routing. Components other than the first are only
+	 * kept for MSH-9.
+	 */
+	public static final class Header {
+		private final char fieldSeparator;
+		private final char componentSeparator;
+		private final char escapeCharacter;
+		private final int end;
+		private final String sendingFacility;
+		private final String messageType;
+		private final String triggerEvent;
+		private final String messageStructure;
+		private final String controlId;
+		private final String version;
+
+		Header(char fieldSeparator, char componentSeparator, char escapeCharacter, int end, String sendingFacility,
+				String messageType, String triggerEvent, String messageStructure, String controlId, String version) {
+			this.fieldSeparator = fieldSeparator;
+			this.componentSeparator = componentSeparator;
+			this.escapeCharacter = escapeCharacter;
+			this.end = end;
+			this.sendingFacility = sendingFacility;
+			this.messageType = messageType;
+			this.triggerEvent = triggerEvent;
+			this.messageStructure = messageStructure;
+			this.controlId = controlId;
+			this.version = version;
+		}
+
+		public char getFieldSeparator() {
+			return fieldSeparator;
+		}
+
+		public char getComponentSeparator() {
+			return componentSeparator;
+		}
+
+		public char getEscapeCharacter() {
+			return escapeCharacter;
+		}
+
+		/**
+		 * Index just past the MSH segment (at its segment terminator).
+		 */
+		public int getEnd() {
+			return end;
+		}
+
+		/**
+		 * MSH-4-1
+		 */
+		public String getSendingFacility() {
+			return sendingFacility;
+		}
+
+		/**
+		 * MSH-9-1
+		 */
+		public String getMessageType() {
+			return messageType;
+		}
+
+		/**
+		 * MSH-9-2
+		 */
+		public String getTriggerEvent() {
+			return triggerEvent;
+		}
+
+		/**
+		 * MSH-9-3
+		 */
+		public String getMessageStructure() {
+			return messageStructure;
+		}
+
+		/**
+		 * MSH-10
+		 */
+		public String getControlId() {
+			return controlId;
+		}
+
+		/**
+		 * MSH-12-1
+		 */
+		public String getVersion() {
+			return version;
+		}
+	}
+
+	private MshScanner() {
+	}
+
+	/**
+	 * Scans the MSH segment. Returns null if the message does not start with a
+	 * pipe encoded MSH (e.g. XML encoding).
+	 */
+	public static Header scan(CharSequence raw) {
+		int start = 0;
+		int length = raw.length();
+		while (start < length && Character.isWhitespace(raw.charAt(start))) {
+			start++;
+		}
+		if (length - start < 8 || raw.charAt(start) != 'M' || raw.charAt(start + 1) != 'S'
+				|| raw.charAt(start + 2) != 'H') {
+			return null;
+		}
+
+		char fs = raw.charAt(start + 3);
+		char cs = raw.charAt(start + 4);
+		char esc = raw.charAt(start + 6);
+		int end = segmentEnd(raw, start);
+
+		// MSH-n is the (n-1)th field after the segment name, because MSH-1 is the
+		// field separator itself.
+		String sendingFacility = null;
+		String messageType = null;
+		String triggerEvent = null;
+		String messageStructure = null;
+		String controlId = null;
+		String version = null;
+
+		int field = 0;
+		int fieldStart = start + 4;
+		for (int i = fieldStart; i <= end; i++) {
+			if (i < end && raw.charAt(i) != fs) {
+				continue;
+			}
+
+			field++;
+			if (field == 3) {
+				sendingFacility = component(raw, fieldStart, i, cs, 0);
+			} else if (field == 8) {
+				messageType = component(raw, fieldStart, i, cs, 0);
+				triggerEvent = component(raw, fieldStart, i, cs, 1);
+				messageStructure = component(raw, fieldStart, i, cs, 2);
+			} else if (field == 9) {
+				controlId = value(raw, fieldStart, i);
+			} else if (field == 11) {
+				version = component(raw, fieldStart, i, cs, 0);
+				break;
+			}
+			fieldStart = i + 1;
+		}
+
+		return new Header(fs, cs, esc, end, sendingFacility, messageType, triggerEvent, messageStructure, controlId,
+				version);
+	}
+
+	/**
+	 * OBX-3-1 of every OBX segment in the message. Codes holding the escape
+	 * character are returned as they are, so callers that compare them must
+	 * treat them as unknown.
+	 */
+	public static Set<String> observationCodes(CharSequence raw, Header header) {
+		Set<String> codes = new HashSet<String>();
+		char fs = header.getFieldSeparator();
+		int length = raw.length();
+
+		int segmentStart = nextSegment(raw, header.getEnd());
+		while (segmentStart < length) {
+			int end = segmentEnd(raw, segmentStart);
+			if (end - segmentStart > 4 && raw.charAt(segmentStart) == 'O' && raw.charAt(segmentStart + 1) == 'B'
+					&& raw.charAt(segmentStart + 2) == 'X' && raw.charAt(segmentStart + 3) == fs) {
+				// OBX-n is the nth field after the segment name.
+				int field = 0;
+				int fieldStart = segmentStart + 4;
+				for (int i = fieldStart; i <= end; i++) {
+					if (i < end && raw.charAt(i) != fs) {
+						continue;
+					}
+					field++;
+					if (field == 3) {
+						String code = component(raw, fieldStart, i, header.getComponentSeparator(), 0);
+						if (code != null) {
+							codes.add(code);
+						}
+						break;
+					}
+					fieldStart = i + 1;
+				}
+			}
+			segmentStart = nextSegment(raw, end);
+		}
+
+		return codes;
+	}
+
+	private static int segmentEnd(CharSequence raw, int from) {
+		int length = raw.length();
+		for (int i = from; i < length; i++) {
+			char c = raw.charAt(i);
+			if (c == '\r' || c == '\n') {
+				return i;
+			}
+		}
+		return length;
+	}
+
+	private static int nextSegment(CharSequence raw, int from) {
+		int length = raw.length();
+		int i = from;
+		while (i < length && (raw.charAt(i) == '\r' || raw.charAt(i) == '\n')) {
+			i++;
+		}
+		return i;
+	}
+
+	/*
+	 * The component'th component of the field in [from, to), or null if it is
+	 * empty or absent.
+	 */
+	private static String component(CharSequence raw, int from, int to, char cs, int component) {
+		int c = 0;
+		int componentStart = from;
+		for (int i = from; i <= to; i++) {
+			if (i < to && raw.charAt(i) != cs) {
+				continue;
+			}
+			if (c == component) {
+				return value(raw, componentStart, i);
+			}
+			c++;
+			componentStart = i + 1;
+		}
+		return null;
+	}
+
+	private static String value(CharSequence raw, int from, int to) {
+		return from >= to ? null : raw.subSequence(from, to).toString();
+	}
+}
@@ -0,0 +1,243 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+
+/*
+ * OAuth2 client-credentials tokens for the FHIR controller.
+ *
+ * The token is fetched from tokenUrl (client id and secret as HTTP Basic,
+ * grant_type=client_credentials) on a background thread and kept in an
+ * AtomicReference. Registered as the FHIR client's interceptor, it adds the
+ * current token to every request without locking and without ever waiting
+ * for a fetch.
+ *
+ * The next fetch is scheduled when 80% of the token's lifetime has passed,
+ * and no later than refreshSkewSeconds before it expires. A failed fetch is
+ * retried with backoff (1s doubling up to 60s) while the old token is still
+ * used. A 401 from the controller schedules a fetch right away.
+ */
+public class OAuth2TokenProvider implements IClientInterceptor {
+	static final long MIN_RETRY_MILLIS = 1000L;
+	static final long MAX_RETRY_MILLIS = 60 * 1000L;
+
+	private final String tokenUrl;
+	private final String clientCredentials;
+	private final String scope;
+	private final long refreshSkewMillis;
+	private final ReceiverMetrics metrics;
+
+	private final AtomicReference<Token> token = new AtomicReference<Token>();
+	private final AtomicBoolean refreshRequested = new AtomicBoolean(false);
+	private final ScheduledExecutorService refresher;
+	private final CloseableHttpClient httpClient;
+	// Only used on the refresher thread
+	private ScheduledFuture<?> nextRefresh = null;
+	private long retryMillis = MIN_RETRY_MILLIS;
+	private long lastFetchMillis = 0L;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(OAuth2TokenProvider.class.getName());
+
+	public static class Token {
+		private final String authorization;
+		private final long expiresAtMillis;
+
+		Token(String tokenType, String accessToken, long expiresAtMillis) {
+			// RFC 6750: the type is case-insensitive, most servers only take "Bearer".
+			String type = tokenType == null || tokenType.equalsIgnoreCase("bearer") ? "Bearer" : tokenType;
+			this.authorization = type + " " + accessToken;
+			this.expiresAtMillis = expiresAtMillis;
+		}
+
+		public String getAuthorization() {
+			return authorization;
+		}
+
+		public long getExpiresAtMillis() {
+			return expiresAtMillis;
+		}
+	}
+
+	/*
+	 * clientCredentials: <client id>:<client secret>
+	 * scope: may be null or empty
+	 */
+	public OAuth2TokenProvider(String tokenUrl, String clientCredentials, String scope, int refreshSkewSeconds,
+			ReceiverMetrics metrics) {
+		this.tokenUrl = tokenUrl;
+		this.clientCredentials = clientCredentials;
+		this.scope = scope;
+		this.refreshSkewMillis = refreshSkewSeconds * 1000L;
+		this.metrics = metrics;
+
+		httpClient = HttpClients.custom()
+				.setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(10000).setSocketTimeout(30000)
+						.setConnectionRequestTimeout(10000).build())
+				.build();
+
+		refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "elr-oauth-refresh");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Fetches the first token. A failure is logged and retried in the
+	 * background, it does not stop the receiver from starting.
+	 */
+	public void start() {
+		try {
+			refresher.submit(this::refresh).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LOGGER.error("OAuth2 token refresh failed: " + e.getCause());
+		}
+	}
+
+	/**
+	 * The current token, or null if none could be fetched yet.
+	 */
+	public Token getToken() {
+		return token.get();
+	}
+
+	/**
+	 * Seconds until the current token expires. Negative once it has.
+	 */
+	public double getSecondsToExpiry() {
+		Token current = token.get();
+		return current == null ? 0 : (current.getExpiresAtMillis() - System.currentTimeMillis()) / 1000.0;
+	}
+
+	@Override
+	public void interceptRequest(IHttpRequest theRequest) {
+		Token current = token.get();
+		if (current != null) {
+			theRequest.addHeader(Constants.HEADER_AUTHORIZATION, current.getAuthorization());
+		}
+	}
+
+	@Override
+	public void interceptResponse(IHttpResponse theResponse) throws IOException {
+		if (theResponse.getStatus() == 401 && refreshRequested.compareAndSet(false, true)) {
+			// Revoked, or the clocks disagree. Do not wait for the schedule.
+			refresher.execute(this::refreshNow);
+		}
+	}
+
+	private void refreshNow() {
+		refreshRequested.set(false);
+		// Every sender gets the 401 at once. One fetch is enough.
+		if (System.currentTimeMillis() - lastFetchMillis < MIN_RETRY_MILLIS) {
+			return;
+		}
+		if (nextRefresh != null) {
+			nextRefresh.cancel(false);
+		}
+		refresh();
+	}
+
+	/*
+	 * Runs on the refresher thread and schedules the next run, so there is
+	 * only ever one refresh pending.
+	 */
+	private void refresh() {
+		lastFetchMillis = System.currentTimeMillis();
+		long nextMillis;
+		try {
+			Token fetched = fetch();
+			token.set(fetched);
+			metrics.tokenRefreshed.increment();
+			retryMillis = MIN_RETRY_MILLIS;
+
+			long lifetime = fetched.getExpiresAtMillis() - System.currentTimeMillis();
+			nextMillis = Math.max(0L, Math.min(lifetime * 4 / 5, lifetime - refreshSkewMillis));
+			LOGGER.debug("OAuth2 token refreshed, expires in " + lifetime / 1000 + "s, next refresh in "
+					+ nextMillis / 1000 + "s");
+		} catch (Exception e) {
+			metrics.tokenRefreshFailed.increment();
+			nextMillis = retryMillis;
+			retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+			LOGGER.error("OAuth2 token request to " + tokenUrl + " failed: " + e.getMessage() + ". Retrying in "
+					+ nextMillis / 1000 + "s");
+		}
+
+		if (!refresher.isShutdown()) {
+			nextRefresh = refresher.schedule(this::refresh, Math.max(nextMillis, MIN_RETRY_MILLIS),
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private Token fetch() throws IOException {
+		HttpPost post = new HttpPost(tokenUrl);
+		post.setHeader(Constants.HEADER_AUTHORIZATION, "Basic "
+				+ Base64.getEncoder().encodeToString(clientCredentials.getBytes(StandardCharsets.UTF_8)));
+
+		List<NameValuePair> form = new ArrayList<NameValuePair>();
+		form.add(new BasicNameValuePair("grant_type", "client_credentials"));
+		if (scope != null && !scope.isBlank()) {
+			form.add(new BasicNameValuePair("scope", scope));
+		}
+		post.setEntity(new UrlEncodedFormEntity(form, StandardCharsets.UTF_8));
+
+		long requestedAt = System.currentTimeMillis();
+		try (CloseableHttpResponse response = httpClient.execute(post)) {
+			String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+			int status = response.getStatusLine().getStatusCode();
+			if (status != 200) {
+				throw new IOException("HTTP " + status + " " + body);
+			}
+
+			try {
+				JSONObject json = new JSONObject(body);
+				// expires_in is optional. Without it, refresh at least every 5 minutes.
+				long expiresIn = json.optLong("expires_in", 300L);
+				return new Token(json.optString("token_type", "Bearer"), json.getString("access_token"),
+						requestedAt + expiresIn * 1000L);
+			} catch (JSONException e) {
+				throw new IOException("Unexpected token response: " + e.getMessage());
+			}
+		}
+	}
+
+	public void shutdown() {
+		refresher.shutdownNow();
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			LOGGER.error("Failed to close the OAuth2 HTTP client: " + e.getMessage());
+		}
+	}
+}
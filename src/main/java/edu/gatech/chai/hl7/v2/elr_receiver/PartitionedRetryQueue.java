@@ -0,0 +1,187 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * The retry queue split into partitions, each a RetryQueue with its own file,
+ * so that the partitions can be drained in parallel.
+ *
+ * A bundle goes to the partition of its key (the patient identifier). All
+ * bundles of a patient are in one partition, in the order they failed, and
+ * are sent in that order (see RetryQueue). Only queued bundles are ordered:
+ * a new message of the patient is sent right away, even while older bundles
+ * of the patient wait in the queue.
+ *
+ * Files: partition 0 is <fileName>, the file of the single queue used before,
+ * and partition i is <fileName>-<i>. Each has its own .dead file. The number
+ * of partitions is kept in <fileName>.partitions. With other partitions,
+ * the bundles of a patient would be split between two partitions and sent
+ * out of order, so the number can only change while no bundle is waiting.
+ */
+public class PartitionedRetryQueue {
+	static final String PARTITIONS_SUFFIX = ".partitions";
+
+	private final List<RetryQueue> partitions;
+	private final int activePartitions;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(PartitionedRetryQueue.class.getName());
+
+	public PartitionedRetryQueue(String fileName, int partitionCount, int maxAttempts, long baseBackoffMillis,
+			long maxBackoffMillis) throws IOException {
+		this.activePartitions = Math.max(1, partitionCount);
+
+		File countFile = new File(fileName + PARTITIONS_SUFFIX);
+		int recorded = recordedPartitions(countFile, fileName);
+		List<RetryQueue> queues = new ArrayList<RetryQueue>();
+		int waiting = 0;
+		for (int i = 0; i < recorded; i++) {
+			RetryQueue queue = openPartition(fileName, i, maxAttempts, baseBackoffMillis, maxBackoffMillis);
+			queues.add(queue);
+			waiting += queue.size();
+		}
+
+		if (recorded != activePartitions) {
+			if (waiting > 0) {
+				for (RetryQueue queue : queues) {
+					queue.close();
+				}
+				throw new IOException("The retry queue " + fileName + " has " + recorded + " partition(s) and "
+						+ waiting + " bundle(s) waiting. Changing it to " + activePartitions
+						+ " would send bundles of a patient out of order. Keep queuePartitions=" + recorded
+						+ " until the queue is empty.");
+			}
+
+			// Left over partitions are empty. Their dead-letter files stay.
+			while (queues.size() > activePartitions) {
+				queues.remove(queues.size() - 1).close();
+			}
+			for (int i = queues.size(); i < activePartitions; i++) {
+				queues.add(openPartition(fileName, i, maxAttempts, baseBackoffMillis, maxBackoffMillis));
+			}
+			LOGGER.info("Retry queue " + fileName + " split into " + activePartitions + " partition(s), was "
+					+ recorded);
+		}
+		if (recorded != activePartitions || !countFile.exists()) {
+			writePartitions(countFile, activePartitions);
+		}
+		this.partitions = Collections.unmodifiableList(queues);
+	}
+
+	private static RetryQueue openPartition(String fileName, int partition, int maxAttempts, long baseBackoffMillis,
+			long maxBackoffMillis) throws IOException {
+		String partitionFileName = partitionFileName(fileName, partition);
+		RetryQueue queue = new RetryQueue(partitionFileName, partitionFileName + ".dead", maxAttempts,
+				baseBackoffMillis, maxBackoffMillis);
+		if (queue.size() > 0 || queue.deadLetterSize() > 0) {
+			LOGGER.info("Retry queue partition " + partition + " (" + partitionFileName + "): " + queue.size()
+					+ " bundles waiting, " + queue.deadLetterSize() + " dead");
+		}
+		return queue;
+	}
+
+	static String partitionFileName(String fileName, int partition) {
+		return partition == 0 ? fileName : fileName + "-" + partition;
+	}
+
+	/*
+	 * The number of partitions in the count file. Queues from before it
+	 * existed: 1 + the highest partition number found on disk for fileName.
+	 */
+	private static int recordedPartitions(File countFile, String fileName) throws IOException {
+		if (!countFile.exists()) {
+			return existingPartitions(fileName);
+		}
+
+		String text = Files.readString(countFile.toPath(), StandardCharsets.UTF_8).trim();
+		try {
+			return Math.max(1, Integer.parseInt(text));
+		} catch (NumberFormatException e) {
+			throw new IOException("Not a number of partitions in " + countFile + ": " + text);
+		}
+	}
+
+	private static void writePartitions(File countFile, int count) throws IOException {
+		File tmp = new File(countFile.getPath() + ".tmp");
+		Files.writeString(tmp.toPath(), count + "\n", StandardCharsets.UTF_8);
+		Files.move(tmp.toPath(), countFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * 1 + the highest partition number found on disk for fileName.
+	 */
+	private static int existingPartitions(String fileName) {
+		File file = new File(fileName).getAbsoluteFile();
+		String prefix = file.getName() + "-";
+		String[] names = file.getParentFile() == null ? null : file.getParentFile().list();
+		if (names == null) {
+			return 1;
+		}
+
+		int count = 1;
+		for (String name : names) {
+			if (!name.startsWith(prefix)) {
+				continue;
+			}
+			try {
+				count = Math.max(count, Integer.parseInt(name.substring(prefix.length())) + 1);
+			} catch (NumberFormatException e) {
+				// .dead files and unrelated names
+			}
+		}
+		return count;
+	}
+
+	public int partitionFor(String key) {
+		return key == null ? 0 : Math.floorMod(key.hashCode(), activePartitions);
+	}
+
+	/**
+	 * Adds a payload whose first delivery attempt already failed to the
+	 * partition of the key.
+	 */
+	public void add(String key, byte[] payload) throws IOException {
+		partitions.get(partitionFor(key)).add(key, payload);
+	}
+
+	public int getPartitionCount() {
+		return partitions.size();
+	}
+
+	public RetryQueue getPartition(int partition) {
+		return partitions.get(partition);
+	}
+
+	public int size() {
+		int size = 0;
+		for (RetryQueue queue : partitions) {
+			size += queue.size();
+		}
+		return size;
+	}
+
+	public int deadLetterSize() {
+		int size = 0;
+		for (RetryQueue queue : partitions) {
+			size += queue.deadLetterSize();
+		}
+		return size;
+	}
+
+	public void close() throws IOException {
+		for (RetryQueue queue : partitions) {
+			queue.close();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.model.GenericMessage;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.GenericParser;
+import ca.uhn.hl7v2.parser.ModelClassFactory;
+
+/*
+ * Parser for the listeners that looks at the raw message before building the
+ * HAPI model.
+ *
+ * With MshScanner it reads the version and MSH-9 of the message, and the OBX-3
+ * identifiers when the filters need them. Only the MSH segment is parsed when
+ *   - the message is not a supported ORU^R01. canProcess() rejects it from
+ *     the MSH alone, as it would have after a full parse.
+ *   - none of its OBX-3 identifiers can satisfy the filters. The MSH is
+ *     parsed into a GenericMessage, which processMessage() acknowledges as
+ *     filtered without looking further.
+ *   - the message is larger than maxMessageSize. processMessage() rejects it
+ *     without building the model of a message that may be megabytes.
+ * Everything else, including XML encoded messages, gets the full parse.
+ */
+public class PreScreeningParser extends GenericParser {
+	private final HL7v2ReceiverFHIRApplication<?> app;
+	private final Supplier<V2FilterSet> filters;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(PreScreeningParser.class.getName());
+
+	public PreScreeningParser(HapiContext context, HL7v2ReceiverFHIRApplication<?> app) {
+		this(context, app, app::getV2FilterSet);
+	}
+
+	/*
+	 * filters: the filters the messages of this parser are checked against
+	 */
+	public PreScreeningParser(HapiContext context, HL7v2ReceiverFHIRApplication<?> app,
+			Supplier<V2FilterSet> filters) {
+		super(context);
+		this.app = app;
+		this.filters = filters;
+	}
+
+	@Override
+	public Message parse(String message) throws HL7Exception {
+		long start = System.nanoTime();
+		MshScanner.Header header;
+		boolean supported;
+		boolean tooLarge = false;
+		boolean mayAccept = true;
+		try {
+			header = MshScanner.scan(message);
+			if (header == null) {
+				return super.parse(message);
+			}
+
+			supported = app.isSupported(header);
+			tooLarge = app.isTooLarge(message.length());
+			if (supported && !tooLarge) {
+				V2FilterSet myFilters = filters.get();
+				if (myFilters != null && !myFilters.isAllowAll()) {
+					Set<String> codes = MshScanner.observationCodes(message, header);
+					mayAccept = hasEscapedCode(codes, header.getEscapeCharacter()) || myFilters.mayAccept(codes);
+				}
+			}
+		} finally {
+			ReceiverMetrics.record(app.getMetrics().prescanTimer, start);
+		}
+
+		String msh = message.substring(0, header.getEnd());
+		if (!supported) {
+			return super.parse(msh);
+		}
+		if (tooLarge) {
+			LOGGER.debug("Message " + header.getControlId() + " is over maxMessageSize. Parsing MSH only.");
+			return parseHeaderOnly(msh, header.getVersion(), message);
+		}
+		if (!mayAccept) {
+			LOGGER.debug("No OBX-3 in message " + header.getControlId() + " can satisfy the filters. Parsing MSH only.");
+			return parseHeaderOnly(msh, header.getVersion(), message);
+		}
+
+		return super.parse(message);
+	}
+
+	private Message parseHeaderOnly(String msh, String version, String message) throws HL7Exception {
+		Message headerOnly;
+		try {
+			Class<? extends Message> messageClass = GenericMessage.getGenericMessageClass(version);
+			headerOnly = messageClass.getConstructor(ModelClassFactory.class).newInstance(getFactory());
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			LOGGER.warn("No generic message for v" + version + ". Parsing the whole message. " + e.getMessage());
+			return super.parse(message);
+		}
+
+		headerOnly.setParser(this);
+		parse(headerOnly, msh);
+		return headerOnly;
+	}
+
+	// An escaped identifier may match a filter once decoded, so the message
+	// can't be ruled out from the raw text.
+	private static boolean hasEscapedCode(Set<String> codes, char escapeCharacter) {
+		for (String code : codes) {
+			if (code.indexOf(escapeCharacter) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
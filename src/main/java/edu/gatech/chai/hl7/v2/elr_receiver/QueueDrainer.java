@@ -0,0 +1,266 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Drains one RetryQueue (a partition of the PartitionedRetryQueue).
+ *
+ * Each pass leases up to batchSize due entries from the queue and sends them with
+ * up to maxParallelism concurrent requests. The engine adapts to how the FHIR
+ * controller is doing:
+ *  - all sent and more waiting: the next pass starts right away and one more
+ *    sender is allowed (additive increase).
+ *  - some failed: the number of senders is halved and the next pass waits
+ *    twice as long as the last one, up to maxBackoffSeconds.
+ *  - queue empty: check again after idleSeconds.
+ * Bundles the controller rejects (422) go to the dead-letter file without
+ * another attempt.
+ * While the circuit to the controller is open, nothing is leased. Entries
+ * refused by the circuit during a pass are put back without counting an
+ * attempt. When the circuit closes, the drainer starts right away with one
+ * sender and adds one per pass, so the backlog does not hit the controller
+ * all at once.
+ */
+public class QueueDrainer implements Runnable {
+	private HL7v2ReceiverApplication<?> app = null;
+	private RetryQueue queue = null;
+	private int partition;
+	private ScheduledExecutorService scheduler = null;
+	private ExecutorService senders = null;
+	// Only used on the scheduler thread
+	private ScheduledFuture<?> nextPass = null;
+	private int batchSize;
+	private int maxParallelism;
+	private long idleMillis;
+	private long maxBackoffMillis;
+
+	private volatile int parallelism = 1;
+	private volatile long delayMillis = 0L;
+	private volatile long drainedTotal = 0L;
+	private volatile long failedTotal = 0L;
+	private volatile double drainRate = 0.0;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(QueueDrainer.class.getName());
+
+	public QueueDrainer(HL7v2ReceiverApplication<?> app, RetryQueue queue, int partition, int batchSize,
+			int maxParallelism, int idleSeconds, int maxBackoffSeconds) {
+		this.app = app;
+		this.queue = queue;
+		this.partition = partition;
+		this.batchSize = Math.max(1, batchSize);
+		this.maxParallelism = Math.max(1, maxParallelism);
+		this.idleMillis = idleSeconds * 1000L;
+		this.maxBackoffMillis = maxBackoffSeconds * 1000L;
+		this.parallelism = this.maxParallelism;
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "elr-queue-drainer-" + partition);
+			t.setDaemon(true);
+			return t;
+		});
+
+		this.senders = Executors.newFixedThreadPool(this.maxParallelism,
+				ThreadModel.newThreadFactory(app.getThreadModel(), "elr-queue-sender-" + partition + "-"));
+	}
+
+	public void start(long initialDelayMillis) {
+		scheduler.execute(() -> nextPass = scheduler.schedule(this, initialDelayMillis, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Starts the next pass now with a single sender. Called when the circuit
+	 * to the controller closes.
+	 */
+	public void resume() {
+		if (scheduler.isShutdown()) {
+			return;
+		}
+
+		scheduler.execute(() -> {
+			parallelism = 1;
+			delayMillis = 0L;
+			// Cancelled unless a pass is running. That one reschedules itself.
+			if (nextPass != null && nextPass.cancel(false)) {
+				nextPass = scheduler.schedule(this, 0L, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+		senders.shutdown();
+	}
+
+	@Override
+	public void run() {
+		long nextDelay = idleMillis;
+		try {
+			nextDelay = drainOnce();
+		} catch (Exception e) {
+			LOGGER.error("Queue drain pass failed: " + e.getMessage());
+		} finally {
+			if (!scheduler.isShutdown()) {
+				nextPass = scheduler.schedule(this, nextDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Runs one drain pass and returns how long to wait before the next one.
+	 */
+	public long drainOnce() throws Exception {
+		long start = System.nanoTime();
+		try {
+			return drain();
+		} finally {
+			ReceiverMetrics.record(app.getMetrics().drainTimer, start);
+		}
+	}
+
+	private long drain() throws Exception {
+		CircuitBreaker breaker = app.getCircuitBreaker();
+		if (breaker != null && breaker.getOpenMillisRemaining() > 0) {
+			return breaker.getOpenMillisRemaining();
+		}
+
+		RetryQueue.Lease lease = queue.lease(batchSize);
+		if (lease == null) {
+			delayMillis = 0L;
+			return idleMillis;
+		}
+
+		List<RetryQueue.Entry> due = lease.getDueEntries();
+		if (due.isEmpty()) {
+			// Everything is backing off.
+			queue.release(lease);
+			long wait = lease.getEarliestNextAttemptAt() - System.currentTimeMillis();
+			return Math.max(1000L, Math.min(idleMillis, wait));
+		}
+
+		long startTime = System.nanoTime();
+		List<RetryQueue.Entry> succeeded = new ArrayList<RetryQueue.Entry>();
+		List<RetryQueue.Entry> skipped = new ArrayList<RetryQueue.Entry>();
+		List<RetryQueue.Entry> rejected = new ArrayList<RetryQueue.Entry>();
+		try {
+			// Only let the current parallelism worth of sends run at the same time.
+			int inFlight = parallelism;
+			for (int i = 0; i < due.size(); i += inFlight) {
+				if (!skipped.isEmpty() || Thread.currentThread().isInterrupted()) {
+					// The circuit opened, or shutting down. Leave the rest for later.
+					skipped.addAll(due.subList(i, due.size()));
+					break;
+				}
+
+				List<Future<Boolean>> round = new ArrayList<Future<Boolean>>(inFlight);
+				for (int j = i; j < Math.min(i + inFlight, due.size()); j++) {
+					final byte[] payload = due.get(j).getPayload();
+					round.add(senders.submit(() -> app.sendData(payload)));
+				}
+				// Every send of the round is waited for, so none is still running
+				// when its entry is committed.
+				for (int j = 0; j < round.size(); j++) {
+					try {
+						if (Boolean.TRUE.equals(await(round.get(j)))) {
+							succeeded.add(due.get(i + j));
+						}
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof RetryQueue.RejectedException) {
+							rejected.add(due.get(i + j));
+						} else if (e.getCause() instanceof CircuitBreaker.OpenException) {
+							skipped.add(due.get(i + j));
+						} else {
+							// Counted as a failed attempt.
+							LOGGER.error("Sending a queued entry failed: " + e.getCause());
+						}
+					}
+				}
+			}
+		} finally {
+			queue.commit(lease, succeeded, skipped, rejected);
+		}
+
+		int sent = succeeded.size();
+		int failed = due.size() - sent - skipped.size() - rejected.size();
+
+		double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+		drainedTotal += sent;
+		failedTotal += failed;
+		drainRate = seconds > 0 ? sent / seconds : sent;
+
+		if (!skipped.isEmpty()) {
+			// resume() picks up again when the circuit closes.
+			parallelism = 1;
+			delayMillis = Math.max(1000L, breaker == null ? 0L : breaker.getOpenMillisRemaining());
+		} else if (failed == 0) {
+			// Rejected ones say nothing about the controller being in trouble.
+			parallelism = Math.min(maxParallelism, parallelism + 1);
+			delayMillis = 0L;
+		} else {
+			parallelism = Math.max(1, parallelism / 2);
+			delayMillis = Math.min(maxBackoffMillis, Math.max(1000L, delayMillis * 2));
+		}
+
+		LOGGER.info(String.format(
+				"Queue drain [partition %d]: sent=%d failed=%d rejected=%d skipped=%d depth=%d rate=%.1f/s parallelism=%d next pass in %d ms",
+				partition, sent, failed, rejected.size(), skipped.size(), getQueueDepth(), drainRate, parallelism, delayMillis));
+
+		return delayMillis;
+	}
+
+	/*
+	 * Waits for the send even when interrupted (shutdown), then interrupts
+	 * again. The send itself is bounded by the FHIR client timeouts.
+	 */
+	private static <T> T await(Future<T> future) throws ExecutionException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public double getDrainRate() {
+		return drainRate;
+	}
+
+	public long getDrainedTotal() {
+		return drainedTotal;
+	}
+
+	public long getFailedTotal() {
+		return failedTotal;
+	}
+
+	public int getPartition() {
+		return partition;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+}
@@ -0,0 +1,92 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squareup.tape2.QueueFile;
+
+/*
+ * Inbound journal on a tape QueueFile.
+ *
+ * Messages are appended (and synced to disk by QueueFile, one write at a
+ * time) before the sender is ACKed. Delivery workers complete entries out of
+ * order, so the journal keeps track of completed sequence numbers and only
+ * removes the contiguous completed prefix from the head of the file. Whatever
+ * is left in the file after a crash is replayed on the next start.
+ */
+public class QueueFileJournal implements InboundJournal {
+	private QueueFile queueFile = null;
+	private long headSeq = 0L;
+	private long nextSeq = 0L;
+	private TreeSet<Long> completed = new TreeSet<Long>();
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(QueueFileJournal.class.getName());
+
+	public QueueFileJournal(String fileName) throws IOException {
+		queueFile = new QueueFile.Builder(new File(fileName)).build();
+		nextSeq = queueFile.size();
+	}
+
+	@Override
+	public synchronized List<Entry> pending() {
+		List<Entry> messages = new ArrayList<Entry>();
+		Iterator<byte[]> it = queueFile.iterator();
+		long seq = headSeq;
+		while (it.hasNext()) {
+			messages.add(new Entry(seq++, new String(it.next(), StandardCharsets.UTF_8)));
+		}
+
+		return messages;
+	}
+
+	@Override
+	public synchronized long append(String rawMessage) throws IOException {
+		queueFile.add(rawMessage.getBytes(StandardCharsets.UTF_8));
+		return nextSeq++;
+	}
+
+	@Override
+	public synchronized void complete(long seq) {
+		if (seq < headSeq) {
+			return;
+		}
+
+		completed.add(seq);
+
+		int count = 0;
+		while (completed.contains(headSeq + count)) {
+			count++;
+		}
+
+		if (count > 0) {
+			try {
+				queueFile.remove(count);
+			} catch (IOException e) {
+				// Leave them marked as completed. We will try again on the next completion.
+				LOGGER.error("Failed to remove completed entries from inbound journal: " + e.getMessage());
+				return;
+			}
+			completed.headSet(headSeq + count).clear();
+			headSeq += count;
+		}
+	}
+
+	@Override
+	public synchronized int size() {
+		return queueFile.size();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		queueFile.close();
+	}
+}
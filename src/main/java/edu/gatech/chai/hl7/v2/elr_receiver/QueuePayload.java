@@ -0,0 +1,102 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Payload of a retry queue entry: the bundle as minified JSON, optionally
+ * Deflate compressed.
+ *
+ * Format: [version=2][encoding][data]
+ *   encoding 0: UTF-8 JSON
+ *   encoding 1: UTF-8 JSON, Deflate (zlib) compressed
+ *   plus LARGE (0x10) if the bundle came from a large message, so it is
+ *   streamed again when sent from the queue. The size of the payload says
+ *   nothing about that once it is compressed.
+ * Payloads written by older versions are pretty-printed JSON without a
+ * header. JSON never starts with byte 2, so both are read.
+ */
+public final class QueuePayload {
+	static final byte FORMAT_V2 = 2;
+	static final byte JSON = 0;
+	static final byte DEFLATE_JSON = 1;
+	static final byte LARGE = 0x10;
+	static final int HEADER_SIZE = 2;
+
+	/*
+	 * Writes the JSON of one resource.
+	 */
+	public interface JsonSource {
+		void writeTo(Writer writer) throws IOException;
+	}
+
+	private QueuePayload() {
+	}
+
+	public static byte[] encode(JsonSource json, boolean deflate) throws IOException {
+		return encode(json, deflate, false);
+	}
+
+	public static byte[] encode(JsonSource json, boolean deflate, boolean large) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+		bytes.write(FORMAT_V2);
+		bytes.write((deflate ? DEFLATE_JSON : JSON) | (large ? LARGE : 0));
+
+		// Speed over ratio. Bundle JSON is repetitive enough that the fastest
+		// level already shrinks it several times.
+		Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+		try {
+			OutputStream out = deflate ? new DeflaterOutputStream(bytes, deflater, 8192) : bytes;
+			try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+				json.writeTo(writer);
+			}
+		} finally {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reader over the JSON of a payload in any of the formats. The caller closes
+	 * it.
+	 */
+	public static Reader open(byte[] payload) throws IOException {
+		if (payload.length < HEADER_SIZE || payload[0] != FORMAT_V2) {
+			// Written before payloads had a header.
+			return new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8);
+		}
+
+		InputStream in = new ByteArrayInputStream(payload, HEADER_SIZE, payload.length - HEADER_SIZE);
+		int encoding = payload[1] & ~LARGE;
+		if (encoding == DEFLATE_JSON) {
+			// Closing the stream releases its Inflater.
+			in = new InflaterInputStream(in);
+		} else if (encoding != JSON) {
+			throw new IOException("Unknown queue payload encoding " + payload[1]);
+		}
+
+		return new InputStreamReader(in, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Whether the payload was written for a large message. Payloads of older
+	 * versions are not.
+	 */
+	public static boolean isLarge(byte[] payload) {
+		return payload.length >= HEADER_SIZE && payload[0] == FORMAT_V2 && (payload[1] & LARGE) != 0;
+	}
+}
@@ -0,0 +1,315 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+/*
+ * Metrics for the receive path, served in the Prometheus text format.
+ *
+ * Stage timers (elr_stage_seconds{stage=...}):
+ *   prescan (MSH and OBX-3 scan of the raw message), processMessage, canProcess, filter, convert (executeParser), send
+ *   (one $registry-control call), drain (one retry queue pass), journal (inbound journal append, including the
+ *   wait for the group commit)
+ * Message counters (elr_messages_total{outcome=...}):
+ *   accepted, filtered, rejected (canProcess said no), error (NAK sent),
+ *   queued (put on the retry queue), duplicate (resend answered with the original ACK), too_large (over
+ *   maxMessageSize, AR sent)
+ * Gauges: retry and dead-letter queue size (and retry queue size by partition), active connections, delivery
+ * workers in flight and capacity, FHIR HTTP connections leased and pending,
+ * $registry-control calls in flight, archive queue size.
+ * Archive (saveToFile=YES): elr_archive_records_total{outcome=written|dropped},
+ *   elr_archive_full_total (archive() found the queue full) and elr_archive_wait_seconds (time blocked for
+ *   room with archiveOnFull=BLOCK).
+ * Batch files (transport=FILE): elr_batch_files_total (files finished) and
+ *   elr_batch_messages_total{outcome=accepted|failed} (failed ones go to the errors file).
+ * OAuth2 (authTokenUrl): elr_auth_token_refreshes_total{outcome=ok|failed} and elr_auth_token_expiry_seconds.
+ * FHIR controller circuit breaker: elr_fhir_breaker_state (0 closed, 1 open, 2 half-open),
+ *   elr_fhir_breaker_opened_total, elr_fhir_breaker_rejected_total (calls refused while open) and
+ *   elr_fhir_calls_limit (current AIMD limit on $registry-control calls in flight).
+ * Inbound journal (deliveryMode=ASYNC): elr_journal_dead_lettered_total (messages moved to
+ *   <inboundFileName>.dead).
+ * Readiness: elr_ready, and GET /ready on the metrics port (200 once ready, 503 before).
+ *
+ * Without a registry (new ReceiverMetrics()) every meter is a no-op.
+ */
+public class ReceiverMetrics {
+	public static final String STAGE_TIMER = "elr.stage";
+	public static final String MESSAGE_COUNTER = "elr.messages";
+
+	private final MeterRegistry registry;
+	private final AtomicInteger activeConnections = new AtomicInteger(0);
+	private HttpServer server = null;
+	private volatile boolean ready = false;
+
+	final Timer prescanTimer;
+	final Timer processMessageTimer;
+	final Timer canProcessTimer;
+	final Timer filterTimer;
+	final Timer convertTimer;
+	final Timer sendTimer;
+	final Timer drainTimer;
+	final Timer journalTimer;
+
+	final Counter accepted;
+	final Counter filtered;
+	final Counter rejected;
+	final Counter errors;
+	final Counter queued;
+	final Counter duplicates;
+	final Counter tooLarge;
+
+	final Counter archived;
+	final Counter archiveDropped;
+	final Counter archiveFull;
+	final Timer archiveWaitTimer;
+
+	final Counter tokenRefreshed;
+	final Counter tokenRefreshFailed;
+
+	final Counter batchFiles;
+	final Counter batchMessages;
+	final Counter batchFailed;
+
+	final Counter breakerOpened;
+	final Counter breakerRejected;
+
+	final Counter journalDeadLettered;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(ReceiverMetrics.class.getName());
+
+	public ReceiverMetrics() {
+		this(new CompositeMeterRegistry());
+	}
+
+	public ReceiverMetrics(MeterRegistry registry) {
+		this.registry = registry;
+
+		prescanTimer = stageTimer("prescan");
+		processMessageTimer = stageTimer("processMessage");
+		canProcessTimer = stageTimer("canProcess");
+		filterTimer = stageTimer("filter");
+		convertTimer = stageTimer("convert");
+		sendTimer = stageTimer("send");
+		drainTimer = stageTimer("drain");
+		journalTimer = stageTimer("journal");
+
+		accepted = messageCounter("accepted");
+		filtered = messageCounter("filtered");
+		rejected = messageCounter("rejected");
+		errors = messageCounter("error");
+		queued = messageCounter("queued");
+		duplicates = messageCounter("duplicate");
+		tooLarge = messageCounter("too_large");
+
+		archived = Counter.builder("elr.archive.records").tag("outcome", "written")
+				.description("Records written to the archive, or dropped").register(registry);
+		archiveDropped = Counter.builder("elr.archive.records").tag("outcome", "dropped")
+				.description("Records written to the archive, or dropped").register(registry);
+		archiveFull = Counter.builder("elr.archive.full")
+				.description("Records that found the archive queue full").register(registry);
+		archiveWaitTimer = Timer.builder("elr.archive.wait")
+				.description("Time delivery threads waited for room in the archive queue").register(registry);
+
+		tokenRefreshed = Counter.builder("elr.auth.token.refreshes").tag("outcome", "ok")
+				.description("OAuth2 token requests to the token endpoint").register(registry);
+		tokenRefreshFailed = Counter.builder("elr.auth.token.refreshes").tag("outcome", "failed")
+				.description("OAuth2 token requests to the token endpoint").register(registry);
+
+		batchFiles = Counter.builder("elr.batch.files")
+				.description("Batch files read to the end").register(registry);
+		batchMessages = Counter.builder("elr.batch.messages").tag("outcome", "accepted")
+				.description("Messages read from batch files").register(registry);
+		batchFailed = Counter.builder("elr.batch.messages").tag("outcome", "failed")
+				.description("Messages read from batch files").register(registry);
+
+		breakerOpened = Counter.builder("elr.fhir.breaker.opened")
+				.description("Times the circuit to the FHIR controller opened").register(registry);
+		breakerRejected = Counter.builder("elr.fhir.breaker.rejected")
+				.description("$registry-control calls refused because the circuit was open").register(registry);
+
+		journalDeadLettered = Counter.builder("elr.journal.dead.lettered")
+				.description("Journaled messages that could neither be sent nor queued for retry").register(registry);
+
+		Gauge.builder("elr.connections.active", activeConnections, AtomicInteger::get)
+				.description("Open MLLP/HTTP connections from senders").register(registry);
+		Gauge.builder("elr.ready", this, m -> m.isReady() ? 1 : 0)
+				.description("1 once the receiver has warmed up and its listeners are started").register(registry);
+	}
+
+	/**
+	 * Prometheus registry with JVM metrics.
+	 */
+	public static ReceiverMetrics prometheus() {
+		PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+		new JvmMemoryMetrics().bindTo(registry);
+		new JvmGcMetrics().bindTo(registry);
+		new JvmThreadMetrics().bindTo(registry);
+		new ProcessorMetrics().bindTo(registry);
+		return new ReceiverMetrics(registry);
+	}
+
+	private Timer stageTimer(String stage) {
+		return Timer.builder(STAGE_TIMER).tag("stage", stage).publishPercentileHistogram()
+				.description("Time spent in a stage of the receive path").register(registry);
+	}
+
+	private Counter messageCounter(String outcome) {
+		return Counter.builder(MESSAGE_COUNTER).tag("outcome", outcome)
+				.description("Inbound messages by outcome").register(registry);
+	}
+
+	/**
+	 * Gauges that read the application's queues and pools when scraped.
+	 */
+	public void bind(HL7v2ReceiverApplication<?> app) {
+		Gauge.builder("elr.queue.size", app, a -> a.getRetryQueue() == null ? 0 : a.getRetryQueue().size())
+				.description("Bundles waiting in the retry queue").register(registry);
+		Gauge.builder("elr.queue.dead", app,
+				a -> a.getRetryQueue() == null ? 0 : a.getRetryQueue().deadLetterSize())
+				.description("Bundles that ran out of retry attempts").register(registry);
+		Gauge.builder("elr.delivery.inflight", app,
+				a -> a.getDeliveryPipeline() == null ? 0 : a.getDeliveryPipeline().getInFlight())
+				.description("Messages accepted for asynchronous delivery and not yet delivered").register(registry);
+		Gauge.builder("elr.delivery.capacity", app,
+				a -> a.getDeliveryPipeline() == null ? 0 : a.getDeliveryPipeline().getCapacity())
+				.description("Delivery workers plus queue slots. Senders block when inflight reaches it")
+				.register(registry);
+		Gauge.builder("elr.duplicates.size", app,
+				a -> a.getDuplicateSuppressor() == null ? 0 : a.getDuplicateSuppressor().size())
+				.description("Messages remembered for duplicate suppression").register(registry);
+		Gauge.builder("elr.drain.parallelism", app,
+				a -> a.getQueueDrainers().stream().mapToInt(QueueDrainer::getParallelism).sum())
+				.description("Current number of concurrent sends from the retry queue").register(registry);
+		Gauge.builder("elr.fhir.breaker.state", app,
+				a -> a.getCircuitBreaker() == null ? 0 : a.getCircuitBreaker().getState().ordinal())
+				.description("Circuit to the FHIR controller: 0 closed, 1 open, 2 half-open").register(registry);
+
+		if (app instanceof HL7v2ReceiverFHIRApplication) {
+			HL7v2ReceiverFHIRApplication<?> fhirApp = (HL7v2ReceiverFHIRApplication<?>) app;
+			Gauge.builder("elr.fhir.connections.leased", fhirApp, a -> a.getFhirClientPool().getLeasedConnections())
+					.description("HTTP connections to the FHIR controller in use").register(registry);
+			Gauge.builder("elr.fhir.connections.pending", fhirApp, a -> a.getFhirClientPool().getPendingRequests())
+					.description("Requests waiting for a connection to the FHIR controller").register(registry);
+			Gauge.builder("elr.fhir.calls.active", fhirApp, a -> a.getActiveFhirCalls())
+					.description("$registry-control calls in flight (when fhirMaxConcurrentCalls is set)")
+					.register(registry);
+			Gauge.builder("elr.fhir.calls.limit", fhirApp, a -> a.getFhirCallLimit())
+					.description("Current limit on $registry-control calls in flight (when fhirMaxConcurrentCalls is set)")
+					.register(registry);
+		}
+	}
+
+	public void bindArchive(ArchiveWriter archive) {
+		Gauge.builder("elr.archive.queue.size", archive, ArchiveWriter::getQueueSize)
+				.description("Records waiting to be written to the archive").register(registry);
+	}
+
+	public void bindTokenProvider(OAuth2TokenProvider tokenProvider) {
+		Gauge.builder("elr.auth.token.expiry", tokenProvider, OAuth2TokenProvider::getSecondsToExpiry)
+				.baseUnit("seconds").description("Time until the current OAuth2 token expires").register(registry);
+	}
+
+	/**
+	 * Depth of each retry queue partition (elr_queue_partition_size{partition=...}).
+	 */
+	public void bindQueue(PartitionedRetryQueue queue) {
+		for (int i = 0; i < queue.getPartitionCount(); i++) {
+			Gauge.builder("elr.queue.partition.size", queue.getPartition(i), RetryQueue::size)
+					.tag("partition", String.valueOf(i)).description("Bundles waiting in a retry queue partition")
+					.register(registry);
+		}
+	}
+
+	public MeterRegistry getRegistry() {
+		return registry;
+	}
+
+	public void connectionOpened() {
+		activeConnections.incrementAndGet();
+	}
+
+	public void connectionClosed() {
+		activeConnections.decrementAndGet();
+	}
+
+	public static void record(Timer timer, long startNanos) {
+		timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Set once the warm-up is done and the listeners are started.
+	 */
+	public void setReady(boolean ready) {
+		this.ready = ready;
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Serves GET /metrics and GET /ready on the port. Only a Prometheus
+	 * registry can be served.
+	 */
+	public void serve(int port) throws IOException {
+		if (!(registry instanceof PrometheusMeterRegistry)) {
+			throw new IllegalStateException("Metrics can only be served from a Prometheus registry");
+		}
+		PrometheusMeterRegistry prometheus = (PrometheusMeterRegistry) registry;
+
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", exchange -> {
+			byte[] body = prometheus.scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.createContext("/ready", exchange -> {
+			byte[] body = (ready ? "ready\n" : "warming up\n").getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(ready ? 200 : 503, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "elr-metrics");
+			t.setDaemon(true);
+			return t;
+		}));
+		server.start();
+
+		LOGGER.info("Metrics are served at http://localhost:" + port + "/metrics");
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryResponseComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+
+/*
+ * Coalesces $registry-control calls into FHIR batch requests.
+ *
+ * Callers submit the Parameters of one $registry-control call and get a
+ * future for its result. A collector thread gathers up to maxItems
+ * submissions, or whatever arrived within maxWaitMillis of the first one,
+ * and posts them as one batch Bundle with one "POST $registry-control" entry
+ * each. The batch-response entries come back in the same order and are
+ * mapped back to the futures one by one, so a rejected entry only fails its
+ * own message. If the whole request fails, every future in it fails. Every
+ * future is completed, whatever goes wrong.
+ *
+ * At most two batches per sender wait to be sent. When that many are
+ * waiting, submit() blocks the caller.
+ *
+ * A caller that gives up waiting cancels its future. The entry is dropped if
+ * its batch request has not been built yet. Once it has, the call is made
+ * anyway.
+ */
+public class RegistryBatchDispatcher implements Runnable {
+	static final String OPERATION = "$registry-control";
+
+	private Supplier<IGenericClient> clientSupplier = null;
+	private int maxItems;
+	private long maxWaitMillis;
+	private BlockingQueue<Pending> pending = null;
+	private ExecutorService senders = null;
+	private Thread collector = null;
+	private volatile boolean running = true;
+
+	// Added to by the sender threads
+	private final LongAdder batchesSent = new LongAdder();
+	private final LongAdder entriesSent = new LongAdder();
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(RegistryBatchDispatcher.class.getName());
+
+	private static class Pending {
+		final Parameters parameters;
+		final CompletableFuture<Resource> result = new CompletableFuture<Resource>();
+
+		Pending(Parameters parameters) {
+			this.parameters = parameters;
+		}
+	}
+
+	public RegistryBatchDispatcher(Supplier<IGenericClient> clientSupplier, int maxItems, long maxWaitMillis,
+			int senderCount) {
+		this.clientSupplier = clientSupplier;
+		this.maxItems = Math.max(1, maxItems);
+		this.maxWaitMillis = Math.max(0L, maxWaitMillis);
+		this.pending = new LinkedBlockingQueue<Pending>(this.maxItems * Math.max(1, senderCount) * 2);
+
+		final AtomicInteger threadNumber = new AtomicInteger(1);
+		this.senders = Executors.newFixedThreadPool(Math.max(1, senderCount), r -> {
+			Thread t = new Thread(r, "elr-batch-sender-" + threadNumber.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+
+		collector = new Thread(this, "elr-batch-collector");
+		collector.setDaemon(true);
+		collector.start();
+	}
+
+	/**
+	 * Queues one $registry-control call, waiting for room if the queue is
+	 * full. The future completes with the operation's response resource, or
+	 * exceptionally with the error the controller returned for this entry.
+	 * Cancel it to withdraw the call.
+	 */
+	public CompletableFuture<Resource> submit(Parameters parameters) throws InterruptedException {
+		Pending p = new Pending(parameters);
+		if (!running) {
+			p.result.completeExceptionally(new IllegalStateException("Batch dispatcher is stopped"));
+			return p.result;
+		}
+
+		pending.put(p);
+		if (!running) {
+			// shutdown() may have drained the queue before the put.
+			p.result.completeExceptionally(new IllegalStateException("Batch dispatcher is stopped"));
+		}
+		return p.result;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			List<Pending> batch = new ArrayList<Pending>(maxItems);
+			try {
+				Pending first = pending.take();
+				if (first.result.isDone()) {
+					continue;
+				}
+				batch.add(first);
+
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+				while (batch.size() < maxItems) {
+					long remaining = deadline - System.nanoTime();
+					Pending next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+					if (next == null) {
+						break;
+					}
+					if (!next.result.isDone()) {
+						batch.add(next);
+					}
+				}
+			} catch (InterruptedException e) {
+				failAll(batch, e);
+				return;
+			}
+
+			try {
+				senders.execute(() -> send(batch));
+			} catch (RejectedExecutionException e) {
+				// Shutting down
+				failAll(batch, e);
+			}
+		}
+	}
+
+	private void send(List<Pending> batch) {
+		try {
+			sendBatch(batch);
+		} catch (RuntimeException e) {
+			LOGGER.error("Batch of " + batch.size() + " $registry-control call(s) failed: " + e);
+			failAll(batch, e);
+		} finally {
+			// No-op for the futures completed above
+			failAll(batch, new IllegalStateException("No result for this $registry-control call"));
+		}
+	}
+
+	private void sendBatch(List<Pending> waiting) {
+		// Cancelled while the batch waited for a sender.
+		List<Pending> batch = new ArrayList<Pending>(waiting.size());
+		for (Pending p : waiting) {
+			if (!p.result.isDone()) {
+				batch.add(p);
+			}
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		Bundle request = new Bundle();
+		request.setType(BundleType.BATCH);
+		for (Pending p : batch) {
+			BundleEntryComponent entry = request.addEntry();
+			entry.setResource(p.parameters);
+			entry.getRequest().setMethod(HTTPVerb.POST).setUrl(OPERATION);
+		}
+
+		Bundle response;
+		try {
+			response = clientSupplier.get().transaction().withBundle(request).execute();
+		} catch (Exception e) {
+			LOGGER.error("Batch of " + batch.size() + " $registry-control call(s) failed: " + e.getMessage());
+			failAll(batch, e);
+			return;
+		}
+
+		batchesSent.increment();
+		entriesSent.add(batch.size());
+
+		if (response == null) {
+			failAll(batch, BaseServerResponseException.newInstance(502, "No batch response"));
+			return;
+		}
+
+		List<BundleEntryComponent> entries = response.getEntry();
+		for (int i = 0; i < batch.size(); i++) {
+			Pending p = batch.get(i);
+			if (i >= entries.size()) {
+				p.result.completeExceptionally(
+						BaseServerResponseException.newInstance(502, "No entry for this request in the batch response"));
+				continue;
+			}
+
+			BundleEntryComponent entry = entries.get(i);
+			BundleEntryResponseComponent entryResponse = entry.getResponse();
+			int status = parseStatus(entryResponse.getStatus());
+			if (status >= 200 && status < 300) {
+				p.result.complete(entry.getResource());
+			} else {
+				p.result.completeExceptionally(toException(status, entryResponse));
+			}
+		}
+	}
+
+	private Exception toException(int status, BundleEntryResponseComponent entryResponse) {
+		OperationOutcome oo = null;
+		if (entryResponse.getOutcome() instanceof OperationOutcome) {
+			oo = (OperationOutcome) entryResponse.getOutcome();
+		}
+
+		String message = "$registry-control returned " + entryResponse.getStatus();
+		if (status == UnprocessableEntityException.STATUS_CODE) {
+			if (oo == null) {
+				oo = new OperationOutcome();
+				oo.addIssue().setSeverity(IssueSeverity.ERROR).setCode(IssueType.PROCESSING).getDetails()
+						.setText(message);
+			}
+			return new UnprocessableEntityException(message, oo);
+		}
+
+		if (status <= 0) {
+			return new IllegalStateException(message);
+		}
+		return BaseServerResponseException.newInstance(status, message);
+	}
+
+	private static int parseStatus(String status) {
+		if (status == null) {
+			return -1;
+		}
+
+		// e.g. "200 OK" or "201"
+		String code = status.trim();
+		int space = code.indexOf(' ');
+		if (space > 0) {
+			code = code.substring(0, space);
+		}
+
+		try {
+			return Integer.parseInt(code);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void failAll(List<Pending> batch, Exception e) {
+		for (Pending p : batch) {
+			p.result.completeExceptionally(e);
+		}
+	}
+
+	public long getBatchesSent() {
+		return batchesSent.sum();
+	}
+
+	public long getEntriesSent() {
+		return entriesSent.sum();
+	}
+
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	public void shutdown() {
+		running = false;
+		collector.interrupt();
+		senders.shutdown();
+
+		List<Pending> leftover = new ArrayList<Pending>();
+		pending.drainTo(leftover);
+		failAll(leftover, new IllegalStateException("Batch dispatcher is stopped"));
+	}
+}
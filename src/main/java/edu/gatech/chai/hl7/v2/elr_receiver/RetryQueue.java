@@ -0,0 +1,552 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squareup.tape2.QueueFile;
+
+/*
+ * Transactional retry queue on top of the tape QueueFile.
+ *
+ * Entries are never removed before they are sent, and never moved. A
+ * consumer leases the due entries from the front of the queue, sends them,
+ * and then commits the outcome of each one:
+ *  - sent: marked done.
+ *  - failed: attempt count goes up and the entry gets a new next-attempt time
+ *    (exponential backoff). After maxAttempts it is moved to the dead-letter file.
+ *  - rejected (the controller will never take it): moved to the dead-letter file.
+ *  - not attempted: kept as is.
+ * The QueueFile can only drop entries at its head, so done entries stay in the
+ * file until every entry before them is done too. The attempt state of
+ * entries that were tried is kept in a side index, <fileName>.idx, which is
+ * rewritten (a few bytes per tried entry) after each commit instead of the
+ * entries themselves. A crash before the index is written can only cause a
+ * resend, or forget an attempt, never a loss.
+ *
+ * Entries with the same key (the patient identifier) are sent in the order
+ * they were added: a lease takes at most the first waiting entry of a key, so
+ * the entries of a key are never in flight together, and a failed entry holds
+ * back the ones after it until it is sent or dead-lettered.
+ *
+ * A lease looks past entries that are backing off, up to SCAN_FACTOR times
+ * the lease size, so that one key at the head does not hold up the due
+ * entries of other keys behind it. New entries are due in the order they were
+ * added, so the scan stops at the first one that is not due.
+ *
+ * Entry format: [version=2][long id][int attempts][long nextAttemptAt]
+ * [short key length][key, UTF-8][payload] with the state at the time it was
+ * added. Entries written by older versions ([version=1] without the id, or
+ * plain JSON as attempt 0, due now) are rewritten with an id and no key when
+ * the queue is opened. Entries without a key are not held back by each other.
+ * The payload is opaque here. The FHIR application writes a QueuePayload.
+ */
+public class RetryQueue {
+	static final byte FORMAT_V1 = 1;
+	static final byte FORMAT_V2 = 2;
+	static final int HEADER_SIZE = 1 + 4 + 8;
+	static final int V2_HEADER_SIZE = 1 + 8 + 4 + 8 + 2;
+	static final int SCAN_FACTOR = 20;
+	static final String INDEX_SUFFIX = ".idx";
+
+	private QueueFile queueFile = null;
+	private QueueFile deadLetterFile = null;
+	private File indexFile = null;
+	private int maxAttempts;
+	private long baseBackoffMillis;
+	private long maxBackoffMillis;
+	private Lease outstanding = null;
+	private long deadLettered = 0L;
+
+	// Ids of the entries in the file, in file order
+	private final ArrayDeque<Long> ids = new ArrayDeque<Long>();
+	// Entries that were tried, or are done but not yet dropped from the file
+	private final Map<Long, State> states = new HashMap<Long, State>();
+	private int doneCount = 0;
+	private long nextId = 1L;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(RetryQueue.class.getName());
+
+	private static class State {
+		final int attempts;
+		final long nextAttemptAt;
+		final boolean done;
+
+		State(int attempts, long nextAttemptAt, boolean done) {
+			this.attempts = attempts;
+			this.nextAttemptAt = nextAttemptAt;
+			this.done = done;
+		}
+	}
+
+	/*
+	 * Thrown by a sender when the controller rejected the entry (422). Sending
+	 * it again will not help, so it goes to the dead-letter file right away.
+	 */
+	public static class RejectedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public RejectedException(String message) {
+			super(message);
+		}
+	}
+
+	public static class Entry {
+		private long id;
+		private String key;
+		private int attempts;
+		private long nextAttemptAt;
+		private byte[] payload;
+		private boolean due;
+
+		Entry(long id, String key, int attempts, long nextAttemptAt, byte[] payload) {
+			this.id = id;
+			this.key = key;
+			this.attempts = attempts;
+			this.nextAttemptAt = nextAttemptAt;
+			this.payload = payload;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * Null for entries of older versions.
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+
+		public long getNextAttemptAt() {
+			return nextAttemptAt;
+		}
+
+		public byte[] getPayload() {
+			return payload;
+		}
+
+		public boolean isDue() {
+			return due;
+		}
+	}
+
+	public static class Lease {
+		private List<Entry> entries;
+		private long earliestNextAttemptAt;
+
+		Lease(List<Entry> entries, long earliestNextAttemptAt) {
+			this.entries = entries;
+			this.earliestNextAttemptAt = earliestNextAttemptAt;
+		}
+
+		/**
+		 * The due entries, in queue order.
+		 */
+		public List<Entry> getDueEntries() {
+			return entries;
+		}
+
+		/**
+		 * Earliest next-attempt time of the entries looked at that are not due.
+		 * Long.MAX_VALUE if there were none.
+		 */
+		public long getEarliestNextAttemptAt() {
+			return earliestNextAttemptAt;
+		}
+	}
+
+	public RetryQueue(String fileName, String deadLetterFileName, int maxAttempts, long baseBackoffMillis,
+			long maxBackoffMillis) throws IOException {
+		this.queueFile = new QueueFile.Builder(new File(fileName)).build();
+		this.deadLetterFile = new QueueFile.Builder(new File(deadLetterFileName)).build();
+		this.indexFile = new File(fileName + INDEX_SUFFIX);
+		this.maxAttempts = maxAttempts;
+		this.baseBackoffMillis = baseBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		open();
+	}
+
+	/*
+	 * Reads the ids of the entries and the index, and rewrites entries of
+	 * older versions.
+	 */
+	private void open() throws IOException {
+		Map<Long, State> indexed = readIndex();
+		for (Long id : indexed.keySet()) {
+			nextId = Math.max(nextId, id + 1);
+		}
+
+		List<Entry> entries = new ArrayList<Entry>();
+		boolean upgrade = false;
+		for (byte[] data : queueFile) {
+			Entry entry = decode(data);
+			if (entry.id == 0L) {
+				upgrade = true;
+			} else {
+				nextId = Math.max(nextId, entry.id + 1);
+			}
+			entries.add(entry);
+		}
+
+		if (upgrade) {
+			// Appended with ids, then the old ones dropped. A crash in between
+			// leaves both, which only causes a resend.
+			LOGGER.info("Upgrading " + entries.size() + " retry queue entries to version " + FORMAT_V2);
+			for (Entry entry : entries) {
+				if (entry.id == 0L) {
+					entry.id = nextId++;
+					indexed.put(entry.id, new State(entry.attempts, entry.nextAttemptAt, false));
+				}
+				queueFile.add(encode(entry.id, entry.key, entry.attempts, entry.nextAttemptAt, entry.payload));
+			}
+			queueFile.remove(entries.size());
+		}
+
+		for (Entry entry : entries) {
+			ids.add(entry.id);
+			State state = indexed.get(entry.id);
+			if (state != null) {
+				states.put(entry.id, state);
+				if (state.done) {
+					doneCount++;
+				}
+			}
+		}
+		dropDone();
+		writeIndex();
+	}
+
+	/**
+	 * Adds a payload whose first delivery attempt already failed. key: sent
+	 * after the entries with the same key that are already queued. Null for
+	 * none.
+	 */
+	public synchronized void add(String key, byte[] payload) throws IOException {
+		long id = nextId++;
+		queueFile.add(encode(id, key, 1, System.currentTimeMillis() + backoff(1), payload));
+		ids.add(id);
+	}
+
+	/**
+	 * Leases up to max due entries from the front of the queue, at most one per
+	 * key. Only one lease can be outstanding at a time. Returns null if a lease is outstanding or
+	 * the queue is empty. The lease has no entries if none is due.
+	 */
+	public synchronized Lease lease(int max) throws IOException {
+		if (outstanding != null || size() == 0) {
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		long earliest = Long.MAX_VALUE;
+		List<Entry> entries = new ArrayList<Entry>();
+		// Keys with an earlier entry that is waiting or leased
+		Set<String> heldBack = new HashSet<String>();
+		int scanned = 0;
+		Iterator<byte[]> it = queueFile.iterator();
+		Iterator<Long> idIt = ids.iterator();
+		while (entries.size() < max && scanned < max * SCAN_FACTOR && it.hasNext()) {
+			byte[] data = it.next();
+			long id = idIt.next();
+			State state = states.get(id);
+			if (state != null && state.done) {
+				continue;
+			}
+			scanned++;
+
+			String key = keyOf(data);
+			if (key != null && !heldBack.add(key)) {
+				continue;
+			}
+
+			long nextAttemptAt = state != null ? state.nextAttemptAt : ByteBuffer.wrap(data).getLong(1 + 8 + 4);
+			if (nextAttemptAt > now) {
+				earliest = Math.min(earliest, nextAttemptAt);
+				if (state == null) {
+					// Not tried since it was added. Neither are the ones after it.
+					break;
+				}
+				continue;
+			}
+
+			Entry entry = decode(data);
+			if (state != null) {
+				entry.attempts = state.attempts;
+				entry.nextAttemptAt = state.nextAttemptAt;
+			}
+			entry.due = true;
+			entries.add(entry);
+		}
+
+		outstanding = new Lease(entries, earliest);
+		return outstanding;
+	}
+
+	/**
+	 * Commits the outcome of a lease. succeeded holds the entries that were
+	 * sent successfully; every other entry is counted as a failed attempt.
+	 */
+	public void commit(Lease lease, List<Entry> succeeded) throws IOException {
+		commit(lease, succeeded, Collections.<Entry>emptyList(), Collections.<Entry>emptyList());
+	}
+
+	/**
+	 * Same, but the entries in skipped were not attempted (e.g. the circuit to
+	 * the controller opened) and are kept as they are, and the ones in rejected
+	 * go to the dead-letter file right away.
+	 */
+	public synchronized void commit(Lease lease, List<Entry> succeeded, List<Entry> skipped, List<Entry> rejected)
+			throws IOException {
+		if (lease != outstanding) {
+			throw new IllegalStateException("Lease is not outstanding");
+		}
+
+		try {
+			if (lease.entries.size() == skipped.size()) {
+				// Nothing was attempted.
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			for (Entry entry : lease.entries) {
+				if (skipped.contains(entry)) {
+					continue;
+				}
+
+				if (succeeded.contains(entry)) {
+					markDone(entry.id);
+					continue;
+				}
+
+				int attempts = entry.attempts + 1;
+				if (rejected.contains(entry) || attempts >= maxAttempts) {
+					deadLetterFile.add(encodeDead(attempts, now, entry.payload));
+					deadLettered++;
+					markDone(entry.id);
+					LOGGER.error(rejected.contains(entry) ? "Moved a queued bundle the controller rejected to the dead-letter file"
+							: "Moved a queued bundle to the dead-letter file after " + attempts + " attempts");
+				} else {
+					states.put(entry.id, new State(attempts, now + backoff(attempts), false));
+				}
+			}
+
+			dropDone();
+			writeIndex();
+		} finally {
+			outstanding = null;
+		}
+	}
+
+	/**
+	 * Gives up a lease without recording any attempt.
+	 */
+	public synchronized void release(Lease lease) {
+		if (lease == outstanding) {
+			outstanding = null;
+		}
+	}
+
+	/**
+	 * Entries waiting to be sent.
+	 */
+	public synchronized int size() {
+		return ids.size() - doneCount;
+	}
+
+	public synchronized int deadLetterSize() {
+		return deadLetterFile.size();
+	}
+
+	public synchronized long getDeadLettered() {
+		return deadLettered;
+	}
+
+	public synchronized void close() throws IOException {
+		queueFile.close();
+		deadLetterFile.close();
+	}
+
+	long backoff(int attempts) {
+		long delay = baseBackoffMillis << Math.min(attempts - 1, 30);
+		if (delay <= 0 || delay > maxBackoffMillis) {
+			delay = maxBackoffMillis;
+		}
+		return delay;
+	}
+
+	private void markDone(long id) {
+		State state = states.get(id);
+		if (state == null || !state.done) {
+			states.put(id, new State(state == null ? 0 : state.attempts, 0L, true));
+			doneCount++;
+		}
+	}
+
+	/*
+	 * Drops the done entries at the head of the file.
+	 */
+	private void dropDone() throws IOException {
+		int count = 0;
+		for (Long id : ids) {
+			State state = states.get(id);
+			if (state == null || !state.done) {
+				break;
+			}
+			count++;
+		}
+
+		if (count > 0) {
+			queueFile.remove(count);
+			for (int i = 0; i < count; i++) {
+				states.remove(ids.poll());
+			}
+			doneCount -= count;
+		}
+	}
+
+	/*
+	 * <id> <attempts> <nextAttemptAt> <done> per line, written to a temporary
+	 * file and moved over the index.
+	 */
+	private void writeIndex() throws IOException {
+		if (states.isEmpty() && !indexFile.exists()) {
+			return;
+		}
+
+		StringBuilder text = new StringBuilder(states.size() * 32);
+		for (Map.Entry<Long, State> e : states.entrySet()) {
+			State state = e.getValue();
+			text.append(e.getKey()).append('\t').append(state.attempts).append('\t').append(state.nextAttemptAt)
+					.append('\t').append(state.done ? 1 : 0).append('\n');
+		}
+
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		Files.writeString(tmp.toPath(), text, StandardCharsets.UTF_8);
+		Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Map<Long, State> readIndex() {
+		Map<Long, State> indexed = new HashMap<Long, State>();
+		if (!indexFile.exists()) {
+			return indexed;
+		}
+
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length == 4) {
+					indexed.put(Long.parseLong(fields[0]), new State(Integer.parseInt(fields[1]),
+							Long.parseLong(fields[2]), "1".equals(fields[3])));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// Only the attempt counts are lost. Done entries are sent again.
+			LOGGER.warn("Ignoring the retry queue index " + indexFile + ": " + e.getMessage());
+		}
+		return indexed;
+	}
+
+	static byte[] encode(long id, String key, int attempts, long nextAttemptAt, byte[] payload) throws IOException {
+		byte[] keyBytes = key == null ? new byte[0] : key.getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(V2_HEADER_SIZE + keyBytes.length + payload.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(FORMAT_V2);
+		out.writeLong(id);
+		out.writeInt(attempts);
+		out.writeLong(nextAttemptAt);
+		// Length -1 for no key
+		out.writeShort(key == null ? -1 : keyBytes.length);
+		out.write(keyBytes);
+		out.write(payload);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Dead-letter entries keep the version 1 format.
+	 */
+	static byte[] encodeDead(int attempts, long nextAttemptAt, byte[] payload) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + payload.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(FORMAT_V1);
+		out.writeInt(attempts);
+		out.writeLong(nextAttemptAt);
+		out.write(payload);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Key of a version 2 entry, without decoding the rest.
+	 */
+	static String keyOf(byte[] data) {
+		int length = ByteBuffer.wrap(data).getShort(1 + 8 + 4 + 8);
+		return length < 0 ? null : new String(data, V2_HEADER_SIZE, length, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Id 0 for entries of older versions.
+	 */
+	static Entry decode(byte[] data) throws IOException {
+		if (data.length >= V2_HEADER_SIZE && data[0] == FORMAT_V2) {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			in.readByte();
+			long id = in.readLong();
+			int attempts = in.readInt();
+			long nextAttemptAt = in.readLong();
+			int keyLength = in.readShort();
+			String key = null;
+			if (keyLength >= 0) {
+				byte[] keyBytes = new byte[keyLength];
+				in.readFully(keyBytes);
+				key = new String(keyBytes, StandardCharsets.UTF_8);
+			}
+			byte[] payload = new byte[data.length - V2_HEADER_SIZE - Math.max(0, keyLength)];
+			in.readFully(payload);
+			return new Entry(id, key, attempts, nextAttemptAt, payload);
+		}
+		if (data.length < HEADER_SIZE || data[0] != FORMAT_V1) {
+			// Written before entries had a header.
+			return new Entry(0L, null, 0, 0L, data);
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		in.readByte();
+		int attempts = in.readInt();
+		long nextAttemptAt = in.readLong();
+		byte[] payload = new byte[data.length - HEADER_SIZE];
+		in.readFully(payload);
+		return new Entry(0L, null, attempts, nextAttemptAt, payload);
+	}
+}
@@ -0,0 +1,443 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Inbound journal on memory-mapped, append-only segment files.
+ *
+ * An append copies the message into the mapped active segment and then waits
+ * for the next group commit. A single sync thread forces the written range to
+ * disk and releases everyone who appended before it started, so one fsync
+ * covers all messages that arrived while the previous one was running instead
+ * of one per message.
+ *   syncMillis = 0: sync as soon as someone waits.
+ *   syncMillis > 0: at most one sync per syncMillis. Fewer, larger syncs for
+ *                   disks where a sync is expensive, at up to syncMillis of
+ *                   added latency.
+ *   syncMillis < 0: do not wait for the sync. Mapped writes survive a crash
+ *                   of the process but not of the host.
+ *
+ * Layout, in the directory <fileName>:
+ *   <first seq, 20 digits>.seg  records [length][crc32][seq][UTF-8 message],
+ *                               a zero length ends the segment
+ *   cursor                      lowest sequence number not yet completed
+ *
+ * When a record does not fit, the active segment is synced and a new one is
+ * started. Delivery workers complete messages out of order and the cursor is
+ * moved over the contiguous completed prefix. Segments wholly below the
+ * cursor are deleted, except the last retainSegments of them.
+ *
+ * On start, every segment is scanned up to its first torn or out of sequence
+ * record, and the records at or above the cursor are handed out once by
+ * pending(). New messages go to a new segment, or to the last one if it is
+ * empty.
+ */
+public class SegmentedJournal implements InboundJournal {
+	static final String SEGMENT_SUFFIX = ".seg";
+	static final String CURSOR_FILE = "cursor";
+	// length(4) crc(4) seq(8)
+	static final int RECORD_HEADER = 16;
+
+	private final File dir;
+	private final int segmentBytes;
+	private final int syncMillis;
+	private final int retainSegments;
+
+	// Oldest first. The last one is the active segment.
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private long headSeq = 0L;
+	private long nextSeq = 0L;
+	private TreeSet<Long> completed = new TreeSet<Long>();
+	private List<Entry> recovered = null;
+	private MappedByteBuffer cursor = null;
+
+	// Group commit
+	private final Object syncLock = new Object();
+	private long syncedSeq = -1L;
+	private long failedSeq = -1L;
+	private boolean syncRequested = false;
+	private long lastSyncNanos = 0L;
+	private volatile boolean closed = false;
+	private Thread syncThread = null;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(SegmentedJournal.class.getName());
+
+	private static class Segment {
+		final long firstSeq;
+		final File file;
+		final MappedByteBuffer buffer;
+		int position = 0;
+		int syncedPosition = 0;
+
+		Segment(long firstSeq, File file, int size) throws IOException {
+			this.firstSeq = firstSeq;
+			this.file = file;
+			// The mapping outlives the channel.
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				if (raf.length() < size) {
+					raf.setLength(size);
+				}
+				this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			}
+		}
+
+		int remaining() {
+			return buffer.capacity() - position;
+		}
+
+		void force(int from, int to) {
+			if (to > from) {
+				buffer.force(from, to - from);
+			}
+		}
+
+		void delete() {
+			// The mapping stays valid until it is collected. The file goes now.
+			if (!file.delete()) {
+				LOGGER.warn("Could not delete journal segment " + file);
+			}
+		}
+	}
+
+	public SegmentedJournal(String fileName, int segmentBytes, int syncMillis, int retainSegments)
+			throws IOException {
+		this.dir = new File(fileName);
+		this.segmentBytes = segmentBytes;
+		this.syncMillis = syncMillis;
+		this.retainSegments = Math.max(0, retainSegments);
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + dir);
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(new File(dir, CURSOR_FILE), "rw")) {
+			cursor = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+		}
+		headSeq = cursor.getLong(0);
+
+		recover();
+
+		// An empty last segment (no traffic since the last start) is reused.
+		if (segments.isEmpty() || segments.getLast().firstSeq != nextSeq) {
+			segments.addLast(new Segment(nextSeq, segmentFile(nextSeq), segmentBytes));
+		}
+		deleteCompletedSegments();
+
+		if (syncMillis >= 0) {
+			syncThread = new Thread(this::syncLoop, "elr-journal-sync");
+			syncThread.setDaemon(true);
+			syncThread.start();
+		}
+	}
+
+	private File segmentFile(long firstSeq) {
+		return new File(dir, String.format("%020d", firstSeq) + SEGMENT_SUFFIX);
+	}
+
+	private void recover() throws IOException {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+		if (files == null) {
+			files = new File[0];
+		}
+		// Zero-padded, so name order is sequence order.
+		Arrays.sort(files);
+
+		recovered = new ArrayList<Entry>();
+		long expected = -1L;
+		CRC32 crc = new CRC32();
+		for (File file : files) {
+			String name = file.getName();
+			long firstSeq;
+			try {
+				firstSeq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+
+			if (expected >= 0 && firstSeq != expected) {
+				LOGGER.warn("Inbound journal gap: expected sequence " + expected + ", " + name + " starts at "
+						+ firstSeq);
+			}
+			if (expected < 0 && headSeq < firstSeq) {
+				headSeq = firstSeq;
+			}
+
+			Segment segment = new Segment(firstSeq, file, 0);
+			MappedByteBuffer buffer = segment.buffer;
+			long seq = firstSeq;
+			int position = 0;
+			while (position + RECORD_HEADER <= buffer.capacity()) {
+				int length = buffer.getInt(position);
+				if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER
+						|| buffer.getLong(position + 8) != seq) {
+					break;
+				}
+
+				byte[] data = new byte[length];
+				ByteBuffer record = buffer.duplicate();
+				record.position(position + RECORD_HEADER);
+				record.get(data);
+				crc.reset();
+				crc.update(data);
+				if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+					// Torn write at the tail
+					break;
+				}
+
+				if (seq >= headSeq) {
+					recovered.add(new Entry(seq, new String(data, StandardCharsets.UTF_8)));
+				}
+				seq++;
+				position += RECORD_HEADER + length;
+			}
+			segment.position = position;
+			segment.syncedPosition = position;
+
+			// Sealed, unless it is empty and becomes the active segment again.
+			segments.addLast(segment);
+			expected = seq;
+		}
+
+		nextSeq = Math.max(headSeq, expected);
+		if (!recovered.isEmpty() || segments.size() > 0) {
+			LOGGER.info("Inbound journal " + dir + ": " + segments.size() + " segment(s), " + recovered.size()
+					+ " undelivered message(s), next sequence " + nextSeq);
+		}
+	}
+
+	@Override
+	public synchronized List<Entry> pending() {
+		// Handed out once. After that the delivery pipeline owns them.
+		List<Entry> entries = recovered == null ? new ArrayList<Entry>() : recovered;
+		recovered = null;
+		return entries;
+	}
+
+	@Override
+	public long append(String rawMessage) throws IOException {
+		byte[] data = rawMessage.getBytes(StandardCharsets.UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		long seq;
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Inbound journal is closed");
+			}
+
+			int recordSize = RECORD_HEADER + data.length;
+			Segment active = segments.getLast();
+			// Room for the record and the zero length that ends the segment.
+			if (active.remaining() < recordSize + Integer.BYTES) {
+				active = roll(recordSize + Integer.BYTES);
+			}
+
+			seq = nextSeq++;
+			ByteBuffer record = active.buffer.duplicate();
+			record.position(active.position);
+			record.putInt(data.length);
+			record.putInt((int) crc.getValue());
+			record.putLong(seq);
+			record.put(data);
+			active.position += recordSize;
+		}
+
+		awaitSync(seq);
+		return seq;
+	}
+
+	/*
+	 * Syncs and seals the active segment and starts a new one at nextSeq. A
+	 * message larger than a segment gets a segment of its own size.
+	 */
+	private Segment roll(int minSize) throws IOException {
+		Segment sealed = segments.getLast();
+		sealed.force(sealed.syncedPosition, sealed.position);
+		sealed.syncedPosition = sealed.position;
+
+		Segment active = new Segment(nextSeq, segmentFile(nextSeq), Math.max(segmentBytes, minSize));
+		segments.addLast(active);
+		return active;
+	}
+
+	private void awaitSync(long seq) throws IOException {
+		if (syncMillis < 0) {
+			return;
+		}
+
+		synchronized (syncLock) {
+			if (syncedSeq >= seq) {
+				return;
+			}
+			syncRequested = true;
+			syncLock.notifyAll();
+			while (syncedSeq < seq) {
+				if (failedSeq >= seq) {
+					throw new IOException("Inbound journal sync failed");
+				}
+				if (closed) {
+					throw new IOException("Inbound journal closed before the message was synced");
+				}
+				try {
+					syncLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the inbound journal sync", e);
+				}
+			}
+		}
+	}
+
+	private void syncLoop() {
+		while (!closed) {
+			synchronized (syncLock) {
+				while (!syncRequested && !closed) {
+					try {
+						syncLock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				syncRequested = false;
+			}
+
+			long waitNanos = lastSyncNanos + TimeUnit.MILLISECONDS.toNanos(syncMillis) - System.nanoTime();
+			if (syncMillis > 0 && waitNanos > 0 && !closed) {
+				// Let the group fill up.
+				try {
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			lastSyncNanos = System.nanoTime();
+			sync();
+		}
+	}
+
+	/*
+	 * Forces everything appended so far and releases the waiting appenders.
+	 */
+	private void sync() {
+		long target;
+		Segment active;
+		int from;
+		int to;
+		synchronized (this) {
+			target = nextSeq - 1;
+			active = segments.getLast();
+			from = active.syncedPosition;
+			to = active.position;
+			active.syncedPosition = to;
+		}
+
+		try {
+			active.force(from, to);
+		} catch (RuntimeException e) {
+			LOGGER.error("Inbound journal sync failed: " + e.getMessage());
+			synchronized (this) {
+				active.syncedPosition = Math.min(active.syncedPosition, from);
+			}
+			synchronized (syncLock) {
+				failedSeq = Math.max(failedSeq, target);
+				syncLock.notifyAll();
+			}
+			return;
+		}
+
+		synchronized (syncLock) {
+			syncedSeq = Math.max(syncedSeq, target);
+			syncLock.notifyAll();
+		}
+	}
+
+	@Override
+	public synchronized void complete(long seq) {
+		if (seq < headSeq) {
+			return;
+		}
+
+		completed.add(seq);
+
+		long head = headSeq;
+		while (completed.contains(head)) {
+			head++;
+		}
+
+		if (head > headSeq) {
+			completed.headSet(head).clear();
+			headSeq = head;
+			cursor.putLong(0, headSeq);
+			deleteCompletedSegments();
+		}
+	}
+
+	/*
+	 * A sealed segment is completed when the next one starts at or below the
+	 * cursor.
+	 */
+	private void deleteCompletedSegments() {
+		int completedSegments = 0;
+		Iterator<Segment> it = segments.iterator();
+		it.next();
+		while (it.hasNext() && it.next().firstSeq <= headSeq) {
+			completedSegments++;
+		}
+
+		if (completedSegments <= retainSegments) {
+			return;
+		}
+
+		// The cursor has to be on disk before the records below it are gone.
+		cursor.force();
+		while (completedSegments-- > retainSegments) {
+			segments.removeFirst().delete();
+		}
+	}
+
+	@Override
+	public synchronized int size() {
+		return (int) (nextSeq - headSeq);
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		synchronized (syncLock) {
+			syncLock.notifyAll();
+		}
+		if (syncThread != null) {
+			try {
+				syncThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (this) {
+			Segment active = segments.getLast();
+			active.force(active.syncedPosition, active.position);
+			active.syncedPosition = active.position;
+			cursor.force();
+		}
+	}
+}
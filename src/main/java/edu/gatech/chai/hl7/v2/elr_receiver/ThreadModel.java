@@ -0,0 +1,129 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Where connection handling and delivery run.
+ *
+ * PLATFORM: platform threads, as before. Each listener has a cached pool of
+ *           its own, like HAPI's default executor.
+ * VIRTUAL:  Java 21 virtual threads. A connection that sits idle, or waits
+ *           for the FHIR controller, does not hold an OS thread, so hundreds
+ *           of mostly idle sender connections are cheap.
+ *
+ * The build targets Java 17, so virtual threads are looked up at runtime. On
+ * an older JVM, VIRTUAL falls back to PLATFORM with a warning. The Docker
+ * image ships Java 17, so there VIRTUAL always runs as PLATFORM.
+ */
+public final class ThreadModel {
+	public static final String PLATFORM = "PLATFORM";
+	public static final String VIRTUAL = "VIRTUAL";
+
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_FACTORY;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(ThreadModel.class.getName());
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+		} catch (ReflectiveOperationException e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_FACTORY = factory;
+	}
+
+	private ThreadModel() {
+	}
+
+	public static boolean isVirtualAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Normalizes the configured model. VIRTUAL becomes PLATFORM when the JVM has
+	 * no virtual threads.
+	 */
+	public static String resolve(String threadModel) {
+		if (VIRTUAL.equalsIgnoreCase(threadModel)) {
+			if (isVirtualAvailable()) {
+				return VIRTUAL;
+			}
+			LOGGER.warn("threadModel=VIRTUAL needs Java 21 or later. This JVM is " + Runtime.version()
+					+ ". Using platform threads.");
+		}
+		return PLATFORM;
+	}
+
+	/**
+	 * Threads named prefix1, prefix2, ... Platform threads are daemons.
+	 */
+	public static ThreadFactory newThreadFactory(String threadModel, String prefix) {
+		if (VIRTUAL.equals(threadModel) && isVirtualAvailable()) {
+			try {
+				Object builder = OF_VIRTUAL.invoke(null);
+				builder = BUILDER_NAME.invoke(builder, prefix, 1L);
+				return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+			} catch (ReflectiveOperationException e) {
+				LOGGER.warn("Could not create virtual threads. Using platform threads. " + e.getMessage());
+			}
+		}
+
+		final AtomicInteger threadNumber = new AtomicInteger(1);
+		return r -> {
+			Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Executor for the HAPI server of one listener (acceptor and one reader
+	 * per connection), threads named prefix1, prefix2, ... HAPI's default
+	 * executor is one for the whole process, so every listener gets its own
+	 * instead. Its platform threads are not daemons, as HAPI's are not: they
+	 * keep the receiver running. Virtual threads are always daemons, so with
+	 * VIRTUAL a platform thread named prefix + "keepalive" waits for the
+	 * executor to terminate and keeps the receiver running instead.
+	 */
+	public static ExecutorService newConnectionExecutor(String threadModel, String prefix) {
+		if (VIRTUAL.equals(threadModel) && isVirtualAvailable()) {
+			// Idle virtual threads are not worth keeping, but the cached pool is
+			// the Java 17 API that takes a thread factory.
+			final ExecutorService executor = Executors.newCachedThreadPool(newThreadFactory(threadModel, prefix));
+			Thread keepAlive = new Thread(() -> {
+				try {
+					while (!executor.awaitTermination(1, TimeUnit.DAYS)) {
+						// keep waiting
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, prefix + "keepalive");
+			keepAlive.setDaemon(false);
+			keepAlive.start();
+			return executor;
+		}
+
+		final AtomicInteger threadNumber = new AtomicInteger(1);
+		return Executors.newCachedThreadPool(r -> new Thread(r, prefix + threadNumber.getAndIncrement()));
+	}
+}
@@ -0,0 +1,330 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * v2 filters (filter_configuration.json) compiled into an immutable form.
+ *
+ * The JSON is parsed and validated once. Filters are indexed by the OBX-3
+ * identifier they look for, so a single pass over the OBX segments of a
+ * message evaluates every filter.
+ *
+ * A message is accepted when
+ *   - status is allow_all, or
+ *   - every "and" filter matches an OBX, and at least one "or" filter matches
+ *     an OBX (if there are any "or" filters).
+ */
+public final class V2FilterSet {
+	public static final String SUPPORTED_VERSION = "0.0.1";
+
+	private final String version;
+	private final boolean allowAll;
+	private final List<Filter> filters;
+	private final Map<String, List<Filter>> filtersByCode;
+	private final BitSet andFilters;
+	private final boolean hasOrFilters;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(V2FilterSet.class.getName());
+
+	/*
+	 * OBX values as they appear in the message. One component array per OBX-5
+	 * repetition. ST is {value}, SN is {comparator, num1, separator/suffix, num2}.
+	 */
+	public static final class Observation {
+		private final String codeId;
+		private final String codeText;
+		private final String codeSystem;
+		private final List<String[]> values;
+
+		public Observation(String codeId, String codeText, String codeSystem, List<String[]> values) {
+			this.codeId = codeId;
+			this.codeText = codeText;
+			this.codeSystem = codeSystem;
+			this.values = values;
+		}
+
+		public String getCodeId() {
+			return codeId;
+		}
+	}
+
+	static final class Filter {
+		final int index;
+		final boolean and;
+		final String codeId;
+		final String codeText;
+		final String codeSystem;
+		final String valueType;
+		final String stValue;
+		final String snComparator;
+		final double snValue;
+
+		Filter(int index, boolean and, String codeId, String codeText, String codeSystem, String valueType,
+				String stValue, String snComparator, double snValue) {
+			this.index = index;
+			this.and = and;
+			this.codeId = codeId;
+			this.codeText = codeText;
+			this.codeSystem = codeSystem;
+			this.valueType = valueType;
+			this.stValue = stValue;
+			this.snComparator = snComparator;
+			this.snValue = snValue;
+		}
+
+		boolean matches(Observation obs) {
+			if (!codeText.equals(obs.codeText)) {
+				return false;
+			}
+			if (!codeSystem.isBlank() && !codeSystem.equals(obs.codeSystem)) {
+				return false;
+			}
+
+			for (String[] value : obs.values) {
+				if (value == null || value.length == 0) {
+					continue;
+				}
+
+				if ("ST".equals(valueType)) {
+					if (stValue.equalsIgnoreCase(value[0])) {
+						return true;
+					}
+				} else if ("SN".equals(valueType)) {
+					if (value.length < 4) {
+						continue;
+					}
+
+					double obxValue;
+					try {
+						obxValue = Double.valueOf(value[3]) / Double.valueOf(value[1]);
+					} catch (NumberFormatException | NullPointerException e) {
+						continue;
+					}
+
+					if ("<".equals(snComparator) || "<=".equals(snComparator)) {
+						if (obxValue <= snValue) {
+							return true;
+						}
+					} else if (">".equals(snComparator) || ">=".equals(snComparator)) {
+						if (obxValue >= snValue) {
+							return true;
+						}
+					} else if (obxValue == snValue) {
+						return true;
+					}
+				}
+			}
+
+			return false;
+		}
+	}
+
+	private V2FilterSet(String version, boolean allowAll, List<Filter> filters) {
+		this.version = version;
+		this.allowAll = allowAll;
+		this.filters = Collections.unmodifiableList(filters);
+
+		Map<String, List<Filter>> byCode = new HashMap<String, List<Filter>>();
+		BitSet ands = new BitSet(filters.size());
+		boolean ors = false;
+		for (Filter filter : filters) {
+			byCode.computeIfAbsent(filter.codeId, k -> new ArrayList<Filter>()).add(filter);
+			if (filter.and) {
+				ands.set(filter.index);
+			} else {
+				ors = true;
+			}
+		}
+		byCode.replaceAll((k, list) -> Collections.unmodifiableList(list));
+
+		this.filtersByCode = Collections.unmodifiableMap(byCode);
+		this.andFilters = ands;
+		this.hasOrFilters = ors;
+	}
+
+	/**
+	 * Validates and compiles the filter JSON.
+	 *
+	 * @throws IllegalArgumentException if the JSON is not a valid 0.0.1 filter
+	 *                                  configuration
+	 */
+	public static V2FilterSet compile(JSONObject filtersJson) {
+		if (filtersJson == null) {
+			throw new IllegalArgumentException("V2 filter configuration is missing");
+		}
+
+		String version = filtersJson.optString("version", null);
+		if (!SUPPORTED_VERSION.equals(version)) {
+			throw new IllegalArgumentException(
+					"V2 filter version must be " + SUPPORTED_VERSION + ", but it is " + version);
+		}
+
+		boolean allowAll = "allow_all".equalsIgnoreCase(filtersJson.optString("status", ""));
+
+		List<Filter> filters = new ArrayList<Filter>();
+		JSONArray filtersArray = filtersJson.optJSONArray("filters");
+		if (filtersArray == null) {
+			if (!allowAll) {
+				throw new IllegalArgumentException("V2 filter configuration has no filters");
+			}
+			filtersArray = new JSONArray();
+		}
+
+		for (int i = 0; i < filtersArray.length(); i++) {
+			JSONObject myFilter = filtersArray.getJSONObject(i);
+
+			String conj = myFilter.getString("conjunction");
+			String segmentLoc = myFilter.getString("segment_loc");
+			String segmentValue = myFilter.getString("segment_value");
+			String valueLoc = myFilter.getString("value_loc");
+			String valueType = myFilter.getString("value_type");
+			String valueValue = myFilter.getString("value_value");
+
+			if (!"and".equalsIgnoreCase(conj) && !"or".equalsIgnoreCase(conj)) {
+				throw new IllegalArgumentException("Filter " + i + ": unknown conjunction " + conj);
+			}
+			if (!"OBX-3".equals(segmentLoc)) {
+				throw new IllegalArgumentException("Filter " + i + ": only OBX-3 is supported for segment_loc");
+			}
+			if (!"OBX-5".equals(valueLoc)) {
+				throw new IllegalArgumentException("Filter " + i + ": only OBX-5 is supported for value_loc");
+			}
+
+			String[] segmentValues = segmentValue.split("\\^");
+			if (segmentValues.length < 2 || segmentValues[0].isBlank() || segmentValues[1].isBlank()) {
+				// An OBX-3 without an identifier and text could never match.
+				LOGGER.warn("Filter " + i + " is skipped. segment_value needs identifier^text: " + segmentValue);
+				continue;
+			}
+			String codeSystem = segmentValues.length >= 3 ? segmentValues[2] : "";
+
+			String stValue = null;
+			String snComparator = null;
+			double snValue = 0.0;
+			if ("ST".equals(valueType)) {
+				stValue = valueValue;
+			} else if ("SN".equals(valueType)) {
+				// comparator^num1^:^num2
+				String[] values = valueValue.split("\\^");
+				if (values.length != 4) {
+					throw new IllegalArgumentException("Filter " + i + ": SN value must be comparator^num1^:^num2");
+				}
+				snComparator = values[0];
+				try {
+					snValue = Double.valueOf(values[3]) / Double.valueOf(values[1]);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Filter " + i + ": SN value is not numeric: " + valueValue);
+				}
+			} else {
+				throw new IllegalArgumentException("Filter " + i + ": unsupported value_type " + valueType);
+			}
+
+			filters.add(new Filter(filters.size(), "and".equalsIgnoreCase(conj), segmentValues[0],
+					segmentValues[1], codeSystem, valueType, stValue, snComparator, snValue));
+		}
+
+		return new V2FilterSet(version, allowAll, filters);
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public boolean isAllowAll() {
+		return allowAll;
+	}
+
+	public int size() {
+		return filters.size();
+	}
+
+	/**
+	 * True if an OBX with this OBX-3 identifier could satisfy one of the filters.
+	 */
+	public boolean isWatchedCode(String codeId) {
+		return filtersByCode.containsKey(codeId);
+	}
+
+	/**
+	 * False if no message with only these OBX-3 identifiers can be accepted,
+	 * whatever the OBX-5 values are. Used to drop messages before they are
+	 * parsed.
+	 */
+	public boolean mayAccept(Set<String> codeIds) {
+		if (allowAll) {
+			return true;
+		}
+
+		for (Filter filter : filters) {
+			if (filter.and && !codeIds.contains(filter.codeId)) {
+				return false;
+			}
+		}
+
+		if (!hasOrFilters) {
+			return !andFilters.isEmpty();
+		}
+
+		for (Filter filter : filters) {
+			if (!filter.and && codeIds.contains(filter.codeId)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public boolean accepts(Iterable<Observation> observations) {
+		if (allowAll) {
+			return true;
+		}
+
+		BitSet matched = new BitSet(filters.size());
+		for (Observation obs : observations) {
+			if (obs.codeId == null) {
+				continue;
+			}
+
+			List<Filter> candidates = filtersByCode.get(obs.codeId);
+			if (candidates == null) {
+				continue;
+			}
+
+			for (Filter filter : candidates) {
+				if (!matched.get(filter.index) && filter.matches(obs)) {
+					matched.set(filter.index);
+					if (!filter.and && andFilters.isEmpty()) {
+						// First "or" match and nothing else to satisfy.
+						return true;
+					}
+				}
+			}
+		}
+
+		BitSet missingAnds = (BitSet) andFilters.clone();
+		missingAnds.andNot(matched);
+		if (!missingAnds.isEmpty()) {
+			return false;
+		}
+
+		if (!hasOrFilters) {
+			return !andFilters.isEmpty();
+		}
+
+		BitSet ors = (BitSet) matched.clone();
+		ors.andNot(andFilters);
+		return !ors.isEmpty();
+	}
+}
@@ -0,0 +1,178 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Watches the v2 filter file and reloads it when it changes.
+ *
+ * The new file is parsed and compiled on the watcher thread. Only a filter
+ * set that compiles is installed, with a single reference swap in the
+ * receiver application (or the listener the file belongs to), so a message that is being filtered keeps using the
+ * set it started with. A broken file is logged and counted, and the current
+ * filters stay active.
+ */
+public class V2FilterWatcher implements Runnable {
+	// Editors often write a file in several steps. Wait for it to settle.
+	static final long SETTLE_MILLIS = 500L;
+
+	private Consumer<JSONObject> target = null;
+	private Path filterFile = null;
+	private WatchService watchService = null;
+	private Thread thread = null;
+
+	private volatile long reloadCount = 0L;
+	private volatile long reloadFailures = 0L;
+	private volatile String activeFingerprint = null;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(V2FilterWatcher.class.getName());
+
+	public V2FilterWatcher(HL7v2ReceiverApplication<?> app, String filterFileName) {
+		this(app::setV2Filters, filterFileName);
+	}
+
+	/*
+	 * target: compiles and installs the filters, throws IllegalArgumentException
+	 * if they are not valid
+	 */
+	public V2FilterWatcher(Consumer<JSONObject> target, String filterFileName) {
+		this.target = target;
+		this.filterFile = Path.of(filterFileName).toAbsolutePath();
+	}
+
+	/**
+	 * Loads the filter file. Used for the initial load and for every reload.
+	 *
+	 * @throws IllegalArgumentException if the filter file is not valid
+	 */
+	public synchronized void load() throws IOException {
+		byte[] content = Files.readAllBytes(filterFile);
+		String fingerprint = fingerprint(content);
+		if (fingerprint.equals(activeFingerprint)) {
+			return;
+		}
+
+		target.accept(new JSONObject(new String(content, StandardCharsets.UTF_8)));
+		activeFingerprint = fingerprint;
+	}
+
+	public void start() throws IOException {
+		watchService = FileSystems.getDefault().newWatchService();
+		filterFile.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+
+		thread = new Thread(this, "elr-filter-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("Watching " + filterFile + " for filter changes");
+	}
+
+	public void stop() {
+		try {
+			if (watchService != null) {
+				watchService.close();
+			}
+		} catch (IOException e) {
+			LOGGER.error("Failed to close the filter watcher: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			boolean changed = false;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				Object context = event.context();
+				if (context instanceof Path && filterFile.getFileName().equals(context)) {
+					changed = true;
+				}
+			}
+			if (!key.reset()) {
+				LOGGER.error("Filter directory is no longer accessible. Hot reload is stopped.");
+				return;
+			}
+
+			if (!changed) {
+				continue;
+			}
+
+			try {
+				// Swallow the burst of events from the same save.
+				TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+				WatchKey more;
+				while ((more = watchService.poll()) != null) {
+					more.pollEvents();
+					more.reset();
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			reload();
+		}
+	}
+
+	private void reload() {
+		String before = activeFingerprint;
+		try {
+			load();
+			if (!activeFingerprint.equals(before)) {
+				reloadCount++;
+				LOGGER.info("V2 filters reloaded from " + filterFile + " (revision " + activeFingerprint + ")");
+			}
+		} catch (Exception e) {
+			reloadFailures++;
+			LOGGER.error("V2 filter reload failed. Keeping revision " + before + ". " + e.getMessage());
+		}
+	}
+
+	public long getReloadCount() {
+		return reloadCount;
+	}
+
+	public long getReloadFailures() {
+		return reloadFailures;
+	}
+
+	/**
+	 * Short hash of the active filter file content.
+	 */
+	public String getActiveFingerprint() {
+		return activeFingerprint;
+	}
+
+	static String fingerprint(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+			return HexFormat.of().formatHex(digest, 0, 6);
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(Arrays.hashCode(content));
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import ca.uhn.hl7v2.HL7Exception;
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+import edu.gatech.chai.hl7.v2.parser.fhir.HL7v23FhirR4Parser;
+import edu.gatech.chai.hl7.v2.parser.fhir.HL7v251FhirR4Parser;
+
+/*
+ * v2-to-FHIR parsers by HL7 v2 message version.
+ *
+ * The parsers are not shared between threads. A thread borrows one for the
+ * message it is converting and gives it back when done. Parsers are created
+ * on demand and up to maxIdle of them are kept per version for reuse.
+ */
+public class V2ParserRegistry {
+	private final Map<String, Pool> pools = new HashMap<String, Pool>();
+
+	private static class Pool {
+		final Supplier<BaseHL7v2FHIRParser> factory;
+		final ConcurrentLinkedQueue<BaseHL7v2FHIRParser> idle = new ConcurrentLinkedQueue<BaseHL7v2FHIRParser>();
+		final AtomicInteger idleCount = new AtomicInteger(0);
+		final int maxIdle;
+
+		Pool(Supplier<BaseHL7v2FHIRParser> factory, int maxIdle) {
+			this.factory = factory;
+			this.maxIdle = maxIdle;
+		}
+	}
+
+	public V2ParserRegistry(int maxIdle) {
+		pools.put("2.3", new Pool(HL7v23FhirR4Parser::new, maxIdle));
+		pools.put("2.5.1", new Pool(HL7v251FhirR4Parser::new, maxIdle));
+	}
+
+	public boolean supports(String version) {
+		return version != null && pools.containsKey(version);
+	}
+
+	public BaseHL7v2FHIRParser borrow(String version) throws HL7Exception {
+		Pool pool = version == null ? null : pools.get(version);
+		if (pool == null) {
+			throw new HL7Exception("Unsupported message version " + version);
+		}
+
+		BaseHL7v2FHIRParser parser = pool.idle.poll();
+		if (parser != null) {
+			pool.idleCount.decrementAndGet();
+			return parser;
+		}
+
+		return pool.factory.get();
+	}
+
+	public void release(String version, BaseHL7v2FHIRParser parser) {
+		Pool pool = version == null ? null : pools.get(version);
+		if (pool == null || parser == null) {
+			return;
+		}
+
+		if (pool.idleCount.incrementAndGet() <= pool.maxIdle) {
+			pool.idle.offer(parser);
+		} else {
+			pool.idleCount.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.util.Terser;
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+
+/*
+ * Takes the receive path through its first steps before the listeners start.
+ *
+ * Without it, the HAPI v2 model classes of a version, the v2-to-FHIR
+ * converter and the FHIR JSON parser are loaded by the first messages after
+ * a restart. The synthetic ORU_R01 messages in /warmup (v2.3 and v2.5.1) are
+ * scanned, parsed, filtered, converted and acknowledged, and the bundles are
+ * encoded and parsed back as for the retry queue, iterations times. Nothing
+ * is delivered, queued, archived or counted in the metrics.
+ *
+ * What is not warmed: the FHIR client is created, but the controller is not
+ * called, as it may not be up yet. The first $registry-control call still
+ * opens its connection (and TLS session) and runs the client's request and
+ * response code for the first time.
+ */
+public class Warmup {
+	static final String[] MESSAGES = { "/warmup/oru_r01_v23.hl7", "/warmup/oru_r01_v251.hl7" };
+	// For the training run of the class data sharing archive, which has no controller
+	static final String NO_CONTROLLER_URL = "http://localhost/fhir";
+
+	private final HL7v2ReceiverFHIRApplication<?> handler;
+
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(Warmup.class.getName());
+
+	public Warmup(HL7v2ReceiverFHIRApplication<?> handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * iterations: 0 or less skips the warm-up. A failure is logged, not thrown:
+	 * a receiver that did not warm up still works.
+	 */
+	public void run(int iterations) {
+		if (iterations <= 0) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		try {
+			Parser parser = new DefaultHapiContext().getGenericParser();
+			IParser jsonParser = handler.getFhirContext().newJsonParser();
+			String[] rawMessages = new String[MESSAGES.length];
+			for (int i = 0; i < MESSAGES.length; i++) {
+				rawMessages[i] = load(MESSAGES[i]);
+			}
+
+			int bundles = 0;
+			for (int n = 0; n < iterations; n++) {
+				for (String rawMessage : rawMessages) {
+					bundles += runOnce(rawMessage, parser, jsonParser);
+				}
+			}
+
+			if (handler.getControllerApiUrl() != null) {
+				handler.getFhirClient();
+			} else {
+				handler.getFhirClientPool().getClient(NO_CONTROLLER_URL, null);
+			}
+
+			LOGGER.info(String.format("Warm-up done in %dms: %d messages, %d bundles",
+					(System.nanoTime() - start) / 1_000_000L, iterations * rawMessages.length, bundles));
+		} catch (Exception e) {
+			LOGGER.warn("Warm-up failed after " + (System.nanoTime() - start) / 1_000_000L + "ms: " + e);
+		}
+	}
+
+	private int runOnce(String rawMessage, Parser parser, IParser jsonParser) throws Exception {
+		MshScanner.Header header = MshScanner.scan(rawMessage);
+		MshScanner.observationCodes(rawMessage, header);
+
+		Message message = parser.parse(rawMessage);
+		handler.isSupportedMessage(message);
+		new Terser(message).get("/MSH-10");
+		V2FilterSet filters = handler.getV2FilterSet();
+		if (filters != null) {
+			filters.accepts(handler.collectObservations(message));
+		}
+
+		String version = message.getVersion();
+		BaseHL7v2FHIRParser converter = handler.getParserRegistry().borrow(version);
+		List<IBaseBundle> bundles;
+		try {
+			bundles = converter.executeParser(message);
+		} finally {
+			handler.getParserRegistry().release(version, converter);
+		}
+
+		// Encoded even without bundles, for the JSON parser.
+		Parameters parameters = new Parameters();
+		parameters.setParameter("patient-identifier", "WARMUP");
+		for (IBaseBundle bundle : bundles) {
+			parameters.addParameter().setName("lab-results").setResource((Bundle) bundle);
+			jsonParser.parseResource(Bundle.class, jsonParser.encodeResourceToString((Bundle) bundle));
+		}
+		jsonParser.parseResource(Parameters.class, jsonParser.encodeResourceToString(parameters));
+
+		message.generateACK().encode();
+		return bundles.size();
+	}
+
+	private static String load(String name) throws IOException {
+		try (InputStream in = Warmup.class.getResourceAsStream(name)) {
+			if (in == null) {
+				throw new IOException(name + " is not on the classpath");
+			}
+			String text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+			return text.strip().replace("\r\n", "\r").replace('\n', '\r');
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+
+/*
+ * Archive files and their index, rolling to a new file, and a full queue
+ * either dropping records or holding up the caller.
+ */
+public class ArchiveWriterTest extends TestCase {
+	private File dir;
+	private ReceiverMetrics metrics;
+	private ArchiveWriter writer;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("archive-writer-test").toFile();
+		metrics = new ReceiverMetrics(new SimpleMeterRegistry());
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		if (writer != null) {
+			writer.shutdown();
+		}
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private static QueuePayload.JsonSource json(String id) {
+		return out -> out.write("{\"id\":\"" + id + "\"}");
+	}
+
+	private File[] files(String suffix) {
+		File[] files = dir.listFiles((d, name) -> name.startsWith(ArchiveWriter.PREFIX) && name.endsWith(suffix));
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static String gunzip(InputStream in) throws IOException {
+		try (Reader reader = new InputStreamReader(new GZIPInputStream(in), StandardCharsets.UTF_8)) {
+			StringBuilder sb = new StringBuilder();
+			char[] buffer = new char[1024];
+			int n;
+			while ((n = reader.read(buffer)) >= 0) {
+				sb.append(buffer, 0, n);
+			}
+			return sb.toString();
+		}
+	}
+
+	private void awaitArchived(double count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (metrics.archived.count() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, metrics.archived.count());
+	}
+
+	public void testRecordsCanBeFoundFromTheIndex() throws Exception {
+		writer = new ArchiveWriter(dir.getPath(), 1L << 20, TimeUnit.HOURS.toMillis(1), 100, false, metrics);
+		assertTrue(writer.archive("patient-1", json("a")));
+		awaitArchived(1.0);
+		assertTrue(writer.archive("patient-2", json("b")));
+		assertTrue(writer.archive(null, json("c")));
+		writer.shutdown();
+		writer = null;
+
+		File[] archives = files(".ndjson.gz");
+		assertEquals(1, archives.length);
+		byte[] archive = Files.readAllBytes(archives[0].toPath());
+		assertEquals("{\"id\":\"a\"}\n{\"id\":\"b\"}\n{\"id\":\"c\"}\n", gunzip(new ByteArrayInputStream(archive)));
+
+		List<String> index = Files.readAllLines(files(".idx")[0].toPath(), StandardCharsets.UTF_8);
+		assertEquals(3, index.size());
+		String[] b = index.get(1).split("\t", -1);
+		assertEquals("patient-2", b[3]);
+		assertEquals("", index.get(2).split("\t", -1)[3]);
+
+		// The member of b is read on its own from its offset.
+		int offset = Integer.parseInt(b[0]);
+		assertTrue(offset > 0);
+		String member = gunzip(new ByteArrayInputStream(archive, offset, archive.length - offset));
+		assertEquals("{\"id\":\"b\"}", member.split("\n")[Integer.parseInt(b[1])]);
+	}
+
+	public void testNewFileAfterMaxBytes() throws Exception {
+		writer = new ArchiveWriter(dir.getPath(), 1L, TimeUnit.HOURS.toMillis(1), 100, false, metrics);
+		writer.archive("patient-1", json("a"));
+		awaitArchived(1.0);
+		writer.archive("patient-2", json("b"));
+		awaitArchived(2.0);
+		writer.shutdown();
+		writer = null;
+
+		File[] archives = files(".ndjson.gz");
+		assertEquals(2, archives.length);
+		assertEquals(2, files(".idx").length);
+	}
+
+	private static class QueueSlot {
+		final CountDownLatch taken = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+	}
+
+	// The writer thread is held in the first record until release.
+	private QueueSlot fillQueue(boolean blockWhenFull) throws Exception {
+		QueueSlot slot = new QueueSlot();
+		writer = new ArchiveWriter(dir.getPath(), 1L << 20, TimeUnit.HOURS.toMillis(1), 1, blockWhenFull, metrics);
+		writer.archive("patient-1", out -> {
+			slot.taken.countDown();
+			try {
+				slot.release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			out.write("{}");
+		});
+		assertTrue(slot.taken.await(5, TimeUnit.SECONDS));
+		assertTrue(writer.archive("patient-2", json("b")));
+		return slot;
+	}
+
+	public void testFullQueueDropsRecords() throws Exception {
+		QueueSlot slot = fillQueue(false);
+
+		assertFalse(writer.archive("patient-3", json("c")));
+		assertEquals(1.0, metrics.archiveFull.count());
+		assertEquals(1.0, metrics.archiveDropped.count());
+
+		slot.release.countDown();
+		awaitArchived(2.0);
+	}
+
+	public void testFullQueueHoldsUpTheCallerWhenBlocking() throws Exception {
+		QueueSlot slot = fillQueue(true);
+
+		CompletableFuture<Boolean> third = CompletableFuture.supplyAsync(() -> writer.archive("patient-3", json("c")));
+		Thread.sleep(200);
+		assertFalse(third.isDone());
+
+		slot.release.countDown();
+		assertTrue(third.get(5, TimeUnit.SECONDS));
+		awaitArchived(3.0);
+		assertEquals(1.0, metrics.archiveFull.count());
+		assertEquals(0.0, metrics.archiveDropped.count());
+	}
+}
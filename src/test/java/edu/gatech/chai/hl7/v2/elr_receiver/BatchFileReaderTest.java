@@ -0,0 +1,128 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/*
+ * Message boundaries and end offsets of the batch file reader, resuming from
+ * an offset, and how completed messages move the checkpoint of a file.
+ */
+public class BatchFileReaderTest extends TestCase {
+	private static String msh(int i) {
+		return "MSH|^~\\&|LAB|FAC|ELR|CDC|20240101||ORU^R01|" + i + "|P|2.5.1";
+	}
+
+	private static List<BatchFileReader.Entry> readAll(byte[] file, long offset) throws IOException {
+		List<BatchFileReader.Entry> entries = new ArrayList<BatchFileReader.Entry>();
+		ByteArrayInputStream in = new ByteArrayInputStream(file);
+		in.skip(offset);
+		try (BatchFileReader reader = new BatchFileReader(in, offset, StandardCharsets.UTF_8)) {
+			BatchFileReader.Entry entry;
+			while ((entry = reader.next()) != null) {
+				entries.add(entry);
+			}
+		}
+		return entries;
+	}
+
+	private static List<String> messages(List<BatchFileReader.Entry> entries) {
+		List<String> list = new ArrayList<String>();
+		for (BatchFileReader.Entry entry : entries) {
+			list.add(entry.getMessage());
+		}
+		return list;
+	}
+
+	public void testSegmentsMayEndInCrOrLfOrCrlf() throws IOException {
+		String file = msh(1) + "\rPID|1\rOBX|1\r"
+				+ msh(2) + "\nPID|2\nOBX|2\n"
+				+ msh(3) + "\r\nPID|3\r\nOBX|3";
+
+		assertEquals(List.of(msh(1) + "\rPID|1\rOBX|1", msh(2) + "\rPID|2\rOBX|2", msh(3) + "\rPID|3\rOBX|3"),
+				messages(readAll(file.getBytes(StandardCharsets.UTF_8), 0L)));
+	}
+
+	public void testEnvelopeAndCommentsAreSkipped() throws IOException {
+		String file = "FHS|^~\\&|LAB\rBHS|^~\\&|LAB\r"
+				+ "PID|outside\r"
+				+ msh(1) + "\rPID|1\r"
+				+ "# Rejected: a reason\r"
+				+ msh(2) + "\rPID|2\r"
+				+ "BTS|2\rFTS|1\r";
+
+		assertEquals(List.of(msh(1) + "\rPID|1", msh(2) + "\rPID|2"),
+				messages(readAll(file.getBytes(StandardCharsets.UTF_8), 0L)));
+	}
+
+	public void testMllpFramingIsDropped() throws IOException {
+		String file = "\u000b" + msh(1) + "\rPID|1\r\u001c\r" + "\u000b" + msh(2) + "\rPID|2\r\u001c\r";
+
+		assertEquals(List.of(msh(1) + "\rPID|1", msh(2) + "\rPID|2"),
+				messages(readAll(file.getBytes(StandardCharsets.UTF_8), 0L)));
+	}
+
+	public void testReadingFromAnEndOffsetStartsAtTheNextMessage() throws IOException {
+		// More than one buffer, with multi-byte characters.
+		StringBuilder file = new StringBuilder("FHS|^~\\&\rBHS|^~\\&\r");
+		int count = 0;
+		while (file.length() < 3 * BatchFileReader.BUFFER_SIZE) {
+			file.append(msh(count)).append("\r\nPID|1||Müller^Zoë\r\nOBX|1|ST|100^A||").append(count).append("\r\n");
+			count++;
+		}
+		file.append("BTS|").append(count).append("\rFTS|1\r");
+		byte[] bytes = file.toString().getBytes(StandardCharsets.UTF_8);
+
+		List<BatchFileReader.Entry> all = readAll(bytes, 0L);
+		assertEquals(count, all.size());
+		for (int i = 0; i < all.size() - 1; i++) {
+			assertEquals(String.valueOf(i), all.get(i).getMessage().split("\\|")[9]);
+			// Every offset near a buffer boundary, a sample of the others.
+			long inBuffer = all.get(i).getEndOffset() % BatchFileReader.BUFFER_SIZE;
+			if (i % 25 != 0 && inBuffer > 256 && inBuffer < BatchFileReader.BUFFER_SIZE - 256) {
+				continue;
+			}
+			List<BatchFileReader.Entry> rest = readAll(bytes, all.get(i).getEndOffset());
+			assertEquals(count - i - 1, rest.size());
+			assertEquals(all.get(i + 1).getMessage(), rest.get(0).getMessage());
+			assertEquals(all.get(i + 1).getEndOffset(), rest.get(0).getEndOffset());
+		}
+		assertTrue(readAll(bytes, all.get(all.size() - 1).getEndOffset()).isEmpty());
+	}
+
+	public void testEmptyFile() throws IOException {
+		assertTrue(readAll(new byte[0], 0L).isEmpty());
+		assertTrue(readAll("\r\n\r\n".getBytes(StandardCharsets.UTF_8), 0L).isEmpty());
+	}
+
+	public void testCheckpointMovesOverCompletedPrefixOnly() throws Exception {
+		File checkpoint = File.createTempFile("batch", BatchFileIngester.CHECKPOINT_SUFFIX);
+		try {
+			BatchFileIngester.Progress progress = new BatchFileIngester.Progress(checkpoint, 42L, 0L, 0L);
+			BatchFileIngester.Pending first = progress.started(100L);
+			BatchFileIngester.Pending second = progress.started(200L);
+			BatchFileIngester.Pending third = progress.started(300L);
+
+			progress.completed(second);
+			assertEquals(0L, progress.getOffset());
+			assertEquals(0L, progress.getMessages());
+
+			progress.completed(first);
+			assertEquals(200L, progress.getOffset());
+			assertEquals(2L, progress.getMessages());
+
+			progress.completed(third);
+			progress.awaitCompleted();
+			progress.write();
+			assertEquals("300\t3\t42\n", Files.readString(checkpoint.toPath(), StandardCharsets.UTF_8));
+		} finally {
+			checkpoint.delete();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/*
+ * AIMD limit on calls in flight: waiting for a slot, one halving per
+ * congestion signal, the minLimit floor, and the slow increase back to
+ * maxLimit.
+ */
+public class CallLimiterTest extends TestCase {
+	private static long[] acquire(CallLimiter limiter, int n) throws InterruptedException {
+		long[] tickets = new long[n];
+		for (int i = 0; i < n; i++) {
+			tickets[i] = limiter.acquire();
+		}
+		return tickets;
+	}
+
+	public void testCallerWaitsForAFreeSlot() throws Exception {
+		CallLimiter limiter = new CallLimiter(1, 2);
+		long[] tickets = acquire(limiter, 2);
+		assertEquals(2, limiter.getInFlight());
+
+		CompletableFuture<Long> third = CompletableFuture.supplyAsync(() -> {
+			try {
+				return limiter.acquire();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Thread.sleep(100);
+		assertFalse(third.isDone());
+
+		limiter.release(tickets[0], false);
+		third.get(5, TimeUnit.SECONDS);
+		assertEquals(2, limiter.getInFlight());
+	}
+
+	public void testCallsOutBeforeAHalvingDoNotHalveAgain() throws Exception {
+		CallLimiter limiter = new CallLimiter(1, 8);
+		assertEquals(8, limiter.getLimit());
+
+		// A dead controller fails everything that is out at once.
+		long[] tickets = acquire(limiter, 8);
+		for (long ticket : tickets) {
+			limiter.release(ticket, true);
+		}
+		assertEquals(4, limiter.getLimit());
+		assertEquals(0, limiter.getInFlight());
+
+		// A call sent after the halving is a new signal.
+		limiter.release(limiter.acquire(), true);
+		assertEquals(2, limiter.getLimit());
+		limiter.release(limiter.acquire(), true);
+		limiter.release(limiter.acquire(), true);
+		assertEquals(1, limiter.getLimit());
+		limiter.release(limiter.acquire(), true);
+		assertEquals(1, limiter.getLimit());
+	}
+
+	public void testLimitGrowsByAboutOnePerLimitCalls() throws Exception {
+		CallLimiter limiter = new CallLimiter(2, 6);
+		limiter.release(limiter.acquire(), true);
+		limiter.release(limiter.acquire(), true);
+		assertEquals(2, limiter.getLimit());
+
+		for (int i = 0; i < 2; i++) {
+			limiter.release(limiter.acquire(), false);
+		}
+		// 2 + 1/2 + 1/2.5
+		assertEquals(2, limiter.getLimit());
+		limiter.release(limiter.acquire(), false);
+		assertEquals(3, limiter.getLimit());
+
+		for (int i = 0; i < 100; i++) {
+			limiter.release(limiter.acquire(), false);
+		}
+		assertEquals(6, limiter.getLimit());
+	}
+
+	public void testEqualLimitsMakeASemaphore() throws Exception {
+		CallLimiter limiter = new CallLimiter(3, 3);
+		for (int i = 0; i < 5; i++) {
+			limiter.release(limiter.acquire(), true);
+		}
+		assertEquals(3, limiter.getLimit());
+		acquire(limiter, 3);
+		assertEquals(3, limiter.getInFlight());
+	}
+}
@@ -0,0 +1,179 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+
+/*
+ * State transitions of the circuit breaker: CLOSED to OPEN on failures and
+ * slow calls, OPEN to HALF_OPEN after openSeconds, and the probe calls,
+ * including ones given back with cancel(), and calls whose outcome comes in
+ * after the circuit changed state.
+ */
+public class CircuitBreakerTest extends TestCase {
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+	private ReceiverMetrics metrics;
+
+	@Override
+	protected void setUp() {
+		metrics = new ReceiverMetrics(new SimpleMeterRegistry());
+	}
+
+	// 50% failed or slow (100 ms) of the last 10 calls, open for 1 s, 2 probes.
+	private CircuitBreaker breaker() {
+		return new CircuitBreaker(50, 100, 50, 10, 1, 2, metrics);
+	}
+
+	private static void record(CircuitBreaker breaker, int calls, boolean failed, long durationNanos) {
+		for (int i = 0; i < calls; i++) {
+			long ticket = breaker.tryAcquire();
+			assertTrue(ticket != CircuitBreaker.REFUSED);
+			breaker.record(ticket, failed, durationNanos);
+		}
+	}
+
+	private static void awaitHalfOpen(CircuitBreaker breaker) throws InterruptedException {
+		Thread.sleep(breaker.getOpenMillisRemaining() + 50);
+	}
+
+	public void testStaysClosedBelowMinCalls() {
+		CircuitBreaker breaker = breaker();
+		record(breaker, CircuitBreaker.MIN_CALLS - 1, true, FAST);
+
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(0L, breaker.getOpenMillisRemaining());
+	}
+
+	public void testOpensOnFailureRate() {
+		CircuitBreaker breaker = breaker();
+		record(breaker, 5, false, FAST);
+		record(breaker, 4, true, FAST);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+		record(breaker, 1, true, FAST);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire());
+		assertTrue(breaker.getOpenMillisRemaining() > 0);
+		assertEquals(1.0, metrics.breakerOpened.count());
+	}
+
+	public void testOpensOnSlowCallRate() {
+		CircuitBreaker breaker = breaker();
+		assertTrue(breaker.isSlow(SLOW));
+		assertFalse(breaker.isSlow(FAST));
+
+		record(breaker, 5, false, FAST);
+		record(breaker, 5, false, SLOW);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	public void testOldCallsLeaveTheWindow() {
+		CircuitBreaker breaker = breaker();
+		record(breaker, 4, true, FAST);
+		record(breaker, 10, false, FAST);
+		// The four failures are out of the window of 10.
+		record(breaker, 4, true, FAST);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+		record(breaker, 1, true, FAST);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	public void testZeroRatesNeverOpen() {
+		CircuitBreaker breaker = new CircuitBreaker(0, 0, 0, 10, 1, 1, metrics);
+		record(breaker, 20, true, SLOW);
+
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	public void testProbesCloseTheCircuit() throws InterruptedException {
+		CircuitBreaker breaker = breaker();
+		AtomicInteger closed = new AtomicInteger();
+		breaker.onClose(closed::incrementAndGet);
+		record(breaker, 10, true, FAST);
+
+		awaitHalfOpen(breaker);
+		long first = breaker.tryAcquire();
+		assertTrue(first != CircuitBreaker.REFUSED);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		long second = breaker.tryAcquire();
+		assertTrue(second != CircuitBreaker.REFUSED);
+		assertEquals("only two probes", CircuitBreaker.REFUSED, breaker.tryAcquire());
+
+		breaker.record(first, false, FAST);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		breaker.record(second, false, FAST);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(1, closed.get());
+
+		// The window starts over.
+		record(breaker, CircuitBreaker.MIN_CALLS - 1, true, FAST);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	public void testCancelledProbeFreesItsSlotAndFailedProbeReopens() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(50, 100, 50, 10, 1, 1, metrics);
+		record(breaker, 10, true, FAST);
+
+		awaitHalfOpen(breaker);
+		long probe = breaker.tryAcquire();
+		assertTrue(probe != CircuitBreaker.REFUSED);
+		assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire());
+
+		// The call was never made.
+		breaker.cancel(probe);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		probe = breaker.tryAcquire();
+		assertTrue(probe != CircuitBreaker.REFUSED);
+
+		breaker.record(probe, false, SLOW);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire());
+		assertEquals(2.0, metrics.breakerOpened.count());
+	}
+
+	public void testCancelWhileClosedRecordsNothing() {
+		CircuitBreaker breaker = breaker();
+		for (int i = 0; i < 20; i++) {
+			breaker.cancel(breaker.tryAcquire());
+		}
+		record(breaker, CircuitBreaker.MIN_CALLS - 1, true, FAST);
+
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	public void testOutcomesFromAnEarlierStateAreIgnored() throws InterruptedException {
+		CircuitBreaker breaker = breaker();
+		// Let through while CLOSED, still in flight when the circuit opens.
+		long early = breaker.tryAcquire();
+		long earlyCancelled = breaker.tryAcquire();
+		record(breaker, 10, true, FAST);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		awaitHalfOpen(breaker);
+		long first = breaker.tryAcquire();
+		long second = breaker.tryAcquire();
+		assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire());
+
+		// Neither counts as a probe, nor frees a probe slot.
+		breaker.record(early, false, FAST);
+		breaker.cancel(earlyCancelled);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire());
+
+		breaker.record(first, false, FAST);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		breaker.record(second, false, FAST);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+		// A probe that comes back after the circuit closed is not counted in
+		// the new window either.
+		breaker.record(first, true, FAST);
+		record(breaker, CircuitBreaker.MIN_CALLS - 1, true, FAST);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+}
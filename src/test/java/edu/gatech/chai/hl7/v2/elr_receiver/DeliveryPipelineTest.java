@@ -0,0 +1,144 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.protocol.ReceivingApplicationException;
+import ca.uhn.hl7v2.util.Terser;
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+
+/*
+ * Which journaled messages leave the journal: sent, queued for retry, and
+ * failed ones, including failed ones whose dead-letter write fails, and
+ * messages replayed after a restart.
+ */
+public class DeliveryPipelineTest extends TestCase {
+	private File dir;
+	private String journalFileName;
+	private ReceiverMetrics metrics;
+	private final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+	private HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser> app;
+	private QueueFileJournal journal;
+	private DeliveryPipeline pipeline;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("delivery-pipeline-test").toFile();
+		journalFileName = new File(dir, "inbound").getPath();
+		metrics = new ReceiverMetrics(new SimpleMeterRegistry());
+		// MSH-10 says how delivery goes.
+		app = new HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser>() {
+			@Override
+			public void deliverMessage(Message theMessage, boolean large)
+					throws ReceivingApplicationException, HL7Exception {
+				String controlId = new Terser(theMessage).get("/MSH-10");
+				if (controlId.startsWith("queued")) {
+					throw new QueuedForRetryException("Controller down");
+				} else if (controlId.startsWith("bad")) {
+					throw new ReceivingApplicationException("Patient.identifier not found");
+				}
+				delivered.add(controlId);
+			}
+		};
+		app.configMetrics(metrics);
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		if (pipeline != null) {
+			pipeline.shutdown();
+		}
+		journal.close();
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private void start(String deadLetterFileName) throws IOException {
+		journal = new QueueFileJournal(journalFileName);
+		pipeline = new DeliveryPipeline(app, journal, deadLetterFileName, 2, 10);
+	}
+
+	private static String raw(String controlId) {
+		return "MSH|^~\\&|LAB|FAC|ELR|CDC|20240101120000||ORU^R01^ORU_R01|" + controlId + "|P|2.5.1\rPID|1\r";
+	}
+
+	private void submit(String controlId) throws Exception {
+		String rawMessage = raw(controlId);
+		try {
+			pipeline.submit(PipeParser.getInstanceWithNoValidation().parse(rawMessage), rawMessage).get(5,
+					TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			// Failed or queued. The journal is what is checked.
+		}
+	}
+
+	// The journal entry is completed after the future.
+	private void awaitIdle() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pipeline.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(0, pipeline.getInFlight());
+	}
+
+	public void testSentQueuedAndFailedMessagesLeaveTheJournal() throws Exception {
+		String deadLetterFileName = new File(dir, "inbound.dead").getPath();
+		start(deadLetterFileName);
+
+		submit("ok-1");
+		submit("queued-1");
+		submit("bad-1");
+		awaitIdle();
+
+		assertEquals(List.of("ok-1"), delivered);
+		assertEquals(0, journal.size());
+		assertEquals(1.0, metrics.journalDeadLettered.count());
+		String deadLetters = Files.readString(new File(deadLetterFileName).toPath(), StandardCharsets.UTF_8);
+		assertTrue(deadLetters.startsWith("# "));
+		assertTrue(deadLetters.contains(raw("bad-1")));
+	}
+
+	public void testFailedMessageLeavesTheJournalWhenTheDeadLetterFileCannotBeWritten() throws Exception {
+		// A directory cannot be opened as the dead-letter file.
+		start(dir.getPath());
+
+		submit("bad-1");
+		submit("ok-1");
+		awaitIdle();
+
+		assertEquals(List.of("ok-1"), delivered);
+		assertEquals(1.0, metrics.journalDeadLettered.count());
+		assertEquals(0, journal.size());
+	}
+
+	public void testRecoverReplaysWhatWasLeftInTheJournal() throws Exception {
+		journal = new QueueFileJournal(journalFileName);
+		journal.append(raw("ok-1"));
+		journal.append("not HL7");
+		journal.append(raw("ok-2"));
+		journal.close();
+
+		start(dir.getPath());
+		pipeline.recover();
+		awaitIdle();
+
+		assertEquals(List.of("ok-1", "ok-2"), delivered.stream().sorted().toList());
+		assertEquals(0, journal.size());
+	}
+}
@@ -0,0 +1,167 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/*
+ * Claiming, completing and abandoning keys, waiting for an in-flight
+ * original, expiry, and reloading the log.
+ */
+public class DuplicateSuppressorTest extends TestCase {
+	private File dir;
+	private String fileName;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("duplicate-suppressor-test").toFile();
+		fileName = new File(dir, "duplicates").getPath();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	public void testKeys() throws IOException {
+		DuplicateSuppressor plain = new DuplicateSuppressor(60, 100, false, null);
+		DuplicateSuppressor hashed = new DuplicateSuppressor(60, 100, true, null);
+
+		assertNull(plain.keyOf("FAC", null, "MSH|1"));
+		assertNull(plain.keyOf("FAC", "", "MSH|1"));
+		assertEquals("FAC|42", plain.keyOf("FAC", "42", "MSH|1"));
+		assertEquals("|42", plain.keyOf(null, "42", "MSH|1"));
+
+		assertEquals(hashed.keyOf("FAC", "42", "MSH|1"), hashed.keyOf("FAC", "42", "MSH|1"));
+		assertFalse(hashed.keyOf("FAC", "42", "MSH|1").equals(hashed.keyOf("FAC", "42", "MSH|2")));
+	}
+
+	public void testResendGetsTheOriginalAck() throws Exception {
+		DuplicateSuppressor suppressor = new DuplicateSuppressor(60, 100, false, null);
+
+		assertNull(suppressor.begin("k"));
+		suppressor.complete("k", "ACK-1");
+
+		DuplicateSuppressor.Entry original = suppressor.begin("k");
+		assertNotNull(original);
+		assertEquals("ACK-1", suppressor.awaitAck(original));
+	}
+
+	public void testResendWaitsForTheInFlightOriginal() throws Exception {
+		DuplicateSuppressor suppressor = new DuplicateSuppressor(60, 100, false, null);
+		assertNull(suppressor.begin("k"));
+
+		DuplicateSuppressor.Entry original = suppressor.begin("k");
+		assertNotNull(original);
+		CompletableFuture<String> resend = CompletableFuture.supplyAsync(() -> {
+			try {
+				return suppressor.awaitAck(original);
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertFalse(resend.isDone());
+
+		suppressor.complete("k", "ACK-1");
+		assertEquals("ACK-1", resend.get(5, TimeUnit.SECONDS));
+	}
+
+	public void testAbandonedOriginalLetsTheResendThrough() throws Exception {
+		DuplicateSuppressor suppressor = new DuplicateSuppressor(60, 100, false, null);
+		assertNull(suppressor.begin("k"));
+		DuplicateSuppressor.Entry original = suppressor.begin("k");
+
+		suppressor.abandon("k");
+		assertNull(suppressor.awaitAck(original));
+		assertNull("the resend claims the key", suppressor.begin("k"));
+	}
+
+	public void testAbandonAfterCompleteKeepsTheAck() throws Exception {
+		DuplicateSuppressor suppressor = new DuplicateSuppressor(60, 100, false, null);
+		assertNull(suppressor.begin("k"));
+		suppressor.complete("k", "ACK-1");
+
+		suppressor.abandon("k");
+		assertEquals("ACK-1", suppressor.awaitAck(suppressor.begin("k")));
+	}
+
+	public void testExpiredEntriesBehindAnInFlightOneArePruned() throws Exception {
+		// A window of 0 expires entries as soon as they complete.
+		DuplicateSuppressor suppressor = new DuplicateSuppressor(0, 100, false, null);
+		assertNull(suppressor.begin("slow"));
+		for (int i = 0; i < 10; i++) {
+			assertNull(suppressor.begin("k" + i));
+			suppressor.complete("k" + i, "ACK");
+		}
+		Thread.sleep(5);
+
+		assertNull(suppressor.begin("new"));
+		assertEquals(2, suppressor.size());
+		assertNotNull("still in flight", suppressor.begin("slow"));
+	}
+
+	public void testOldestEntriesAreDroppedAtMaxEntries() throws Exception {
+		DuplicateSuppressor suppressor = new DuplicateSuppressor(60, 3, false, null);
+		for (int i = 0; i < 5; i++) {
+			assertNull(suppressor.begin("k" + i));
+			suppressor.complete("k" + i, "ACK-" + i);
+		}
+
+		assertEquals(3, suppressor.size());
+		assertNull(suppressor.begin("k0"));
+		assertEquals("ACK-4", suppressor.awaitAck(suppressor.begin("k4")));
+	}
+
+	public void testCompletedEntriesAreReloaded() throws Exception {
+		DuplicateSuppressor suppressor = new DuplicateSuppressor(60, 100, false, fileName);
+		assertNull(suppressor.begin("done"));
+		suppressor.complete("done", "ACK-1");
+		assertNull(suppressor.begin("in flight"));
+		assertNull(suppressor.begin("abandoned"));
+		suppressor.abandon("abandoned");
+
+		// A crash in the middle of a line leaves a torn last line.
+		try (FileWriter writer = new FileWriter(fileName, true)) {
+			writer.write("12345\ttorn");
+		}
+
+		DuplicateSuppressor reloaded = new DuplicateSuppressor(60, 100, false, fileName);
+		assertEquals(1, reloaded.size());
+		assertEquals("ACK-1", reloaded.awaitAck(reloaded.begin("done")));
+		assertNull(reloaded.begin("in flight"));
+		assertNull(reloaded.begin("abandoned"));
+	}
+
+	public void testExpiredEntriesAreNotReloaded() throws Exception {
+		DuplicateSuppressor suppressor = new DuplicateSuppressor(0, 100, false, fileName);
+		assertNull(suppressor.begin("k"));
+		suppressor.complete("k", "ACK-1");
+		Thread.sleep(5);
+
+		DuplicateSuppressor reloaded = new DuplicateSuppressor(60, 100, false, fileName);
+		assertEquals(0, reloaded.size());
+	}
+
+	public void testLogIsRewrittenWhenItGrows() throws Exception {
+		DuplicateSuppressor suppressor = new DuplicateSuppressor(60, 2, false, fileName);
+		for (int i = 0; i < 10; i++) {
+			assertNull(suppressor.begin("k" + i));
+			suppressor.complete("k" + i, "ACK-" + i);
+		}
+
+		assertTrue(Files.readAllLines(new File(fileName).toPath()).size() < 4);
+		DuplicateSuppressor reloaded = new DuplicateSuppressor(60, 2, false, fileName);
+		assertEquals("ACK-9", reloaded.awaitAck(reloaded.begin("k9")));
+		assertNull(reloaded.begin("k0"));
+	}
+}
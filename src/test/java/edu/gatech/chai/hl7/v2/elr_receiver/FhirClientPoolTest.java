@@ -0,0 +1,155 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import junit.framework.TestCase;
+
+/*
+ * One client per URL and auth interceptor, made by the pool's own client
+ * factory. And postStreaming() against a local server: the chunked request,
+ * and the Parameters or OperationOutcome it answers with.
+ */
+public class FhirClientPoolTest extends TestCase {
+	private static final String URL = "http://127.0.0.1:1/fhir";
+
+	private FhirContext ctx;
+	private FhirClientPool pool;
+	private HttpServer server;
+	private volatile String transferEncoding;
+	private volatile String authorization;
+	private volatile Parameters received;
+
+	@Override
+	protected void setUp() {
+		ctx = FhirContext.forR4();
+		pool = new FhirClientPool(ctx, 2, 1000, 1000, 1000, 30);
+	}
+
+	@Override
+	protected void tearDown() {
+		pool.close();
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+
+	// Serves $registry-control with the status and body given, and keeps what
+	// it was sent.
+	private String startServer(int status, String body) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/fhir/$registry-control", exchange -> {
+			transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+			authorization = exchange.getRequestHeaders().getFirst("Authorization");
+			received = ctx.newJsonParser().parseResource(Parameters.class,
+					new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/fhir+json");
+			exchange.sendResponseHeaders(status, bytes.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+		});
+		server.start();
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+	}
+
+	private static Parameters request() {
+		Parameters parameters = new Parameters();
+		parameters.setParameter("patient-identifier", "123");
+		parameters.addParameter().setName("lab-results")
+				.setResource(HL7v2ReceiverFHIRApplicationTest.messageBundle("123"));
+		return parameters;
+	}
+
+	public void testClientIsKeptPerUrlAndInterceptor() {
+		BasicAuthInterceptor first = new BasicAuthInterceptor("user", "one");
+		BasicAuthInterceptor second = new BasicAuthInterceptor("user", "two");
+
+		IGenericClient client = pool.getClient(URL, first);
+		assertSame(client, pool.getClient(URL, first));
+		assertNotSame(client, pool.getClient(URL, second));
+		assertNotSame(client, pool.getClient(URL, null));
+		assertSame(pool.getClient(URL, null), pool.getClient(URL, null));
+		assertNotSame(client, pool.getClient("http://127.0.0.1:2/fhir", first));
+
+		assertEquals(1, client.getInterceptorService().getAllRegisteredInterceptors().stream()
+				.filter(interceptor -> interceptor == first).count());
+		assertFalse(pool.getClient(URL, second).getInterceptorService().getAllRegisteredInterceptors()
+				.contains(first));
+	}
+
+	public void testContextFactoryIsLeftAlone() throws Exception {
+		FhirContext other = FhirContext.forR4();
+		ApacheRestfulClientFactory factory = (ApacheRestfulClientFactory) other.getRestfulClientFactory();
+		try (CloseableHttpClient own = HttpClients.createDefault()) {
+			factory.setHttpClient(own);
+
+			FhirClientPool otherPool = new FhirClientPool(other, 4, 5, 5, 5, 30);
+			otherPool.getClient(URL, null);
+			otherPool.close();
+
+			assertSame(factory, other.getRestfulClientFactory());
+			assertSame(own, factory.getNativeHttpClient());
+		}
+	}
+
+	public void testPostStreamingSendsChunkedJson() throws Exception {
+		Parameters answer = new Parameters();
+		answer.addParameter().setName("result").setValue(new StringType("ok"));
+		String url = startServer(200, ctx.newJsonParser().encodeResourceToString(answer));
+
+		Parameters response = pool.postStreaming(url, "$registry-control", request(),
+				new BasicAuthInterceptor("user", "secret"));
+		assertEquals("ok", response.getParameterFirstRep().getValue().primitiveValue());
+		assertEquals("chunked", transferEncoding);
+		assertTrue(authorization.startsWith("Basic "));
+		assertEquals(2, received.getParameter().size());
+		assertEquals("patient-identifier", received.getParameterFirstRep().getName());
+		assertEquals("123", received.getParameterFirstRep().getValue().primitiveValue());
+		assertEquals(0, pool.getLeasedConnections());
+	}
+
+	public void testPostStreamingThrowsTheOperationOutcome() throws Exception {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR).setDiagnostics("no patient");
+		String url = startServer(422, ctx.newJsonParser().encodeResourceToString(outcome));
+
+		try {
+			pool.postStreaming(url, "$registry-control", request(), null);
+			fail("no exception for a 422");
+		} catch (UnprocessableEntityException e) {
+			assertEquals(422, e.getStatusCode());
+			assertEquals("no patient",
+					((OperationOutcome) e.getOperationOutcome()).getIssueFirstRep().getDiagnostics());
+		}
+		assertNull(authorization);
+		assertEquals(0, pool.getLeasedConnections());
+	}
+
+	public void testPostStreamingFailsOnAResponseThatIsNotFhir() throws Exception {
+		String url = startServer(200, "<html>proxy error</html>");
+
+		try {
+			pool.postStreaming(url, "$registry-control", request(), null);
+			fail("read HTML as FHIR");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("$registry-control"));
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Patient;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.protocol.MetadataKeys;
+import ca.uhn.hl7v2.util.Terser;
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+
+/*
+ * The ACK of a message whose bundles went to the retry queue, and resends of
+ * it. The conversion is replaced by a fixed bundle, and no controller runs:
+ * every call is refused by the circuit breaker or fails to connect. Also the
+ * OBX-3/OBX-5 values the filters see in v2.3 and v2.5.1 messages.
+ */
+public class HL7v2ReceiverFHIRApplicationTest extends TestCase {
+	private static final String MESSAGE = "MSH|^~\\&|LAB|FAC|ELR|CDC|20240101120000||ORU^R01^ORU_R01|CTRL-1|P|2.5.1\r"
+			+ "PID|1||123^^^FAC^MR||Doe^John\r"
+			+ "OBR|1\r"
+			+ "OBX|1|ST|100^A^LN||x\r";
+
+	private static final String V23_OBSERVATIONS = "MSH|^~\\&|LAB|FAC|ELR|CDC|20240101120000||ORU^R01|CTRL-2|P|2.3\r"
+			+ "PID|1||123^^^FAC^MR||Doe^John\r"
+			+ "OBR|1\r"
+			+ "OBX|1|ST|123042232^RPR(QUAL)-SERUM^L||Reactive\r"
+			+ "OBX|2|SN|123042230^RPR TITER-SERUM^L||>^1^:^8\r";
+	private static final String V251_OBSERVATIONS = "MSH|^~\\&|LAB|FAC|ELR|CDC|20240101120000||ORU^R01^ORU_R01|CTRL-3|P|2.5.1\r"
+			+ "PID|1||123^^^FAC^MR||Doe^John\r"
+			+ "OBR|1\r"
+			+ "OBX|1|ST|123042232^RPR(QUAL)-SERUM^L||Reactive\r"
+			+ "OBX|2|SN|123042230^RPR TITER-SERUM^L||>^1^:^8\r"
+			+ "SPM|1|||119297000^Blood^SCT\r"
+			+ "OBX|1|ST|999^SPECIMEN NOTE^L||Hemolyzed\r";
+
+	private File dir;
+	private ReceiverMetrics metrics;
+	private HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser> app;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = Files.createTempDirectory("receiver-application-test").toFile();
+		metrics = new ReceiverMetrics(new SimpleMeterRegistry());
+		app = new HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser>() {
+			@Override
+			List<IBaseBundle> convert(Message theMessage) {
+				return Collections.<IBaseBundle>singletonList(messageBundle("123"));
+			}
+		};
+		app.configMetrics(metrics);
+		app.setV2Filters(new JSONObject().put("version", V2FilterSet.SUPPORTED_VERSION).put("status", "allow_all"));
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		for (QueueDrainer queueDrainer : app.getQueueDrainers()) {
+			queueDrainer.shutdown();
+		}
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	// Nothing listens on port 1.
+	private void config() throws Exception {
+		app.config("http://127.0.0.1:1/fhir", false, new File(dir, "queue").getPath(), "NO", null, null, null,
+				dir.getPath());
+	}
+
+	static Bundle messageBundle(String mrn) {
+		Patient patient = new Patient();
+		patient.addIdentifier().setValue(mrn).getType().addCoding().setSystem("http://hl7.org/fhir/v2/0203")
+				.setCode("MR");
+		Bundle document = new Bundle();
+		document.setType(Bundle.BundleType.DOCUMENT);
+		document.addEntry().setResource(patient);
+
+		MessageHeader header = new MessageHeader();
+		header.addFocus().setReference("urn:uuid:document");
+		Bundle message = new Bundle();
+		message.setType(Bundle.BundleType.MESSAGE);
+		message.addEntry().setResource(header);
+		message.addEntry().setFullUrl("urn:uuid:document").setResource(document);
+		return message;
+	}
+
+	private Message receive() throws Exception {
+		Message message = PipeParser.getInstanceWithNoValidation().parse(MESSAGE);
+		Map<String, Object> metadata = new HashMap<String, Object>();
+		metadata.put(MetadataKeys.IN_RAW_MESSAGE, MESSAGE);
+		return app.processMessage(message, metadata);
+	}
+
+	private static String ackCode(Message ack) throws Exception {
+		return new Terser(ack).get("/MSA-1");
+	}
+
+	private void openCircuit() {
+		CircuitBreaker breaker = app.getCircuitBreaker();
+		for (int i = 0; i < 10; i++) {
+			breaker.record(breaker.tryAcquire(), true, TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	public void testResendWhileTheCircuitIsOpenIsQueuedOnce() throws Exception {
+		app.configCircuitBreaker(50, 10000, 50, 10, 60, 1);
+		app.configDuplicates(60, 100, "CONTROL_ID", "");
+		config();
+		openCircuit();
+
+		assertEquals("AA", ackCode(receive()));
+		assertEquals(1, app.getRetryQueue().size());
+
+		// The sender did not get the first ACK and sends the message again.
+		assertEquals("AA", ackCode(receive()));
+		assertEquals("AA", ackCode(receive()));
+		assertEquals(1, app.getRetryQueue().size());
+		assertEquals(2.0, metrics.duplicates.count());
+		assertEquals(1.0, metrics.queued.count());
+	}
+
+	public void testFailedCallIsQueuedAndAcked() throws Exception {
+		app.configFhirClient(2, 1000, 1000, 1000, 30);
+		config();
+
+		assertEquals("AA", ackCode(receive()));
+		assertEquals(1, app.getRetryQueue().size());
+	}
+
+	private static V2FilterSet filter(String segmentValue, String valueType, String value) {
+		return V2FilterSet.compile(new JSONObject().put("version", V2FilterSet.SUPPORTED_VERSION).put("status", "active")
+				.put("filters", new JSONArray().put(new JSONObject().put("conjunction", "or").put("segment_loc", "OBX-3")
+						.put("segment_value_type", "CE").put("segment_value", segmentValue).put("value_loc", "OBX-5")
+						.put("value_type", valueType).put("value_value", value))));
+	}
+
+	// The ST and the SN result are read, and nothing else.
+	private static void assertObservations(List<V2FilterSet.Observation> observations) {
+		assertEquals(2, observations.size());
+		assertEquals("123042232", observations.get(0).getCodeId());
+		assertEquals("123042230", observations.get(1).getCodeId());
+
+		assertTrue(filter("123042232^RPR(QUAL)-SERUM^", "ST", "Reactive").accepts(observations));
+		assertFalse(filter("123042232^RPR(QUAL)-SERUM^", "ST", "Nonreactive").accepts(observations));
+		assertTrue(filter("123042230^RPR TITER-SERUM^", "SN", ">^1^:^4").accepts(observations));
+		assertFalse(filter("123042230^RPR TITER-SERUM^", "SN", ">^1^:^16").accepts(observations));
+		assertFalse(filter("999^SPECIMEN NOTE^", "ST", "Hemolyzed").accepts(observations));
+	}
+
+	public void testObservationsOfAV23Message() throws Exception {
+		Message message = PipeParser.getInstanceWithNoValidation().parse(V23_OBSERVATIONS);
+		assertEquals("2.3", message.getVersion());
+		assertObservations(app.collectObservations(message));
+	}
+
+	public void testObservationsOfAV251MessageLeaveOutTheSpecimen() throws Exception {
+		Message message = PipeParser.getInstanceWithNoValidation().parse(V251_OBSERVATIONS);
+		assertEquals("2.5.1", message.getVersion());
+		assertObservations(app.collectObservations(message));
+	}
+}
@@ -0,0 +1,191 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.app.Connection;
+import ca.uhn.hl7v2.model.GenericMessage;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.protocol.MetadataKeys;
+import ca.uhn.hl7v2.util.Terser;
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+
+/*
+ * Listener settings from listener.<name>.* properties, the filters and
+ * credentials a listener uses, and its PreScreeningParser: a message none of
+ * whose OBX-3 can pass the listener's filters, or one over maxMessageSize, is
+ * parsed as its MSH only. The conversion is replaced by a fixed bundle.
+ */
+public class ListenerTest extends TestCase {
+	private static final String ORU = "MSH|^~\\&|LAB|FAC|ELR|CDC|20240101120000||ORU^R01^ORU_R01|CTRL-1|P|2.5.1\r"
+			+ "PID|1||123^^^FAC^MR||Doe^John\r"
+			+ "OBR|1\r"
+			+ "OBX|1|ST|100^A^LN||x\r";
+	private static final String ADT = "MSH|^~\\&|LAB|FAC|ELR|CDC|20240101120000||ADT^A01^ADT_A01|CTRL-2|P|2.5.1\r"
+			+ "PID|1||123^^^FAC^MR||Doe^John\r";
+
+	private File dir;
+	private ReceiverMetrics metrics;
+	private HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser> app;
+	private Listener listener;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = Files.createTempDirectory("listener-test").toFile();
+		metrics = new ReceiverMetrics(new SimpleMeterRegistry());
+		app = new HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser>() {
+			@Override
+			List<IBaseBundle> convert(Message theMessage) {
+				return Collections.<IBaseBundle>singletonList(HL7v2ReceiverFHIRApplicationTest.messageBundle("123"));
+			}
+		};
+		app.configMetrics(metrics);
+		app.setV2Filters(new JSONObject().put("version", V2FilterSet.SUPPORTED_VERSION).put("status", "allow_all"));
+		// Nothing listens on port 1.
+		app.config("http://127.0.0.1:1/fhir", false, new File(dir, "queue").getPath(), "NO", "handler:secret", null,
+				null, dir.getPath());
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		if (listener != null) {
+			listener.stop();
+		}
+		for (QueueDrainer queueDrainer : app.getQueueDrainers()) {
+			queueDrainer.shutdown();
+		}
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	// Accepts only messages with an OBX-3 of 200.
+	private String writeFilterFile() throws IOException {
+		JSONObject filters = new JSONObject().put("version", V2FilterSet.SUPPORTED_VERSION).put("status", "active")
+				.put("filters", new JSONArray().put(new JSONObject().put("conjunction", "or").put("segment_loc", "OBX-3")
+						.put("segment_value_type", "CE").put("segment_value", "200^B^").put("value_loc", "OBX-5")
+						.put("value_type", "ST").put("value_value", "x")));
+		File file = new File(dir, "filters.json");
+		Files.write(file.toPath(), filters.toString().getBytes(StandardCharsets.UTF_8));
+		return file.getPath();
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private Message receive(Parser parser, String raw) throws Exception {
+		Message message = parser.parse(raw);
+		Map<String, Object> metadata = new HashMap<String, Object>();
+		metadata.put(MetadataKeys.IN_RAW_MESSAGE, raw);
+		return listener.processMessage(message, metadata);
+	}
+
+	private static String ackCode(Message ack) throws Exception {
+		return new Terser(ack).get("/MSA-1");
+	}
+
+	public void testFromPropertiesTakesUnsetValuesFromTheDefaults() throws Exception {
+		Listener defaults = new Listener(app, "mllp", Listener.MLLP, 6661);
+		Properties prop = new Properties();
+		prop.setProperty("listener.lab.port", "6662");
+		prop.setProperty("listener.lab.v2FilterFile", writeFilterFile());
+		prop.setProperty("listener.http.transport", Listener.HTTP);
+
+		listener = Listener.fromProperties(app, "lab", prop, defaults);
+		assertEquals("lab", listener.getName());
+		assertEquals(Listener.MLLP, listener.getTransport());
+		assertEquals(6662, listener.getPort());
+		assertNotSame(app.getV2FilterSet(), listener.getV2FilterSet());
+		assertFalse(listener.getV2FilterSet().isAllowAll());
+
+		Listener http = Listener.fromProperties(app, "http", prop, defaults);
+		assertEquals(Listener.HTTP, http.getTransport());
+		assertEquals(6661, http.getPort());
+		assertSame(app.getV2FilterSet(), http.getV2FilterSet());
+	}
+
+	public void testOwnCredentialsOrTheHandlers() {
+		listener = new Listener(app, "http", Listener.HTTP, 0);
+		assertTrue(listener.authorize("/elrreceiver", "handler", "secret"));
+
+		listener.configHttpBasic("lab:secret");
+		assertTrue(listener.authorize("/elrreceiver/", "lab", "secret"));
+		assertFalse(listener.authorize("/elrreceiver", "handler", "secret"));
+		assertFalse(listener.authorize("/other", "lab", "secret"));
+
+		listener.configHttpBasic("");
+		assertTrue(listener.authorize("/elrreceiver", "handler", "secret"));
+	}
+
+	public void testPreScreeningUsesTheFiltersOfTheListener() throws Exception {
+		listener = new Listener(app, "lab", Listener.MLLP, 0);
+		HapiContext ctx = new DefaultHapiContext();
+		Parser parser = new PreScreeningParser(ctx, app, listener::getV2FilterSet);
+
+		// The global filters allow all.
+		Message full = parser.parse(ORU);
+		assertFalse(full instanceof GenericMessage);
+
+		listener.configV2Filters(writeFilterFile(), false);
+		assertTrue(parser.parse(ORU) instanceof GenericMessage);
+		assertEquals("AA", ackCode(receive(parser, ORU)));
+		assertEquals(1.0, metrics.filtered.count());
+		assertEquals(0.0, metrics.accepted.count());
+
+		assertTrue(listener.canProcess(full));
+		Message adt = parser.parse(ADT);
+		assertFalse(listener.canProcess(adt));
+	}
+
+	public void testMessageOverMaxSizeIsRejectedFromItsMsh() throws Exception {
+		app.configMessageSize(ORU.length() - 1, 0);
+		listener = new Listener(app, "lab", Listener.MLLP, 0);
+		Parser parser = new PreScreeningParser(new DefaultHapiContext(), app, listener::getV2FilterSet);
+
+		assertTrue(parser.parse(ORU) instanceof GenericMessage);
+		assertEquals("AR", ackCode(receive(parser, ORU)));
+		assertEquals(1.0, metrics.tooLarge.count());
+		assertEquals(0.0, metrics.accepted.count());
+	}
+
+	public void testMllpListenerAcknowledgesOverTheWire() throws Exception {
+		int port = freePort();
+		listener = new Listener(app, "lab", Listener.MLLP, port);
+		listener.configV2Filters(writeFilterFile(), false);
+		listener.start();
+
+		HapiContext ctx = new DefaultHapiContext();
+		Connection connection = ctx.newClient("127.0.0.1", port, false);
+		try {
+			Message ack = connection.getInitiator().sendAndReceive(ctx.getPipeParser().parse(ORU));
+			assertEquals("AA", ackCode(ack));
+		} finally {
+			connection.close();
+			ctx.close();
+		}
+		assertEquals(1.0, metrics.filtered.count());
+	}
+}
@@ -0,0 +1,83 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/*
+ * Field indexing of the raw MSH and OBX-3 scan.
+ */
+public class MshScannerTest extends TestCase {
+	private static final String MSH = "MSH|^~\\&|LAB^1.2.3^ISO|FAC^2.16.840^ISO|ELR|CDC|20240101120000||ORU^R01^ORU_R01|CTRL-1|P|2.5.1^^";
+
+	public void testMshFields() {
+		MshScanner.Header header = MshScanner.scan(MSH + "\rPID|1\r");
+
+		assertNotNull(header);
+		assertEquals('|', header.getFieldSeparator());
+		assertEquals('^', header.getComponentSeparator());
+		assertEquals('\\', header.getEscapeCharacter());
+		assertEquals("FAC", header.getSendingFacility());
+		assertEquals("ORU", header.getMessageType());
+		assertEquals("R01", header.getTriggerEvent());
+		assertEquals("ORU_R01", header.getMessageStructure());
+		assertEquals("CTRL-1", header.getControlId());
+		assertEquals("2.5.1", header.getVersion());
+		assertEquals(MSH.length(), header.getEnd());
+	}
+
+	public void testOtherDelimiters() {
+		MshScanner.Header header = MshScanner.scan("MSH#@~\\&#LAB#FAC@X#ELR#CDC#20240101##ADT@A01#42#P#2.3");
+
+		assertEquals('#', header.getFieldSeparator());
+		assertEquals('@', header.getComponentSeparator());
+		assertEquals("FAC", header.getSendingFacility());
+		assertEquals("ADT", header.getMessageType());
+		assertEquals("A01", header.getTriggerEvent());
+		assertNull(header.getMessageStructure());
+		assertEquals("42", header.getControlId());
+		assertEquals("2.3", header.getVersion());
+	}
+
+	public void testEmptyAndMissingFields() {
+		MshScanner.Header header = MshScanner.scan("MSH|^~\\&|LAB||ELR|CDC|20240101||^R01|");
+
+		assertNull(header.getSendingFacility());
+		assertNull(header.getMessageType());
+		assertEquals("R01", header.getTriggerEvent());
+		assertNull(header.getControlId());
+		assertNull(header.getVersion());
+	}
+
+	public void testLeadingWhitespaceAndLineFeeds() {
+		String raw = "\r\n  " + MSH + "\r\nOBX|1|ST|100^A^LN||x\nOBX|2|ST|200^B^LN||y\n";
+		MshScanner.Header header = MshScanner.scan(raw);
+
+		assertEquals("CTRL-1", header.getControlId());
+		assertEquals(Set.of("100", "200"), MshScanner.observationCodes(raw, header));
+	}
+
+	public void testNotPipeEncoded() {
+		assertNull(MshScanner.scan("<?xml version=\"1.0\"?><ORU_R01/>"));
+		assertNull(MshScanner.scan("MSH|"));
+		assertNull(MshScanner.scan(""));
+	}
+
+	public void testObservationCodes() {
+		String raw = MSH + "\rPID|1||123\rOBR|1|||300^C^LN\r"
+				+ "OBX|1|ST|100^A^LN||x\r"
+				+ "NTE|1||OBX|1|ST|999^Z\r"
+				+ "OBX|2|ST|^NoCode^LN||y\r"
+				+ "OBX|3|SN|200||^1^:^8\r"
+				+ "OBX|4|ST|100^A^LN||z";
+		MshScanner.Header header = MshScanner.scan(raw);
+
+		assertEquals(Set.of("100", "200"), MshScanner.observationCodes(raw, header));
+	}
+
+	public void testNoObservations() {
+		MshScanner.Header header = MshScanner.scan(MSH);
+
+		assertTrue(MshScanner.observationCodes(MSH, header).isEmpty());
+	}
+}
@@ -0,0 +1,148 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicHttpResponse;
+
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpResponse;
+import ca.uhn.fhir.util.StopWatch;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+
+/*
+ * Fetching client-credentials tokens from a local token endpoint, adding
+ * them to requests, and fetching again on schedule, after a failure and
+ * after a 401.
+ */
+public class OAuth2TokenProviderTest extends TestCase {
+	private HttpServer server;
+	private final List<String> requests = new CopyOnWriteArrayList<String>();
+	private volatile int status = 200;
+	private volatile long expiresIn = 3600L;
+	private ReceiverMetrics metrics;
+	private OAuth2TokenProvider provider;
+
+	@Override
+	protected void setUp() throws IOException {
+		metrics = new ReceiverMetrics(new SimpleMeterRegistry());
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		// Answers token-1, token-2, ... and keeps the Authorization header and
+		// the form of each request.
+		server.createContext("/token", exchange -> {
+			String form = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+			requests.add(exchange.getRequestHeaders().getFirst("Authorization") + " " + form);
+			byte[] body = (status == 200
+					? "{\"access_token\":\"token-" + requests.size() + "\",\"token_type\":\"bearer\",\"expires_in\":"
+							+ expiresIn + "}"
+					: "{\"error\":\"server_error\"}").getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(status, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+	}
+
+	@Override
+	protected void tearDown() {
+		if (provider != null) {
+			provider.shutdown();
+		}
+		server.stop(0);
+	}
+
+	private OAuth2TokenProvider start(String scope) {
+		provider = new OAuth2TokenProvider("http://127.0.0.1:" + server.getAddress().getPort() + "/token",
+				"client:secret", scope, 30, metrics);
+		provider.start();
+		return provider;
+	}
+
+	private String authorization() {
+		HttpPost post = new HttpPost("http://127.0.0.1/fhir");
+		provider.interceptRequest(new ApacheHttpRequest(null, post));
+		return post.getFirstHeader(Constants.HEADER_AUTHORIZATION) == null ? null
+				: post.getFirstHeader(Constants.HEADER_AUTHORIZATION).getValue();
+	}
+
+	private void awaitRequests(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (requests.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(count, requests.size());
+	}
+
+	public void testTokenIsFetchedAndAddedToRequests() {
+		start("system/*.write");
+
+		String basic = "Basic " + Base64.getEncoder().encodeToString("client:secret".getBytes(StandardCharsets.UTF_8));
+		assertEquals(1, requests.size());
+		assertTrue(requests.get(0).startsWith(basic + " "));
+		assertTrue(requests.get(0).contains("grant_type=client_credentials"));
+		assertTrue(requests.get(0).contains("scope=system%2F*.write"));
+
+		assertEquals("Bearer token-1", authorization());
+		assertTrue(provider.getSecondsToExpiry() > 3500);
+		assertEquals(1.0, metrics.tokenRefreshed.count());
+	}
+
+	public void testFailedFetchIsRetried() throws Exception {
+		status = 500;
+		start(null);
+
+		assertNull(provider.getToken());
+		assertNull(authorization());
+		assertEquals(1.0, metrics.tokenRefreshFailed.count());
+		assertFalse(requests.get(0).contains("scope="));
+
+		status = 200;
+		awaitRequests(2);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (provider.getToken() == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals("Bearer token-2", authorization());
+	}
+
+	public void testShortLivedTokenIsRefreshedBeforeItExpires() throws Exception {
+		expiresIn = 1L;
+		start(null);
+
+		// Due after 80% of the lifetime, but not sooner than a second.
+		long start = System.currentTimeMillis();
+		awaitRequests(2);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(0.0, metrics.tokenRefreshFailed.count());
+	}
+
+	public void testUnauthorizedResponseFetchesANewToken() throws Exception {
+		start(null);
+		assertEquals("Bearer token-1", authorization());
+
+		// Not within a second of the last fetch.
+		Thread.sleep(OAuth2TokenProvider.MIN_RETRY_MILLIS + 100);
+		provider.interceptResponse(
+				new ApacheHttpResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, 401, "Unauthorized"), new StopWatch()));
+		provider.interceptResponse(
+				new ApacheHttpResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, 401, "Unauthorized"), new StopWatch()));
+
+		awaitRequests(2);
+		Thread.sleep(200);
+		assertEquals(2, requests.size());
+		assertEquals("Bearer token-2", authorization());
+	}
+}
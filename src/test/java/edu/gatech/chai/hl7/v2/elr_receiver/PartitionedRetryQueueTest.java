@@ -0,0 +1,121 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/*
+ * Partition of a key, and the partition count kept across restarts: it may
+ * only change while no bundle is waiting.
+ */
+public class PartitionedRetryQueueTest extends TestCase {
+	private static final byte[] PAYLOAD = "{}".getBytes(StandardCharsets.UTF_8);
+
+	private File dir;
+	private String fileName;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("partitioned-retry-queue-test").toFile();
+		fileName = new File(dir, "queue").getPath();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private PartitionedRetryQueue open(int partitions) throws IOException {
+		return new PartitionedRetryQueue(fileName, partitions, 3, 1000L, 60000L);
+	}
+
+	private String recorded() throws IOException {
+		return Files.readString(new File(fileName + PartitionedRetryQueue.PARTITIONS_SUFFIX).toPath(),
+				StandardCharsets.UTF_8).trim();
+	}
+
+	public void testBundlesOfAKeyShareAPartition() throws IOException {
+		PartitionedRetryQueue queue = open(4);
+		assertEquals(4, queue.getPartitionCount());
+		assertEquals(0, queue.partitionFor(null));
+
+		for (int i = 0; i < 3; i++) {
+			queue.add("patient-1", PAYLOAD);
+		}
+		queue.add("patient-2", PAYLOAD);
+
+		assertEquals(4, queue.size());
+		assertEquals(queue.partitionFor("patient-1"), queue.partitionFor("patient-1"));
+		assertTrue(queue.getPartition(queue.partitionFor("patient-1")).size() >= 3);
+		assertTrue(new File(PartitionedRetryQueue.partitionFileName(fileName, 3)).exists());
+		queue.close();
+	}
+
+	public void testCountIsKeptAcrossRestarts() throws IOException {
+		PartitionedRetryQueue queue = open(4);
+		queue.add("patient-1", PAYLOAD);
+		queue.close();
+		assertEquals("4", recorded());
+
+		queue = open(4);
+		assertEquals(1, queue.size());
+		queue.close();
+	}
+
+	public void testCountCannotChangeWhileBundlesAreWaiting() throws IOException {
+		PartitionedRetryQueue queue = open(4);
+		queue.add("patient-1", PAYLOAD);
+		queue.close();
+
+		try {
+			open(2);
+			fail("changed the partitions of a queue with bundles waiting");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("queuePartitions=4"));
+		}
+		assertEquals("4", recorded());
+
+		queue = open(4);
+		assertEquals(1, queue.size());
+		queue.close();
+	}
+
+	public void testCountOfAnEmptyQueueCanChange() throws IOException {
+		open(4).close();
+
+		PartitionedRetryQueue queue = open(2);
+		assertEquals(2, queue.getPartitionCount());
+		queue.close();
+		assertEquals("2", recorded());
+
+		queue = open(8);
+		assertEquals(8, queue.getPartitionCount());
+		queue.close();
+	}
+
+	public void testSingleQueueOfAnOlderVersion() throws IOException {
+		RetryQueue single = new RetryQueue(fileName, fileName + ".dead", 3, 1000L, 60000L);
+		single.add("patient-1", PAYLOAD);
+		single.close();
+
+		try {
+			open(4);
+			fail("split a single queue with bundles waiting");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("queuePartitions=1"));
+		}
+
+		PartitionedRetryQueue queue = open(1);
+		assertEquals(1, queue.size());
+		queue.close();
+		assertEquals("1", recorded());
+	}
+}
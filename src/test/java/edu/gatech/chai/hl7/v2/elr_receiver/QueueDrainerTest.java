@@ -0,0 +1,162 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+
+/*
+ * Pacing of the drain passes: one more sender after a clean pass, half as
+ * many and a doubled wait after failures, rejected bundles to the dead-letter
+ * file, and entries refused by an open circuit put back untouched. The
+ * drainer is not started; each test runs the passes itself.
+ */
+public class QueueDrainerTest extends TestCase {
+	private File dir;
+	private RetryQueue queue;
+	private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+	private volatile boolean failing = true;
+	private HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser> app;
+	private QueueDrainer drainer;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("queue-drainer-test").toFile();
+		queue = new RetryQueue(new File(dir, "queue").getPath(), new File(dir, "queue.dead").getPath(), 10, 0L, 0L);
+		// The payload says how the send goes.
+		app = new HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser>() {
+			@Override
+			public boolean sendData(byte[] queuePayload) {
+				String payload = new String(queuePayload, StandardCharsets.UTF_8);
+				if (payload.startsWith("rejected")) {
+					throw new RetryQueue.RejectedException("422");
+				} else if (payload.startsWith("open")) {
+					throw new CircuitBreaker.OpenException();
+				}
+				sent.add(payload);
+				return !(failing && payload.startsWith("flaky"));
+			}
+		};
+		app.configMetrics(new ReceiverMetrics(new SimpleMeterRegistry()));
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		if (drainer != null) {
+			drainer.shutdown();
+		}
+		queue.close();
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private void add(String... payloads) throws IOException {
+		for (String payload : payloads) {
+			queue.add(payload, payload.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	// idleSeconds=60, maxBackoffSeconds=8
+	private QueueDrainer drainer(int batchSize, int maxParallelism) {
+		drainer = new QueueDrainer(app, queue, 0, batchSize, maxParallelism, 60, 8);
+		return drainer;
+	}
+
+	public void testEmptyQueueWaitsIdleSeconds() throws Exception {
+		assertEquals(60000L, drainer(10, 4).drainOnce());
+	}
+
+	public void testCleanPassAddsASender() throws Exception {
+		drainer(10, 4);
+		add("ok-1", "ok-2", "ok-3");
+
+		// Starts at maxParallelism and stays there.
+		assertEquals(0L, drainer.drainOnce());
+		assertEquals(4, drainer.getParallelism());
+
+		add("flaky-1");
+		assertEquals(1000L, drainer.drainOnce());
+		assertEquals(2, drainer.getParallelism());
+
+		failing = false;
+		assertEquals(0L, drainer.drainOnce());
+		assertEquals(3, drainer.getParallelism());
+		assertEquals(4L, drainer.getDrainedTotal());
+		assertEquals(1L, drainer.getFailedTotal());
+		assertEquals(0, queue.size());
+	}
+
+	public void testFailuresHalveSendersAndDoubleTheWait() throws Exception {
+		drainer(10, 8);
+		add("flaky-1");
+
+		assertEquals(1000L, drainer.drainOnce());
+		assertEquals(4, drainer.getParallelism());
+		assertEquals(2000L, drainer.drainOnce());
+		assertEquals(2, drainer.getParallelism());
+		assertEquals(4000L, drainer.drainOnce());
+		assertEquals(1, drainer.getParallelism());
+		// Capped by maxBackoffSeconds.
+		assertEquals(8000L, drainer.drainOnce());
+		assertEquals(8000L, drainer.drainOnce());
+		assertEquals(1, drainer.getParallelism());
+		assertEquals(5L, drainer.getFailedTotal());
+		assertEquals(1, queue.size());
+		assertEquals(0, queue.deadLetterSize());
+	}
+
+	public void testRejectedBundleIsDeadLetteredWithoutSlowingDown() throws Exception {
+		drainer(10, 4);
+		add("ok-1", "rejected-1", "ok-2");
+
+		assertEquals(0L, drainer.drainOnce());
+		assertEquals(4, drainer.getParallelism());
+		assertEquals(0L, drainer.getFailedTotal());
+		assertEquals(0, queue.size());
+		assertEquals(1, queue.deadLetterSize());
+	}
+
+	public void testEntriesRefusedByTheCircuitArePutBack() throws Exception {
+		// One sender, so the entries after the refused one are not sent.
+		drainer(10, 1);
+		add("ok-1", "open-1", "ok-2", "ok-3");
+
+		assertTrue(drainer.drainOnce() >= 1000L);
+		assertEquals(1, drainer.getParallelism());
+		assertEquals(List.of("ok-1"), sent);
+		assertEquals(0L, drainer.getFailedTotal());
+		assertEquals(3, queue.size());
+
+		// Still only the attempt made before they were queued.
+		RetryQueue.Lease lease = queue.lease(10);
+		for (RetryQueue.Entry entry : lease.getDueEntries()) {
+			assertEquals(1, entry.getAttempts());
+		}
+		queue.release(lease);
+	}
+
+	public void testNothingIsLeasedWhileTheCircuitIsOpen() throws Exception {
+		app.configCircuitBreaker(50, 10000, 50, 10, 60, 1);
+		CircuitBreaker breaker = app.getCircuitBreaker();
+		for (int i = 0; i < 10; i++) {
+			breaker.record(breaker.tryAcquire(), true, 1000L);
+		}
+		drainer(10, 4);
+		add("ok-1");
+
+		assertTrue(drainer.drainOnce() > 50000L);
+		assertTrue(sent.isEmpty());
+		assertEquals(1, queue.size());
+	}
+}
@@ -0,0 +1,88 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/*
+ * Out-of-order completion of the QueueFile journal: only the completed
+ * prefix leaves the file, and the rest is pending after a restart.
+ */
+public class QueueFileJournalTest extends TestCase {
+	private File dir;
+	private String fileName;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("queue-file-journal-test").toFile();
+		fileName = new File(dir, "inbound").getPath();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private static List<String> messages(List<InboundJournal.Entry> entries) {
+		List<String> list = new ArrayList<String>();
+		for (InboundJournal.Entry entry : entries) {
+			list.add(entry.getRawMessage());
+		}
+		return list;
+	}
+
+	public void testOnlyTheCompletedPrefixIsRemoved() throws IOException {
+		QueueFileJournal journal = new QueueFileJournal(fileName);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(i, journal.append("MSH|" + i));
+		}
+
+		journal.complete(1L);
+		journal.complete(3L);
+		assertEquals(4, journal.size());
+
+		journal.complete(0L);
+		assertEquals(2, journal.size());
+		assertEquals(List.of("MSH|2", "MSH|3"), messages(journal.pending()));
+
+		// Completing again, or an entry already removed, changes nothing.
+		journal.complete(0L);
+		journal.complete(1L);
+		assertEquals(2, journal.size());
+
+		journal.complete(2L);
+		assertEquals(0, journal.size());
+		journal.close();
+	}
+
+	public void testUncompletedMessagesArePendingAfterRestart() throws IOException {
+		QueueFileJournal journal = new QueueFileJournal(fileName);
+		journal.append("MSH|0");
+		journal.append("MSH|1");
+		journal.append("MSH|2");
+		journal.complete(0L);
+		journal.complete(2L);
+		journal.close();
+
+		journal = new QueueFileJournal(fileName);
+		List<InboundJournal.Entry> pending = journal.pending();
+		assertEquals(List.of("MSH|1", "MSH|2"), messages(pending));
+		assertEquals(0L, pending.get(0).getSeq());
+		assertEquals(1L, pending.get(1).getSeq());
+		assertEquals(2L, journal.append("MSH|3"));
+
+		journal.complete(0L);
+		journal.complete(1L);
+		assertEquals(List.of("MSH|3"), messages(journal.pending()));
+		journal.close();
+	}
+}
@@ -0,0 +1,88 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import junit.framework.TestCase;
+
+/*
+ * Round trips of queue payloads, with and without compression and the LARGE
+ * flag, and payloads written before they had a header.
+ */
+public class QueuePayloadTest extends TestCase {
+	private static final FhirContext CTX = FhirContext.forR4();
+
+	private static String read(byte[] payload) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		try (Reader reader = QueuePayload.open(payload)) {
+			char[] buffer = new char[1024];
+			int n;
+			while ((n = reader.read(buffer)) >= 0) {
+				sb.append(buffer, 0, n);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static byte[] encode(Bundle bundle, boolean deflate, boolean large) throws IOException {
+		return QueuePayload.encode(writer -> CTX.newJsonParser().encodeResourceToWriter(bundle, writer), deflate,
+				large);
+	}
+
+	public void testBundleRoundTrip() throws IOException {
+		Bundle bundle = HL7v2ReceiverFHIRApplicationTest.messageBundle("123");
+		String json = CTX.newJsonParser().encodeResourceToString(bundle);
+
+		for (boolean deflate : new boolean[] { false, true }) {
+			for (boolean large : new boolean[] { false, true }) {
+				byte[] payload = encode(bundle, deflate, large);
+				assertEquals(QueuePayload.FORMAT_V2, payload[0]);
+				assertEquals(large, QueuePayload.isLarge(payload));
+				assertEquals(json, read(payload));
+
+				try (Reader reader = QueuePayload.open(payload)) {
+					Bundle parsed = CTX.newJsonParser().parseResource(Bundle.class, reader);
+					assertEquals(Bundle.BundleType.MESSAGE, parsed.getType());
+					assertEquals(2, parsed.getEntry().size());
+				}
+			}
+		}
+	}
+
+	public void testJsonIsMinifiedAndDeflateShrinksIt() throws IOException {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.TRANSACTION);
+		for (int i = 0; i < 50; i++) {
+			bundle.addEntry().setResource(HL7v2ReceiverFHIRApplicationTest.messageBundle(String.valueOf(i)));
+		}
+
+		byte[] plain = encode(bundle, false, false);
+		byte[] deflated = encode(bundle, true, false);
+		assertFalse(read(plain).contains("\n"));
+		assertTrue(deflated.length * 3 < plain.length);
+	}
+
+	public void testPayloadWithoutHeaderIsReadAsJson() throws IOException {
+		IParser prettyParser = CTX.newJsonParser().setPrettyPrint(true);
+		String json = prettyParser.encodeResourceToString(HL7v2ReceiverFHIRApplicationTest.messageBundle("123"));
+		byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+
+		assertFalse(QueuePayload.isLarge(payload));
+		assertEquals(json, read(payload));
+		assertEquals("", read(new byte[0]));
+	}
+
+	public void testUnknownEncodingFails() {
+		try {
+			QueuePayload.open(new byte[] { QueuePayload.FORMAT_V2, 7, '{', '}' });
+			fail("opened a payload of an unknown encoding");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("7"));
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+
+/*
+ * Meters of the receive path, the gauges bound to the application, and the
+ * Prometheus scrape.
+ */
+public class ReceiverMetricsTest extends TestCase {
+	private ReceiverMetrics metrics;
+
+	@Override
+	protected void tearDown() {
+		if (metrics != null) {
+			metrics.stop();
+		}
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static HttpResponse<String> get(int port, String path) throws Exception {
+		return HttpClient.newHttpClient().send(
+				HttpRequest.newBuilder(URI.create("http://localhost:" + port + path)).GET().build(),
+				HttpResponse.BodyHandlers.ofString());
+	}
+
+	// Value of the first sample whose name and labels start with prefix.
+	private static String sample(String scrape, String prefix) {
+		for (String line : scrape.split("\n")) {
+			if (line.startsWith(prefix)) {
+				return line.substring(line.lastIndexOf(' ') + 1);
+			}
+		}
+		return null;
+	}
+
+	public void testMetersAreNamedByStageAndOutcome() {
+		metrics = new ReceiverMetrics(new SimpleMeterRegistry());
+		metrics.accepted.increment();
+		metrics.filtered.increment();
+		metrics.filtered.increment();
+		ReceiverMetrics.record(metrics.sendTimer, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(5));
+
+		assertEquals(1.0, metrics.getRegistry().get(ReceiverMetrics.MESSAGE_COUNTER).tag("outcome", "accepted")
+				.counter().count());
+		assertEquals(2.0, metrics.getRegistry().get(ReceiverMetrics.MESSAGE_COUNTER).tag("outcome", "filtered")
+				.counter().count());
+		assertEquals(1L, metrics.getRegistry().get(ReceiverMetrics.STAGE_TIMER).tag("stage", "send").timer().count());
+		assertTrue(metrics.getRegistry().get(ReceiverMetrics.STAGE_TIMER).tag("stage", "send").timer()
+				.totalTime(TimeUnit.MILLISECONDS) >= 5.0);
+	}
+
+	public void testGaugesReadTheApplication() {
+		metrics = new ReceiverMetrics(new SimpleMeterRegistry());
+		HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser> app = new HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser>();
+		app.configMetrics(metrics);
+		metrics.connectionOpened();
+		metrics.connectionOpened();
+		metrics.connectionClosed();
+
+		// Nothing is configured yet.
+		assertEquals(0.0, metrics.getRegistry().get("elr.queue.size").gauge().value());
+		assertEquals(0.0, metrics.getRegistry().get("elr.delivery.inflight").gauge().value());
+		assertEquals(0.0, metrics.getRegistry().get("elr.fhir.breaker.state").gauge().value());
+		assertEquals(1.0, metrics.getRegistry().get("elr.connections.active").gauge().value());
+
+		app.configCircuitBreaker(50, 10000, 50, 10, 60, 1);
+		CircuitBreaker breaker = app.getCircuitBreaker();
+		for (int i = 0; i < 10; i++) {
+			breaker.record(breaker.tryAcquire(), true, 1000L);
+		}
+		assertEquals((double) CircuitBreaker.State.OPEN.ordinal(),
+				metrics.getRegistry().get("elr.fhir.breaker.state").gauge().value());
+	}
+
+	public void testNoRegistryMeansNoOpMeters() {
+		metrics = new ReceiverMetrics();
+		metrics.accepted.increment();
+		assertEquals(0.0, metrics.accepted.count());
+	}
+
+	public void testPrometheusScrape() throws Exception {
+		metrics = ReceiverMetrics.prometheus();
+		metrics.queued.increment();
+		ReceiverMetrics.record(metrics.convertTimer, System.nanoTime());
+		int port = freePort();
+		metrics.serve(port);
+
+		HttpResponse<String> response = get(port, "/metrics");
+		assertEquals(200, response.statusCode());
+		assertEquals("1.0", sample(response.body(), "elr_messages_total{outcome=\"queued\""));
+		assertEquals("1.0", sample(response.body(), "elr_stage_seconds_count{stage=\"convert\""));
+		assertTrue(response.body().contains("jvm_memory_used_bytes"));
+	}
+
+	public void testOnlyAPrometheusRegistryIsServed() throws Exception {
+		metrics = new ReceiverMetrics(new SimpleMeterRegistry());
+		try {
+			metrics.serve(freePort());
+			fail("served a registry that has no text format");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ITransaction;
+import ca.uhn.fhir.rest.gclient.ITransactionTyped;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import junit.framework.TestCase;
+
+/*
+ * Collecting calls into batch requests, mapping the batch-response entries
+ * back to the callers, failures of the whole request, and calls withdrawn by
+ * their caller before they are sent.
+ */
+public class RegistryBatchDispatcherTest extends TestCase {
+	private final List<Bundle> requests = Collections.synchronizedList(new ArrayList<Bundle>());
+	private RegistryBatchDispatcher dispatcher;
+
+	@Override
+	protected void tearDown() {
+		if (dispatcher != null) {
+			dispatcher.shutdown();
+		}
+	}
+
+	/*
+	 * A client that only does transaction().withBundle(request).execute(),
+	 * answered by server.
+	 */
+	private IGenericClient client(Function<Bundle, Bundle> server) {
+		return (IGenericClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { IGenericClient.class }, (client, clientMethod, clientArgs) -> {
+					assertEquals("transaction", clientMethod.getName());
+					return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ITransaction.class },
+							(transaction, transactionMethod, transactionArgs) -> {
+								Bundle request = (Bundle) transactionArgs[0];
+								return Proxy.newProxyInstance(getClass().getClassLoader(),
+										new Class<?>[] { ITransactionTyped.class }, (typed, typedMethod, typedArgs) -> {
+											assertEquals("execute", typedMethod.getName());
+											requests.add(request);
+											return server.apply(request);
+										});
+							});
+				});
+	}
+
+	private static Parameters call(String name) {
+		Parameters parameters = new Parameters();
+		parameters.setParameter("patient-identifier", name);
+		return parameters;
+	}
+
+	private static String nameOf(Resource resource) {
+		return ((Parameters) resource).getParameter("patient-identifier").getValue().primitiveValue();
+	}
+
+	// Answers every entry with its own Parameters and 200.
+	private static Bundle echo(Bundle request) {
+		Bundle response = new Bundle();
+		response.setType(Bundle.BundleType.BATCHRESPONSE);
+		for (BundleEntryComponent entry : request.getEntry()) {
+			response.addEntry().setResource(entry.getResource()).getResponse().setStatus("200 OK");
+		}
+		return response;
+	}
+
+	private static Throwable failure(CompletableFuture<Resource> future) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("expected a failure");
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+	}
+
+	public void testEntriesAreMappedBackInOrder() throws Exception {
+		dispatcher = new RegistryBatchDispatcher(() -> client(request -> {
+			Bundle response = echo(request);
+			response.getEntry().get(1).getResponse().setStatus("422 Unprocessable Entity");
+			response.getEntry().get(2).getResponse().setStatus("503");
+			return response;
+		}), 3, 5000, 1);
+
+		CompletableFuture<Resource> ok = dispatcher.submit(call("a"));
+		CompletableFuture<Resource> rejected = dispatcher.submit(call("b"));
+		CompletableFuture<Resource> failed = dispatcher.submit(call("c"));
+
+		assertEquals("a", nameOf(ok.get(5, TimeUnit.SECONDS)));
+		assertTrue(failure(rejected) instanceof UnprocessableEntityException);
+		Throwable e = failure(failed);
+		assertTrue(e instanceof BaseServerResponseException);
+		assertEquals(503, ((BaseServerResponseException) e).getStatusCode());
+
+		assertEquals(1, requests.size());
+		assertEquals(RegistryBatchDispatcher.OPERATION, requests.get(0).getEntry().get(0).getRequest().getUrl());
+		assertEquals(1L, dispatcher.getBatchesSent());
+		assertEquals(3L, dispatcher.getEntriesSent());
+	}
+
+	public void testBatchIsSentAfterMaxWait() throws Exception {
+		dispatcher = new RegistryBatchDispatcher(() -> client(RegistryBatchDispatcherTest::echo), 10, 100, 1);
+
+		CompletableFuture<Resource> first = dispatcher.submit(call("a"));
+		CompletableFuture<Resource> second = dispatcher.submit(call("b"));
+		first.get(5, TimeUnit.SECONDS);
+		second.get(5, TimeUnit.SECONDS);
+
+		assertEquals(1, requests.size());
+		assertEquals(2, requests.get(0).getEntry().size());
+	}
+
+	public void testFailedRequestFailsEveryEntry() throws Exception {
+		dispatcher = new RegistryBatchDispatcher(() -> client(request -> {
+			throw BaseServerResponseException.newInstance(500, "down");
+		}), 2, 5000, 1);
+
+		CompletableFuture<Resource> first = dispatcher.submit(call("a"));
+		CompletableFuture<Resource> second = dispatcher.submit(call("b"));
+
+		assertEquals(500, ((BaseServerResponseException) failure(first)).getStatusCode());
+		assertEquals(500, ((BaseServerResponseException) failure(second)).getStatusCode());
+	}
+
+	public void testMissingResponseEntriesFail() throws Exception {
+		dispatcher = new RegistryBatchDispatcher(() -> client(request -> {
+			Bundle response = echo(request);
+			response.getEntry().remove(1);
+			return response;
+		}), 2, 5000, 1);
+
+		CompletableFuture<Resource> first = dispatcher.submit(call("a"));
+		CompletableFuture<Resource> second = dispatcher.submit(call("b"));
+
+		assertNotNull(first.get(5, TimeUnit.SECONDS));
+		assertEquals(502, ((BaseServerResponseException) failure(second)).getStatusCode());
+	}
+
+	public void testCancelledEntryIsNotSent() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		dispatcher = new RegistryBatchDispatcher(() -> client(request -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			return echo(request);
+		}), 1, 0, 1);
+
+		// The only sender is busy with the first call. The second waits
+		// behind it, and its caller gives up.
+		CompletableFuture<Resource> first = dispatcher.submit(call("a"));
+		CompletableFuture<Resource> second = dispatcher.submit(call("b"));
+		CompletableFuture<Resource> withdrawn = dispatcher.submit(call("c"));
+		withdrawn.cancel(false);
+		release.countDown();
+
+		first.get(5, TimeUnit.SECONDS);
+		second.get(5, TimeUnit.SECONDS);
+		CompletableFuture<Resource> last = dispatcher.submit(call("d"));
+		last.get(5, TimeUnit.SECONDS);
+
+		List<String> sent = new ArrayList<String>();
+		for (Bundle request : requests) {
+			for (BundleEntryComponent entry : request.getEntry()) {
+				sent.add(nameOf(entry.getResource()));
+			}
+		}
+		assertEquals(List.of("a", "b", "d"), sent);
+	}
+
+	public void testSubmitAfterShutdownFails() throws Exception {
+		dispatcher = new RegistryBatchDispatcher(() -> client(RegistryBatchDispatcherTest::echo), 2, 5000, 1);
+		dispatcher.shutdown();
+
+		assertTrue(failure(dispatcher.submit(call("a"))) instanceof IllegalStateException);
+	}
+}
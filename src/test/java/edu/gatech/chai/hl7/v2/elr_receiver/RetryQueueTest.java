@@ -0,0 +1,205 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/*
+ * Lease/commit of the retry queue: outcomes, backoff, dead-lettering, order
+ * per key, and the side index across a reopen.
+ */
+public class RetryQueueTest extends TestCase {
+	private File dir;
+	private String fileName;
+	private String deadLetterFileName;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("retry-queue-test").toFile();
+		fileName = new File(dir, "queue").getPath();
+		deadLetterFileName = new File(dir, "queue.dead").getPath();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	// No backoff, so a failed entry is due again right away.
+	private RetryQueue open(int maxAttempts) throws IOException {
+		return new RetryQueue(fileName, deadLetterFileName, maxAttempts, 0L, 0L);
+	}
+
+	private static byte[] payload(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static List<String> payloads(RetryQueue.Lease lease) {
+		List<String> list = new ArrayList<String>();
+		for (RetryQueue.Entry entry : lease.getDueEntries()) {
+			list.add(new String(entry.getPayload(), StandardCharsets.UTF_8));
+		}
+		return list;
+	}
+
+	private static List<RetryQueue.Entry> none() {
+		return Collections.<RetryQueue.Entry>emptyList();
+	}
+
+	public void testSucceededEntriesAreRemoved() throws IOException {
+		RetryQueue queue = open(5);
+		queue.add("a", payload("1"));
+		queue.add("b", payload("2"));
+		queue.add("c", payload("3"));
+		assertEquals(3, queue.size());
+
+		RetryQueue.Lease lease = queue.lease(10);
+		assertEquals(List.of("1", "2", "3"), payloads(lease));
+		assertNull("only one lease at a time", queue.lease(10));
+
+		queue.commit(lease, lease.getDueEntries());
+		assertEquals(0, queue.size());
+		assertNull(queue.lease(10));
+	}
+
+	public void testFailedEntryCountsAnAttempt() throws IOException {
+		RetryQueue queue = open(5);
+		queue.add("a", payload("1"));
+
+		RetryQueue.Lease lease = queue.lease(10);
+		assertEquals(1, lease.getDueEntries().get(0).getAttempts());
+		queue.commit(lease, none());
+
+		lease = queue.lease(10);
+		assertEquals(2, lease.getDueEntries().get(0).getAttempts());
+		assertEquals(1, queue.size());
+	}
+
+	public void testSkippedEntryIsKeptAsItWas() throws IOException {
+		RetryQueue queue = open(5);
+		queue.add("a", payload("1"));
+
+		RetryQueue.Lease lease = queue.lease(10);
+		queue.commit(lease, none(), lease.getDueEntries(), none());
+
+		lease = queue.lease(10);
+		assertEquals(1, lease.getDueEntries().get(0).getAttempts());
+	}
+
+	public void testReleaseRecordsNothing() throws IOException {
+		RetryQueue queue = open(5);
+		queue.add("a", payload("1"));
+
+		queue.release(queue.lease(10));
+		RetryQueue.Lease lease = queue.lease(10);
+		assertEquals(1, lease.getDueEntries().get(0).getAttempts());
+	}
+
+	public void testFailedEntryBacksOff() throws IOException {
+		RetryQueue queue = open(5);
+		queue.add("a", payload("1"));
+		RetryQueue.Lease lease = queue.lease(10);
+		queue.release(lease);
+
+		// Reopened with a backoff, the next failure pushes the entry out.
+		queue = new RetryQueue(fileName, deadLetterFileName, 5, 60_000L, 600_000L);
+		lease = queue.lease(10);
+		assertEquals(1, lease.getDueEntries().size());
+		long before = System.currentTimeMillis();
+		queue.commit(lease, none());
+
+		lease = queue.lease(10);
+		assertTrue(lease.getDueEntries().isEmpty());
+		assertTrue(lease.getEarliestNextAttemptAt() >= before + 120_000L);
+		queue.release(lease);
+		assertEquals(1, queue.size());
+	}
+
+	public void testRejectedEntryIsDeadLettered() throws IOException {
+		RetryQueue queue = open(5);
+		queue.add("a", payload("1"));
+		queue.add("b", payload("2"));
+
+		RetryQueue.Lease lease = queue.lease(10);
+		RetryQueue.Entry first = lease.getDueEntries().get(0);
+		queue.commit(lease, none(), none(), List.of(first));
+
+		assertEquals(1, queue.size());
+		assertEquals(1, queue.deadLetterSize());
+		assertEquals(1L, queue.getDeadLettered());
+		assertEquals(List.of("2"), payloads(queue.lease(10)));
+	}
+
+	public void testEntryIsDeadLetteredAfterMaxAttempts() throws IOException {
+		RetryQueue queue = open(3);
+		queue.add("a", payload("1"));
+
+		// add() counts the failed first delivery.
+		queue.commit(queue.lease(10), none());
+		assertEquals(0, queue.deadLetterSize());
+		queue.commit(queue.lease(10), none());
+
+		assertEquals(0, queue.size());
+		assertEquals(1, queue.deadLetterSize());
+	}
+
+	public void testEntriesOfAKeyAreLeasedOneAtATime() throws IOException {
+		RetryQueue queue = open(5);
+		queue.add("a", payload("a1"));
+		queue.add("b", payload("b1"));
+		queue.add("a", payload("a2"));
+		queue.add(null, payload("n1"));
+		queue.add(null, payload("n2"));
+
+		RetryQueue.Lease lease = queue.lease(10);
+		assertEquals(List.of("a1", "b1", "n1", "n2"), payloads(lease));
+		queue.commit(lease, lease.getDueEntries());
+
+		assertEquals(List.of("a2"), payloads(queue.lease(10)));
+	}
+
+	public void testFailedEntryHoldsBackItsKey() throws IOException {
+		RetryQueue queue = open(5);
+		queue.add("a", payload("a1"));
+		queue.add("a", payload("a2"));
+		queue.add("b", payload("b1"));
+
+		RetryQueue.Lease lease = queue.lease(10);
+		assertEquals(List.of("a1", "b1"), payloads(lease));
+		// b1 went out, a1 failed.
+		queue.commit(lease, List.of(lease.getDueEntries().get(1)));
+
+		assertEquals(List.of("a1"), payloads(queue.lease(10)));
+	}
+
+	public void testStateSurvivesAReopen() throws IOException {
+		RetryQueue queue = open(5);
+		queue.add("a", payload("1"));
+		queue.add("b", payload("2"));
+		queue.add("c", payload("3"));
+
+		// 1 failed, 2 sent, 3 not attempted.
+		RetryQueue.Lease lease = queue.lease(10);
+		List<RetryQueue.Entry> due = lease.getDueEntries();
+		queue.commit(lease, List.of(due.get(1)), List.of(due.get(2)), none());
+		assertTrue(new File(fileName + RetryQueue.INDEX_SUFFIX).exists());
+
+		queue = open(5);
+		assertEquals(2, queue.size());
+		lease = queue.lease(10);
+		assertEquals(List.of("1", "3"), payloads(lease));
+		assertEquals(2, lease.getDueEntries().get(0).getAttempts());
+		assertEquals(1, lease.getDueEntries().get(1).getAttempts());
+	}
+}
@@ -0,0 +1,182 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/*
+ * Recovery of the segmented journal after a restart and a torn tail, and
+ * deletion of completed segments.
+ */
+public class SegmentedJournalTest extends TestCase {
+	// Every 20 character message takes a segment of its own.
+	private static final int SMALL_SEGMENT = 64;
+
+	private File dir;
+	private String fileName;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("segmented-journal-test").toFile();
+		fileName = new File(dir, "journal").getPath();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private static String message(int i) {
+		return String.format("MSH|^~\\&|message %04d", i);
+	}
+
+	private static List<String> messages(List<InboundJournal.Entry> entries) {
+		List<String> list = new ArrayList<String>();
+		for (InboundJournal.Entry entry : entries) {
+			list.add(entry.getRawMessage());
+		}
+		return list;
+	}
+
+	private File[] segmentFiles() {
+		File[] files = new File(fileName).listFiles((d, name) -> name.endsWith(SegmentedJournal.SEGMENT_SUFFIX));
+		Arrays.sort(files);
+		return files;
+	}
+
+	public void testUncompletedMessagesArePendingAfterRestart() throws IOException {
+		SegmentedJournal journal = new SegmentedJournal(fileName, 1 << 16, 0, 0);
+		assertTrue(journal.pending().isEmpty());
+		assertEquals(0L, journal.append(message(0)));
+		assertEquals(1L, journal.append(message(1)));
+		assertEquals(2L, journal.append(message(2)));
+		journal.complete(0L);
+		journal.complete(2L);
+		journal.close();
+
+		journal = new SegmentedJournal(fileName, 1 << 16, 0, 0);
+		List<InboundJournal.Entry> pending = journal.pending();
+		assertEquals(List.of(message(1), message(2)), messages(pending));
+		assertEquals(1L, pending.get(0).getSeq());
+		assertTrue("handed out once", journal.pending().isEmpty());
+		assertEquals(3L, journal.append(message(3)));
+		journal.close();
+	}
+
+	public void testTornTailIsDropped() throws IOException {
+		SegmentedJournal journal = new SegmentedJournal(fileName, 1 << 16, -1, 0);
+		journal.append(message(0));
+		journal.append(message(1));
+		journal.append(message(2));
+		journal.close();
+
+		// Flip the last byte of the last record, as a write cut short would.
+		File segment = segmentFiles()[0];
+		int recordSize = SegmentedJournal.RECORD_HEADER + message(0).length();
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			long last = 3L * recordSize - 1;
+			raf.seek(last);
+			int b = raf.read();
+			raf.seek(last);
+			raf.write(b ^ 0xff);
+		}
+
+		journal = new SegmentedJournal(fileName, 1 << 16, -1, 0);
+		assertEquals(List.of(message(0), message(1)), messages(journal.pending()));
+		// The torn record's sequence number is given out again, in a new segment.
+		assertEquals(2L, journal.append(message(3)));
+		journal.close();
+
+		journal = new SegmentedJournal(fileName, 1 << 16, -1, 0);
+		assertEquals(List.of(message(0), message(1), message(3)), messages(journal.pending()));
+		journal.close();
+	}
+
+	public void testLengthPastTheSegmentIsATornTail() throws IOException {
+		SegmentedJournal journal = new SegmentedJournal(fileName, 1 << 16, -1, 0);
+		journal.append(message(0));
+		journal.append(message(1));
+		journal.close();
+
+		int recordSize = SegmentedJournal.RECORD_HEADER + message(0).length();
+		try (RandomAccessFile raf = new RandomAccessFile(segmentFiles()[0], "rw")) {
+			raf.seek(recordSize);
+			raf.writeInt(Integer.MAX_VALUE);
+		}
+
+		journal = new SegmentedJournal(fileName, 1 << 16, -1, 0);
+		assertEquals(List.of(message(0)), messages(journal.pending()));
+		journal.close();
+	}
+
+	public void testCompletedSegmentsAreDeleted() throws IOException {
+		SegmentedJournal journal = new SegmentedJournal(fileName, SMALL_SEGMENT, -1, 0);
+		for (int i = 0; i < 4; i++) {
+			journal.append(message(i));
+		}
+		assertEquals(4, segmentFiles().length);
+
+		// Out of order: the cursor does not move past 0 yet.
+		journal.complete(1L);
+		assertEquals(4, segmentFiles().length);
+		assertEquals(4, journal.size());
+
+		journal.complete(0L);
+		File[] files = segmentFiles();
+		assertEquals(2, files.length);
+		assertEquals(String.format("%020d", 2) + SegmentedJournal.SEGMENT_SUFFIX, files[0].getName());
+		assertEquals(2, journal.size());
+
+		journal.complete(2L);
+		journal.complete(3L);
+		// The active segment stays.
+		assertEquals(1, segmentFiles().length);
+		assertEquals(0, journal.size());
+		journal.close();
+
+		journal = new SegmentedJournal(fileName, SMALL_SEGMENT, -1, 0);
+		assertTrue(journal.pending().isEmpty());
+		assertEquals(4L, journal.append(message(4)));
+		journal.close();
+	}
+
+	public void testRetainedSegmentsAreKept() throws IOException {
+		SegmentedJournal journal = new SegmentedJournal(fileName, SMALL_SEGMENT, -1, 2);
+		for (int i = 0; i < 4; i++) {
+			journal.append(message(i));
+		}
+		for (long seq = 0; seq < 4; seq++) {
+			journal.complete(seq);
+		}
+
+		// The active segment and the last two completed ones.
+		assertEquals(3, segmentFiles().length);
+		journal.close();
+	}
+
+	public void testMessageLargerThanASegment() throws IOException {
+		SegmentedJournal journal = new SegmentedJournal(fileName, SMALL_SEGMENT, -1, 0);
+		StringBuilder large = new StringBuilder("MSH|^~\\&|");
+		while (large.length() < 4 * SMALL_SEGMENT) {
+			large.append("OBX|1|ST|100^A^LN||x\r");
+		}
+		journal.append(message(0));
+		journal.append(large.toString());
+		journal.close();
+
+		journal = new SegmentedJournal(fileName, SMALL_SEGMENT, -1, 0);
+		assertEquals(List.of(message(0), large.toString()), messages(journal.pending()));
+		journal.close();
+	}
+}
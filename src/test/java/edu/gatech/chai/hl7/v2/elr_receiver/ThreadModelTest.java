@@ -0,0 +1,92 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+import junit.framework.TestCase;
+
+/*
+ * Resolving the configured model on the running JVM, and the names and
+ * daemon flags of the threads each model makes. Virtual threads are only
+ * checked on a JVM that has them.
+ */
+public class ThreadModelTest extends TestCase {
+	private static Thread threadOf(ExecutorService executor) throws Exception {
+		return executor.submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+	}
+
+	public void testResolve() {
+		assertEquals(ThreadModel.PLATFORM, ThreadModel.resolve(null));
+		assertEquals(ThreadModel.PLATFORM, ThreadModel.resolve("platform"));
+		assertEquals(ThreadModel.PLATFORM, ThreadModel.resolve("GREEN"));
+		assertEquals(ThreadModel.isVirtualAvailable() ? ThreadModel.VIRTUAL : ThreadModel.PLATFORM,
+				ThreadModel.resolve("virtual"));
+		assertEquals(Runtime.version().feature() >= 21, ThreadModel.isVirtualAvailable());
+	}
+
+	public void testApplicationKeepsTheResolvedModel() {
+		HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser> app = new HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser>();
+		assertEquals(ThreadModel.PLATFORM, app.getThreadModel());
+
+		app.configThreads("Virtual");
+		assertEquals(ThreadModel.resolve(ThreadModel.VIRTUAL), app.getThreadModel());
+	}
+
+	public void testPlatformThreadFactoryMakesNumberedDaemons() {
+		ThreadFactory factory = ThreadModel.newThreadFactory(ThreadModel.PLATFORM, "test-worker-");
+		Thread first = factory.newThread(() -> {
+		});
+		Thread second = factory.newThread(() -> {
+		});
+
+		assertEquals("test-worker-1", first.getName());
+		assertEquals("test-worker-2", second.getName());
+		assertTrue(first.isDaemon());
+	}
+
+	public void testVirtualThreadFactoryFallsBackOrMakesVirtualThreads() throws Exception {
+		Thread thread = ThreadModel.newThreadFactory(ThreadModel.VIRTUAL, "test-virtual-").newThread(() -> {
+		});
+
+		assertEquals("test-virtual-1", thread.getName());
+		assertTrue(thread.isDaemon());
+		if (ThreadModel.isVirtualAvailable()) {
+			assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+		}
+	}
+
+	public void testPlatformConnectionThreadsKeepTheProcessRunning() throws Exception {
+		ExecutorService executor = ThreadModel.newConnectionExecutor(ThreadModel.PLATFORM, "test-connection-");
+		try {
+			Thread thread = threadOf(executor);
+			assertEquals("test-connection-1", thread.getName());
+			assertFalse(thread.isDaemon());
+		} finally {
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		}
+	}
+
+	public void testVirtualConnectionExecutorHasAKeepAliveUntilShutdown() throws Exception {
+		if (!ThreadModel.isVirtualAvailable()) {
+			return;
+		}
+
+		ExecutorService executor = ThreadModel.newConnectionExecutor(ThreadModel.VIRTUAL, "test-vconnection-");
+		Thread keepAlive = null;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if ("test-vconnection-keepalive".equals(thread.getName())) {
+				keepAlive = thread;
+			}
+		}
+		assertNotNull(keepAlive);
+		assertFalse(keepAlive.isDaemon());
+		assertTrue(threadOf(executor).isDaemon());
+
+		executor.shutdown();
+		keepAlive.join(5000);
+		assertFalse(keepAlive.isAlive());
+	}
+}
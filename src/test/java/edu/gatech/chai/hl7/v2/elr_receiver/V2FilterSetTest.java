@@ -0,0 +1,128 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import junit.framework.TestCase;
+
+/*
+ * And/or semantics of the compiled v2 filters, the code-only pre-check, and
+ * validation of the filter JSON.
+ */
+public class V2FilterSetTest extends TestCase {
+	private static JSONObject filter(String conjunction, String segmentValue, String valueType, String value) {
+		return new JSONObject()
+				.put("conjunction", conjunction)
+				.put("segment_loc", "OBX-3")
+				.put("segment_value_type", "CE")
+				.put("segment_value", segmentValue)
+				.put("value_loc", "OBX-5")
+				.put("value_type", valueType)
+				.put("value_value", value);
+	}
+
+	private static V2FilterSet compile(JSONObject... filters) {
+		return V2FilterSet.compile(new JSONObject()
+				.put("version", V2FilterSet.SUPPORTED_VERSION)
+				.put("status", "active")
+				.put("filters", new JSONArray(List.of(filters))));
+	}
+
+	private static V2FilterSet.Observation st(String codeId, String codeText, String value) {
+		return new V2FilterSet.Observation(codeId, codeText, "", Collections.singletonList(new String[] { value }));
+	}
+
+	private static V2FilterSet.Observation sn(String codeId, String codeText, String num1, String num2) {
+		return new V2FilterSet.Observation(codeId, codeText, "",
+				Collections.singletonList(new String[] { "", num1, ":", num2 }));
+	}
+
+	private static final JSONObject RPR = filter("or", "123042232^RPR(QUAL)-SERUM^", "ST", "Reactive");
+	private static final JSONObject TITER = filter("or", "123042230^RPR TITER-SERUM^", "SN", ">^1^:^4");
+	private static final JSONObject HIV = filter("and", "1001^HIV^", "ST", "Positive");
+	private static final JSONObject HCV = filter("and", "1002^HCV^", "ST", "Positive");
+
+	public void testAllowAllAcceptsEverything() {
+		V2FilterSet set = V2FilterSet.compile(new JSONObject()
+				.put("version", V2FilterSet.SUPPORTED_VERSION)
+				.put("status", "allow_all"));
+
+		assertTrue(set.isAllowAll());
+		assertTrue(set.accepts(Collections.<V2FilterSet.Observation>emptyList()));
+		assertTrue(set.mayAccept(Collections.<String>emptySet()));
+	}
+
+	public void testOneOrFilterIsEnough() {
+		V2FilterSet set = compile(RPR, TITER);
+
+		assertTrue(set.accepts(List.of(st("999", "OTHER", "x"), st("123042232", "RPR(QUAL)-SERUM", "reactive"))));
+		assertTrue(set.accepts(List.of(sn("123042230", "RPR TITER-SERUM", "1", "8"))));
+		assertFalse(set.accepts(List.of(st("123042232", "RPR(QUAL)-SERUM", "Nonreactive"))));
+		assertFalse(set.accepts(List.of(sn("123042230", "RPR TITER-SERUM", "1", "2"))));
+		assertFalse(set.accepts(Collections.<V2FilterSet.Observation>emptyList()));
+	}
+
+	public void testEveryAndFilterMustMatch() {
+		V2FilterSet set = compile(HIV, HCV);
+
+		assertTrue(set.accepts(List.of(st("1001", "HIV", "Positive"), st("1002", "HCV", "Positive"))));
+		assertFalse(set.accepts(List.of(st("1001", "HIV", "Positive"))));
+		assertFalse(set.accepts(List.of(st("1001", "HIV", "Positive"), st("1002", "HCV", "Negative"))));
+	}
+
+	public void testAndFiltersNeedAnOrMatchToo() {
+		V2FilterSet set = compile(HIV, RPR);
+
+		assertTrue(set.accepts(List.of(st("1001", "HIV", "Positive"), st("123042232", "RPR(QUAL)-SERUM", "Reactive"))));
+		assertFalse(set.accepts(List.of(st("1001", "HIV", "Positive"))));
+		assertFalse(set.accepts(List.of(st("123042232", "RPR(QUAL)-SERUM", "Reactive"))));
+	}
+
+	public void testCodeTextAndSystemMustMatch() {
+		V2FilterSet set = compile(filter("or", "1001^HIV^LN", "ST", "Positive"));
+
+		assertFalse(set.accepts(List.of(st("1001", "HIV-1", "Positive"))));
+		assertFalse(set.accepts(List.of(st("1001", "HIV", "Positive"))));
+		assertTrue(set.accepts(List.of(new V2FilterSet.Observation("1001", "HIV", "LN",
+				Collections.singletonList(new String[] { "Positive" })))));
+	}
+
+	public void testMayAcceptLooksAtCodesOnly() {
+		V2FilterSet set = compile(HIV, RPR, TITER);
+
+		assertTrue(set.isWatchedCode("123042230"));
+		assertFalse(set.isWatchedCode("999"));
+		assertTrue(set.mayAccept(Set.of("1001", "123042230")));
+		assertFalse(set.mayAccept(Set.of("1001")));
+		assertFalse(set.mayAccept(Set.of("123042232", "123042230")));
+	}
+
+	public void testInvalidConfigurationIsRejected() {
+		JSONObject wrongVersion = new JSONObject().put("version", "9.9.9").put("filters", new JSONArray());
+		JSONObject noFilters = new JSONObject().put("version", V2FilterSet.SUPPORTED_VERSION);
+		JSONObject badConjunction = new JSONObject().put("version", V2FilterSet.SUPPORTED_VERSION)
+				.put("filters", new JSONArray(List.of(filter("xor", "1001^HIV^", "ST", "Positive"))));
+		JSONObject badSn = new JSONObject().put("version", V2FilterSet.SUPPORTED_VERSION)
+				.put("filters", new JSONArray(List.of(filter("or", "1001^HIV^", "SN", ">^1"))));
+
+		for (JSONObject json : List.of(wrongVersion, noFilters, badConjunction, badSn)) {
+			try {
+				V2FilterSet.compile(json);
+				fail("Accepted " + json);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testFilterWithoutCodeTextIsSkipped() {
+		V2FilterSet set = compile(filter("or", "1001^^", "ST", "Positive"), RPR);
+
+		assertEquals(1, set.size());
+		assertFalse(set.isWatchedCode("1001"));
+	}
+}
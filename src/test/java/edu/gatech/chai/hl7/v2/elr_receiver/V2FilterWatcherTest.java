@@ -0,0 +1,104 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+import junit.framework.TestCase;
+
+/*
+ * Loading the filter file into the receiver: unchanged content is not
+ * compiled again, a broken file leaves the active filters in place, and a
+ * saved file is picked up by the watcher thread.
+ */
+public class V2FilterWatcherTest extends TestCase {
+	private static final String ALLOW_ALL = new JSONObject().put("version", V2FilterSet.SUPPORTED_VERSION)
+			.put("status", "allow_all").toString();
+	private static final String BROKEN = new JSONObject().put("version", "9.9").put("status", "allow_all")
+			.toString();
+
+	private File dir;
+	private Path filterFile;
+	private HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser> app;
+	private V2FilterWatcher watcher;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("v2-filter-watcher-test").toFile();
+		filterFile = new File(dir, "v2filters.json").toPath();
+		app = new HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser>();
+		watcher = new V2FilterWatcher(app, filterFile.toString());
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		watcher.stop();
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private void write(String content) throws IOException {
+		Files.writeString(filterFile, content, StandardCharsets.UTF_8);
+	}
+
+	public void testUnchangedFileIsNotCompiledAgain() throws IOException {
+		write(ALLOW_ALL);
+		watcher.load();
+		V2FilterSet loaded = app.getV2FilterSet();
+		assertTrue(loaded.isAllowAll());
+		assertEquals(V2FilterWatcher.fingerprint(ALLOW_ALL.getBytes(StandardCharsets.UTF_8)),
+				watcher.getActiveFingerprint());
+
+		watcher.load();
+		assertSame(loaded, app.getV2FilterSet());
+	}
+
+	public void testBrokenFileKeepsTheActiveFilters() throws IOException {
+		write(ALLOW_ALL);
+		watcher.load();
+		V2FilterSet loaded = app.getV2FilterSet();
+		String fingerprint = watcher.getActiveFingerprint();
+
+		write(BROKEN);
+		try {
+			watcher.load();
+			fail("loaded filters of an unsupported version");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertSame(loaded, app.getV2FilterSet());
+		assertEquals(fingerprint, watcher.getActiveFingerprint());
+	}
+
+	public void testSavedFileIsReloaded() throws Exception {
+		write(ALLOW_ALL);
+		watcher.load();
+		V2FilterSet loaded = app.getV2FilterSet();
+		watcher.start();
+
+		write(BROKEN);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (watcher.getReloadFailures() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(1L, watcher.getReloadFailures());
+		assertSame(loaded, app.getV2FilterSet());
+
+		// Same filters, but different content.
+		write(ALLOW_ALL + "\n");
+		deadline = System.currentTimeMillis() + 10000;
+		while (watcher.getReloadCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(1L, watcher.getReloadCount());
+		assertNotSame(loaded, app.getV2FilterSet());
+	}
+}
@@ -0,0 +1,59 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import ca.uhn.hl7v2.HL7Exception;
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+import edu.gatech.chai.hl7.v2.parser.fhir.HL7v23FhirR4Parser;
+import edu.gatech.chai.hl7.v2.parser.fhir.HL7v251FhirR4Parser;
+import junit.framework.TestCase;
+
+/*
+ * Parsers by version, reuse of given back parsers, and the maxIdle cap.
+ */
+public class V2ParserRegistryTest extends TestCase {
+	public void testParserMatchesTheVersion() throws HL7Exception {
+		V2ParserRegistry registry = new V2ParserRegistry(2);
+
+		assertTrue(registry.supports("2.3"));
+		assertTrue(registry.supports("2.5.1"));
+		assertFalse(registry.supports("2.4"));
+		assertFalse(registry.supports(null));
+		assertTrue(registry.borrow("2.3") instanceof HL7v23FhirR4Parser);
+		assertTrue(registry.borrow("2.5.1") instanceof HL7v251FhirR4Parser);
+
+		try {
+			registry.borrow("2.4");
+			fail("borrowed a parser for an unsupported version");
+		} catch (HL7Exception e) {
+			assertTrue(e.getMessage().contains("2.4"));
+		}
+	}
+
+	public void testBorrowedParsersAreNotShared() throws HL7Exception {
+		V2ParserRegistry registry = new V2ParserRegistry(2);
+
+		BaseHL7v2FHIRParser first = registry.borrow("2.5.1");
+		BaseHL7v2FHIRParser second = registry.borrow("2.5.1");
+		assertNotSame(first, second);
+
+		registry.release("2.5.1", first);
+		assertSame(first, registry.borrow("2.5.1"));
+		assertNotSame(second, registry.borrow("2.5.1"));
+	}
+
+	public void testOnlyMaxIdleParsersAreKept() throws HL7Exception {
+		V2ParserRegistry registry = new V2ParserRegistry(1);
+
+		BaseHL7v2FHIRParser first = registry.borrow("2.3");
+		BaseHL7v2FHIRParser second = registry.borrow("2.3");
+		registry.release("2.3", first);
+		registry.release("2.3", second);
+		// Given back for a version it does not belong to, or none.
+		registry.release("2.4", second);
+		registry.release(null, second);
+
+		assertSame(first, registry.borrow("2.3"));
+		BaseHL7v2FHIRParser third = registry.borrow("2.3");
+		assertNotSame(first, third);
+		assertNotSame(second, third);
+	}
+}
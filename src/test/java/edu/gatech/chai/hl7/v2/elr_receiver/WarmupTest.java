@@ -0,0 +1,114 @@
+package edu.gatech.chai.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.json.JSONObject;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import edu.gatech.chai.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+
+/*
+ * The warm-up messages going through the receive path with no controller and
+ * without touching the metrics, a failing warm-up not stopping the receiver,
+ * and GET /ready before and after the receiver is ready.
+ */
+public class WarmupTest extends TestCase {
+	private final List<String> versions = new CopyOnWriteArrayList<String>();
+	private SimpleMeterRegistry registry;
+	private HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser> app;
+	private ReceiverMetrics metrics;
+
+	@Override
+	protected void setUp() {
+		registry = new SimpleMeterRegistry();
+		// Records the version of every message the filters look at.
+		app = new HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser>() {
+			@Override
+			List<V2FilterSet.Observation> collectObservations(Message theMessage) throws HL7Exception {
+				versions.add(theMessage.getVersion());
+				return super.collectObservations(theMessage);
+			}
+		};
+		app.configMetrics(new ReceiverMetrics(registry));
+		app.setV2Filters(new JSONObject().put("version", V2FilterSet.SUPPORTED_VERSION).put("status", "allow_all"));
+	}
+
+	@Override
+	protected void tearDown() {
+		if (metrics != null) {
+			metrics.stop();
+		}
+	}
+
+	private void assertNothingCounted() {
+		for (Meter meter : registry.getMeters()) {
+			if (meter instanceof Counter) {
+				assertEquals(meter.getId().toString(), 0.0, ((Counter) meter).count());
+			} else if (meter instanceof Timer) {
+				assertEquals(meter.getId().toString(), 0L, ((Timer) meter).count());
+			}
+		}
+	}
+
+	public void testWarmupRunsEveryMessageWithoutAController() {
+		assertNull(app.getControllerApiUrl());
+		new Warmup(app).run(3);
+
+		assertEquals(3 * Warmup.MESSAGES.length, versions.size());
+		assertTrue(versions.contains("2.3"));
+		assertTrue(versions.contains("2.5.1"));
+		assertNothingCounted();
+		assertNull(app.getRetryQueue());
+	}
+
+	public void testNoIterationsSkipsTheWarmup() {
+		new Warmup(app).run(0);
+		new Warmup(app).run(-1);
+		assertTrue(versions.isEmpty());
+	}
+
+	public void testFailureIsLoggedNotThrown() {
+		HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser> broken = new HL7v2ReceiverFHIRApplication<BaseHL7v2FHIRParser>() {
+			@Override
+			boolean isSupportedMessage(Message theMessage) {
+				throw new IllegalStateException("broken");
+			}
+		};
+		new Warmup(broken).run(1);
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	public void testReadyOnlyOnceSet() throws Exception {
+		metrics = ReceiverMetrics.prometheus();
+		int port = freePort();
+		metrics.serve(port);
+		HttpRequest ready = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/ready")).GET().build();
+
+		HttpResponse<String> response = HttpClient.newHttpClient().send(ready, HttpResponse.BodyHandlers.ofString());
+		assertEquals(503, response.statusCode());
+		assertEquals("warming up\n", response.body());
+
+		metrics.setReady(true);
+		response = HttpClient.newHttpClient().send(ready, HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, response.statusCode());
+		assertEquals("ready\n", response.body());
+	}
+}